@@ -0,0 +1,132 @@
+package qupath.imagej.processing;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.plugin.filter.EDM;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Compare {@link Watershed} with the {@link PriorityQueueWatershed} it replaced, using the two kinds of flooding
+ * needed for cell detection: splitting nuclei by intensity, and expanding nuclei into cells by distance.
+ * <p>
+ * Both implementations are checked to give identical labels before benchmarking.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4G"})
+public class WatershedBenchmark {
+
+	/**
+	 * Watershed implementation: either the bucket queue ('bucket') or the previous implementation ('priorityQueue').
+	 */
+	@Param({"bucket", "priorityQueue"})
+	public String implementation;
+
+	/**
+	 * Either 'intensity' to flood a blurred nucleus-like image from seeds at each nucleus center,
+	 * or 'expand' to flood a distance transform (as when expanding nuclei to approximate cells).
+	 */
+	@Param({"intensity", "expand"})
+	public String mode;
+
+	/**
+	 * Width &amp; height of the image.
+	 */
+	@Param({"1024", "2048"})
+	public int size;
+
+	/**
+	 * Use 8-connectivity if true, 4-connectivity if false.
+	 */
+	@Param({"false", "true"})
+	public boolean conn8;
+
+	private final static int PIXELS_PER_NUCLEUS = 400;
+
+	private FloatProcessor ip;
+	private ImageProcessor ipLabels;
+	private double minThreshold;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		var rand = new Random(42L);
+		int nNuclei = size * size / PIXELS_PER_NUCLEUS;
+		var bpNuclei = new ByteProcessor(size, size);
+		var bpSeeds = new ByteProcessor(size, size);
+		ip = new FloatProcessor(size, size);
+		float[] pixels = (float[])ip.getPixels();
+		for (int i = 0; i < nNuclei; i++) {
+			double cx = rand.nextDouble() * size;
+			double cy = rand.nextDouble() * size;
+			double radius = 3 + rand.nextDouble() * 4;
+			fillCircle(bpNuclei, cx, cy, radius);
+			fillCircle(bpSeeds, cx, cy, 1.5);
+			// Add a Gaussian blob, so that touching nuclei need to be split
+			double sigma = radius / 2;
+			int r = (int)Math.ceil(sigma * 3);
+			for (int y = Math.max(0, (int)cy - r); y <= Math.min(size - 1, (int)cy + r); y++) {
+				for (int x = Math.max(0, (int)cx - r); x <= Math.min(size - 1, (int)cx + r); x++) {
+					double d2 = (x - cx) * (x - cx) + (y - cy) * (y - cy);
+					pixels[y * size + x] += (float)Math.exp(-d2 / (2 * sigma * sigma));
+				}
+			}
+		}
+		if ("expand".equals(mode)) {
+			ip = new EDM().makeFloatEDM(bpNuclei, (byte)255, false);
+			ip.multiply(-1);
+			ipLabels = ROILabeling.labelImage(bpNuclei, conn8);
+			minThreshold = -10;
+		} else {
+			ipLabels = ROILabeling.labelImage(bpSeeds, conn8);
+			minThreshold = 0.1;
+		}
+
+		var labelsBucket = ipLabels.duplicate();
+		Watershed.doWatershed(ip, labelsBucket, minThreshold, conn8);
+		var labelsPriorityQueue = ipLabels.duplicate();
+		PriorityQueueWatershed.doWatershed(ip, labelsPriorityQueue, minThreshold, conn8);
+		if (!Arrays.equals((short[])labelsBucket.getPixels(), (short[])labelsPriorityQueue.getPixels()))
+			throw new RuntimeException("Watershed implementations give different labels!");
+	}
+
+	private static void fillCircle(ByteProcessor bp, double cx, double cy, double radius) {
+		int r = (int)Math.ceil(radius);
+		for (int y = (int)cy - r; y <= (int)cy + r; y++) {
+			for (int x = (int)cx - r; x <= (int)cx + r; x++) {
+				if ((x - cx) * (x - cx) + (y - cy) * (y - cy) <= radius * radius)
+					bp.putPixel(x, y, 255);
+			}
+		}
+	}
+
+	@Benchmark
+	public ImageProcessor doWatershed() {
+		var labels = ipLabels.duplicate();
+		if ("bucket".equals(implementation))
+			Watershed.doWatershed(ip, labels, minThreshold, conn8);
+		else
+			PriorityQueueWatershed.doWatershed(ip, labels, minThreshold, conn8);
+		return labels;
+	}
+
+}
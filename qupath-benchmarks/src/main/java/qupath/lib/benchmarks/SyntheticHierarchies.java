@@ -0,0 +1,140 @@
+package qupath.lib.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import qupath.lib.geom.Point2;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Helper methods to create reproducible object hierarchies of a specified size for benchmarking.
+ * <p>
+ * Detections are small polygons (approximately the size of a nucleus) scattered randomly,
+ * with roughly one detection per 400 pixels, and grouped into square annotations that tile the image.
+ */
+public class SyntheticHierarchies {
+
+	/**
+	 * Approximate number of pixels per detection.
+	 */
+	private final static double PIXELS_PER_DETECTION = 400;
+
+	/**
+	 * Width &amp; height of the annotations used to group detections.
+	 */
+	private final static int ANNOTATION_SIZE = 4096;
+
+	private final static String[] CLASS_NAMES = {"Tumor", "Stroma", "Immune cells"};
+
+	/**
+	 * Get the width &amp; height of a square image large enough to contain the specified number of detections.
+	 * @param nDetections
+	 * @return
+	 */
+	public static int getImageSize(int nDetections) {
+		return (int)Math.ceil(Math.sqrt(nDetections * PIXELS_PER_DETECTION));
+	}
+
+	/**
+	 * Create a list of detections, each with a random classification &amp; measurements.
+	 * @param nDetections number of detections
+	 * @param nMeasurements number of measurements per detection
+	 * @param nVertices number of vertices in each detection's polygon ROI
+	 * @param seed random seed, so that the same objects are generated each time
+	 * @return
+	 */
+	public static List<PathObject> createDetections(int nDetections, int nMeasurements, int nVertices, long seed) {
+		var rand = new Random(seed);
+		int imageSize = getImageSize(nDetections);
+		var pathClasses = new PathClass[CLASS_NAMES.length];
+		for (int i = 0; i < pathClasses.length; i++)
+			pathClasses[i] = PathClassFactory.getPathClass(CLASS_NAMES[i]);
+		String[] names = getMeasurementNames(nMeasurements);
+		var plane = ImagePlane.getDefaultPlane();
+		List<PathObject> detections = new ArrayList<>(nDetections);
+		for (int i = 0; i < nDetections; i++) {
+			double radius = 3 + rand.nextDouble() * 5;
+			double cx = radius + rand.nextDouble() * (imageSize - radius * 2);
+			double cy = radius + rand.nextDouble() * (imageSize - radius * 2);
+			var roi = createPolygon(cx, cy, radius, nVertices, rand, plane);
+			var measurements = MeasurementListFactory.createMeasurementList(nMeasurements, MeasurementList.TYPE.FLOAT);
+			for (String name : names)
+				measurements.addMeasurement(name, rand.nextDouble() * 100);
+			measurements.close();
+			detections.add(PathObjects.createDetectionObject(roi, pathClasses[rand.nextInt(pathClasses.length)], measurements));
+		}
+		return detections;
+	}
+
+	/**
+	 * Create a hierarchy containing the specified number of detections, grouped into annotations.
+	 * @param nDetections number of detections
+	 * @param nMeasurements number of measurements per detection
+	 * @param seed random seed, so that the same objects are generated each time
+	 * @return
+	 */
+	public static PathObjectHierarchy createHierarchy(int nDetections, int nMeasurements, long seed) {
+		int imageSize = getImageSize(nDetections);
+		int nAnnotations = (imageSize + ANNOTATION_SIZE - 1) / ANNOTATION_SIZE;
+		var annotations = new PathObject[nAnnotations * nAnnotations];
+		var plane = ImagePlane.getDefaultPlane();
+		for (int y = 0; y < nAnnotations; y++) {
+			for (int x = 0; x < nAnnotations; x++) {
+				int w = Math.min(ANNOTATION_SIZE, imageSize - x * ANNOTATION_SIZE);
+				int h = Math.min(ANNOTATION_SIZE, imageSize - y * ANNOTATION_SIZE);
+				annotations[y * nAnnotations + x] = PathObjects.createAnnotationObject(
+						ROIs.createRectangleROI(x * ANNOTATION_SIZE, y * ANNOTATION_SIZE, w, h, plane));
+			}
+		}
+		// Assign detections to annotations directly, since resolving the hierarchy is not what we want to measure
+		var detectionLists = new ArrayList<List<PathObject>>();
+		for (int i = 0; i < annotations.length; i++)
+			detectionLists.add(new ArrayList<>());
+		for (var detection : createDetections(nDetections, nMeasurements, 12, seed)) {
+			var roi = detection.getROI();
+			int x = Math.min(nAnnotations - 1, (int)(roi.getCentroidX() / ANNOTATION_SIZE));
+			int y = Math.min(nAnnotations - 1, (int)(roi.getCentroidY() / ANNOTATION_SIZE));
+			detectionLists.get(y * nAnnotations + x).add(detection);
+		}
+		for (int i = 0; i < annotations.length; i++)
+			annotations[i].addPathObjects(detectionLists.get(i));
+
+		var hierarchy = new PathObjectHierarchy();
+		hierarchy.getRootObject().addPathObjects(List.of(annotations));
+		hierarchy.fireHierarchyChangedEvent(SyntheticHierarchies.class);
+		return hierarchy;
+	}
+
+	/**
+	 * Get default measurement names.
+	 * @param nMeasurements
+	 * @return
+	 */
+	public static String[] getMeasurementNames(int nMeasurements) {
+		String[] names = new String[nMeasurements];
+		for (int i = 0; i < nMeasurements; i++)
+			names[i] = "Measurement " + (i + 1);
+		return names;
+	}
+
+	private static ROI createPolygon(double cx, double cy, double radius, int nVertices, Random rand, ImagePlane plane) {
+		List<Point2> points = new ArrayList<>(nVertices);
+		for (int v = 0; v < nVertices; v++) {
+			double theta = 2 * Math.PI * v / nVertices;
+			double r = radius * (0.8 + rand.nextDouble() * 0.2);
+			points.add(new Point2(cx + Math.cos(theta) * r, cy + Math.sin(theta) * r));
+		}
+		return ROIs.createPolygonROI(points, plane);
+	}
+
+}
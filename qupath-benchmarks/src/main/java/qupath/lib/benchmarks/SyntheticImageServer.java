@@ -0,0 +1,135 @@
+package qupath.lib.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+
+import qupath.lib.awt.color.model.ColorModelFactory;
+import qupath.lib.images.servers.AbstractTileableImageServer;
+import qupath.lib.images.servers.GeneratingImageServer;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.TileRequest;
+
+/**
+ * Tiled, pyramidal image server that generates deterministic pixel values on request.
+ * <p>
+ * This makes it possible to benchmark code that reads images without depending upon
+ * any particular image file (or file reading library).
+ */
+public class SyntheticImageServer extends AbstractTileableImageServer implements GeneratingImageServer<BufferedImage> {
+
+	private final String path;
+	private final ImageServerMetadata originalMetadata;
+
+	/**
+	 * Create a synthetic RGB image server.
+	 * @param width
+	 * @param height
+	 * @param tileSize
+	 */
+	public SyntheticImageServer(int width, int height, int tileSize) {
+		this(width, height, tileSize, 3, 8, true);
+	}
+
+	/**
+	 * Create a synthetic image server.
+	 * @param width full resolution image width
+	 * @param height full resolution image height
+	 * @param tileSize preferred tile width &amp; height
+	 * @param nChannels number of channels (must be 3 for RGB)
+	 * @param bitDepth 8 or 16 (must be 8 for RGB)
+	 * @param rgb true if the server should provide packed RGB images
+	 */
+	public SyntheticImageServer(int width, int height, int tileSize, int nChannels, int bitDepth, boolean rgb) {
+		super();
+		if (rgb && (nChannels != 3 || bitDepth != 8))
+			throw new IllegalArgumentException("RGB images must have 3 channels & a bit depth of 8");
+		if (bitDepth != 8 && bitDepth != 16)
+			throw new IllegalArgumentException("Unsupported bit depth " + bitDepth);
+		this.path = String.format("synthetic://%dx%d-tile%d-c%d-%dbit%s", width, height, tileSize, nChannels, bitDepth, rgb ? "-rgb" : "");
+		this.originalMetadata = new ImageServerMetadata.Builder(getClass(), path, width, height)
+				.preferredTileSize(tileSize, tileSize)
+				.levelsFromDownsamples(1, 4, 16, 64)
+				.bitDepth(bitDepth)
+				.channels(rgb ? ImageChannel.getDefaultRGBChannels() : ImageChannel.getDefaultChannelList(nChannels))
+				.rgb(rgb)
+				.build();
+	}
+
+	@Override
+	protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+		int width = tileRequest.getTileWidth();
+		int height = tileRequest.getTileHeight();
+		double downsample = tileRequest.getDownsample();
+		int x0 = tileRequest.getImageX();
+		int y0 = tileRequest.getImageY();
+		if (isRGB()) {
+			var img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			int[] rgb = new int[width * height];
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					double xx = x0 + x * downsample;
+					double yy = y0 + y * downsample;
+					int r = value(xx, yy, 0, 255);
+					int g = value(xx, yy, 1, 255);
+					int b = value(xx, yy, 2, 255);
+					rgb[y * width + x] = (r << 16) | (g << 8) | b;
+				}
+			}
+			img.getRaster().setDataElements(0, 0, width, height, rgb);
+			return img;
+		}
+		int nChannels = nChannels();
+		int maxValue = getBitsPerPixel() == 8 ? 255 : 65535;
+		int dataType = getBitsPerPixel() == 8 ? DataBuffer.TYPE_BYTE : DataBuffer.TYPE_USHORT;
+		WritableRaster raster = WritableRaster.createBandedRaster(dataType, width, height, nChannels, null);
+		int[] samples = new int[width * height];
+		for (int c = 0; c < nChannels; c++) {
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++)
+					samples[y * width + x] = value(x0 + x * downsample, y0 + y * downsample, c, maxValue);
+			}
+			raster.setSamples(0, 0, width, height, c, samples);
+		}
+		return new BufferedImage(ColorModelFactory.getDummyColorModel(getBitsPerPixel()), raster, false, null);
+	}
+
+	/**
+	 * Smoothly-varying blobs, with a different phase for each channel.
+	 */
+	private static int value(double x, double y, int channel, int maxValue) {
+		double v = Math.sin(x * 0.05 + channel) * Math.cos(y * 0.03 - channel * 0.5);
+		return (int)((v + 1) * 0.5 * maxValue);
+	}
+
+	@Override
+	public String getPath() {
+		return path;
+	}
+
+	@Override
+	public String getShortServerName() {
+		return path;
+	}
+
+	@Override
+	public String getServerType() {
+		return "Synthetic";
+	}
+
+	@Override
+	public String getDisplayedImageName() {
+		return path;
+	}
+
+	@Override
+	public ImageServerMetadata getOriginalMetadata() {
+		return originalMetadata;
+	}
+
+	@Override
+	public void close() {}
+
+}
@@ -0,0 +1,83 @@
+package qupath.lib.display;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import qupath.lib.benchmarks.SyntheticImageServer;
+import qupath.lib.images.ImageData;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Measure {@link ImageDisplay#applyTransforms(BufferedImage, BufferedImage, List, boolean)},
+ * which converts every tile painted in a viewer to RGB using the current channel settings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageDisplayBenchmark {
+
+	/**
+	 * If true, use a brightfield RGB image; otherwise use a 16-bit fluorescence image.
+	 */
+	@Param({"true", "false"})
+	public boolean rgb;
+
+	/**
+	 * Number of channels, used only if rgb is false.
+	 */
+	@Param({"4"})
+	public int nChannels;
+
+	/**
+	 * Width &amp; height of the tile to transform.
+	 */
+	@Param({"512"})
+	public int tileSize;
+
+	private BufferedImage imgInput;
+	private BufferedImage imgOutput;
+	private List<ChannelDisplayInfo> selectedChannels;
+	private boolean useGrayscaleLuts;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		var server = rgb ? new SyntheticImageServer(tileSize, tileSize, tileSize) :
+			new SyntheticImageServer(tileSize, tileSize, tileSize, nChannels, 16, false);
+		var imageData = new ImageData<>(server, rgb ? ImageData.ImageType.BRIGHTFIELD_H_E : ImageData.ImageType.FLUORESCENCE);
+		var display = new ImageDisplay(imageData);
+		// Use all the channels (for fluorescence) or the original image (for brightfield)
+		if (!rgb) {
+			for (var channel : display.availableChannels())
+				display.setChannelSelected(channel, true);
+		}
+		selectedChannels = new ArrayList<>(display.selectedChannels());
+		useGrayscaleLuts = display.useGrayscaleLuts();
+		imgInput = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), 1, 0, 0, tileSize, tileSize));
+		imgOutput = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+	}
+
+	@Benchmark
+	public BufferedImage applyTransforms() {
+		return ImageDisplay.applyTransforms(imgInput, imgOutput, selectedChannels, useGrayscaleLuts);
+	}
+
+}
@@ -0,0 +1,132 @@
+package qupath.lib.gui.images.stores;
+
+import java.awt.Color;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measure painting a full frame of cached tiles into a viewer-sized image, 
+ * comparing Java2D with a {@link TileCompositor}.
+ * <p>
+ * The 'pan' benchmark shifts the view by a few pixels per frame, so that most tiles 
+ * can be reused from the previous frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TileCompositorBenchmark {
+
+	/**
+	 * Downsample at which tiles are painted (relative to the tile resolution).
+	 */
+	@Param({"0.75", "1.3"})
+	public double downsample;
+
+	/**
+	 * If true, use bilinear interpolation; otherwise use nearest neighbor.
+	 */
+	@Param({"false", "true"})
+	public boolean bilinear;
+
+	/**
+	 * Width &amp; height of each tile.
+	 */
+	@Param({"512"})
+	public int tileSize;
+
+	private final int width = 3840;
+	private final int height = 2160;
+
+	private BufferedImage[] tiles;
+	private int nTilesX;
+	private BufferedImage imgTarget;
+	private TileCompositor compositor;
+	private int frame;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		nTilesX = (int)Math.ceil(width * downsample / tileSize) + 2;
+		int nTilesY = (int)Math.ceil(height * downsample / tileSize) + 1;
+		var random = new Random(100L);
+		tiles = new BufferedImage[nTilesX * nTilesY];
+		for (int i = 0; i < tiles.length; i++) {
+			var img = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+			int[] rgb = new int[tileSize * tileSize];
+			for (int j = 0; j < rgb.length; j++)
+				rgb[j] = random.nextInt();
+			img.getRaster().setDataElements(0, 0, tileSize, tileSize, rgb);
+			tiles[i] = img;
+		}
+		imgTarget = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+		compositor = new TileCompositor();
+		compositor.setTarget(imgTarget);
+	}
+
+	private double nextOrigin() {
+		frame = (frame + 1) % 256;
+		return frame * 2 * downsample;
+	}
+
+	@Benchmark
+	public BufferedImage java2D() {
+		double xOrigin = nextOrigin();
+		var g2d = imgTarget.createGraphics();
+		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, bilinear ?
+				RenderingHints.VALUE_INTERPOLATION_BILINEAR : RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+		g2d.setColor(Color.BLACK);
+		g2d.fillRect(0, 0, width, height);
+		g2d.scale(1.0/downsample, 1.0/downsample);
+		g2d.translate(-xOrigin, 0);
+		for (int i = 0; i < tiles.length; i++) {
+			int x = (i % nTilesX) * tileSize;
+			int y = (i / nTilesX) * tileSize;
+			g2d.drawImage(tiles[i], x, y, tileSize, tileSize, null);
+		}
+		g2d.dispose();
+		return imgTarget;
+	}
+
+	private BufferedImage composite(boolean reusePrevious) {
+		double xOrigin = nextOrigin();
+		if (!reusePrevious)
+			compositor.reset();
+		compositor.beginFrame(downsample, xOrigin, 0, 0xff000000, bilinear, 0L);
+		for (int i = 0; i < tiles.length; i++) {
+			int x = (i % nTilesX) * tileSize;
+			int y = (i / nTilesX) * tileSize;
+			if (!compositor.isUnchanged(i, tiles[i], x, y, tileSize, tileSize))
+				compositor.drawImage(tiles[i], x, y, tileSize, tileSize, i, tiles[i]);
+		}
+		compositor.endFrame();
+		return imgTarget;
+	}
+
+	@Benchmark
+	public BufferedImage compositor() {
+		return composite(false);
+	}
+
+	@Benchmark
+	public BufferedImage compositorPan() {
+		return composite(true);
+	}
+
+}
@@ -0,0 +1,115 @@
+package qupath.lib.images.servers;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import qupath.lib.benchmarks.SyntheticImageServer;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Measure {@link AbstractTileableImageServer#readBufferedImage(RegionRequest)} for requests that span several tiles,
+ * both when tiles must be generated and when they are available from the tile cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TileableImageServerBenchmark {
+
+	/**
+	 * If true, request a packed RGB image; otherwise request a 16-bit multichannel image.
+	 */
+	@Param({"true", "false"})
+	public boolean rgb;
+
+	/**
+	 * Number of channels, used only if rgb is false.
+	 */
+	@Param({"4"})
+	public int nChannels;
+
+	/**
+	 * If true, tiles are cached after they are first read.
+	 */
+	@Param({"true", "false"})
+	public boolean cached;
+
+	/**
+	 * Downsample factor of each request.
+	 */
+	@Param({"1", "4"})
+	public double downsample;
+
+	/**
+	 * Width &amp; height of each request, at the requested downsample.
+	 */
+	@Param({"1024"})
+	public int requestSize;
+
+	private final static int IMAGE_SIZE = 32768;
+	private final static int TILE_SIZE = 512;
+	private final static int N_REQUESTS = 64;
+
+	private Map<RegionRequest, BufferedImage> previousCache;
+	private ImageServer<BufferedImage> server;
+	private RegionRequest[] requests;
+	private int requestCount = 0;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		previousCache = ImageServerProvider.getCache(BufferedImage.class);
+		ImageServerProvider.setCache(cached ? new ConcurrentHashMap<>() : null, BufferedImage.class);
+		if (rgb)
+			server = new SyntheticImageServer(IMAGE_SIZE, IMAGE_SIZE, TILE_SIZE);
+		else
+			server = new SyntheticImageServer(IMAGE_SIZE, IMAGE_SIZE, TILE_SIZE, nChannels, 16, false);
+
+		// Use requests that are not aligned to tile boundaries, since this is the usual case when viewing images
+		var rand = new Random(42L);
+		int size = (int)Math.round(requestSize * downsample);
+		requests = new RegionRequest[N_REQUESTS];
+		for (int i = 0; i < N_REQUESTS; i++) {
+			int x = rand.nextInt(IMAGE_SIZE - size);
+			int y = rand.nextInt(IMAGE_SIZE - size);
+			requests[i] = RegionRequest.createInstance(server.getPath(), downsample, x, y, size, size);
+		}
+		// Fill the cache, if there is one
+		if (cached) {
+			for (var request : requests)
+				server.readBufferedImage(request);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		server.close();
+		ImageServerProvider.setCache(previousCache, BufferedImage.class);
+	}
+
+	@Benchmark
+	public BufferedImage readBufferedImage() throws IOException {
+		requestCount = (requestCount + 1) % N_REQUESTS;
+		return server.readBufferedImage(requests[requestCount]);
+	}
+
+}
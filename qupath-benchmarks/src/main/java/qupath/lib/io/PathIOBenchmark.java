@@ -0,0 +1,79 @@
+package qupath.lib.io;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import qupath.lib.benchmarks.SyntheticHierarchies;
+import qupath.lib.benchmarks.SyntheticImageServer;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+
+/**
+ * Measure writing &amp; reading serialized image data (i.e. .qpdata files) containing many detections.
+ * Streams are held in memory, so that disk performance does not affect the results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PathIOBenchmark {
+
+	/**
+	 * Number of detections in the hierarchy.
+	 */
+	@Param({"10000", "100000"})
+	public int nDetections;
+
+	/**
+	 * Number of measurements per detection.
+	 */
+	@Param({"20"})
+	public int nMeasurements;
+
+	private ImageServer<BufferedImage> server;
+	private ImageData<BufferedImage> imageData;
+	private byte[] bytes;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		int imageSize = SyntheticHierarchies.getImageSize(nDetections);
+		server = new SyntheticImageServer(imageSize, imageSize, 512);
+		imageData = new ImageData<>(server, SyntheticHierarchies.createHierarchy(nDetections, nMeasurements, 42L));
+		bytes = write().toByteArray();
+	}
+
+	private ByteArrayOutputStream write() throws IOException {
+		var stream = new ByteArrayOutputStream(bytes == null ? 1024 * 1024 : bytes.length);
+		PathIO.writeImageData(stream, imageData);
+		return stream;
+	}
+
+	@Benchmark
+	public int writeImageData() throws IOException {
+		return write().size();
+	}
+
+	@Benchmark
+	public ImageData<BufferedImage> readImageData() throws IOException {
+		return PathIO.readImageData(new ByteArrayInputStream(bytes), null, server, BufferedImage.class);
+	}
+
+}
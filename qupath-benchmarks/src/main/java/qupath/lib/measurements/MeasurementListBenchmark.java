@@ -0,0 +1,127 @@
+package qupath.lib.measurements;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import qupath.lib.benchmarks.SyntheticHierarchies;
+
+/**
+ * Measure the creation of numeric measurement lists &amp; lookups by name or index,
+ * using one list per object to reflect the access pattern when measurements are exported or classified.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MeasurementListBenchmark {
+
+	/**
+	 * Type of measurement list.
+	 */
+	@Param({"FLOAT", "DOUBLE"})
+	public MeasurementList.TYPE type;
+
+	/**
+	 * Number of measurements in each list.
+	 */
+	@Param({"10", "50", "200"})
+	public int nMeasurements;
+
+	/**
+	 * Number of measurement lists (i.e. objects).
+	 */
+	@Param({"10000"})
+	public int nLists;
+
+	private String[] names;
+	private List<MeasurementList> lists;
+	private double[] values;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		names = SyntheticHierarchies.getMeasurementNames(nMeasurements);
+		var rand = new Random(42L);
+		values = new double[nMeasurements];
+		for (int i = 0; i < nMeasurements; i++)
+			values[i] = rand.nextDouble();
+		lists = new ArrayList<>(nLists);
+		for (int i = 0; i < nLists; i++)
+			lists.add(createList());
+	}
+
+	private MeasurementList createList() {
+		var list = MeasurementListFactory.createMeasurementList(nMeasurements, type);
+		for (int i = 0; i < nMeasurements; i++)
+			list.addMeasurement(names[i], values[i]);
+		list.close();
+		return list;
+	}
+
+	/**
+	 * Create &amp; close a single measurement list.
+	 * @return
+	 */
+	@Benchmark
+	public MeasurementList create() {
+		return createList();
+	}
+
+	/**
+	 * Look up every measurement by name, in every list.
+	 * @return
+	 */
+	@Benchmark
+	public double getValuesByName() {
+		double sum = 0;
+		for (var list : lists) {
+			for (String name : names)
+				sum += list.getMeasurementValue(name);
+		}
+		return sum;
+	}
+
+	/**
+	 * Look up every measurement by index, in every list.
+	 * @return
+	 */
+	@Benchmark
+	public double getValuesByIndex() {
+		double sum = 0;
+		for (var list : lists) {
+			for (int i = 0; i < nMeasurements; i++)
+				sum += list.getMeasurementValue(i);
+		}
+		return sum;
+	}
+
+	/**
+	 * Look up a single measurement by name, in every list (e.g. to apply a threshold).
+	 * @return
+	 */
+	@Benchmark
+	public double getSingleValueByName() {
+		String name = names[nMeasurements / 2];
+		double sum = 0;
+		for (var list : lists)
+			sum += list.getMeasurementValue(name);
+		return sum;
+	}
+
+}
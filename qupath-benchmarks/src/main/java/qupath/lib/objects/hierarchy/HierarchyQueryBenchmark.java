@@ -0,0 +1,81 @@
+package qupath.lib.objects.hierarchy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import qupath.lib.benchmarks.SyntheticHierarchies;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.ImageRegion;
+
+/**
+ * Measure region queries via {@link PathObjectHierarchy#getObjectsForRegion(Class, ImageRegion, java.util.Collection)},
+ * which are backed by the {@link PathObjectTileCache}.
+ * The regions are similar in size to those requested when painting a viewer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HierarchyQueryBenchmark {
+
+	/**
+	 * Number of detections in the hierarchy.
+	 */
+	@Param({"10000", "100000", "1000000"})
+	public int nDetections;
+
+	/**
+	 * Width &amp; height of each query region, in pixels.
+	 */
+	@Param({"512", "2048"})
+	public int regionSize;
+
+	private final static int N_QUERIES = 256;
+
+	private PathObjectHierarchy hierarchy;
+	private ImageRegion[] regions;
+	private final List<PathObject> results = new ArrayList<>();
+	private int queryCount = 0;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		hierarchy = SyntheticHierarchies.createHierarchy(nDetections, 0, 42L);
+		int imageSize = SyntheticHierarchies.getImageSize(nDetections);
+		var rand = new Random(42L);
+		regions = new ImageRegion[N_QUERIES];
+		for (int i = 0; i < N_QUERIES; i++) {
+			int x = rand.nextInt(Math.max(1, imageSize - regionSize));
+			int y = rand.nextInt(Math.max(1, imageSize - regionSize));
+			regions[i] = ImageRegion.createInstance(x, y, regionSize, regionSize, 0, 0);
+		}
+		// Ensure the spatial cache is built before measuring
+		hierarchy.getObjectsForRegion(PathDetectionObject.class, regions[0], null);
+	}
+
+	@Benchmark
+	public int getDetectionsForRegion() {
+		queryCount = (queryCount + 1) % N_QUERIES;
+		results.clear();
+		hierarchy.getObjectsForRegion(PathDetectionObject.class, regions[queryCount], results);
+		return results.size();
+	}
+
+}
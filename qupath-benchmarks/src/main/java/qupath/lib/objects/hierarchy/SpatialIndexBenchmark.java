@@ -0,0 +1,128 @@
+package qupath.lib.objects.hierarchy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.quadtree.Quadtree;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compare the {@link PackedRTree} used by {@link PathObjectTileCache} with the JTS {@link Quadtree} it replaced,
+ * for bulk loading &amp; viewport-sized region queries over cell-sized objects.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpatialIndexBenchmark {
+
+	/**
+	 * Number of objects in the index.
+	 */
+	@Param({"10000", "100000", "1000000"})
+	public int nObjects;
+
+	/**
+	 * Width &amp; height of each query region, in pixels.
+	 */
+	@Param({"2000"})
+	public double regionSize;
+
+	private final static int N_QUERIES = 256;
+
+	private double[] bounds;
+	private Envelope[] envelopes;
+	private double[] queries;
+
+	private Quadtree quadtree;
+	private PackedRTree tree;
+
+	private final List<Object> results = new ArrayList<>();
+	private int queryCount = 0;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		// Scatter cells (approx 10 x 10 pixels) uniformly over a square image with about 1 cell per 400 pixels
+		var rand = new Random(42L);
+		double imageSize = Math.sqrt(nObjects * 400.0);
+		bounds = new double[nObjects * 4];
+		envelopes = new Envelope[nObjects];
+		for (int i = 0; i < nObjects; i++) {
+			double x = rand.nextDouble() * imageSize;
+			double y = rand.nextDouble() * imageSize;
+			double w = 5 + rand.nextDouble() * 10;
+			double h = 5 + rand.nextDouble() * 10;
+			bounds[i*4] = x;
+			bounds[i*4+1] = y;
+			bounds[i*4+2] = x + w;
+			bounds[i*4+3] = y + h;
+			envelopes[i] = new Envelope(x, x + w, y, y + h);
+		}
+		queries = new double[N_QUERIES * 2];
+		for (int i = 0; i < queries.length; i++)
+			queries[i] = rand.nextDouble() * Math.max(1, imageSize - regionSize);
+		quadtree = buildQuadtree();
+		tree = buildPackedRTree();
+	}
+
+	private Quadtree buildQuadtree() {
+		var quadtree = new Quadtree();
+		for (int i = 0; i < nObjects; i++)
+			quadtree.insert(envelopes[i], i);
+		return quadtree;
+	}
+
+	private PackedRTree buildPackedRTree() {
+		return new PackedRTree(bounds, nObjects);
+	}
+
+	@Benchmark
+	public Object buildQuadtreeIndex() {
+		return buildQuadtree();
+	}
+
+	@Benchmark
+	public Object buildPackedRTreeIndex() {
+		return buildPackedRTree();
+	}
+
+	@Benchmark
+	public void queryQuadtree(Blackhole bh) {
+		int q = nextQuery();
+		double x = queries[q], y = queries[q+1];
+		var list = quadtree.query(new Envelope(x, x + regionSize, y, y + regionSize));
+		bh.consume(list.size());
+	}
+
+	@Benchmark
+	public void queryPackedRTree(Blackhole bh) {
+		int q = nextQuery();
+		double x = queries[q], y = queries[q+1];
+		results.clear();
+		tree.query(x, y, x + regionSize, y + regionSize, id -> results.add(envelopes[id]));
+		bh.consume(results.size());
+	}
+
+	private int nextQuery() {
+		queryCount = (queryCount + 1) % N_QUERIES;
+		return queryCount * 2;
+	}
+
+}
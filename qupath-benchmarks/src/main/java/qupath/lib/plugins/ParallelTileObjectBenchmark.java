@@ -0,0 +1,111 @@
+package qupath.lib.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Measure the resolution of overlapping detections between two adjacent {@link ParallelTileObject}s,
+ * as happens whenever a tiled detection command completes a tile.
+ * <p>
+ * Each tile contains the same detections within the overlap region (as if both tiles detected the same cells),
+ * plus detections elsewhere that should not be compared.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+public class ParallelTileObjectBenchmark {
+
+	/**
+	 * Number of detections per tile.
+	 */
+	@Param({"1000", "10000"})
+	public int nDetections;
+
+	/**
+	 * Width of the overlap between tiles, in pixels.
+	 */
+	@Param({"64"})
+	public int overlap;
+
+	private final static int TILE_SIZE = 2048;
+
+	private List<ROI> roisFirst;
+	private List<ROI> roisSecond;
+
+	private ParallelTileObject first;
+	private ParallelTileObject second;
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		// Generate detections over the full area covered by both tiles, then assign them to one or both tiles
+		int width = TILE_SIZE * 2 - overlap;
+		var rand = new Random(42L);
+		var plane = ImagePlane.getDefaultPlane();
+		roisFirst = new ArrayList<>();
+		roisSecond = new ArrayList<>();
+		for (int i = 0; i < nDetections * 2; i++) {
+			double x = rand.nextDouble() * width;
+			double y = rand.nextDouble() * TILE_SIZE;
+			double radius = 3 + rand.nextDouble() * 5;
+			var roi = ROIs.createEllipseROI(x - radius, y - radius, radius * 2, radius * 2, plane);
+			if (x < TILE_SIZE)
+				roisFirst.add(roi);
+			if (x >= TILE_SIZE - overlap)
+				roisSecond.add(roi);
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void setupInvocation() {
+		var hierarchy = new PathObjectHierarchy();
+		var plane = ImagePlane.getDefaultPlane();
+		var countdown = new AtomicInteger(2);
+		first = new ParallelTileObject(ROIs.createRectangleROI(0, 0, TILE_SIZE, TILE_SIZE, plane), hierarchy, countdown);
+		second = new ParallelTileObject(ROIs.createRectangleROI(TILE_SIZE - overlap, 0, TILE_SIZE, TILE_SIZE, plane), hierarchy, countdown);
+		first.suggestNeighbor(second);
+		second.suggestNeighbor(first);
+		first.addPathObjects(createDetections(roisFirst));
+		second.addPathObjects(createDetections(roisSecond));
+		first.setComplete();
+	}
+
+	private static List<PathObject> createDetections(List<ROI> rois) {
+		var list = new ArrayList<PathObject>(rois.size());
+		for (var roi : rois)
+			list.add(PathObjects.createDetectionObject(roi));
+		return list;
+	}
+
+	@Benchmark
+	public int resolveOverlaps() {
+		second.setComplete();
+		return second.nChildObjects();
+	}
+
+}
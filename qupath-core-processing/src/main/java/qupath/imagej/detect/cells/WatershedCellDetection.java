@@ -42,7 +42,6 @@ import ij.gui.PolygonRoi;
 import ij.gui.Roi;
 import ij.gui.Wand;
 import ij.measure.Calibration;
-import ij.measure.Measurements;
 import ij.plugin.filter.EDM;
 import ij.plugin.filter.RankFilters;
 import ij.process.Blitter;
@@ -51,12 +50,12 @@ import ij.process.ColorProcessor;
 import ij.process.FloatPolygon;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
 import ij.process.ShortProcessor;
 import qupath.imagej.color.ColorDeconvolutionIJ;
 import qupath.imagej.helpers.IJTools;
 import qupath.imagej.objects.PathImagePlus;
 import qupath.imagej.objects.ROIConverterIJ;
+import qupath.imagej.objects.measure.LabelStatistics;
 import qupath.imagej.objects.measure.ObjectMeasurements;
 import qupath.imagej.processing.MorphologicalReconstruction;
 import qupath.imagej.processing.ROILabeling;
@@ -628,20 +627,21 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 //				logger.info("Mean threshold set: " + threshold);
 //			}
 
+			// Measure all the potential nuclei together
+			LabelStatistics statsRois = ObjectMeasurements.computeStatistics(rois, ipToMeasure, false, false);
+			LabelStatistics statsBackground = bpBackgroundMask == null ? null : ObjectMeasurements.computeStatistics(rois, bpBackgroundMask, false, false);
 			bp.setValue(255);
+			int roiLabel = 0;
 			for (Roi r : rois) {
+				roiLabel++;
 				// Perform mean intensity check - skip if below threshold
-				ipToMeasure.setRoi(r);
-				double mean = ipToMeasure.getStatistics().mean;
+				double mean = statsRois.getMean(roiLabel);
 				if (mean <= threshold) {
 					continue;
 				}
 				// Perform background intensity check, if required
-				if (bpBackgroundMask != null) {
-					bpBackgroundMask.setRoi(r);
-					if (bpBackgroundMask.getStatistics().mean > 0)
-						continue;				
-				}
+				if (statsBackground != null && statsBackground.getMean(roiLabel) > 0)
+					continue;
 				// Fill the ROI to keep it
 				bp.fill(r);
 			}
@@ -700,18 +700,18 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 			// Remove nuclei with areas outside the permitted range - updating the binary image as we go
 			if (minArea > 0 || maxArea > 0) {
 				bp.setValue(0);
+				LabelStatistics statsNuclei = ObjectMeasurements.computeStatistics(roisNuclei, ipToMeasure, false, false);
 				Iterator<PolygonRoi> iter = roisNuclei.iterator();
+				int nucleusLabel = 0;
 				while (iter.hasNext()) {
 					Roi roiTemp = iter.next();
-					ipToMeasure.setRoi(roiTemp);
-					ImageStatistics stats = ImageStatistics.getStatistics(ipToMeasure, Measurements.AREA | Measurements.MEAN, null);
-					double area = stats.pixelCount;
-					if ((stats.mean < threshold) || (minArea > 0 && area < minArea) || (maxArea > 0 && area > maxArea)) {
+					nucleusLabel++;
+					double area = statsNuclei.getPixelCount(nucleusLabel);
+					if ((statsNuclei.getMean(nucleusLabel) < threshold) || (minArea > 0 && area < minArea) || (maxArea > 0 && area > maxArea)) {
 						iter.remove();
 						bp.fill(roiTemp);
 					}
 				}
-				ipToMeasure.resetRoi();
 			}
 			
 			
@@ -41,7 +41,6 @@ import ij.gui.PolygonRoi;
 import ij.gui.Roi;
 import ij.gui.Wand;
 import ij.measure.Calibration;
-import ij.measure.Measurements;
 import ij.plugin.filter.EDM;
 import ij.plugin.filter.MaximumFinder;
 import ij.plugin.filter.RankFilters;
@@ -51,11 +50,11 @@ import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
 import ij.process.FloodFiller;
 import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
 import ij.process.ShortProcessor;
 import qupath.imagej.color.ColorDeconvolutionIJ;
 import qupath.imagej.objects.PathImagePlus;
 import qupath.imagej.objects.ROIConverterIJ;
+import qupath.imagej.objects.measure.LabelStatistics;
 import qupath.imagej.objects.measure.ObjectMeasurements;
 import qupath.imagej.processing.MorphologicalReconstruction;
 import qupath.imagej.processing.ROILabeling;
@@ -580,20 +579,21 @@ public class WatershedCellMembraneDetection extends AbstractTileableDetectionPlu
 			if (bp == null)
 				bp = new ByteProcessor(width, height);			
 
+			// Measure all the potential nuclei together
+			LabelStatistics statsRois = ObjectMeasurements.computeStatistics(rois, ipToMeasure, false, false);
+			LabelStatistics statsBackground = bpBackgroundMask == null ? null : ObjectMeasurements.computeStatistics(rois, bpBackgroundMask, false, false);
 			bp.setValue(255);
+			int roiLabel = 0;
 			for (Roi r : rois) {
+				roiLabel++;
 				// Perform mean intensity check - skip if below threshold
-				ipToMeasure.setRoi(r);
-				double mean = ipToMeasure.getStatistics().mean;
+				double mean = statsRois.getMean(roiLabel);
 				if (mean <= threshold) {
 					continue;
 				}
 				// Perform background intensity check, if required
-				if (bpBackgroundMask != null) {
-					bpBackgroundMask.setRoi(r);
-					if (bpBackgroundMask.getStatistics().mean > 0)
-						continue;				
-				}
+				if (statsBackground != null && statsBackground.getMean(roiLabel) > 0)
+					continue;
 //				if (ipBackground != null && !Double.isNaN(maxBackground)) {
 //					ipBackground.setRoi(r);
 //					if (ipBackground.getStatistics().mean > maxBackground)
@@ -662,17 +662,18 @@ public class WatershedCellMembraneDetection extends AbstractTileableDetectionPlu
 			// Remove nuclei with areas outside the permitted range - updating the binary image as we go
 			if (minArea > 0 || maxArea > 0) {
 				bp.setValue(0);
+				LabelStatistics statsNuclei = ObjectMeasurements.computeStatistics(roisNuclei, fpDetection, false, false);
 				Iterator<PolygonRoi> iter = roisNuclei.iterator();
+				int nucleusLabel = 0;
 				while (iter.hasNext()) {
 					Roi roiTemp = iter.next();
-					fpDetection.setRoi(roiTemp);
-					double area = ImageStatistics.getStatistics(fpDetection, Measurements.AREA, null).pixelCount;
+					nucleusLabel++;
+					double area = statsNuclei.getPixelCount(nucleusLabel);
 					if ((minArea > 0 && area < minArea) || (maxArea > 0 && area > maxArea)) {
 						iter.remove();
 						bp.fill(roiTemp);
 					}
 				}
-				fpDetection.resetRoi();
 			}
 			
 			
@@ -24,6 +24,7 @@
 package qupath.imagej.detect.tissue;
 
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -32,22 +33,10 @@ import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import ij.ImagePlus;
-import ij.gui.Roi;
-import ij.plugin.filter.ThresholdToSelection;
-import ij.process.ByteProcessor;
-import ij.process.ColorProcessor;
-import ij.process.FloatProcessor;
-import ij.process.ImageProcessor;
-import qupath.imagej.objects.PathImagePlus;
-import qupath.imagej.objects.ROIConverterIJ;
 import qupath.lib.color.ColorDeconvolutionStains;
-import qupath.lib.color.ColorTransformer;
-import qupath.lib.color.ColorTransformer.ColorTransformMethod;
 import qupath.lib.common.ColorTools;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.images.ImageData;
-import qupath.lib.images.PathImage;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjects;
@@ -57,8 +46,6 @@ import qupath.lib.plugins.AbstractDetectionPlugin;
 import qupath.lib.plugins.DetectionPluginTools;
 import qupath.lib.plugins.ObjectDetector;
 import qupath.lib.plugins.parameters.ParameterList;
-import qupath.lib.regions.RegionRequest;
-import qupath.lib.roi.RectangleROI;
 import qupath.lib.roi.interfaces.PathArea;
 import qupath.lib.roi.interfaces.ROI;
 
@@ -103,6 +90,8 @@ public class PositivePixelCounterIJ extends AbstractDetectionPlugin<BufferedImag
 			// Check whether to clear any existing measurements from parent objects
 			boolean clearParentMeasurements = Boolean.TRUE.equals(params.getBooleanParameterValue("clearParentMeasurements"));
 			boolean appendDetectionParameters = Boolean.TRUE.equals(params.getBooleanParameterValue("appendDetectionParameters"));
+			// Default to creating detections if no key is present
+			boolean createDetections = params.containsKey("createDetections") ? params.getBooleanParameterValue("createDetections") : true;
 			
 			// Default to using legacy measurements if no key is present
 			boolean useLegacyMeasurements = params.containsKey("legacyMeasurements0.1.2") ? params.getBooleanParameterValue("legacyMeasurements0.1.2") : true;
@@ -114,90 +103,38 @@ public class PositivePixelCounterIJ extends AbstractDetectionPlugin<BufferedImag
 			double pixelSize = imageData.getServer().getAveragedPixelSizeMicrons() * downsample;
 			double gaussianSigma = gaussianSigmaMicrons / pixelSize;
 			
-			// Read the image, if necessary
-			ImageServer<BufferedImage> server = imageData.getServer();
-			RegionRequest request = RegionRequest.createInstance(imageData.getServerPath(), downsample, pathROI);
-			PathImage<ImagePlus> pathImage = PathImagePlus.createPathImage(imageData.getServer(), request);
-			ImagePlus imp = pathImage.getImage();
-			
-			int w = imp.getWidth();
-			int h = imp.getHeight();
-			
-			// Extract the color deconvolved channels
+			// Check we have a brightfield RGB image
 			// TODO: Support alternative stain vectors
+			ImageServer<BufferedImage> server = imageData.getServer();
 			ColorDeconvolutionStains stains = imageData.getColorDeconvolutionStains();
-//			boolean isH_DAB = stains.isH_DAB() && imp.getType() == ImagePlus.COLOR_RGB;
-			boolean isRGB = stains != null && imp.getType() == ImagePlus.COLOR_RGB;
-			if (!isRGB) {
+			if (stains == null || !server.isRGB()) {
 				logger.error("Only brightfield RGB images are supported!");
 				return Collections.emptyList();
 			}
-			ColorProcessor cp = (ColorProcessor)imp.getProcessor();
-			int[] rgb = (int[])cp.getPixels();
-			
-			float[] pxHematoxylin = ColorTransformer.getTransformedPixels(rgb, ColorTransformMethod.Stain_1, null, stains);
-			float[] pxDAB = ColorTransformer.getTransformedPixels(rgb, ColorTransformMethod.Stain_2, null, stains);
-//			float[] pxHematoxylin = ColorDeconvolution.colorDeconvolveRGBArray(rgb, stains, 0, null);
-//			float[] pxDAB = ColorDeconvolution.colorDeconvolveRGBArray(rgb, stains, 1, null);
-			
-			// Create images
-			FloatProcessor fpHematoxylin = new FloatProcessor(w, h, pxHematoxylin);
-			FloatProcessor fpDAB = new FloatProcessor(w, h, pxDAB);
-					
-			// Apply Gaussian filter
-			fpHematoxylin.blurGaussian(gaussianSigma);
-			fpDAB.blurGaussian(gaussianSigma);
 			
-			// Threshold
-			ByteProcessor bpH = new ByteProcessor(w, h);
-			ByteProcessor bpDAB = new ByteProcessor(w, h);
-			// Apply mask, if necessary
-			if (pathROI != null && !(pathROI instanceof RectangleROI)) {
-				bpH.set(1);
-				Roi roi = ROIConverterIJ.convertToIJRoi(pathROI, pathImage);
-				bpH.setValue(0);
-				bpH.fill(roi);
-			}
-			int nNegative = 0;
-			int nPositive = 0;
-			double sumPositive = 0;
-			double sumNegative = 0;
-			for (int i = 0; i < w*h; i++) {
-				// Check mask
-				if (bpH.get(i) != (byte)0)
-					continue;
-				float valH = fpHematoxylin.getf(i);
-				float valDAB = fpDAB.getf(i);
-				if (valDAB >= thresholdStain2) {
-//					if (valDAB > valH) {
-						bpDAB.set(i, (byte)255);
-						sumPositive += valDAB;
-						nPositive++;
-//					} else {
-//						bpH.set(i, (byte)255);
-//						nStained++;
-//					}
-				} else if (valH >= thresholdStain1) {
-					bpH.set(i, (byte)255);
-					sumNegative += valH;
-					nNegative++;
-				}
+			// Count pixels tile by tile, so that large regions don't need to be read all at once
+			TiledPositivePixelCounter counter = new TiledPositivePixelCounter(server, stains, downsample, gaussianSigma, thresholdStain1, thresholdStain2);
+			counter.setCreateROIs(createDetections);
+			TiledPositivePixelCounter.PositivePixelCounts counts;
+			try {
+				counts = counter.countPixels(pathROI);
+			} catch (IOException e) {
+				logger.error("Unable to count positive pixels: " + e.getLocalizedMessage(), e);
+				return Collections.emptyList();
 			}
-			
-			bpH.setThreshold(128, Double.MAX_VALUE, ImageProcessor.NO_LUT_UPDATE);
-			bpDAB.setThreshold(128, Double.MAX_VALUE, ImageProcessor.NO_LUT_UPDATE);
-			Roi roiStained = nNegative > 0 ? new ThresholdToSelection().convert(bpH) : null;
-			Roi roiDAB = nPositive > 0 ? new ThresholdToSelection().convert(bpDAB) : null;
-			
-			double meanPositive = nPositive == 0 ? Double.NaN : sumPositive / nPositive;
-			double meanNegative = nNegative == 0 ? Double.NaN : sumNegative / nNegative;
+			long nNegative = counts.getNegativeCount();
+			long nPositive = counts.getPositiveCount();
+			double meanPositive = counts.getMeanPositive();
+			double meanNegative = counts.getMeanNegative();
 			
 			boolean hasPixelSizeMicrons = server.hasPixelSizeMicrons();
 			String areaUnits = hasPixelSizeMicrons ? GeneralTools.micrometerSymbol() + "^2" : "px^2";
 			double pixelWidth = hasPixelSizeMicrons ? server.getPixelWidthMicrons() : 1;
 			double pixelHeight = hasPixelSizeMicrons ? server.getPixelHeightMicrons() : 1;
-			double areaNegative = 0;
-			double areaPositive = 0;
+			// Areas are calculated from the pixel counts, which gives the same result as measuring the traced ROIs
+			double areaPixel = pixelWidth * downsample * pixelHeight * downsample;
+			double areaNegative = nNegative * areaPixel;
+			double areaPositive = nPositive * areaPixel;
 			
 			// Create a String to store measurement parameters, if requested
 			int maxDP = 3;
@@ -210,8 +147,8 @@ public class PositivePixelCounterIJ extends AbstractDetectionPlugin<BufferedImag
 					GeneralTools.formatNumber(thresholdStain2, maxDP));
 						
 			
-			if (roiStained != null) {
-				ROI roiTissue = ROIConverterIJ.convertToPathROI(roiStained, pathImage);
+			ROI roiTissue = counts.getNegativeROI();
+			if (roiTissue != null) {
 				PathObject pathObject = PathObjects.createDetectionObject(roiTissue);
 				PathClass pathClass = null;
 				if (useLegacyMeasurements) {
@@ -219,7 +156,6 @@ public class PositivePixelCounterIJ extends AbstractDetectionPlugin<BufferedImag
 					pathObject.getMeasurementList().addMeasurement("Mean hematoxylin OD", meanNegative);
 					pathClass = PathClassFactory.getNegative(null, PathClassFactory.COLOR_NEGATIVE);
 				} else {
-					areaNegative = ((PathArea)roiTissue).getScaledArea(pixelWidth, pixelHeight);
 					pathObject.getMeasurementList().addMeasurement("Stained area " + areaUnits + paramsString, areaNegative);
 					pathObject.getMeasurementList().addMeasurement("Mean " + stains.getStain(1).getName() + " OD" + paramsString, meanNegative);
 					pathClass = PathClassFactory.getPathClass("Pixel count negative", ColorTools.makeScaledRGB(PathClassFactory.COLOR_NEGATIVE, 1.25));
@@ -228,9 +164,8 @@ public class PositivePixelCounterIJ extends AbstractDetectionPlugin<BufferedImag
 				pathObject.getMeasurementList().close();
 				pathObjects.add(pathObject);
 			}
-			if (roiDAB != null) {
-				ROI roiPositive = ROIConverterIJ.convertToPathROI(roiDAB, pathImage);
-//				roiDAB = ShapeSimplifierAwt.simplifyShape(roiDAB, simplifyAmount);
+			ROI roiPositive = counts.getPositiveROI();
+			if (roiPositive != null) {
 				PathClass pathClass = null;
 				PathObject pathObject = PathObjects.createDetectionObject(roiPositive);
 				if (useLegacyMeasurements) {
@@ -238,7 +173,6 @@ public class PositivePixelCounterIJ extends AbstractDetectionPlugin<BufferedImag
 					pathObject.getMeasurementList().addMeasurement("Mean DAB OD", meanPositive);
 					pathClass = PathClassFactory.getPositive(null, PathClassFactory.COLOR_POSITIVE);
 				} else {
-					areaPositive = ((PathArea)roiPositive).getScaledArea(pixelWidth, pixelHeight);
 					pathObject.getMeasurementList().addMeasurement("Stained area " + areaUnits + paramsString, areaPositive);
 					pathObject.getMeasurementList().addMeasurement("Mean " + stains.getStain(2).getName() + " OD" + paramsString, meanPositive);
 					pathClass = PathClassFactory.getPathClass("Pixel count positive", ColorTools.makeScaledRGB(PathClassFactory.COLOR_POSITIVE, 1.25));
@@ -323,6 +257,7 @@ public class PositivePixelCounterIJ extends AbstractDetectionPlugin<BufferedImag
 				.addDoubleParameter("gaussianSigmaMicrons", "Gaussian sigma", 2, GeneralTools.micrometerSymbol(), "Gaussian filter size - higher values give a smoother (less-detailed) result")
 				.addDoubleParameter("thresholdStain1", stain1Name + " threshold ('Negative')", 0.1, "OD units", "Threshold to use for 'Negative' detection")
 				.addDoubleParameter("thresholdStain2", stain2Name + " threshold ('Positive')", 0.3, "OD units", "Threshold to use for 'Positive' stain detection")
+				.addBooleanParameter("createDetections", "Create detection objects", true, "Create detection objects representing the positive and negative pixels - turn off to reduce memory use if only summary measurements are required")
 				.addBooleanParameter("addSummaryMeasurements", "Add summary measurements to parent", true, "Add summary measurements to parent objects")
 				.addBooleanParameter("clearParentMeasurements", "Clear existing parent measurements", true, "Remove any existing measurements from parent objects")
 				.addBooleanParameter("appendDetectionParameters", "Add parameters to measurement names", false, "Append the detection parameters to any measurement names")
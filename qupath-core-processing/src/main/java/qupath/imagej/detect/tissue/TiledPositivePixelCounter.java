@@ -0,0 +1,387 @@
+package qupath.imagej.detect.tissue;
+
+import java.awt.Polygon;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import qupath.imagej.objects.ROIConverterIJ;
+import qupath.imagej.processing.ContourTracing;
+import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.color.ColorTransformer;
+import qupath.lib.color.ColorTransformer.ColorTransformMethod;
+import qupath.lib.common.TaskScheduler;
+import qupath.lib.common.TaskScheduler.Priority;
+import qupath.lib.common.TaskScheduler.TaskExecutor;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.EllipseROI;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.RectangleROI;
+import qupath.lib.roi.interfaces.ROI;
+import qupath.lib.roi.jts.ConverterJTS;
+
+/**
+ * Count positive and negative pixels within a ROI, after color deconvolution, Gaussian smoothing and thresholding.
+ * <p>
+ * The ROI is processed as a grid of tiles at the requested downsample, so that large regions can be analyzed
+ * without reading the whole region into memory at once.
+ * Tiles are processed in parallel, and each tile is read with an overlapping border so that smoothing gives
+ * the same result as if the whole region had been smoothed at once (to within the accuracy of the Gaussian kernel).
+ * Each pixel belongs to exactly one tile, so the counts are identical regardless of the tile size.
+ * <p>
+ * Optionally, ROIs representing the positive and negative pixels can be created.
+ * These are traced for each tile and then merged across the tile boundaries.
+ * <p>
+ * Tiles are aligned exactly with the pixels of the downsampled region when the downsample is an integer.
+ */
+public class TiledPositivePixelCounter {
+
+	private final static Logger logger = LoggerFactory.getLogger(TiledPositivePixelCounter.class);
+
+	/**
+	 * Default width and height of each tile, in pixels at the requested downsample (excluding any overlap).
+	 */
+	public final static int DEFAULT_TILE_SIZE = 1024;
+
+	private static TaskExecutor pool = TaskScheduler.getInstance().createExecutor("positive-pixels", Priority.ANALYSIS);
+
+	private final ImageServer<BufferedImage> server;
+	private final ColorDeconvolutionStains stains;
+	private final double downsample;
+	private final double gaussianSigma;
+	private final double thresholdNegative;
+	private final double thresholdPositive;
+
+	private final GeometryFactory factory = new GeometryFactory();
+
+	private int tileSize = DEFAULT_TILE_SIZE;
+	private boolean createROIs = true;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param server the (brightfield RGB) image server
+	 * @param stains the stains used for color deconvolution; stain 1 is 'negative' and stain 2 is 'positive'
+	 * @param downsample the downsample at which to process the image
+	 * @param gaussianSigma the Gaussian sigma, in pixels at the requested downsample
+	 * @param thresholdNegative the threshold for stain 1, applied to pixels below the stain 2 threshold
+	 * @param thresholdPositive the threshold for stain 2
+	 */
+	public TiledPositivePixelCounter(final ImageServer<BufferedImage> server, final ColorDeconvolutionStains stains, final double downsample,
+			final double gaussianSigma, final double thresholdNegative, final double thresholdPositive) {
+		this.server = server;
+		this.stains = stains;
+		this.downsample = downsample;
+		this.gaussianSigma = gaussianSigma;
+		this.thresholdNegative = thresholdNegative;
+		this.thresholdPositive = thresholdPositive;
+	}
+
+	/**
+	 * Set the width and height of each tile, in pixels at the requested downsample.
+	 * @param tileSize
+	 */
+	public void setTileSize(final int tileSize) {
+		if (tileSize <= 0)
+			throw new IllegalArgumentException("Tile size must be > 0!");
+		this.tileSize = tileSize;
+	}
+
+	/**
+	 * Get the width and height of each tile, in pixels at the requested downsample.
+	 * @return
+	 */
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * Specify whether ROIs should be created for the positive and negative pixels.
+	 * If false, only the counts and mean values are computed - which requires less memory and processing time.
+	 * @param createROIs
+	 */
+	public void setCreateROIs(final boolean createROIs) {
+		this.createROIs = createROIs;
+	}
+
+	/**
+	 * Returns true if ROIs should be created for the positive and negative pixels.
+	 * @return
+	 */
+	public boolean getCreateROIs() {
+		return createROIs;
+	}
+
+	/**
+	 * Get the number of pixels at the requested downsample beyond the edge of each tile that influence the smoothed values within it.
+	 * @return
+	 */
+	private int getTileOverlap() {
+		if (!(gaussianSigma > 0))
+			return 0;
+		// Large enough to cover ImageJ's kernel radius (including when downscaling is used for large sigma values)
+		return (int)Math.ceil(gaussianSigma * 4) + 2;
+	}
+
+	/**
+	 * Count the positive and negative pixels within a ROI.
+	 *
+	 * @param roi the ROI; if null, the entire image will be processed
+	 * @return
+	 * @throws IOException if the image could not be read
+	 */
+	public PositivePixelCounts countPixels(final ROI roi) throws IOException {
+		ImageRegion region = roi == null ? ImageRegion.createInstance(0, 0, server.getWidth(), server.getHeight(), 0, 0) : ImageRegion.createInstance(roi);
+		// Dimensions of the region at the requested downsample
+		int width = (int)Math.round(region.getWidth() / downsample);
+		int height = (int)Math.round(region.getHeight() / downsample);
+		int nTilesX = (width + tileSize - 1) / tileSize;
+		int nTilesY = (height + tileSize - 1) / tileSize;
+
+		// ImageJ creates ellipse masks relative to the integer bounds of the ellipse, which would depend on the tile location -
+		// so use the polygon tracing the mask for the whole region instead, to ensure that the masks of neighboring tiles are consistent
+		ROI roiMask = roi instanceof EllipseROI ? getEllipseMaskPolygon(roi, region) : roi;
+
+		long startTime = System.currentTimeMillis();
+		List<Callable<TileCounts>> tasks = new ArrayList<>();
+		for (int i = 0; i < nTilesX * nTilesY; i++) {
+			int x = (i % nTilesX) * tileSize;
+			int y = (i / nTilesX) * tileSize;
+			tasks.add(() -> processTile(roiMask, region, width, height, x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y)));
+		}
+		List<TileCounts> tileCounts = new ArrayList<>();
+		try {
+			for (var future : pool.invokeAll(tasks))
+				tileCounts.add(future.get());
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while counting pixels", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			throw new IOException(e.getCause());
+		}
+
+		// Combine counts for all tiles in a fixed order, so that results are reproducible
+		var counts = new PositivePixelCounts();
+		List<Geometry> geometriesPositive = new ArrayList<>();
+		List<Geometry> geometriesNegative = new ArrayList<>();
+		for (var tile : tileCounts) {
+			counts.nPositive += tile.nPositive;
+			counts.nNegative += tile.nNegative;
+			counts.sumPositive += tile.sumPositive;
+			counts.sumNegative += tile.sumNegative;
+			if (tile.geometryPositive != null)
+				geometriesPositive.add(tile.geometryPositive);
+			if (tile.geometryNegative != null)
+				geometriesNegative.add(tile.geometryNegative);
+		}
+		if (createROIs) {
+			ImagePlane plane = ImagePlane.getPlaneWithChannel(-1, region.getZ(), region.getT());
+			counts.roiPositive = mergeGeometries(geometriesPositive, plane);
+			counts.roiNegative = mergeGeometries(geometriesNegative, plane);
+		}
+		long endTime = System.currentTimeMillis();
+		logger.debug("Positive pixel count for {}x{} pixels ({} tiles) in {} ms", width, height, tileCounts.size(), endTime - startTime);
+		return counts;
+	}
+
+	private ROI getEllipseMaskPolygon(final ROI roi, final ImageRegion region) {
+		Polygon polygon = ROIConverterIJ.convertToIJRoi(roi, -region.getX() / downsample, -region.getY() / downsample, downsample).getPolygon();
+		float[] x = new float[polygon.npoints];
+		float[] y = new float[polygon.npoints];
+		for (int i = 0; i < polygon.npoints; i++) {
+			x[i] = (float)(polygon.xpoints[i] * downsample + region.getX());
+			y[i] = (float)(polygon.ypoints[i] * downsample + region.getY());
+		}
+		return ROIs.createPolygonROI(x, y, ImagePlane.getPlane(roi));
+	}
+
+	private static ROI mergeGeometries(final List<Geometry> geometries, final ImagePlane plane) {
+		if (geometries.isEmpty())
+			return null;
+		Geometry geometry = geometries.size() == 1 ? geometries.get(0) : UnaryUnionOp.union(geometries);
+		return ConverterJTS.convertGeometryToROI(geometry, plane);
+	}
+
+	/**
+	 * Process a single tile, defined in pixel coordinates at the requested downsample relative to the region.
+	 */
+	private TileCounts processTile(final ROI roi, final ImageRegion region, final int width, final int height, final int x, final int y, final int w, final int h) throws IOException {
+		var counts = new TileCounts();
+
+		// Create a mask for the tile (without overlap), so that we can skip tiles entirely outside the ROI
+		ByteProcessor bpMask = new ByteProcessor(w, h);
+		double xOrigin = region.getX() + x * downsample;
+		double yOrigin = region.getY() + y * downsample;
+		if (roi == null || roi instanceof RectangleROI)
+			bpMask.set(255);
+		else {
+			Roi roiIJ = ROIConverterIJ.convertToIJRoi(roi, -xOrigin / downsample, -yOrigin / downsample, downsample);
+			bpMask.setValue(255);
+			bpMask.fill(roiIJ);
+			if (bpMask.getStatistics().max == 0)
+				return counts;
+		}
+
+		// Read the tile with an overlap, clipped to the region
+		int overlap = getTileOverlap();
+		int x1 = Math.max(0, x - overlap);
+		int y1 = Math.max(0, y - overlap);
+		int x2 = Math.min(width, x + w + overlap);
+		int y2 = Math.min(height, y + h + overlap);
+		int fullX = (int)Math.round(region.getX() + x1 * downsample);
+		int fullY = (int)Math.round(region.getY() + y1 * downsample);
+		int fullX2 = x2 == width ? region.getX() + region.getWidth() : (int)Math.round(region.getX() + x2 * downsample);
+		int fullY2 = y2 == height ? region.getY() + region.getHeight() : (int)Math.round(region.getY() + y2 * downsample);
+		RegionRequest request = RegionRequest.createInstance(server.getPath(), downsample,
+				fullX, fullY, fullX2 - fullX, fullY2 - fullY, region.getZ(), region.getT());
+		BufferedImage img = server.readBufferedImage(request);
+		if (img == null)
+			return counts;
+
+		int tw = img.getWidth();
+		int th = img.getHeight();
+		int[] rgb = img.getRGB(0, 0, tw, th, null, 0, tw);
+		FloatProcessor fpNegative = new FloatProcessor(tw, th, ColorTransformer.getTransformedPixels(rgb, ColorTransformMethod.Stain_1, null, stains));
+		FloatProcessor fpPositive = new FloatProcessor(tw, th, ColorTransformer.getTransformedPixels(rgb, ColorTransformMethod.Stain_2, null, stains));
+		if (gaussianSigma > 0) {
+			fpNegative.blurGaussian(gaussianSigma);
+			fpPositive.blurGaussian(gaussianSigma);
+		}
+
+		// Threshold the pixels within the tile, reusing the mask to store the classification
+		// (0 = outside ROI or unstained, 1 = negative, 2 = positive)
+		int dx = x - x1;
+		int dy = y - y1;
+		byte[] mask = (byte[])bpMask.getPixels();
+		for (int yy = 0; yy < h; yy++) {
+			int yImg = yy + dy;
+			for (int xx = 0; xx < w; xx++) {
+				int ind = yy * w + xx;
+				int xImg = xx + dx;
+				if (mask[ind] == 0 || xImg >= tw || yImg >= th) {
+					mask[ind] = 0;
+					continue;
+				}
+				float valNegative = fpNegative.getf(xImg, yImg);
+				float valPositive = fpPositive.getf(xImg, yImg);
+				if (valPositive >= thresholdPositive) {
+					mask[ind] = 2;
+					counts.sumPositive += valPositive;
+					counts.nPositive++;
+				} else if (valNegative >= thresholdNegative) {
+					mask[ind] = 1;
+					counts.sumNegative += valNegative;
+					counts.nNegative++;
+				} else
+					mask[ind] = 0;
+			}
+		}
+
+		if (createROIs) {
+			if (counts.nNegative > 0)
+				counts.geometryNegative = traceGeometry(bpMask, 1, xOrigin, yOrigin);
+			if (counts.nPositive > 0)
+				counts.geometryPositive = traceGeometry(bpMask, 2, xOrigin, yOrigin);
+		}
+		return counts;
+	}
+
+	private Geometry traceGeometry(final ByteProcessor bp, final int value, final double xOrigin, final double yOrigin) {
+		var contours = ContourTracing.traceThresholded(bp, value, value, false, false);
+		var geometries = ContourTracing.createGeometries(contours, -xOrigin / downsample, -yOrigin / downsample, downsample, factory);
+		if (geometries.isEmpty())
+			return null;
+		return geometries.values().iterator().next();
+	}
+
+
+	private static class TileCounts {
+
+		private long nPositive, nNegative;
+		private double sumPositive, sumNegative;
+		private Geometry geometryPositive, geometryNegative;
+
+	}
+
+
+	/**
+	 * Results of counting positive and negative pixels.
+	 * Counts refer to pixels at the downsample used for processing.
+	 */
+	public static class PositivePixelCounts {
+
+		private long nPositive, nNegative;
+		private double sumPositive, sumNegative;
+		private ROI roiPositive, roiNegative;
+
+		private PositivePixelCounts() {}
+
+		/**
+		 * Number of pixels above the threshold for stain 2.
+		 * @return
+		 */
+		public long getPositiveCount() {
+			return nPositive;
+		}
+
+		/**
+		 * Number of pixels above the threshold for stain 1, but not stain 2.
+		 * @return
+		 */
+		public long getNegativeCount() {
+			return nNegative;
+		}
+
+		/**
+		 * Mean (smoothed) stain 2 optical density of the positive pixels, or NaN if there are no positive pixels.
+		 * @return
+		 */
+		public double getMeanPositive() {
+			return nPositive == 0 ? Double.NaN : sumPositive / nPositive;
+		}
+
+		/**
+		 * Mean (smoothed) stain 1 optical density of the negative pixels, or NaN if there are no negative pixels.
+		 * @return
+		 */
+		public double getMeanNegative() {
+			return nNegative == 0 ? Double.NaN : sumNegative / nNegative;
+		}
+
+		/**
+		 * ROI containing all the positive pixels, or null if ROIs were not requested or there are no positive pixels.
+		 * @return
+		 */
+		public ROI getPositiveROI() {
+			return roiPositive;
+		}
+
+		/**
+		 * ROI containing all the negative pixels, or null if ROIs were not requested or there are no negative pixels.
+		 * @return
+		 */
+		public ROI getNegativeROI() {
+			return roiNegative;
+		}
+
+	}
+
+}
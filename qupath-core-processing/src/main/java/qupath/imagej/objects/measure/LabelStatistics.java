@@ -0,0 +1,313 @@
+package qupath.imagej.objects.measure;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Intensity statistics for every label in a labelled image, computed in a single pass through the pixels.
+ * <p>
+ * Statistics are accumulated in primitive arrays indexed by label, so the cost depends only upon the number of pixels -
+ * not on the number or size of the labelled regions.
+ * Alternatively, labelled regions may be given as lists of pixel indices; these may overlap, and the cost then depends 
+ * upon the total number of pixels in all regions.
+ * Labels are integers from 1 to nLabels (inclusive); pixels with any other label are ignored, as are NaN pixel values.
+ * <p>
+ * Values are calculated in the same way as ImageJ's {@link ij.process.ImageStatistics} for uncalibrated images,
+ * except for the median - which is estimated from a histogram (exactly for 8-bit images).
+ */
+public class LabelStatistics {
+
+	/**
+	 * Number of histogram bins used to estimate the median for images that are not 8-bit.
+	 */
+	private final static int N_MEDIAN_BINS = 256;
+
+	private final int nLabels;
+	private final long[] counts;
+	private final double[] sums, sums2, sums3, sums4;
+	private final float[] mins, maxs;
+
+	private final int[] histograms;
+	private final int nBins;
+	private final double histMin, binWidth;
+	private final boolean exactHistogram;
+
+	private LabelStatistics(final int nLabels, final boolean doMoments, final boolean doMedian, final int nBins, final double histMin, final double binWidth, final boolean exactHistogram) {
+		this.nLabels = nLabels;
+		counts = new long[nLabels];
+		sums = new double[nLabels];
+		sums2 = new double[nLabels];
+		sums3 = doMoments ? new double[nLabels] : null;
+		sums4 = doMoments ? new double[nLabels] : null;
+		mins = new float[nLabels];
+		maxs = new float[nLabels];
+		Arrays.fill(mins, Float.POSITIVE_INFINITY);
+		Arrays.fill(maxs, Float.NEGATIVE_INFINITY);
+		this.nBins = nBins;
+		this.histMin = histMin;
+		this.binWidth = binWidth;
+		this.exactHistogram = exactHistogram;
+		histograms = doMedian ? new int[nLabels * nBins] : null;
+	}
+
+	/**
+	 * Compute statistics for all labels in a labelled image.
+	 *
+	 * @param ip the image containing the values to measure
+	 * @param ipLabels labelled image, with the same dimensions as ip
+	 * @param nLabels the maximum label
+	 * @param doMoments if true, compute the skewness and kurtosis
+	 * @param doMedian if true, estimate the median
+	 * @return
+	 */
+	public static LabelStatistics compute(final ImageProcessor ip, final ImageProcessor ipLabels, final int nLabels, final boolean doMoments, final boolean doMedian) {
+		if (ip.getWidth() != ipLabels.getWidth() || ip.getHeight() != ipLabels.getHeight())
+			throw new IllegalArgumentException("Image and labels have different sizes!");
+		int n = ip.getWidth() * ip.getHeight();
+		int[] labels = new int[n];
+		for (int i = 0; i < n; i++)
+			labels[i] = (int)ipLabels.getf(i);
+		return compute(ip, labels, nLabels, doMoments, doMedian);
+	}
+
+	/**
+	 * Compute statistics for all labels in a labelled image, where the labels are given as a row-major array
+	 * with the same number of pixels as the image.
+	 *
+	 * @param ip the image containing the values to measure
+	 * @param labels labels for each pixel
+	 * @param nLabels the maximum label
+	 * @param doMoments if true, compute the skewness and kurtosis
+	 * @param doMedian if true, estimate the median
+	 * @return
+	 */
+	public static LabelStatistics compute(final ImageProcessor ip, final int[] labels, final int nLabels, final boolean doMoments, final boolean doMedian) {
+		int n = ip.getWidth() * ip.getHeight();
+		if (labels.length < n)
+			throw new IllegalArgumentException("Label array has length " + labels.length + ", but image has " + n + " pixels");
+
+		boolean isByte = ip.getPixels() instanceof byte[];
+
+		// Determine the histogram range for the median
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		if (doMedian && !isByte) {
+			for (int i = 0; i < n; i++) {
+				int label = labels[i];
+				if (label <= 0 || label > nLabels)
+					continue;
+				float val = ip.getf(i);
+				if (val < min)
+					min = val;
+				if (val > max)
+					max = val;
+			}
+		}
+
+		var stats = create(nLabels, doMoments, doMedian, isByte, min, max);
+		for (int i = 0; i < n; i++) {
+			int label = labels[i];
+			if (label <= 0 || label > nLabels)
+				continue;
+			stats.add(label - 1, ip.getf(i));
+		}
+		return stats;
+	}
+
+	/**
+	 * Compute statistics for labelled regions given as lists of (row-major) pixel indices, 
+	 * where the region at index i has the label i + 1.
+	 * <p>
+	 * Unlike a labelled image, regions may overlap.
+	 *
+	 * @param ip the image containing the values to measure
+	 * @param regions pixel indices for each region
+	 * @param doMoments if true, compute the skewness and kurtosis
+	 * @param doMedian if true, estimate the median
+	 * @return
+	 */
+	public static LabelStatistics compute(final ImageProcessor ip, final List<int[]> regions, final boolean doMoments, final boolean doMedian) {
+		boolean isByte = ip.getPixels() instanceof byte[];
+
+		// Determine the histogram range for the median
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		if (doMedian && !isByte) {
+			for (int[] pixels : regions) {
+				for (int i : pixels) {
+					float val = ip.getf(i);
+					if (val < min)
+						min = val;
+					if (val > max)
+						max = val;
+				}
+			}
+		}
+
+		var stats = create(regions.size(), doMoments, doMedian, isByte, min, max);
+		int ind = 0;
+		for (int[] pixels : regions) {
+			for (int i : pixels)
+				stats.add(ind, ip.getf(i));
+			ind++;
+		}
+		return stats;
+	}
+
+	private static LabelStatistics create(final int nLabels, final boolean doMoments, final boolean doMedian, final boolean isByte, final double min, final double max) {
+		if (!doMedian)
+			return new LabelStatistics(nLabels, doMoments, false, 0, 0, 1, isByte);
+		if (isByte)
+			return new LabelStatistics(nLabels, doMoments, true, 256, 0, 1, true);
+		double histMin = Double.isFinite(min) ? min : 0;
+		double binWidth = max > min ? (max - min) / N_MEDIAN_BINS : 1;
+		return new LabelStatistics(nLabels, doMoments, true, N_MEDIAN_BINS, histMin, binWidth, false);
+	}
+
+	private void add(final int ind, final float val) {
+		if (Float.isNaN(val))
+			return;
+		double v = val;
+		double v2 = v * v;
+		counts[ind]++;
+		sums[ind] += v;
+		sums2[ind] += v2;
+		if (sums3 != null) {
+			sums3[ind] += v2 * v;
+			sums4[ind] += v2 * v2;
+		}
+		if (val < mins[ind])
+			mins[ind] = val;
+		if (val > maxs[ind])
+			maxs[ind] = val;
+		if (histograms != null) {
+			int bin = exactHistogram ? (int)val : (int)((v - histMin) / binWidth);
+			if (bin >= nBins)
+				bin = nBins - 1;
+			histograms[ind * nBins + bin]++;
+		}
+	}
+
+	private int index(final int label) {
+		if (label <= 0 || label > nLabels)
+			throw new IllegalArgumentException("Label " + label + " is outside the range 1-" + nLabels);
+		return label - 1;
+	}
+
+	/**
+	 * Get the maximum label.
+	 * @return
+	 */
+	public int nLabels() {
+		return nLabels;
+	}
+
+	/**
+	 * Get the number of (non-NaN) pixels with the specified label.
+	 * @param label
+	 * @return
+	 */
+	public long getPixelCount(final int label) {
+		return counts[index(label)];
+	}
+
+	public double getSum(final int label) {
+		return sums[index(label)];
+	}
+
+	public double getMean(final int label) {
+		int ind = index(label);
+		return counts[ind] == 0 ? Double.NaN : sums[ind] / counts[ind];
+	}
+
+	/**
+	 * Get the sample standard deviation (using n-1), as reported by ImageJ.
+	 * @param label
+	 * @return
+	 */
+	public double getStdDev(final int label) {
+		int ind = index(label);
+		long n = counts[ind];
+		if (n == 0)
+			return Double.NaN;
+		if (n == 1)
+			return 0;
+		double stdDev = (n * sums2[ind] - sums[ind] * sums[ind]) / n;
+		return stdDev > 0 ? Math.sqrt(stdDev / (n - 1.0)) : 0;
+	}
+
+	public double getMin(final int label) {
+		int ind = index(label);
+		return counts[ind] == 0 ? Double.NaN : mins[ind];
+	}
+
+	public double getMax(final int label) {
+		int ind = index(label);
+		return counts[ind] == 0 ? Double.NaN : maxs[ind];
+	}
+
+	/**
+	 * Get the skewness, or NaN if moments were not computed.
+	 * @param label
+	 * @return
+	 */
+	public double getSkewness(final int label) {
+		int ind = index(label);
+		if (sums3 == null || counts[ind] == 0)
+			return Double.NaN;
+		long n = counts[ind];
+		double mean = sums[ind] / n;
+		double mean2 = mean * mean;
+		double variance = sums2[ind] / n - mean2;
+		double sDeviation = Math.sqrt(variance);
+		return ((sums3[ind] - 3.0 * mean * sums2[ind]) / n + 2.0 * mean * mean2) / (variance * sDeviation);
+	}
+
+	/**
+	 * Get the kurtosis, or NaN if moments were not computed.
+	 * @param label
+	 * @return
+	 */
+	public double getKurtosis(final int label) {
+		int ind = index(label);
+		if (sums4 == null || counts[ind] == 0)
+			return Double.NaN;
+		long n = counts[ind];
+		double mean = sums[ind] / n;
+		double mean2 = mean * mean;
+		double variance = sums2[ind] / n - mean2;
+		return (((sums4[ind] - 4.0 * mean * sums3[ind] + 6.0 * mean2 * sums2[ind]) / n - 3.0 * mean2 * mean2) / (variance * variance) - 3.0);
+	}
+
+	/**
+	 * Get the median, or NaN if the median was not computed.
+	 * <p>
+	 * For 8-bit images this is exact, while for other images it is interpolated within the histogram bin containing the median.
+	 * @param label
+	 * @return
+	 */
+	public double getMedian(final int label) {
+		int ind = index(label);
+		if (histograms == null || counts[ind] == 0)
+			return Double.NaN;
+		// Find the first bin where the cumulative count exceeds half the pixels (as ImageJ does for 8-bit images)
+		double half = counts[ind] / 2.0;
+		long cumulative = 0;
+		int offset = ind * nBins;
+		for (int b = 0; b < nBins; b++) {
+			int count = histograms[offset + b];
+			if (cumulative + count > half) {
+				if (exactHistogram)
+					return b;
+				double median = histMin + (b + (half - cumulative) / count) * binWidth;
+				// Clip to the known range
+				return Math.max(mins[ind], Math.min(maxs[ind], median));
+			}
+			cumulative += count;
+		}
+		return maxs[ind];
+	}
+
+}
@@ -32,6 +32,8 @@ import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 
 import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -57,6 +59,7 @@ public class ObjectMeasurements {
 			COEFFICIENT_OF_VARIATION,
 			MIN,
 			MAX,
+			MEDIAN,
 			RANGE,
 			SKEWNESS,
 			KURTOSIS,
@@ -74,10 +77,26 @@ public class ObjectMeasurements {
 		addIntensityMeasurements(pathObjects, Collections.singletonList(measurement), ip, ipName, cal, downsampleFactor);
 	}
 	
+	/**
+	 * Add intensity measurements to a list of objects.
+	 * <p>
+	 * The pixels within the ROIs of all the objects are first found, and then all objects are measured together 
+	 * in a single pass through these pixels (see {@link #computeStatistics(List, ImageProcessor, boolean, boolean)}).
+	 * If the calibration includes a calibration function, each object is instead measured separately with ImageJ.
+	 * 
+	 * @param pathObjects the objects to measure
+	 * @param measurements the measurements to make
+	 * @param ip the image to measure
+	 * @param ipName the name of the image, used in the measurement names
+	 * @param cal the calibration of the image, used to convert the object ROIs
+	 * @param downsampleFactor the downsample factor of the image, used to convert the object ROIs
+	 * 
+	 * @see LabelStatistics
+	 */
 	public static void addIntensityMeasurements(List<? extends PathObject> pathObjects, List<IntensityMeasurements> measurements, ImageProcessor ip, String ipName, Calibration cal, double downsampleFactor) {
 		
 		int measurementFlags = Measurements.AREA;
-		boolean doMean = false, doSum = false, doStdDev = false, doCoV = false, doMin = false, doMax = false, doRange = false, doSkewness = false, doKurtosis = false, doMembrane = false;
+		boolean doMean = false, doSum = false, doStdDev = false, doCoV = false, doMin = false, doMax = false, doMedian = false, doRange = false, doSkewness = false, doKurtosis = false, doMembrane = false;
 		for (IntensityMeasurements m : measurements) {
 			switch (m) {
 			case MEAN:
@@ -104,6 +123,10 @@ public class ObjectMeasurements {
 				doMax = true;
 				measurementFlags = measurementFlags | Measurements.MIN_MAX;
 				break;
+			case MEDIAN:
+				doMedian = true;
+				measurementFlags = measurementFlags | Measurements.MEDIAN;
+				break;
 			case RANGE:
 				doRange = true;
 				measurementFlags = measurementFlags | Measurements.MIN_MAX;
@@ -122,57 +145,142 @@ public class ObjectMeasurements {
 			}
 		}
 		
-//		ImagePlus impTemp = null; 
+		// SPLIT_CHAR will be a special character used to split; make sure it is not present in the processor name
+		ipName = ipName.replace(SPLIT_CHAR, ' ');
+		
+		// Calibration functions are only supported by ImageJ's statistics
+		if (cal != null && cal.calibrated()) {
+			for (PathObject pathObject: pathObjects) {
+				Roi roi = ROIConverterIJ.convertToIJRoi(pathObject.getROI(), cal, downsampleFactor);
+				ip.setRoi(roi);
+				ImageStatistics stats = ImageStatistics.getStatistics(ip, measurementFlags, cal);
+				MeasurementList measurementList = pathObject.getMeasurementList();
+				if (doMean)
+					measurementList.addMeasurement("Mean"+SPLIT_CHAR+" "+ipName, stats.mean);
+				if (doSum)
+					measurementList.addMeasurement("Sum"+SPLIT_CHAR+" "+ipName, stats.mean * stats.pixelCount);
+				if (doStdDev)
+					measurementList.addMeasurement("Std.Dev"+SPLIT_CHAR+" "+ipName, stats.stdDev);
+				if (doCoV)
+					measurementList.addMeasurement("Coeff.Var"+SPLIT_CHAR+" "+ipName, stats.stdDev / stats.mean);
+				if (doMin)
+					measurementList.addMeasurement("Min"+SPLIT_CHAR+" "+ipName, stats.min);
+				if (doMax)
+					measurementList.addMeasurement("Max"+SPLIT_CHAR+" "+ipName, stats.max);
+				if (doMedian)
+					measurementList.addMeasurement("Median"+SPLIT_CHAR+" "+ipName, stats.median);
+				if (doRange)
+					measurementList.addMeasurement("Range"+SPLIT_CHAR+" "+ipName, stats.max - stats.min);
+				if (doSkewness)
+					measurementList.addMeasurement("Skewness"+SPLIT_CHAR+" "+ipName, stats.skewness);
+				if (doKurtosis)
+					measurementList.addMeasurement("Kurtosis"+SPLIT_CHAR+" "+ipName, stats.kurtosis);
+				if (doMembrane)
+					measureMembrane(pathObject, ip, ipName, cal, downsampleFactor);
+			}
+			ip.resetRoi();
+			return;
+		}
+		
+		// Draw all the ROIs into labelled images & measure them at once
+		List<Roi> rois = new ArrayList<>(pathObjects.size());
+		for (PathObject pathObject: pathObjects)
+			rois.add(ROIConverterIJ.convertToIJRoi(pathObject.getROI(), cal, downsampleFactor));
+		boolean doMoments = doSkewness || doKurtosis;
+		LabelStatistics stats = computeStatistics(rois, ip, false, doMoments, doMedian);
+		LabelStatistics statsMembrane = doMembrane ? computeStatistics(rois, ip, true, false, false) : null;
+		
+		int label = 0;
 		for (PathObject pathObject: pathObjects) {
-			
+			label++;
 			MeasurementList measurementList = pathObject.getMeasurementList();
-			
-			Roi roi = ROIConverterIJ.convertToIJRoi(pathObject.getROI(), cal, downsampleFactor);
-			ip.setRoi(roi);
-			ImageStatistics stats; // = ImageStatistics.getStatistics(ip, measurementFlags, cal);
-			
-//			if (roi.isLine()) {
-//				if (impTemp == null) {
-//					impTemp = new ImagePlus("Temp", ip);
-////					impTemp.setCalibration(cal);
-//				}
-////				IJ.log("This happens");
-////				ImageProcessor ip2 = (new Straightener()).straighten(impTemp, roi, (int)roi.getStrokeWidth());
-//				impTemp.setRoi(roi);
-//				ImageProcessor ip2 = (new Straightener()).straighten(impTemp, roi, (int)(roi.getStrokeWidth() + .5));
-////				IJ.log("Ok so far");
-////				new ImagePlus("Again", ip2).show();
-//				stats = ImageStatistics.getStatistics(ip2, measurementFlags, cal);
-////				IJ.log("I reach this");
-//			} else
-			stats = ImageStatistics.getStatistics(ip, measurementFlags, cal);
-
-			// SPLIT_CHAR will be a special character used to split; make sure it is not present in the processor name
-			ipName = ipName.replace(SPLIT_CHAR, ' ');
 			if (doMean)
-				measurementList.addMeasurement("Mean"+SPLIT_CHAR+" "+ipName, stats.mean);
+				measurementList.addMeasurement("Mean"+SPLIT_CHAR+" "+ipName, stats.getMean(label));
 			if (doSum)
-				measurementList.addMeasurement("Sum"+SPLIT_CHAR+" "+ipName, stats.mean * stats.pixelCount);
+				measurementList.addMeasurement("Sum"+SPLIT_CHAR+" "+ipName, stats.getSum(label));
 			if (doStdDev)
-				measurementList.addMeasurement("Std.Dev"+SPLIT_CHAR+" "+ipName, stats.stdDev);
+				measurementList.addMeasurement("Std.Dev"+SPLIT_CHAR+" "+ipName, stats.getStdDev(label));
 			if (doCoV)
-				measurementList.addMeasurement("Coeff.Var"+SPLIT_CHAR+" "+ipName, stats.stdDev / stats.mean);
+				measurementList.addMeasurement("Coeff.Var"+SPLIT_CHAR+" "+ipName, stats.getStdDev(label) / stats.getMean(label));
 			if (doMin)
-				measurementList.addMeasurement("Min"+SPLIT_CHAR+" "+ipName, stats.min);
+				measurementList.addMeasurement("Min"+SPLIT_CHAR+" "+ipName, stats.getMin(label));
 			if (doMax)
-				measurementList.addMeasurement("Max"+SPLIT_CHAR+" "+ipName, stats.max);
+				measurementList.addMeasurement("Max"+SPLIT_CHAR+" "+ipName, stats.getMax(label));
+			if (doMedian)
+				measurementList.addMeasurement("Median"+SPLIT_CHAR+" "+ipName, stats.getMedian(label));
 			if (doRange)
-				measurementList.addMeasurement("Range"+SPLIT_CHAR+" "+ipName, stats.max - stats.min);
+				measurementList.addMeasurement("Range"+SPLIT_CHAR+" "+ipName, stats.getMax(label) - stats.getMin(label));
 			if (doSkewness)
-				measurementList.addMeasurement("Skewness"+SPLIT_CHAR+" "+ipName, stats.skewness);
+				measurementList.addMeasurement("Skewness"+SPLIT_CHAR+" "+ipName, stats.getSkewness(label));
 			if (doKurtosis)
-				measurementList.addMeasurement("Kurtosis"+SPLIT_CHAR+" "+ipName, stats.kurtosis);
+				measurementList.addMeasurement("Kurtosis"+SPLIT_CHAR+" "+ipName, stats.getKurtosis(label));
 			if (doMembrane)
-				measureMembrane(pathObject, ip, ipName, cal, downsampleFactor);
+				measurementList.addMeasurement("Membrane mean"+SPLIT_CHAR+" "+ipName, statsMembrane.getMean(label));
 		}
 	}
 	
 	
+	/**
+	 * Compute intensity statistics for a list of Rois, where the Roi at index i has the label i + 1.
+	 * <p>
+	 * The pixels of each Roi are visited once, so the cost depends upon the total area of the Rois rather than 
+	 * the size of the image.  Rois may overlap.
+	 * 
+	 * @param rois the Rois to measure, in the same pixel coordinates as the image
+	 * @param ip the image to measure
+	 * @param doMoments if true, compute the skewness and kurtosis
+	 * @param doMedian if true, estimate the median
+	 * @return
+	 * 
+	 * @see LabelStatistics
+	 */
+	public static LabelStatistics computeStatistics(List<? extends Roi> rois, ImageProcessor ip, boolean doMoments, boolean doMedian) {
+		return computeStatistics(rois, ip, false, doMoments, doMedian);
+	}
+	
+	private static LabelStatistics computeStatistics(List<? extends Roi> rois, ImageProcessor ip, boolean outlines, boolean doMoments, boolean doMedian) {
+		List<int[]> regions = new ArrayList<>(rois.size());
+		for (Roi roi : rois)
+			regions.add(getPixelIndices(roi, ip.getWidth(), ip.getHeight(), outlines));
+		return LabelStatistics.compute(ip, regions, doMoments, doMedian);
+	}
+	
+	/**
+	 * Get the (row-major) indices of all pixels within a Roi and the image.
+	 * 
+	 * @param roi
+	 * @param width
+	 * @param height
+	 * @param outlines if true, use the outline of the Roi (as drawn with a line width of 1) rather than its filled area
+	 * @return
+	 */
+	private static int[] getPixelIndices(final Roi roi, final int width, final int height, final boolean outlines) {
+		Rectangle bounds = roi.getBounds();
+		int x0 = Math.max(0, bounds.x);
+		int y0 = Math.max(0, bounds.y);
+		int x1 = Math.min(width, bounds.x + bounds.width);
+		int y1 = Math.min(height, bounds.y + bounds.height);
+		if (x1 <= x0 || y1 <= y0)
+			return new int[0];
+		ImageProcessor mask;
+		if (outlines) {
+			Roi roiOutline = (Roi)roi.clone();
+			roiOutline.setLocation(0, 0);
+			mask = new ByteProcessor(bounds.width, bounds.height);
+			mask.setValue(255);
+			mask.draw(roiOutline);
+		} else
+			mask = roi.getMask();
+		int[] pixels = new int[(x1 - x0) * (y1 - y0)];
+		int n = 0;
+		for (int y = y0; y < y1; y++) {
+			for (int x = x0; x < x1; x++) {
+				if (mask == null || mask.get(x - bounds.x, y - bounds.y) != 0)
+					pixels[n++] = y * width + x;
+			}
+		}
+		return n == pixels.length ? pixels : Arrays.copyOf(pixels, n);
+	}
 	
 	public static void measureMembrane(PathObject po, ImageProcessor ip, String ipName, Calibration cal, double downsampleFactor) {
 		Roi roi = ROIConverterIJ.convertToIJRoi(po.getROI(), cal, downsampleFactor);
@@ -0,0 +1,691 @@
+package qupath.imagej.processing;
+
+import java.awt.geom.Path2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import ij.process.ImageProcessor;
+import qupath.lib.common.TaskScheduler;
+import qupath.lib.common.TaskScheduler.Priority;
+import qupath.lib.common.TaskScheduler.TaskExecutor;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Trace the boundaries of all the regions in a labelled (or thresholded) image in a single pass.
+ * <p>
+ * Boundaries follow the pixel edges, so that the polygons enclose exactly the pixels of each region
+ * (as with ImageJ's {@link ij.gui.Wand} when tracing a thresholded image).
+ * Vertices are only added where the boundary changes direction.
+ * <p>
+ * Outer boundaries and holes are both traced, with the region always on the right-hand side
+ * (i.e. outer boundaries run clockwise in image coordinates, with y increasing downwards, and holes anti-clockwise).
+ * Contours are returned in the order in which their first top edge is encountered when scanning the image row by row;
+ * for outer boundaries, this is the same order in which the regions would be found by scanning the image with a {@link ij.gui.Wand}.
+ * <p>
+ * Large images are split into horizontal strips that are traced in parallel, using the shared {@link TaskScheduler}.
+ */
+public class ContourTracing {
+
+	/**
+	 * Minimum number of pixels for an image to be traced in parallel.
+	 */
+	private final static int MIN_PARALLEL_PIXELS = 1024 * 1024;
+
+	/**
+	 * Minimum number of rows in each strip traced in parallel.
+	 */
+	private final static int MIN_STRIP_HEIGHT = 64;
+
+	private static TaskExecutor pool = TaskScheduler.getInstance().createExecutor("contour-tracing", Priority.ANALYSIS);
+
+	/*
+	 * Directions are east, south, west, north (in that order, so that adding 1 turns right and adding 3 turns left).
+	 * For an edge leaving the corner (x, y) in each direction, the pixel on the right is at (x+RX, y+RY)
+	 * and the pixel on the left at (x+LX, y+LY).
+	 */
+	private final static int[] DX = {1, 0, -1, 0};
+	private final static int[] DY = {0, 1, 0, -1};
+	private final static int[] RX = {0, -1, -1, 0};
+	private final static int[] RY = {0, 0, -1, -1};
+	private final static int[] LX = {0, 0, -1, -1};
+	private final static int[] LY = {-1, 0, 0, -1};
+
+
+	/**
+	 * A single closed boundary of a labelled region, which may be either an outer boundary or a hole.
+	 */
+	public static class Contour {
+
+		private final int label;
+		private final boolean isHole;
+		private final float[] vertices;
+		private final int startX, startY;
+		private final int minX, minY, maxX, maxY;
+		private final double area;
+
+		private Contour(final int label, final boolean isHole, final int startX, final int startY, final int[] xy, final int nVertices) {
+			this.label = label;
+			this.isHole = isHole;
+			this.startX = startX;
+			this.startY = startY;
+			this.vertices = new float[nVertices * 2];
+			int x1 = Integer.MAX_VALUE, y1 = Integer.MAX_VALUE, x2 = Integer.MIN_VALUE, y2 = Integer.MIN_VALUE;
+			for (int i = 0; i < nVertices * 2; i += 2) {
+				int x = xy[i];
+				int y = xy[i+1];
+				vertices[i] = x;
+				vertices[i+1] = y;
+				if (x < x1)
+					x1 = x;
+				if (x > x2)
+					x2 = x;
+				if (y < y1)
+					y1 = y;
+				if (y > y2)
+					y2 = y;
+			}
+			minX = x1;
+			minY = y1;
+			maxX = x2;
+			maxY = y2;
+			long area2 = 0;
+			for (int i = 0, j = nVertices * 2 - 2; i < nVertices * 2; j = i, i += 2)
+				area2 += (long)xy[j] * xy[i+1] - (long)xy[i] * xy[j+1];
+			area = Math.abs(area2) / 2.0;
+		}
+
+		/**
+		 * Get the label of the region this contour belongs to.
+		 * @return
+		 */
+		public int getLabel() {
+			return label;
+		}
+
+		/**
+		 * Returns true if this contour is the boundary of a hole, rather than an outer boundary.
+		 * @return
+		 */
+		public boolean isHole() {
+			return isHole;
+		}
+
+		/**
+		 * Get the number of vertices in the contour (without repeating the first vertex at the end).
+		 * @return
+		 */
+		public int nVertices() {
+			return vertices.length / 2;
+		}
+
+		/**
+		 * Get the vertices as a packed array {x0, y0, x1, y1, ...} in pixel coordinates of the traced image.
+		 * <p>
+		 * The array is returned directly (without copying) and should not be modified.
+		 * @return
+		 */
+		public float[] getVertices() {
+			return vertices;
+		}
+
+		/**
+		 * Get the x-coordinate of the top-left pixel of the region inside this contour
+		 * (i.e. the first pixel found when scanning the image row by row).
+		 * @return
+		 */
+		public int getStartX() {
+			return startX;
+		}
+
+		/**
+		 * Get the y-coordinate of the top-left pixel of the region inside this contour.
+		 * @return
+		 */
+		public int getStartY() {
+			return startY;
+		}
+
+		/**
+		 * Get the area enclosed by this contour, in pixels (always &gt;= 0, including for holes).
+		 * @return
+		 */
+		public double getArea() {
+			return area;
+		}
+
+		/**
+		 * Returns true if a point lies inside this contour, using the even-odd rule.
+		 * @param x
+		 * @param y
+		 * @return
+		 */
+		public boolean contains(final double x, final double y) {
+			if (x < minX || x > maxX || y < minY || y > maxY)
+				return false;
+			boolean inside = false;
+			int n = vertices.length;
+			for (int i = 0, j = n - 2; i < n; j = i, i += 2) {
+				float xi = vertices[i], yi = vertices[i+1];
+				float xj = vertices[j], yj = vertices[j+1];
+				if ((yi > y) != (yj > y) && x < (xj - xi) * (y - yi) / (yj - yi) + xi)
+					inside = !inside;
+			}
+			return inside;
+		}
+
+		/**
+		 * Create an ImageJ traced polygon from this contour.
+		 * @return
+		 */
+		public PolygonRoi toPolygonRoi() {
+			int n = nVertices();
+			int[] x = new int[n];
+			int[] y = new int[n];
+			for (int i = 0; i < n; i++) {
+				x[i] = (int)vertices[i*2];
+				y[i] = (int)vertices[i*2+1];
+			}
+			return new PolygonRoi(x, y, n, Roi.TRACED_ROI);
+		}
+
+		private void appendTo(final Path2D path, final double xOrigin, final double yOrigin, final double downsample) {
+			path.moveTo((vertices[0] - xOrigin) * downsample, (vertices[1] - yOrigin) * downsample);
+			for (int i = 2; i < vertices.length; i += 2)
+				path.lineTo((vertices[i] - xOrigin) * downsample, (vertices[i+1] - yOrigin) * downsample);
+			path.closePath();
+		}
+
+		@Override
+		public String toString() {
+			return "Contour (label=" + label + ", hole=" + isHole + ", vertices=" + nVertices() + ")";
+		}
+
+	}
+
+
+	/**
+	 * Trace the contours of all the regions in a labelled image.
+	 * <p>
+	 * Labels are taken as the integer part of each pixel value; pixels with labels &lt;= 0 or &gt; maxLabel are treated as background.
+	 *
+	 * @param ipLabels labelled image
+	 * @param maxLabel the maximum label to trace; use {@code Integer.MAX_VALUE} to trace all labels
+	 * @param conn8 if true, use 8-connectivity for each region; otherwise, use 4-connectivity
+	 * @param filled if true, return only outer boundaries - ignoring holes and any regions found within the holes
+	 * 				(i.e. the contours that would be found with a {@link ij.gui.Wand} if each region were filled after tracing)
+	 * @return
+	 */
+	public static List<Contour> traceLabels(final ImageProcessor ipLabels, final int maxLabel, final boolean conn8, final boolean filled) {
+		int n = ipLabels.getWidth() * ipLabels.getHeight();
+		int[] labels = new int[n];
+		Object pixels = ipLabels.getPixels();
+		if (pixels instanceof short[]) {
+			short[] px = (short[])pixels;
+			for (int i = 0; i < n; i++) {
+				int val = px[i] & 0xffff;
+				labels[i] = val <= maxLabel ? val : 0;
+			}
+		} else if (pixels instanceof byte[]) {
+			byte[] px = (byte[])pixels;
+			for (int i = 0; i < n; i++) {
+				int val = px[i] & 0xff;
+				labels[i] = val <= maxLabel ? val : 0;
+			}
+		} else {
+			for (int i = 0; i < n; i++) {
+				float val = ipLabels.getf(i);
+				labels[i] = val >= 1 && val < maxLabel + 1.0 ? (int)val : 0;
+			}
+		}
+		return traceContours(labels, ipLabels.getWidth(), ipLabels.getHeight(), conn8, filled);
+	}
+
+	/**
+	 * Trace the contours of all the connected regions containing pixels within a threshold range.
+	 * All contours will have the label 1.
+	 *
+	 * @param ip image to threshold
+	 * @param minThreshold minimum pixel value (inclusive)
+	 * @param maxThreshold maximum pixel value (inclusive)
+	 * @param conn8 if true, use 8-connectivity for each region; otherwise, use 4-connectivity
+	 * @param filled if true, return only outer boundaries - ignoring holes and any regions found within the holes
+	 * @return
+	 */
+	public static List<Contour> traceThresholded(final ImageProcessor ip, final double minThreshold, final double maxThreshold, final boolean conn8, final boolean filled) {
+		int n = ip.getWidth() * ip.getHeight();
+		int[] labels = new int[n];
+		Object pixels = ip.getPixels();
+		if (pixels instanceof byte[] || pixels instanceof short[]) {
+			// Use a lookup table for integer pixel types
+			int[] lut = new int[pixels instanceof byte[] ? 256 : 65536];
+			for (int i = 0; i < lut.length; i++)
+				lut[i] = i >= minThreshold && i <= maxThreshold ? 1 : 0;
+			if (pixels instanceof byte[]) {
+				byte[] px = (byte[])pixels;
+				for (int i = 0; i < n; i++)
+					labels[i] = lut[px[i] & 0xff];
+			} else {
+				short[] px = (short[])pixels;
+				for (int i = 0; i < n; i++)
+					labels[i] = lut[px[i] & 0xffff];
+			}
+		} else {
+			for (int i = 0; i < n; i++) {
+				float val = ip.getf(i);
+				if (val >= minThreshold && val <= maxThreshold)
+					labels[i] = 1;
+			}
+		}
+		return traceContours(labels, ip.getWidth(), ip.getHeight(), conn8, filled);
+	}
+
+	/**
+	 * Trace the contours of all the regions in a labelled image, stored as a row-major array of integer labels.
+	 * Pixels with labels &lt;= 0 are treated as background.
+	 *
+	 * @param labels
+	 * @param width
+	 * @param height
+	 * @param conn8 if true, use 8-connectivity for each region; otherwise, use 4-connectivity
+	 * @param filled if true, return only outer boundaries - ignoring holes and any regions found within the holes
+	 * @return
+	 */
+	public static List<Contour> traceContours(final int[] labels, final int width, final int height, final boolean conn8, final boolean filled) {
+		if (labels.length < width * height)
+			throw new IllegalArgumentException("Label array has length " + labels.length + ", but should be at least " + width + "x" + height);
+		// Flag the top edges of each pixel once it has been traced, so that each boundary is traced only once
+		boolean[] visited = new boolean[width * height];
+		List<Contour> contours;
+		int parallelism = TaskScheduler.getInstance().getPriorityLimit(Priority.ANALYSIS);
+		if (parallelism > 1 && width * height >= MIN_PARALLEL_PIXELS && height >= MIN_STRIP_HEIGHT * 2) {
+			int stripHeight = Math.max(MIN_STRIP_HEIGHT, (int)Math.ceil(height / (parallelism * 4.0)));
+			int nStrips = (height + stripHeight - 1) / stripHeight;
+			List<Callable<List<Contour>>> tasks = new ArrayList<>();
+			for (int i = 0; i < nStrips; i++) {
+				int yStart = i * stripHeight;
+				int yEnd = Math.min(height, (i + 1) * stripHeight);
+				tasks.add(() -> new Tracer(labels, width, height, conn8, visited).traceRows(yStart, yEnd));
+			}
+			contours = new ArrayList<>();
+			try {
+				for (var future : pool.invokeAll(tasks))
+					contours.addAll(future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CancellationException("Interrupted while tracing contours");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException)e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		} else
+			contours = new Tracer(labels, width, height, conn8, visited).traceRows(0, height);
+		if (filled)
+			return removeHolesAndNestedContours(contours);
+		return contours;
+	}
+
+
+	/**
+	 * Create a polygon ROI from a single contour.
+	 * Coordinates are converted in the same way as {@link qupath.imagej.objects.ROIConverterIJ},
+	 * i.e. {@code (x - xOrigin) * downsample}, where the origin is usually given by the ImageJ calibration.
+	 *
+	 * @param contour
+	 * @param xOrigin
+	 * @param yOrigin
+	 * @param downsample
+	 * @param plane
+	 * @return
+	 */
+	public static ROI createROI(final Contour contour, final double xOrigin, final double yOrigin, final double downsample, final ImagePlane plane) {
+		int n = contour.nVertices();
+		float[] vertices = contour.getVertices();
+		float[] x = new float[n];
+		float[] y = new float[n];
+		for (int i = 0; i < n; i++) {
+			x[i] = (float)((vertices[i*2] - xOrigin) * downsample);
+			y[i] = (float)((vertices[i*2+1] - yOrigin) * downsample);
+		}
+		return ROIs.createPolygonROI(x, y, plane);
+	}
+
+	/**
+	 * Create ROIs from contours, combining all the contours with the same label into a single ROI.
+	 * <p>
+	 * Labels with a single outer boundary and no holes give polygon ROIs, while other labels give area ROIs.
+	 * Coordinates are converted as for {@link #createROI(Contour, double, double, double, ImagePlane)}.
+	 *
+	 * @param contours
+	 * @param xOrigin
+	 * @param yOrigin
+	 * @param downsample
+	 * @param plane
+	 * @return a map between labels and ROIs, in the order each label was first encountered
+	 */
+	public static Map<Integer, ROI> createROIs(final List<Contour> contours, final double xOrigin, final double yOrigin, final double downsample, final ImagePlane plane) {
+		Map<Integer, ROI> map = new LinkedHashMap<>();
+		for (var entry : groupByLabel(contours).entrySet()) {
+			var list = entry.getValue();
+			if (list.size() == 1)
+				map.put(entry.getKey(), createROI(list.get(0), xOrigin, yOrigin, downsample, plane));
+			else
+				map.put(entry.getKey(), ROIs.createAreaROI(createPath(list, xOrigin, yOrigin, downsample), plane));
+		}
+		return map;
+	}
+
+	/**
+	 * Create ImageJ Rois from contours, combining all the contours with the same label into a single Roi.
+	 * <p>
+	 * Labels with a single outer boundary and no holes give traced polygons, while other labels give a {@link ShapeRoi}.
+	 *
+	 * @param contours
+	 * @return a map between labels and Rois, in the order each label was first encountered
+	 */
+	public static Map<Integer, Roi> createImageJRois(final List<Contour> contours) {
+		Map<Integer, Roi> map = new LinkedHashMap<>();
+		for (var entry : groupByLabel(contours).entrySet()) {
+			var list = entry.getValue();
+			if (list.size() == 1)
+				map.put(entry.getKey(), list.get(0).toPolygonRoi());
+			else
+				map.put(entry.getKey(), new ShapeRoi(createPath(list, 0, 0, 1)));
+		}
+		return map;
+	}
+
+	/**
+	 * Create JTS Geometries from contours, combining all the contours with the same label into a single Geometry.
+	 * <p>
+	 * Each hole is assigned to the smallest outer boundary with the same label that contains it, giving polygons with holes.
+	 * Coordinates are converted as for {@link #createROI(Contour, double, double, double, ImagePlane)}.
+	 * <p>
+	 * Because contours follow pixel edges, regions touching only at a corner give rings that touch themselves;
+	 * if this makes the Geometry invalid, it is fixed with a zero-distance buffer.
+	 *
+	 * @param contours
+	 * @param xOrigin
+	 * @param yOrigin
+	 * @param downsample
+	 * @param factory the factory used to create the Geometries
+	 * @return a map between labels and Geometries, in the order each label was first encountered
+	 */
+	public static Map<Integer, Geometry> createGeometries(final List<Contour> contours, final double xOrigin, final double yOrigin, final double downsample, final GeometryFactory factory) {
+		Map<Integer, Geometry> map = new LinkedHashMap<>();
+		for (var entry : groupByLabel(contours).entrySet()) {
+			var list = entry.getValue();
+			// Sort outer boundaries by area, so that the first one containing a hole is the innermost
+			List<Contour> shells = new ArrayList<>();
+			List<Contour> holes = new ArrayList<>();
+			for (var contour : list) {
+				if (contour.isHole())
+					holes.add(contour);
+				else
+					shells.add(contour);
+			}
+			shells.sort(Comparator.comparingDouble(Contour::getArea));
+			var shellIndex = new STRtree();
+			for (int i = 0; i < shells.size(); i++) {
+				var shell = shells.get(i);
+				shellIndex.insert(new Envelope(shell.minX, shell.maxX, shell.minY, shell.maxY), i);
+			}
+			List<List<LinearRing>> holeRings = new ArrayList<>(shells.size());
+			for (int i = 0; i < shells.size(); i++)
+				holeRings.add(null);
+			for (var hole : holes) {
+				// The start pixel of a hole belongs to the region surrounding it
+				double x = hole.getStartX() + 0.5;
+				double y = hole.getStartY() + 0.5;
+				int ind = Integer.MAX_VALUE;
+				for (Object o : shellIndex.query(new Envelope(x, x, y, y))) {
+					int i = (Integer)o;
+					if (i < ind && shells.get(i).contains(x, y))
+						ind = i;
+				}
+				if (ind == Integer.MAX_VALUE)
+					continue;
+				if (holeRings.get(ind) == null)
+					holeRings.set(ind, new ArrayList<>());
+				holeRings.get(ind).add(createRing(hole, xOrigin, yOrigin, downsample, factory));
+			}
+			Polygon[] polygons = new Polygon[shells.size()];
+			for (int i = 0; i < shells.size(); i++) {
+				var rings = holeRings.get(i);
+				polygons[i] = factory.createPolygon(createRing(shells.get(i), xOrigin, yOrigin, downsample, factory),
+						rings == null ? null : rings.toArray(LinearRing[]::new));
+			}
+			Geometry geometry = polygons.length == 1 ? polygons[0] : factory.createMultiPolygon(polygons);
+			if (!geometry.isValid())
+				geometry = geometry.buffer(0);
+			map.put(entry.getKey(), geometry);
+		}
+		return map;
+	}
+
+	private static LinearRing createRing(final Contour contour, final double xOrigin, final double yOrigin, final double downsample, final GeometryFactory factory) {
+		int n = contour.nVertices();
+		float[] vertices = contour.getVertices();
+		Coordinate[] coords = new Coordinate[n + 1];
+		for (int i = 0; i < n; i++)
+			coords[i] = new Coordinate((vertices[i*2] - xOrigin) * downsample, (vertices[i*2+1] - yOrigin) * downsample);
+		coords[n] = coords[0];
+		return factory.createLinearRing(coords);
+	}
+
+	private static Map<Integer, List<Contour>> groupByLabel(final List<Contour> contours) {
+		Map<Integer, List<Contour>> map = new LinkedHashMap<>();
+		for (var contour : contours)
+			map.computeIfAbsent(contour.getLabel(), k -> new ArrayList<>(1)).add(contour);
+		return map;
+	}
+
+	private static Path2D createPath(final List<Contour> contours, final double xOrigin, final double yOrigin, final double downsample) {
+		var path = new Path2D.Float(Path2D.WIND_EVEN_ODD);
+		for (var contour : contours)
+			contour.appendTo(path, xOrigin, yOrigin, downsample);
+		return path;
+	}
+
+	/**
+	 * Remove holes, along with outer boundaries that fall inside any hole (which would be hidden if the regions were filled).
+	 * <p>
+	 * A region with the same label as the hole cannot touch the hole boundary, so checking its start pixel is enough. 
+	 * A region with a different label may start inside the hole but extend beyond it (e.g. diagonally with 8-connectivity); 
+	 * it is only removed if all its boundary pixels are inside holes, since otherwise some of it would remain visible.
+	 */
+	private static List<Contour> removeHolesAndNestedContours(final List<Contour> contours) {
+		List<Contour> holes = null;
+		for (var contour : contours) {
+			if (contour.isHole()) {
+				if (holes == null)
+					holes = new ArrayList<>();
+				holes.add(contour);
+			}
+		}
+		if (holes == null)
+			return contours;
+		// Index the holes by their bounds, so that only holes that might contain each contour need to be checked
+		var holeIndex = new STRtree();
+		for (var hole : holes)
+			holeIndex.insert(new Envelope(hole.minX, hole.maxX, hole.minY, hole.maxY), hole);
+		List<Contour> filled = new ArrayList<>(contours.size() - holes.size());
+		for (var contour : contours) {
+			if (contour.isHole())
+				continue;
+			double x = contour.getStartX() + 0.5;
+			double y = contour.getStartY() + 0.5;
+			boolean nested = false;
+			boolean otherLabel = false;
+			for (Object o : holeIndex.query(new Envelope(x, x, y, y))) {
+				var hole = (Contour)o;
+				if (hole.contains(x, y)) {
+					if (hole.getLabel() == contour.getLabel()) {
+						nested = true;
+						break;
+					}
+					otherLabel = true;
+				}
+			}
+			if (!nested && otherLabel)
+				nested = isInsideHoles(contour, holeIndex);
+			if (!nested)
+				filled.add(contour);
+		}
+		return filled;
+	}
+
+	/**
+	 * Check whether the center of every pixel along an outer boundary lies inside at least one hole.
+	 */
+	private static boolean isInsideHoles(final Contour contour, final STRtree holeIndex) {
+		List<Contour> candidates = new ArrayList<>();
+		for (Object o : holeIndex.query(new Envelope(contour.minX, contour.maxX, contour.minY, contour.maxY))) {
+			var hole = (Contour)o;
+			if (hole.minX <= contour.minX && hole.maxX >= contour.maxX && hole.minY <= contour.minY && hole.maxY >= contour.maxY)
+				candidates.add(hole);
+		}
+		float[] vertices = contour.getVertices();
+		int n = vertices.length;
+		for (int i = 0; i < n; i += 2) {
+			int x = (int)vertices[i];
+			int y = (int)vertices[i+1];
+			int x2 = (int)vertices[(i + 2) % n];
+			int y2 = (int)vertices[(i + 3) % n];
+			int dir = x2 > x ? 0 : y2 > y ? 1 : x2 < x ? 2 : 3;
+			// The region is on the right of each edge
+			while (x != x2 || y != y2) {
+				double xPixel = x + RX[dir] + 0.5;
+				double yPixel = y + RY[dir] + 0.5;
+				boolean inside = false;
+				for (var hole : candidates) {
+					if (hole.contains(xPixel, yPixel)) {
+						inside = true;
+						break;
+					}
+				}
+				if (!inside)
+					return false;
+				x += DX[dir];
+				y += DY[dir];
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Trace contours starting within a range of rows.
+	 * <p>
+	 * Each contour is traced from the top edge of a pixel, and only completed if it was started from the first
+	 * top edge in the contour (in row-major order); otherwise tracing stops as soon as an earlier edge is reached.
+	 * This means that strips can be traced in parallel using a shared array of visited edges, without any need
+	 * for synchronization: the visited edges only avoid duplicated work, and cannot change which contours are found.
+	 */
+	private static class Tracer {
+
+		private final int[] labels;
+		private final int width, height;
+		private final boolean conn8;
+		private final boolean[] visited;
+
+		private int[] xy = new int[256];
+		private int nVertices;
+
+		Tracer(final int[] labels, final int width, final int height, final boolean conn8, final boolean[] visited) {
+			this.labels = labels;
+			this.width = width;
+			this.height = height;
+			this.conn8 = conn8;
+			this.visited = visited;
+		}
+
+		List<Contour> traceRows(final int yStart, final int yEnd) {
+			List<Contour> contours = new ArrayList<>();
+			for (int y = yStart; y < yEnd; y++) {
+				int ind = y * width;
+				for (int x = 0; x < width; x++, ind++) {
+					int label = labels[ind];
+					if (label <= 0 || visited[ind] || (y > 0 && labels[ind - width] == label))
+						continue;
+					var contour = trace(x, y, label);
+					if (contour != null)
+						contours.add(contour);
+				}
+			}
+			return contours.isEmpty() ? Collections.emptyList() : contours;
+		}
+
+		private boolean isLabel(final int x, final int y, final int label) {
+			return x >= 0 && y >= 0 && x < width && y < height && labels[y * width + x] == label;
+		}
+
+		/**
+		 * Trace a contour starting from the top-left corner of pixel (xStart, yStart), moving east.
+		 * @return the contour, or null if the contour has an earlier starting edge
+		 */
+		private Contour trace(final int xStart, final int yStart, final int label) {
+			int start = yStart * width + xStart;
+			nVertices = 0;
+			addVertex(xStart, yStart);
+			int x = xStart;
+			int y = yStart;
+			int dir = 0;
+			long area2 = 0;
+			while (true) {
+				if (dir == 0) {
+					int edge = y * width + x;
+					if (edge < start)
+						return null;
+					visited[edge] = true;
+				}
+				area2 += (long)x * DY[dir] - (long)y * DX[dir];
+				x += DX[dir];
+				y += DY[dir];
+				int newDir;
+				if (isLabel(x + RX[dir], y + RY[dir], label))
+					newDir = isLabel(x + LX[dir], y + LY[dir], label) ? (dir + 3) & 3 : dir;
+				else
+					newDir = conn8 && isLabel(x + LX[dir], y + LY[dir], label) ? (dir + 3) & 3 : (dir + 1) & 3;
+				// We can't return to the start moving east (that would be an earlier edge), so the start is always a vertex
+				if (newDir == 0 && x == xStart && y == yStart)
+					break;
+				if (newDir != dir)
+					addVertex(x, y);
+				dir = newDir;
+			}
+			return new Contour(label, area2 < 0, xStart, yStart, xy, nVertices);
+		}
+
+		private void addVertex(final int x, final int y) {
+			if (nVertices * 2 == xy.length)
+				xy = Arrays.copyOf(xy, xy.length * 2);
+			xy[nVertices * 2] = x;
+			xy[nVertices * 2 + 1] = y;
+			nVertices++;
+		}
+
+	}
+
+}
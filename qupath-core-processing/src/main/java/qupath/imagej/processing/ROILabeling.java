@@ -37,13 +37,11 @@ import ij.gui.PolygonRoi;
 import ij.gui.Roi;
 import ij.gui.Wand;
 import ij.plugin.filter.RankFilters;
-import ij.plugin.filter.ThresholdToSelection;
 import ij.process.Blitter;
 import ij.process.ByteProcessor;
 import ij.process.FloatPolygon;
 import ij.process.FloodFiller;
 import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
 import ij.process.ShortProcessor;
 
 /**
@@ -240,27 +238,13 @@ public class ROILabeling {
 	 * @param ipLabels
 	 * @param n - maximum number of labels
 	 * @return
+	 * 
+	 * @see ContourTracing
 	 */
 	public static PolygonRoi[] labelsToFilledROIs(ImageProcessor ipLabels, int n) {
 		PolygonRoi[] rois = new PolygonRoi[n];
-		int w = ipLabels.getWidth();
-		int h = ipLabels.getHeight();
-		ByteProcessor bpCompleted = new ByteProcessor(w, h);
-		bpCompleted.setValue(255);
-		for (int y = 0; y < h; y++) {
-			for (int x = 0; x < w; x++) {
-				if (bpCompleted.get(x, y) != 0)
-					continue;
-				float val = ipLabels.getf(x, y);
-				if (val > 0 && val <= n) {
-					Wand wand = new Wand(ipLabels);
-					wand.autoOutline(x, y, val, val, Wand.EIGHT_CONNECTED);
-					PolygonRoi roi = wandToRoi(wand);
-					rois[(int)val-1] = roi;
-					bpCompleted.fill(roi);
-				}
-			}
-		}
+		for (var contour : ContourTracing.traceLabels(ipLabels, n, true, true))
+			rois[contour.getLabel()-1] = contour.toPolygonRoi();
 		return rois;
 	}
 	
@@ -276,28 +260,11 @@ public class ROILabeling {
 	 * @param ipLabels
 	 * @param conn8
 	 * @return
+	 * 
+	 * @see ContourTracing
 	 */
 	public static List<PolygonRoi> labelsToFilledRoiList(final ImageProcessor ipLabels, final boolean conn8) {
-		List<PolygonRoi> rois = new ArrayList<>();
-		int w = ipLabels.getWidth();
-		int h = ipLabels.getHeight();
-		ByteProcessor bpCompleted = new ByteProcessor(w, h);
-		bpCompleted.setValue(255);
-		for (int y = 0; y < h; y++) {
-			for (int x = 0; x < w; x++) {
-				if (bpCompleted.get(x, y) != 0)
-					continue;
-				float val = ipLabels.getf(x, y);
-				if (val > 0) {
-					Wand wand = new Wand(ipLabels);
-					wand.autoOutline(x, y, val, val, conn8 ? Wand.EIGHT_CONNECTED : Wand.FOUR_CONNECTED);
-					PolygonRoi roi = wandToRoi(wand);
-					rois.add(roi);
-					bpCompleted.fill(roi);
-				}
-			}
-		}
-		return rois;
+		return toPolygonRois(ContourTracing.traceLabels(ipLabels, Integer.MAX_VALUE, conn8, true));
 	}
 	
 	
@@ -311,38 +278,14 @@ public class ROILabeling {
 	 * @param ipLabels
 	 * @param n
 	 * @return
+	 * 
+	 * @see ContourTracing
 	 */
 	public static Roi[] labelsToConnectedROIs(ImageProcessor ipLabels, int n) {
 		Roi[] rois = new Roi[n];
-		int w = ipLabels.getWidth();
-		int h = ipLabels.getHeight();
-		ByteProcessor bpCompleted = new ByteProcessor(w, h);
-		bpCompleted.setValue(255);
-		ThresholdToSelection tts = new ThresholdToSelection();
-		for (int y = 0; y < h; y++) {
-			for (int x = 0; x < w; x++) {
-				if (bpCompleted.get(x, y) != 0)
-					continue;
-				float val = ipLabels.getf(x, y);
-				if (val > 0 && val <= n) {
-					Wand wand = new Wand(ipLabels);
-					ipLabels.resetThreshold();
-					wand.autoOutline(x, y, val, val, Wand.EIGHT_CONNECTED);
-					Roi roi = wandToRoi(wand);
-					
-					// Check if ROI contains holes, and create if necessary
-					ipLabels.setRoi(roi);
-					ImageStatistics stats = ipLabels.getStatistics();
-					if (stats.max != stats.min || rois[(int)val-1] != null) {
-						ipLabels.setThreshold(val-0.25, val+0.25, ImageProcessor.NO_LUT_UPDATE);
-						roi = tts.convert(ipLabels);
-					}
-					
-					rois[(int)val-1] = roi;
-					bpCompleted.fill(roi);
-				}
-			}
-		}
+		var contours = ContourTracing.traceLabels(ipLabels, n, true, false);
+		for (var entry : ContourTracing.createImageJRois(contours).entrySet())
+			rois[entry.getKey()-1] = entry.getValue();
 		return rois;
 	}
 	
@@ -356,70 +299,52 @@ public class ROILabeling {
 	 * @param ip
 	 * @param wandMode
 	 * @return
+	 * 
+	 * @see ContourTracing
 	 */
 	public static Map<Float, PolygonRoi> getFilledPolygonROIsFromLabels(ImageProcessor ip, int wandMode) {
-//		Wand wand = new Wand(ip);
-		double threshLower = ip.getMinThreshold();
-		if (threshLower == ImageProcessor.NO_THRESHOLD)
-			threshLower = Double.NEGATIVE_INFINITY;
-		double threshHigher = ip.getMaxThreshold();
-		if (threshHigher == ImageProcessor.NO_THRESHOLD)
-			threshHigher = Double.POSITIVE_INFINITY;
-		int w = ip.getWidth();
-		int h = ip.getHeight();
-//		List<PolygonRoi> rois = new ArrayList<>();
-		ByteProcessor bpCompleted = new ByteProcessor(w, h);
-		bpCompleted.setValue(255);
 		TreeMap<Float, PolygonRoi> map = new TreeMap<>();
-		for (int y = 0; y < h; y++) {
-			for (int x = 0; x < w; x++) {
-				if (bpCompleted.get(x, y) != 0)
-					continue;
-				float val = ip.getf(x, y);
-				if (val >= threshLower && val <= threshHigher) {
-					Wand wand = new Wand(ip);
-					wand.autoOutline(x, y, threshLower, threshHigher, wandMode);
-					PolygonRoi roi = wandToRoi(wand);
-//					rois.add(roi);
-					Float key = val;
-					if (map.containsKey(key))
-						logger.warn("Polygon ROI is being inserted twice into map for the same key {}", key);
-					map.put(val, roi);
-					bpCompleted.fill(roi);
-				}
-			}
+		for (var contour : traceThresholded(ip, wandMode)) {
+			Float key = ip.getf(contour.getStartX(), contour.getStartY());
+			if (map.containsKey(key))
+				logger.warn("Polygon ROI is being inserted twice into map for the same key {}", key);
+			map.put(key, contour.toPolygonRoi());
 		}
 		return map;
 	}
 	
 	
+	/**
+	 * Get filled Polygon ROIs for all connected regions within the threshold range of an image
+	 * (or all pixels, if no threshold is set).
+	 * 
+	 * @param ip
+	 * @param wandMode Wand.FOUR_CONNECTED or Wand.EIGHT_CONNECTED (other modes are treated as 8-connected)
+	 * @return
+	 * 
+	 * @see ContourTracing
+	 */
 	public static List<PolygonRoi> getFilledPolygonROIs(ImageProcessor ip, int wandMode) {
-//		Wand wand = new Wand(ip);
+		return toPolygonRois(traceThresholded(ip, wandMode));
+	}
+	
+	
+	private static List<ContourTracing.Contour> traceThresholded(ImageProcessor ip, int wandMode) {
 		double threshLower = ip.getMinThreshold();
 		if (threshLower == ImageProcessor.NO_THRESHOLD)
 			threshLower = Double.NEGATIVE_INFINITY;
 		double threshHigher = ip.getMaxThreshold();
 		if (threshHigher == ImageProcessor.NO_THRESHOLD)
 			threshHigher = Double.POSITIVE_INFINITY;
-		int w = ip.getWidth();
-		int h = ip.getHeight();
-		List<PolygonRoi> rois = new ArrayList<>();
-		ByteProcessor bpCompleted = new ByteProcessor(w, h);
-		bpCompleted.setValue(255);
-		for (int y = 0; y < h; y++) {
-			for (int x = 0; x < w; x++) {
-				if (bpCompleted.get(x, y) != 0)
-					continue;
-				float val = ip.getf(x, y);
-				if (val >= threshLower && val <= threshHigher) {
-					Wand wand = new Wand(ip);
-					wand.autoOutline(x, y, threshLower, threshHigher, wandMode);
-					PolygonRoi roi = wandToRoi(wand);
-					rois.add(roi);
-					bpCompleted.fill(roi);
-				}
-			}
-		}
+		boolean conn8 = (wandMode & Wand.FOUR_CONNECTED) == 0;
+		return ContourTracing.traceThresholded(ip, threshLower, threshHigher, conn8, true);
+	}
+	
+	
+	private static List<PolygonRoi> toPolygonRois(List<ContourTracing.Contour> contours) {
+		List<PolygonRoi> rois = new ArrayList<>(contours.size());
+		for (var contour : contours)
+			rois.add(contour.toPolygonRoi());
 		return rois;
 	}
 	
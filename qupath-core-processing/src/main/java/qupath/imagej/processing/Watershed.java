@@ -23,8 +23,7 @@
 
 package qupath.imagej.processing;
 
-import java.util.ArrayDeque;
-import java.util.PriorityQueue;
+import java.util.Arrays;
 
 import ij.IJ;
 import ij.plugin.filter.EDM;
@@ -34,12 +33,21 @@ import ij.process.ImageProcessor;
 
 /**
  * Implementation of 2D watershed transform for ImageJ.
+ * <p>
+ * Pixels are flooded in order of decreasing value, with pixels of equal value processed in the order they were queued.
+ * The queue is a two-level bucket queue: queued pixels are first binned into quantized value ranges, 
+ * and only the pixels in the highest non-empty range are sorted (in a binary heap) at any one time.
+ * All queue storage uses primitive arrays that are reused by each thread, so flooding a large image 
+ * does not require creating an object per pixel; arrays that grow beyond a fixed size are discarded after use, 
+ * so that each thread retains only a bounded amount of memory.
  * 
  * @author Pete Bankhead
  *
  */
 public class Watershed {
 	
+	private final static ThreadLocal<WatershedWorkspace> workspaces = ThreadLocal.withInitial(() -> new WatershedWorkspace());
+	
 	public static ImageProcessor watershedExpand(final ByteProcessor bp, final double maxDistance, final boolean conn8) {
 		FloatProcessor fpEDM = new EDM().makeFloatEDM(bp, (byte)255, false);
 		fpEDM.multiply(-1);
@@ -53,6 +61,14 @@ public class Watershed {
 		doWatershed(ip, ipLabels, Double.NEGATIVE_INFINITY, conn8);
 	}
 	
+	/**
+	 * Apply a watershed transform, expanding the labels in ipLabels into unlabelled pixels.
+	 * 
+	 * @param ip the image to flood; higher values are flooded first
+	 * @param ipLabels the starting labels (non-zero), which are updated in-place
+	 * @param minThreshold pixels in ip with values &lt;= minThreshold are never labelled; NaN pixels are never labelled either
+	 * @param conn8 if true, use 8-connectivity when checking neighbouring labels; otherwise use 4-connectivity
+	 */
 	public static void doWatershed(final ImageProcessor ip, final ImageProcessor ipLabels, final double minThreshold, final boolean conn8) {
 		
 		final long startTime = System.currentTimeMillis();
@@ -60,29 +76,33 @@ public class Watershed {
 		final int width = ip.getWidth();
 		final int height = ip.getHeight();
 		
-		// Create & initialize a priority queue
-		final WatershedQueueWrapper queue = new WatershedQueueWrapper(ip, ipLabels, minThreshold);
-		
-		// Process the queue
-		while (!queue.isEmpty()) {
-			final PixelWithValue pwv = queue.poll();
-			final int x = pwv.x;
-			final int y = pwv.y;
-			queue.discard(pwv);
-			
-			float lastLabel;
-			if (conn8)
-				lastLabel = getNeighborLabels8(ipLabels, x, y, width, height);
-			else
-				lastLabel = getNeighborLabels4(ipLabels, x, y, width, height);
-			if (Float.isNaN(lastLabel))
-				continue;
-			ipLabels.setf(x, y, lastLabel);
-			if (conn8)
-				addNeighboursToQueue8(queue, x, y, width, height);
-			else
-				addNeighboursToQueue4(queue, x, y, width, height);
+		WatershedWorkspace workspace = workspaces.get();
+		try {
+			// Create & initialize the queue
+			workspace.initialize(ip, ipLabels, minThreshold);
 			
+			// Process the queue
+			int ind;
+			while ((ind = workspace.poll()) >= 0) {
+				final int x = ind % width;
+				final int y = ind / width;
+				
+				float lastLabel;
+				if (conn8)
+					lastLabel = getNeighborLabels8(ipLabels, x, y, width, height);
+				else
+					lastLabel = getNeighborLabels4(ipLabels, x, y, width, height);
+				if (Float.isNaN(lastLabel))
+					continue;
+				ipLabels.setf(ind, lastLabel);
+				if (conn8)
+					addNeighboursToQueue8(workspace, x, y, width, height);
+				else
+					addNeighboursToQueue4(workspace, x, y, width, height);
+				
+			}
+		} finally {
+			workspace.reset();
 		}
 		
 		final long endTime = System.currentTimeMillis();
@@ -93,8 +113,9 @@ public class Watershed {
 	
 	private static float getNeighborLabels4(final ImageProcessor ipLabels, final int x, final int y, final int w, final int h) {
 		float lastLabel = Float.NaN;
+		int ind = y * w + x;
 		if (x > 0) {
-			float label = ipLabels.getf(x-1, y);
+			float label = ipLabels.getf(ind-1);
 			if (label != 0) {
 				if (Float.isNaN(lastLabel))
 					lastLabel = label;
@@ -103,7 +124,7 @@ public class Watershed {
 			}
 		}
 		if (x < w-1) {
-			float label = ipLabels.getf(x+1, y);
+			float label = ipLabels.getf(ind+1);
 			if (label != 0) {
 				if (Float.isNaN(lastLabel))
 					lastLabel = label;
@@ -112,7 +133,7 @@ public class Watershed {
 			}
 		}
 		if (y > 0) {
-			float label = ipLabels.getf(x, y-1);
+			float label = ipLabels.getf(ind-w);
 			if (label != 0) {
 				if (Float.isNaN(lastLabel))
 					lastLabel = label;
@@ -121,7 +142,7 @@ public class Watershed {
 			}
 		}
 		if (y < h-1) {
-			float label = ipLabels.getf(x, y+1);
+			float label = ipLabels.getf(ind+w);
 			if (label != 0) {
 				if (Float.isNaN(lastLabel))
 					lastLabel = label;
@@ -133,7 +154,7 @@ public class Watershed {
 	}
 	
 	
-	private static void addNeighboursToQueue4(final WatershedQueueWrapper queue, final int x, final int y, final int w, final int h) {
+	private static void addNeighboursToQueue4(final WatershedWorkspace queue, final int x, final int y, final int w, final int h) {
 		queue.add(x, y-1);
 		queue.add(x-1, y);
 		queue.add(x+1, y);
@@ -147,7 +168,7 @@ public class Watershed {
 			for (int xx = Math.max(x-1, 0); xx <= Math.min(w-1, x+1); xx++) {
 				if (xx == x && yy == y)
 					continue;
-				float label = ipLabels.getf(xx, yy);
+				float label = ipLabels.getf(yy * w + xx);
 				// TODO: CONSIDER USE OF -1 BOUNDARIES
 				if (label <= 0)
 					continue;
@@ -161,7 +182,7 @@ public class Watershed {
 	}
 	
 	
-	private static void addNeighboursToQueue8(final WatershedQueueWrapper queue, final int x, final int y, final int w, final int h) {
+	private static void addNeighboursToQueue8(final WatershedWorkspace queue, final int x, final int y, final int w, final int h) {
 		queue.add(x-1, y-1);
 		queue.add(x, y-1);
 		queue.add(x+1, y-1);
@@ -176,151 +197,340 @@ public class Watershed {
 	
 	
 	
-	
-	
-	static class WatershedQueueWrapper {
-
-		final private PriorityQueue<PixelWithValue> queue = new PriorityQueue<>();
-		final private boolean[] queued;
-		final private int width, height;
-		final private ImageProcessor ip;
+	/**
+	 * Priority queue of pixel indices, along with the arrays needed to maintain it.
+	 * <p>
+	 * Pixels are polled in order of decreasing value, and in the order they were added whenever values are equal.
+	 * This is necessary to produce reasonable-looking watershed results where there are plateaus (i.e. pixels with the same value).
+	 * <p>
+	 * Each pixel is assigned to one of {@link #N_BUCKETS} buckets according to its value, where every value in a bucket 
+	 * is higher than every value in the buckets below.  Pixels in lower buckets are simply appended to an array for the bucket, 
+	 * until all pixels in the 'active' bucket (or above) have been polled.
+	 * Pixels in the active bucket are stored in a binary heap or, if they all have the same value 
+	 * (which is common for distance transforms), in a first-in-first-out list that does not need to be sorted.
+	 * <p>
+	 * Arrays grow as needed and are retained, so that the workspace can be reused without further allocation. 
+	 * However, arrays larger than {@link #MAX_RETAINED_LENGTH} are discarded by {@link #reset()}, as are bucket arrays once 
+	 * their total length exceeds the same limit.
+	 */
+	static class WatershedWorkspace {
 		
-		private long counter = 0;//Long.MIN_VALUE;
+		private final static int N_BUCKETS = 1024;
 		
-		// Keep a pool of objects so they can be reused... not normally worth the effort, but we are likely to have *a lot*
-		final private ArrayDeque<PixelWithValue> dequePool;
+		/**
+		 * Maximum length of each array retained after use; this is also the limit for the total length of all bucket arrays.
+		 */
+		final static int MAX_RETAINED_LENGTH = 512 * 512;
 		
+		private int width, height;
 		
-		public WatershedQueueWrapper(final ImageProcessor ip, final ImageProcessor ipLabels, final double minThreshold) {
-			this.ip = ip;
-			this.width = ip.getWidth();
-			this.height = ip.getHeight();
-			// Keep a record of already-queued pixels
-			queued = new boolean[width * height];
+		/**
+		 * Pixel values, used to order the queue.
+		 */
+		private float[] values;
+		
+		/**
+		 * Buffer used to store values if the image is not a FloatProcessor.
+		 */
+		private float[] valuesBuffer;
+		
+		/**
+		 * Flag for pixels that have already been queued (or should never be queued).
+		 */
+		private boolean[] queued;
+		
+		/**
+		 * Pixels in each bucket, along with keys encoding their value &amp; order (see {@link #createKey(float, int)}).
+		 */
+		private final int[][] bucketPixels = new int[N_BUCKETS][];
+		private final long[][] bucketKeys = new long[N_BUCKETS][];
+		private final int[] bucketSize = new int[N_BUCKETS];
+		private final float[] bucketMin = new float[N_BUCKETS];
+		private final float[] bucketMax = new float[N_BUCKETS];
+		
+		private long[] heapKeys = new long[256];
+		private int[] heapPixels = new int[256];
+		private int heapSize = 0;
+		
+		/**
+		 * List of pixels with a value of exactly fifoValue, used instead of the heap if fifoActive is true.
+		 */
+		private boolean fifoActive = false;
+		private float fifoValue;
+		private int[] fifoPixels = new int[256];
+		private int fifoStart = 0;
+		private int fifoEnd = 0;
+		
+		private int counter = 0;
+		private int activeBucket;
+		
+		private float minValue;
+		private float bucketScale;
+		
+		void initialize(final ImageProcessor ip, final ImageProcessor ipLabels, final double minThreshold) {
+			width = ip.getWidth();
+			height = ip.getHeight();
+			int n = width * height;
+			
+			if (ip instanceof FloatProcessor)
+				values = (float[])ip.getPixels();
+			else {
+				if (valuesBuffer == null || valuesBuffer.length < n)
+					valuesBuffer = new float[n];
+				for (int i = 0; i < n; i++)
+					valuesBuffer[i] = ip.getf(i);
+				values = valuesBuffer;
+			}
+			if (queued == null || queued.length < n)
+				queued = new boolean[n];
+			
+			// Determine the range of values that could be queued
+			float min = Float.POSITIVE_INFINITY;
+			float max = Float.NEGATIVE_INFINITY;
+			for (int i = 0; i < n; i++) {
+				float val = values[i];
+				// NaN values always fail the comparison
+				if (val > minThreshold) {
+					if (val < min)
+						min = val;
+					if (val > max)
+						max = val;
+				}
+			}
+			minValue = min;
+			double scale = N_BUCKETS / ((double)max - min);
+			bucketScale = Double.isFinite(scale) ? (float)scale : 0f;
+			
+			Arrays.fill(bucketSize, 0);
+			heapSize = 0;
+			fifoActive = false;
+			fifoStart = 0;
+			fifoEnd = 0;
+			counter = 0;
+			activeBucket = N_BUCKETS;
 			
 			// Loop through and populate the queue sensibly; background assumed to be zero
 			for (int y = 0; y < height; y++) {
 				for (int x = 0; x < width; x++) {
-					float val = ip.getf(x, y);
-					// Mark below-threshold pixels as queued (even if they aren't...) to indicate they shouldn't be added later
-					if (val <= minThreshold) {
-						queued[y * width + x] = true;
+					int ind = y * width + x;
+					float val = values[ind];
+					// Mark below-threshold (and NaN) pixels as queued (even if they aren't...) to indicate they shouldn't be added later
+					if (!(val > minThreshold)) {
+						queued[ind] = true;
 						continue;
 					}
 					// Mark already-labeled pixels as queued as well,
 					// and add pixels immediately adjacent to a labeled pixel to the queue
-					if (ipLabels.getf(x, y) != 0) {
-						queued[y * width + x] = true;
+					if (ipLabels.getf(ind) != 0) {
+						queued[ind] = true;
 					}
-					else if (ipLabels.getPixelValue(x+1, y) != 0f || ipLabels.getPixelValue(x-1, y) != 0f || ipLabels.getPixelValue(x, y-1) != 0f || ipLabels.getPixelValue(x, y+1) != 0f) {
-						queued[y * width + x] = true;
-						queue.add(new PixelWithValue(x, y, val, ++counter));
-					}
-				}			
+					else if ((x < width-1 && ipLabels.getf(ind+1) != 0f) || (x > 0 && ipLabels.getf(ind-1) != 0f) ||
+							(y > 0 && ipLabels.getf(ind-width) != 0f) || (y < height-1 && ipLabels.getf(ind+width) != 0f)) {
+						addWithoutCheck(ind);
+					} else
+						queued[ind] = false;
+				}
 			}
-			
-			// Create a deque
-			dequePool = new ArrayDeque<>(ip.getWidth() * ip.getHeight());
 		}
 		
-		public final void add(final int x, final int y) {
-			// Don't add to the queue twice
-			if (!mayAddToQueue(x, y))
-				return;
-			addWithoutCheck(x, y, ip.getf(x, y));
+		/**
+		 * Release the reference to the image pixels once flooding is complete, and discard any arrays 
+		 * that are too large to retain.
+		 */
+		void reset() {
+			values = null;
+			if (valuesBuffer != null && valuesBuffer.length > MAX_RETAINED_LENGTH)
+				valuesBuffer = null;
+			if (queued != null && queued.length > MAX_RETAINED_LENGTH)
+				queued = null;
+			if (heapKeys.length > MAX_RETAINED_LENGTH) {
+				heapKeys = new long[256];
+				heapPixels = new int[256];
+			}
+			if (fifoPixels.length > MAX_RETAINED_LENGTH)
+				fifoPixels = new int[256];
+			int bucketLength = 0;
+			for (int b = 0; b < N_BUCKETS; b++) {
+				if (bucketPixels[b] == null)
+					continue;
+				int length = Math.max(bucketPixels[b].length, bucketKeys[b].length);
+				if (bucketLength + length > MAX_RETAINED_LENGTH) {
+					bucketPixels[b] = null;
+					bucketKeys[b] = null;
+				} else
+					bucketLength += length;
+			}
 		}
 		
-		protected final void addWithoutCheck(final int x, final int y, final float val) {
-			PixelWithValue pwv = dequePool.poll();
-			if (pwv == null)
-				pwv = new PixelWithValue(x, y, val, ++counter);
-			else {
-				pwv.x = x;
-				pwv.y = y;
-				pwv.value = val;
-				pwv.count = ++counter;
+		/**
+		 * Get the length of the longest array retained by the workspace, or the total length of all bucket arrays if that is greater.
+		 */
+		int getRetainedLength() {
+			int length = Math.max(heapKeys.length, fifoPixels.length);
+			if (valuesBuffer != null)
+				length = Math.max(length, valuesBuffer.length);
+			if (queued != null)
+				length = Math.max(length, queued.length);
+			int bucketLength = 0;
+			for (int b = 0; b < N_BUCKETS; b++) {
+				if (bucketPixels[b] != null)
+					bucketLength += Math.max(bucketPixels[b].length, bucketKeys[b].length);
 			}
-			// Add, while storing a count variable, effectively turning the PriorityQueue into a FIFO queue whenever values are equal
-			// This is necessary to produce reasonable-looking watershed results where there are plateaus (i.e. pixels with the same value)
-			queue.add(pwv);
-			
-//			queue.add(new PixelWithValue(x, y, val, ++counter));
-
-			// Keep track of the fact this has been queued - won't need it again
-			queued[y * width + x] = true;
+			return Math.max(length, bucketLength);
 		}
 		
-//		public final boolean mayAddToQueue(int x, int y) {
-//			return !queued[y * width + x];
-//		}
-
-		public final boolean mayAddToQueue(final int x, final int y) {
-			return x >= 0 && x < width && y >= 0 && y < height && !queued[y * width + x];
+		final void add(final int x, final int y) {
+			// Don't add to the queue twice
+			if (x >= 0 && x < width && y >= 0 && y < height) {
+				int ind = y * width + x;
+				if (!queued[ind])
+					addWithoutCheck(ind);
+			}
 		}
-
-		public final PixelWithValue poll() {
-			return queue.poll();
+		
+		private void addWithoutCheck(final int ind) {
+			// Keep track of the fact this has been queued - won't need it again
+			queued[ind] = true;
+			float val = values[ind];
+			int order = counter++;
+			int bucket = getBucket(val);
+			if (bucket >= activeBucket) {
+				if (fifoActive && val == fifoValue) {
+					// Pixels added later always come later in the list
+					if (fifoEnd == fifoPixels.length)
+						fifoPixels = Arrays.copyOf(fifoPixels, fifoEnd * 2);
+					fifoPixels[fifoEnd++] = ind;
+				} else
+					heapPush(createKey(val, order), ind);
+			} else {
+				int size = bucketSize[bucket];
+				if (size == 0) {
+					if (bucketPixels[bucket] == null) {
+						bucketPixels[bucket] = new int[256];
+						bucketKeys[bucket] = new long[256];
+					}
+					bucketMin[bucket] = val;
+					bucketMax[bucket] = val;
+				} else {
+					if (size == bucketPixels[bucket].length) {
+						bucketPixels[bucket] = Arrays.copyOf(bucketPixels[bucket], size * 2);
+						bucketKeys[bucket] = Arrays.copyOf(bucketKeys[bucket], size * 2);
+					}
+					if (val < bucketMin[bucket])
+						bucketMin[bucket] = val;
+					if (val > bucketMax[bucket])
+						bucketMax[bucket] = val;
+				}
+				bucketPixels[bucket][size] = ind;
+				bucketKeys[bucket][size] = createKey(val, order);
+				bucketSize[bucket] = size + 1;
+			}
 		}
 		
-		public final boolean isEmpty() {
-			return queue.isEmpty();
+		private int getBucket(final float val) {
+			int bucket = (int)((val - minValue) * bucketScale);
+			if (bucket >= N_BUCKETS)
+				return N_BUCKETS - 1;
+			return bucket < 0 ? 0 : bucket;
 		}
 		
 		/**
-		 * Inform the queue it is free to reuse a PixelWithValue object if required
-		 * @param pwv
+		 * Get the index of the next pixel, or -1 if the queue is empty.
+		 * @return
 		 */
-		public final void discard(PixelWithValue pwv) {
-			dequePool.add(pwv);
+		final int poll() {
+			while (true) {
+				if (fifoStart < fifoEnd) {
+					// The heap never contains fifoValue, so any higher value must be polled first
+					if (heapSize > 0 && values[heapPixels[0]] > fifoValue)
+						return heapPop();
+					return fifoPixels[fifoStart++];
+				}
+				if (heapSize > 0)
+					return heapPop();
+				
+				// Move to the next non-empty bucket
+				int bucket = activeBucket - 1;
+				while (bucket >= 0 && bucketSize[bucket] == 0)
+					bucket--;
+				if (bucket < 0)
+					return -1;
+				activeBucket = bucket;
+				int size = bucketSize[bucket];
+				fifoActive = bucketMin[bucket] == bucketMax[bucket];
+				if (fifoActive) {
+					// Bucket arrays are already in the order pixels were added, so can be used directly
+					fifoValue = bucketMin[bucket];
+					int[] temp = fifoPixels;
+					fifoPixels = bucketPixels[bucket];
+					bucketPixels[bucket] = temp;
+					fifoStart = 0;
+					fifoEnd = size;
+					if (bucketKeys[bucket].length < temp.length)
+						bucketKeys[bucket] = new long[temp.length];
+				} else {
+					int[] pixels = bucketPixels[bucket];
+					long[] keys = bucketKeys[bucket];
+					for (int i = 0; i < size; i++)
+						heapPush(keys[i], pixels[i]);
+				}
+				bucketSize[bucket] = 0;
+			}
 		}
 		
-	}
-
-
-	static class PixelWithValue implements Comparable<PixelWithValue> {
-		
-		public int x, y;
-		public float value;
-		public long count;
-		
-//		final public int x, y;
-//		final public float value;
-//		final public long count;
-		
-		public PixelWithValue(final int x, final int y, final float value, final long count) {
-			this.x = x;
-			this.y = y;
-			this.value = value;
-			this.count = count;
-			
-//			System.out.println("My count: " + count);
+		/**
+		 * Create a key for a heap entry, so that smaller keys have higher values &amp; (for equal values) lower orders.
+		 */
+		private static long createKey(final float val, final int order) {
+			int bits = Float.floatToIntBits(val);
+			// Flip the bits of negative values so that signed integer comparisons match float comparisons
+			if (bits < 0)
+				bits ^= 0x7fffffff;
+			return ((long)~bits << 32) | order;
 		}
-
-		@Override
-		public int compareTo(final PixelWithValue pwv) {
-//			// Profiling indicates that the many comparisons are the slowest part of the algorithm...
-//			if (value == pwv.value) 
-//				return count > pwv.count ? 1 : -1;
-//			else
-//				return value > pwv.value ? -1 : 1;
-					
-			// Profiling indicates that the many comparisons are the slowest part of the algorithm...
-			if (value < pwv.value) {
-				return 1;
+		
+		private void heapPush(final long key, final int ind) {
+			if (heapSize == heapKeys.length) {
+				heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+				heapPixels = Arrays.copyOf(heapPixels, heapSize * 2);
 			}
-			else if (value > pwv.value) {
-				return -1;
+			int pos = heapSize++;
+			while (pos > 0) {
+				int parent = (pos - 1) >>> 1;
+				long keyParent = heapKeys[parent];
+				if (key >= keyParent)
+					break;
+				heapKeys[pos] = keyParent;
+				heapPixels[pos] = heapPixels[parent];
+				pos = parent;
 			}
-			return count > pwv.count ? 1 : -1;
-			
-//			// Profiling indicates that the many comparisons are the slowest part of the algorithm...
-//			if (value > pwv.value)
-//				return 1;
-//			else if (value < pwv.value)
-//				return -1;
-//			return count > pwv.count ? 1 : -1;
+			heapKeys[pos] = key;
+			heapPixels[pos] = ind;
+		}
+		
+		private int heapPop() {
+			int result = heapPixels[0];
+			int n = --heapSize;
+			long key = heapKeys[n];
+			int ind = heapPixels[n];
+			int pos = 0;
+			int half = n >>> 1;
+			while (pos < half) {
+				int child = 2 * pos + 1;
+				int right = child + 1;
+				if (right < n && heapKeys[right] < heapKeys[child])
+					child = right;
+				if (key <= heapKeys[child])
+					break;
+				heapKeys[pos] = heapKeys[child];
+				heapPixels[pos] = heapPixels[child];
+				pos = child;
+			}
+			heapKeys[pos] = key;
+			heapPixels[pos] = ind;
+			return result;
 		}
 		
 	}
 
-}
\ No newline at end of file
+}
@@ -24,8 +24,8 @@
 package qupath.imagej.superpixels;
 
 import ij.ImagePlus;
-import ij.gui.PolygonRoi;
 import ij.gui.Roi;
+import ij.measure.Calibration;
 import ij.plugin.filter.MaximumFinder;
 import ij.plugin.filter.RankFilters;
 import ij.process.Blitter;
@@ -41,6 +41,8 @@ import java.util.List;
 
 import qupath.imagej.objects.PathImagePlus;
 import qupath.imagej.objects.ROIConverterIJ;
+import qupath.imagej.processing.ContourTracing;
+import qupath.imagej.processing.ContourTracing.Contour;
 import qupath.imagej.processing.ROILabeling;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.images.ImageData;
@@ -52,7 +54,8 @@ import qupath.lib.plugins.AbstractTileableDetectionPlugin;
 import qupath.lib.plugins.ObjectDetector;
 import qupath.lib.plugins.PluginRunner;
 import qupath.lib.plugins.parameters.ParameterList;
-import qupath.lib.roi.interfaces.PathArea;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
 import qupath.lib.roi.interfaces.ROI;
 
 /**
@@ -191,10 +194,15 @@ public class DoGSuperpixelsPlugin extends AbstractTileableDetectionPlugin<Buffer
 				ipLabels.draw(roi);
 			}
 			
-			// Convert to tiles & create a labelled image for later
-			PolygonRoi[] polygons = ROILabeling.labelsToFilledROIs(ipLabels, (int)ipLabels.getMax());
-			List<PathObject> pathObjects = new ArrayList<>(polygons.length);
-			int label = 0;
+			// Convert to tiles, tracing the labels directly to ROIs
+			int nLabels = (int)ipLabels.getMax();
+			Contour[] contours = new Contour[nLabels];
+			for (Contour contour : ContourTracing.traceLabels(ipLabels, nLabels, true, true))
+				contours[contour.getLabel()-1] = contour;
+			List<PathObject> pathObjects = new ArrayList<>(contours.length);
+			Calibration cal = pathImage.getImage().getCalibration();
+			ImageRegion region = pathImage.getImageRegion();
+			ImagePlane plane = ImagePlane.getPlaneWithChannel(-1, region.getZ(), region.getT());
 			// Set thresholds - regions means must be within specified range
 			double minThreshold = params.getDoubleParameterValue("minThreshold");
 			double maxThreshold = params.getDoubleParameterValue("maxThreshold");
@@ -203,29 +211,23 @@ public class DoGSuperpixelsPlugin extends AbstractTileableDetectionPlugin<Buffer
 			if (!Double.isFinite(maxThreshold))
 				maxThreshold = Double.POSITIVE_INFINITY;
 			boolean hasThreshold = (minThreshold != maxThreshold) && (Double.isFinite(minThreshold) || Double.isFinite(maxThreshold));
+			double[] means = hasThreshold ? computeLabelMeans(fpOrig, ipLabels, nLabels) : null;
 			try {
-				for (PolygonRoi roi : polygons) {
-					if (roi == null)
+				for (Contour contour : contours) {
+					if (contour == null)
 						continue;
 					if (hasThreshold) {
-						fpOrig.setRoi(roi);
-						double meanValue = fpOrig.getStatistics().mean;
+						double meanValue = means[contour.getLabel()-1];
 						if (meanValue < minThreshold || meanValue > maxThreshold)
 							continue;
 					}
-					PathArea superpixelROI = (PathArea)ROIConverterIJ.convertToPathROI(roi, pathImage);
-					if (pathROI == null)
-						continue;
+					ROI superpixelROI = ContourTracing.createROI(contour, cal.xOrigin, cal.yOrigin, pathImage.getDownsampleFactor(), plane);
 					PathObject tile = PathObjects.createTileObject(superpixelROI);
 					pathObjects.add(tile);
-					label++;
-					ipLabels.setValue(label);
-					ipLabels.fill(roi);
 				}
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
-			fpOrig.resetRoi();
 
 //			// Compute Haralick textures
 ////			ipLabels.resetMinAndMax();
@@ -265,6 +267,25 @@ public class DoGSuperpixelsPlugin extends AbstractTileableDetectionPlugin<Buffer
 		}
 		
 		
+		/**
+		 * Compute the mean value of all the pixels with each label, in a single pass through the image.
+		 */
+		static double[] computeLabelMeans(final ImageProcessor ip, final ImageProcessor ipLabels, final int nLabels) {
+			double[] sums = new double[nLabels];
+			int[] counts = new int[nLabels];
+			int n = ip.getWidth() * ip.getHeight();
+			for (int i = 0; i < n; i++) {
+				int label = (int)ipLabels.getf(i);
+				if (label > 0 && label <= nLabels) {
+					sums[label-1] += ip.getf(i);
+					counts[label-1]++;
+				}
+			}
+			for (int i = 0; i < nLabels; i++)
+				sums[i] /= counts[i];
+			return sums;
+		}
+		
 		static double getSigma(final PathImage<?> pathImage, final ParameterList params) {
 			double pixelSizeMicrons = .5 * (pathImage.getPixelWidthMicrons() + pathImage.getPixelHeightMicrons());
 			if (Double.isNaN(pixelSizeMicrons)) {
@@ -25,6 +25,7 @@ package qupath.imagej.superpixels;
 
 import ij.ImagePlus;
 import ij.gui.Roi;
+import ij.measure.Calibration;
 import ij.plugin.filter.EDM;
 import ij.plugin.filter.MaximumFinder;
 import ij.plugin.filter.RankFilters;
@@ -39,10 +40,13 @@ import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import qupath.imagej.color.ColorDeconvolutionIJ;
 import qupath.imagej.objects.PathImagePlus;
 import qupath.imagej.objects.ROIConverterIJ;
+import qupath.imagej.processing.ContourTracing;
+import qupath.imagej.processing.ContourTracing.Contour;
 import qupath.imagej.processing.ROILabeling;
 import qupath.imagej.processing.SimpleThresholding;
 import qupath.lib.analysis.stats.RunningStatistics;
@@ -59,7 +63,8 @@ import qupath.lib.plugins.AbstractTileableDetectionPlugin;
 import qupath.lib.plugins.ObjectDetector;
 import qupath.lib.plugins.PluginRunner;
 import qupath.lib.plugins.parameters.ParameterList;
-import qupath.lib.roi.interfaces.PathArea;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
 import qupath.lib.roi.interfaces.ROI;
 
 /**
@@ -281,10 +286,13 @@ public class GaussianSuperpixelsPlugin extends AbstractTileableDetectionPlugin<B
 //			new ImagePlus("Output", ipLabels.duplicate()).show();
 
 			
-			// Convert to tiles & create a labelled image for later
-			Roi[] polygons = ROILabeling.labelsToConnectedROIs(ipLabels, (int)ipLabels.getMax());
-			List<PathObject> pathObjects = new ArrayList<>(polygons.length);
-			int label = 0;
+			// Convert to tiles, tracing the labels directly to ROIs
+			Calibration cal = pathImage.getImage().getCalibration();
+			ImageRegion region = pathImage.getImageRegion();
+			ImagePlane plane = ImagePlane.getPlaneWithChannel(-1, region.getZ(), region.getT());
+			List<Contour> contours = ContourTracing.traceLabels(ipLabels, Integer.MAX_VALUE, true, false);
+			Map<Integer, ROI> rois = ContourTracing.createROIs(contours, cal.xOrigin, cal.yOrigin, pathImage.getDownsampleFactor(), plane);
+			List<PathObject> pathObjects = new ArrayList<>(rois.size());
 			// Set thresholds - regions means must be within specified range
 			double minThreshold = params.getDoubleParameterValue("minThreshold");
 			double maxThreshold = params.getDoubleParameterValue("maxThreshold");
@@ -294,23 +302,15 @@ public class GaussianSuperpixelsPlugin extends AbstractTileableDetectionPlugin<B
 				maxThreshold = Double.POSITIVE_INFINITY;
 			boolean hasThreshold = (minThreshold != maxThreshold) && (Double.isFinite(minThreshold) || Double.isFinite(maxThreshold));
 			try {
-				for (Roi roi : polygons) {
-					if (roi == null)
-						continue;
+				for (ROI superpixelROI : rois.values()) {
 //					if (hasThreshold) {
 //						fpOrig.setRoi(roi);
 //						double meanValue = fpOrig.getStatistics().mean;
 //						if (meanValue < minThreshold || meanValue > maxThreshold)
 //							continue;
 //					}
-					PathArea superpixelROI = (PathArea)ROIConverterIJ.convertToPathROI(roi, pathImage);
-					if (pathROI == null)
-						continue;
 					PathObject tile = PathObjects.createTileObject(superpixelROI);
 					pathObjects.add(tile);
-					label++;
-					ipLabels.setValue(label);
-					ipLabels.fill(roi);
 				}
 			} catch (Exception e) {
 				e.printStackTrace();
@@ -25,8 +25,8 @@ package qupath.imagej.superpixels;
 
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.gui.PolygonRoi;
 import ij.gui.Roi;
+import ij.measure.Calibration;
 import ij.process.ColorProcessor;
 import ij.process.ColorSpaceConverter;
 import ij.process.ImageProcessor;
@@ -44,6 +44,8 @@ import org.slf4j.LoggerFactory;
 import qupath.imagej.color.ColorDeconvolutionIJ;
 import qupath.imagej.objects.PathImagePlus;
 import qupath.imagej.objects.ROIConverterIJ;
+import qupath.imagej.processing.ContourTracing;
+import qupath.imagej.processing.ContourTracing.Contour;
 import qupath.imagej.processing.ROILabeling;
 import qupath.lib.analysis.stats.RunningStatistics;
 import qupath.lib.common.GeneralTools;
@@ -56,7 +58,8 @@ import qupath.lib.plugins.AbstractTileableDetectionPlugin;
 import qupath.lib.plugins.ObjectDetector;
 import qupath.lib.plugins.PluginRunner;
 import qupath.lib.plugins.parameters.ParameterList;
-import qupath.lib.roi.interfaces.PathArea;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
 import qupath.lib.roi.interfaces.ROI;
 
 /**
@@ -399,22 +402,17 @@ public class SLICSuperpixelsPlugin extends AbstractTileableDetectionPlugin<Buffe
 			}
 			
 			
-			// Convert to tiles & create a labelled image for later
-			List<PolygonRoi> polygons = ROILabeling.labelsToFilledRoiList(ipLabels, true);
-			List<PathObject> pathObjects = new ArrayList<>(polygons.size());
-			label = 0;
+			// Convert to tiles, tracing the labels directly to ROIs
+			List<Contour> contours = ContourTracing.traceLabels(ipLabels, Integer.MAX_VALUE, true, true);
+			List<PathObject> pathObjects = new ArrayList<>(contours.size());
+			Calibration cal = pathImage.getImage().getCalibration();
+			ImageRegion region = pathImage.getImageRegion();
+			ImagePlane plane = ImagePlane.getPlaneWithChannel(-1, region.getZ(), region.getT());
 			try {
-				for (Roi roi : polygons) {
-					if (roi == null)
-						continue;
-					PathArea superpixelROI = (PathArea)ROIConverterIJ.convertToPathROI(roi, pathImage);
-					if (pathROI == null)
-						continue;
+				for (Contour contour : contours) {
+					ROI superpixelROI = ContourTracing.createROI(contour, cal.xOrigin, cal.yOrigin, pathImage.getDownsampleFactor(), plane);
 					PathObject tile = PathObjects.createTileObject(superpixelROI);
 					pathObjects.add(tile);
-					label++;
-					ipLabels.setValue(label);
-					ipLabels.fill(roi);
 				}
 			} catch (Exception e) {
 				logger.error("Error created tiled ROIs", e);
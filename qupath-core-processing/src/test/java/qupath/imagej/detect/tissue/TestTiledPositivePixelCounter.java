@@ -0,0 +1,63 @@
+package qupath.imagej.detect.tissue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.color.ColorDeconvolutionStains.DEFAULT_CD_STAINS;
+import qupath.lib.images.servers.ImageIoImageServer;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.PathArea;
+import qupath.lib.roi.interfaces.ROI;
+
+public class TestTiledPositivePixelCounter {
+
+	@Test
+	public void testTileSizes() throws IOException {
+		// Random brown & blue blobs
+		int width = 600, height = 500;
+		var img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		var g2d = img.createGraphics();
+		g2d.setColor(Color.WHITE);
+		g2d.fillRect(0, 0, width, height);
+		var rand = new Random(100L);
+		for (int i = 0; i < 300; i++) {
+			g2d.setColor(rand.nextBoolean() ? new Color(150, 90, 40) : new Color(90, 90, 200));
+			int r = 2 + rand.nextInt(20);
+			g2d.fillOval(rand.nextInt(width), rand.nextInt(height), r, r);
+		}
+		g2d.dispose();
+		var server = new ImageIoImageServer("test", "test", img);
+		var stains = ColorDeconvolutionStains.makeDefaultColorDeconvolutionStains(DEFAULT_CD_STAINS.H_DAB);
+		ROI roi = ROIs.createEllipseROI(20.5, 10.5, 550, 470, ImagePlane.getDefaultPlane());
+
+		for (double downsample : new double[] {1, 2}) {
+			// The whole region fits in a single tile by default
+			var counter = new TiledPositivePixelCounter(server, stains, downsample, 1.5, 0.1, 0.3);
+			var expected = counter.countPixels(roi);
+			assertTrue(expected.getPositiveCount() > 0);
+			assertTrue(expected.getNegativeCount() > 0);
+			for (int tileSize : new int[] {37, 128}) {
+				counter.setTileSize(tileSize);
+				var counts = counter.countPixels(roi);
+				assertEquals(expected.getPositiveCount(), counts.getPositiveCount());
+				assertEquals(expected.getNegativeCount(), counts.getNegativeCount());
+				assertEquals(expected.getMeanPositive(), counts.getMeanPositive(), 1e-4);
+				assertEquals(expected.getMeanNegative(), counts.getMeanNegative(), 1e-4);
+				// ROIs merged across tiles should contain exactly the counted pixels
+				double pixelArea = downsample * downsample;
+				assertEquals(counts.getPositiveCount() * pixelArea, ((PathArea)counts.getPositiveROI()).getArea(), 1e-6);
+				assertEquals(counts.getNegativeCount() * pixelArea, ((PathArea)counts.getNegativeROI()).getArea(), 1e-6);
+			}
+		}
+	}
+
+}
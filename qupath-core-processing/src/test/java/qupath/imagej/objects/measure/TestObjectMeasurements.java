@@ -0,0 +1,136 @@
+package qupath.imagej.objects.measure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.gui.Wand;
+import ij.measure.Measurements;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+import qupath.imagej.objects.ROIConverterIJ;
+import qupath.imagej.objects.measure.ObjectMeasurements.IntensityMeasurements;
+import qupath.imagej.processing.ROILabeling;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+public class TestObjectMeasurements {
+
+	@Test
+	public void testIntensityMeasurements() {
+		var rand = new Random(100L);
+		int width = 200, height = 150;
+		var fp = new FloatProcessor(width, height);
+		var bp = new ByteProcessor(width, height);
+		for (int i = 0; i < width * height; i++) {
+			fp.setf(i, (float)rand.nextGaussian() * 10f + 100f);
+			bp.set(i, rand.nextInt(256));
+		}
+
+		// Overlapping objects, some of them partly outside the image
+		List<PathObject> pathObjects = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			double x = rand.nextDouble() * width - 10;
+			double y = rand.nextDouble() * height - 10;
+			double w = 5 + rand.nextDouble() * 30;
+			double h = 5 + rand.nextDouble() * 30;
+			var roi = i % 2 == 0 ? ROIs.createEllipseROI(x, y, w, h, ImagePlane.getDefaultPlane()) : ROIs.createRectangleROI(x, y, w, h, ImagePlane.getDefaultPlane());
+			pathObjects.add(PathObjects.createDetectionObject(roi));
+		}
+
+		var measurements = Arrays.asList(IntensityMeasurements.MEAN, IntensityMeasurements.STD_DEV, IntensityMeasurements.MIN, IntensityMeasurements.MAX,
+				IntensityMeasurements.MEDIAN, IntensityMeasurements.SKEWNESS, IntensityMeasurements.KURTOSIS);
+		checkMeasurements(pathObjects, measurements, fp, "Float", false);
+		checkMeasurements(pathObjects, measurements, bp, "Byte", true);
+	}
+
+	@Test
+	public void testMembrane() {
+		var rand = new Random(101L);
+		int width = 120, height = 100;
+		var fp = new FloatProcessor(width, height);
+		for (int i = 0; i < width * height; i++)
+			fp.setf(i, rand.nextFloat() * 100f);
+
+		// Touching cells, so that every outline overlaps its neighbors
+		List<PathObject> pathObjects = new ArrayList<>();
+		for (int y = 0; y < height; y += 10) {
+			for (int x = 0; x < width; x += 12)
+				pathObjects.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(x, y, 12, 10, ImagePlane.getDefaultPlane())));
+		}
+		ObjectMeasurements.addIntensityMeasurements(pathObjects, IntensityMeasurements.MEMBRANE, fp, "Float", null, 1.0);
+		for (var pathObject : pathObjects) {
+			var expected = PathObjects.createDetectionObject(pathObject.getROI());
+			ObjectMeasurements.measureMembrane(expected, fp, "Float", null, 1.0);
+			assertEquals(expected.getMeasurementList().getMeasurementValue("Membrane mean: Float"),
+					pathObject.getMeasurementList().getMeasurementValue("Membrane mean: Float"), 1e-4);
+		}
+	}
+
+	@Test
+	public void testComputeStatistics() {
+		// Nucleus-like ROIs traced from a binary image, as used by cell detection
+		var rand = new Random(102L);
+		int width = 200, height = 150;
+		var bp = new ByteProcessor(width, height);
+		bp.setValue(255);
+		for (int i = 0; i < 40; i++)
+			bp.fillOval(rand.nextInt(width) - 5, rand.nextInt(height) - 5, 5 + rand.nextInt(15), 5 + rand.nextInt(15));
+		bp.setThreshold(127, Double.POSITIVE_INFINITY, ImageProcessor.NO_LUT_UPDATE);
+		var rois = ROILabeling.getFilledPolygonROIs(bp, Wand.FOUR_CONNECTED);
+		assertTrue(rois.size() > 10);
+
+		var fp = new FloatProcessor(width, height);
+		var bpMask = new ByteProcessor(width, height);
+		for (int i = 0; i < width * height; i++) {
+			fp.setf(i, rand.nextInt(50) == 0 ? Float.NaN : (float)rand.nextGaussian() * 10f + 100f);
+			bpMask.set(i, rand.nextInt(200) == 0 ? 1 : 0);
+		}
+		var stats = ObjectMeasurements.computeStatistics(rois, fp, false, false);
+		var statsMask = ObjectMeasurements.computeStatistics(rois, bpMask, false, false);
+		int label = 0;
+		for (var roi : rois) {
+			label++;
+			fp.setRoi(roi);
+			var expected = ImageStatistics.getStatistics(fp, Measurements.AREA | Measurements.MEAN, null);
+			assertEquals(expected.pixelCount, stats.getPixelCount(label));
+			assertEquals(expected.mean, stats.getMean(label), 1e-6);
+			assertEquals(fp.getStatistics().mean, stats.getMean(label), 1e-6);
+			bpMask.setRoi(roi);
+			assertEquals(bpMask.getStatistics().mean > 0, statsMask.getMean(label) > 0);
+		}
+	}
+
+	private static void checkMeasurements(List<PathObject> pathObjects, List<IntensityMeasurements> measurements, ImageProcessor ip, String name, boolean exactMedian) {
+		ObjectMeasurements.addIntensityMeasurements(pathObjects, measurements, ip, name, null, 1.0);
+		// The median of non-8-bit images is estimated from a histogram spanning the range of all the objects
+		ip.resetRoi();
+		double medianTolerance = exactMedian ? 0 : (ip.getMax() - ip.getMin()) / 256.0;
+		int flags = Measurements.MEAN | Measurements.STD_DEV | Measurements.MIN_MAX | Measurements.MEDIAN | Measurements.SKEWNESS | Measurements.KURTOSIS;
+		// Measurements are stored as floats
+		for (var pathObject : pathObjects) {
+			ip.setRoi(ROIConverterIJ.convertToIJRoi(pathObject.getROI(), null, 1.0));
+			var stats = ImageStatistics.getStatistics(ip, flags, null);
+			var ml = pathObject.getMeasurementList();
+			assertEquals(stats.mean, ml.getMeasurementValue("Mean: " + name), 1e-4);
+			assertEquals(stats.stdDev, ml.getMeasurementValue("Std.Dev: " + name), 1e-4);
+			assertEquals(stats.min, ml.getMeasurementValue("Min: " + name), 1e-4);
+			assertEquals(stats.max, ml.getMeasurementValue("Max: " + name), 1e-4);
+			assertEquals(stats.skewness, ml.getMeasurementValue("Skewness: " + name), 1e-4);
+			assertEquals(stats.kurtosis, ml.getMeasurementValue("Kurtosis: " + name), 1e-4);
+			assertEquals(stats.median, ml.getMeasurementValue("Median: " + name), medianTolerance);
+		}
+		ip.resetRoi();
+	}
+
+}
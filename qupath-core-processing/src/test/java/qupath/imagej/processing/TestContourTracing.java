@@ -0,0 +1,249 @@
+package qupath.imagej.processing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import ij.gui.Wand;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.PolygonROI;
+import qupath.lib.roi.interfaces.PathArea;
+
+public class TestContourTracing {
+
+	@Test
+	public void testSinglePixel() {
+		var bp = new ByteProcessor(5, 5);
+		bp.set(2, 3, 1);
+		var contours = ContourTracing.traceLabels(bp, Integer.MAX_VALUE, false, false);
+		assertEquals(1, contours.size());
+		var contour = contours.get(0);
+		assertEquals(1, contour.getLabel());
+		assertFalse(contour.isHole());
+		assertArrayEquals(new float[] {2, 3, 3, 3, 3, 4, 2, 4}, contour.getVertices(), 0f);
+	}
+
+	@Test
+	public void testHoles() {
+		// A square ring, containing a separate region with a different label
+		var ip = new ShortProcessor(20, 20);
+		ip.setValue(1);
+		ip.setRoi(2, 2, 10, 10);
+		ip.fill();
+		ip.setValue(0);
+		ip.setRoi(4, 4, 6, 6);
+		ip.fill();
+		ip.setValue(2);
+		ip.setRoi(6, 6, 2, 2);
+		ip.fill();
+		ip.resetRoi();
+
+		var contours = ContourTracing.traceLabels(ip, Integer.MAX_VALUE, false, false);
+		assertEquals(3, contours.size());
+		// The hole is found last, because it is traced from the top edge of the pixels below it
+		assertEquals(1, contours.get(0).getLabel());
+		assertFalse(contours.get(0).isHole());
+		assertEquals(2, contours.get(1).getLabel());
+		assertFalse(contours.get(1).isHole());
+		assertEquals(1, contours.get(2).getLabel());
+		assertTrue(contours.get(2).isHole());
+
+		// Filling should remove the hole, and the region inside it
+		var filled = ContourTracing.traceLabels(ip, Integer.MAX_VALUE, false, true);
+		assertEquals(1, filled.size());
+		assertEquals(100, ((PolygonROI)ContourTracing.createROI(filled.get(0), 0, 0, 1, ImagePlane.getDefaultPlane())).getArea(), 1e-6);
+
+		// Combining contours by label should give an area excluding the hole
+		var rois = ContourTracing.createROIs(contours, 0, 0, 2, ImagePlane.getDefaultPlane());
+		assertEquals((100 - 36) * 4, ((PathArea)rois.get(1)).getArea(), 1e-6);
+		assertTrue(rois.get(2) instanceof PolygonROI);
+		assertEquals(16, ((PolygonROI)rois.get(2)).getArea(), 1e-6);
+	}
+
+	@Test
+	public void testManyHoles() {
+		// A grid of rings, each containing a region with the same label & another with a different label
+		int n = 40;
+		var ip = new ShortProcessor(n * 12, n * 12);
+		for (int y = 0; y < n; y++) {
+			for (int x = 0; x < n; x++) {
+				ip.setValue(1);
+				ip.setRoi(x * 12, y * 12, 10, 10);
+				ip.fill();
+				ip.setValue(0);
+				ip.setRoi(x * 12 + 2, y * 12 + 2, 6, 6);
+				ip.fill();
+				ip.setValue(1);
+				ip.setRoi(x * 12 + 3, y * 12 + 3, 1, 1);
+				ip.fill();
+				ip.setValue(2);
+				ip.setRoi(x * 12 + 5, y * 12 + 5, 2, 2);
+				ip.fill();
+			}
+		}
+		ip.resetRoi();
+
+		var contours = ContourTracing.traceLabels(ip, Integer.MAX_VALUE, false, false);
+		assertEquals(n * n * 4, contours.size());
+		var filled = ContourTracing.traceLabels(ip, Integer.MAX_VALUE, false, true);
+		assertEquals(n * n, filled.size());
+		for (var contour : filled) {
+			assertEquals(1, contour.getLabel());
+			assertEquals(100, ((PolygonROI)ContourTracing.createROI(contour, 0, 0, 1, ImagePlane.getDefaultPlane())).getArea(), 1e-6);
+		}
+	}
+
+	@Test
+	public void testGeometries() {
+		// A ring containing an island, where each has a single-pixel hole
+		var bp = new ByteProcessor(20, 20);
+		bp.setValue(1);
+		bp.setRoi(2, 2, 12, 12);
+		bp.fill();
+		bp.setValue(0);
+		bp.setRoi(4, 4, 8, 8);
+		bp.fill();
+		bp.setValue(1);
+		bp.setRoi(6, 6, 3, 3);
+		bp.fill();
+		bp.resetRoi();
+		bp.set(7, 7, 0);
+		bp.set(3, 3, 0);
+		var contours = ContourTracing.traceThresholded(bp, 1, 1, false, false);
+		var geometry = ContourTracing.createGeometries(contours, 0, 0, 1, new GeometryFactory()).get(1);
+		assertTrue(geometry.isValid());
+		assertEquals(2, geometry.getNumGeometries());
+		assertEquals(144 - 64 - 1 + 9 - 1, geometry.getArea(), 1e-6);
+	}
+
+	@Test
+	public void testFilledMultipleLabels() {
+		// Label 1 starts inside the hole of label 2, but is diagonally connected to a pixel outside it
+		var bp = new ByteProcessor(3, 3);
+		int[] values = {0, 2, 0, 2, 1, 2, 2, 2, 1};
+		for (int i = 0; i < values.length; i++)
+			bp.set(i, values[i]);
+		var filled = ContourTracing.traceLabels(bp, Integer.MAX_VALUE, true, true);
+		assertEquals(2, filled.size());
+		assertEquals(2, filled.get(0).getLabel());
+		assertEquals(1, filled.get(1).getLabel());
+		assertEquals(2, polygonArea(filled.get(1).getVertices()), 1e-6);
+
+		// Compare with tracing using a Wand & filling each region, as ROILabeling previously did
+		var rand = new Random(100L);
+		for (int i = 0; i < 2000; i++) {
+			var ip = new ByteProcessor(6, 6);
+			int nLabels = i % 2 == 0 ? 1 : 2;
+			for (int p = 0; p < 36; p++)
+				ip.set(p, rand.nextInt(nLabels + 1));
+			for (boolean conn8 : new boolean[] {false, true}) {
+				// Regions may be found in a different order, since the Wand starts from the first pixel not already filled
+				var expected = traceFilledWithWand(ip, conn8);
+				List<double[]> actual = new ArrayList<>();
+				for (var contour : ContourTracing.traceLabels(ip, Integer.MAX_VALUE, conn8, true))
+					actual.add(new double[] {contour.getLabel(), polygonArea(contour.getVertices())});
+				assertEquals(expected.size(), actual.size());
+				Comparator<double[]> comparator = Comparator.comparingDouble((double[] d) -> d[0]).thenComparingDouble(d -> d[1]);
+				expected.sort(comparator);
+				actual.sort(comparator);
+				for (int c = 0; c < actual.size(); c++)
+					assertArrayEquals(expected.get(c), actual.get(c), 1e-6);
+			}
+		}
+	}
+
+	/**
+	 * Get the label &amp; area of each region found by scanning the image with a Wand, skipping pixels inside earlier regions.
+	 */
+	private static List<double[]> traceFilledWithWand(ImageProcessor ip, boolean conn8) {
+		List<double[]> results = new ArrayList<>();
+		var bpCompleted = new ByteProcessor(ip.getWidth(), ip.getHeight());
+		bpCompleted.setValue(255);
+		for (int y = 0; y < ip.getHeight(); y++) {
+			for (int x = 0; x < ip.getWidth(); x++) {
+				float val = ip.getf(x, y);
+				if (bpCompleted.get(x, y) != 0 || val <= 0)
+					continue;
+				var wand = new Wand(ip);
+				wand.autoOutline(x, y, val, val, conn8 ? Wand.EIGHT_CONNECTED : Wand.FOUR_CONNECTED);
+				var roi = ROILabeling.wandToRoi(wand);
+				bpCompleted.fill(roi);
+				var polygon = roi.getPolygon();
+				float[] xy = new float[polygon.npoints * 2];
+				for (int p = 0; p < polygon.npoints; p++) {
+					xy[p*2] = polygon.xpoints[p];
+					xy[p*2+1] = polygon.ypoints[p];
+				}
+				results.add(new double[] {val, polygonArea(xy)});
+			}
+		}
+		return results;
+	}
+
+	@Test
+	public void testConnectivity() {
+		// Two diagonally-connected pixels
+		var bp = new ByteProcessor(4, 4);
+		bp.set(1, 1, 1);
+		bp.set(2, 2, 1);
+		assertEquals(2, ContourTracing.traceLabels(bp, Integer.MAX_VALUE, false, false).size());
+		var contours = ContourTracing.traceLabels(bp, Integer.MAX_VALUE, true, false);
+		assertEquals(1, contours.size());
+		assertEquals(8, contours.get(0).nVertices());
+	}
+
+	@Test
+	public void testLargeImage() {
+		// Large enough to be traced in parallel strips (if multiple processors are available), with regions crossing strip boundaries
+		int width = 1200, height = 1100;
+		var rand = new Random(42L);
+		var bp = new ByteProcessor(width, height);
+		bp.setValue(1);
+		for (int i = 0; i < 2000; i++) {
+			int r = 2 + rand.nextInt(40);
+			bp.fillOval(rand.nextInt(width) - r, rand.nextInt(height) - r, r * 2, r * 2);
+		}
+		int[] labels = new int[width * height];
+		for (int i = 0; i < labels.length; i++)
+			labels[i] = bp.get(i);
+		var contours = ContourTracing.traceContours(labels, width, height, true, false);
+
+		// The contours should enclose exactly the labelled pixels
+		double area = 0;
+		for (var contour : contours) {
+			double a = polygonArea(contour.getVertices());
+			area += contour.isHole() ? -a : a;
+		}
+		int count = 0;
+		for (int v : labels)
+			count += v;
+		assertEquals(count, area, 1e-6);
+		// Contours should be in the order their starting pixels are found
+		for (int i = 1; i < contours.size(); i++) {
+			var c1 = contours.get(i-1);
+			var c2 = contours.get(i);
+			assertTrue(c1.getStartY() * width + c1.getStartX() < c2.getStartY() * width + c2.getStartX());
+		}
+	}
+
+	private static double polygonArea(float[] xy) {
+		double sum = 0;
+		int n = xy.length;
+		for (int i = 0, j = n - 2; i < n; j = i, i += 2)
+			sum += (double)xy[j] * xy[i+1] - (double)xy[i] * xy[j+1];
+		return Math.abs(sum / 2);
+	}
+
+}
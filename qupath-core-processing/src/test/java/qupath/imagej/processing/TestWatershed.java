@@ -0,0 +1,134 @@
+package qupath.imagej.processing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+public class TestWatershed {
+
+	@Test
+	public void testSplitAtMinimum() {
+		// Two peaks, with a valley in the middle
+		int width = 21;
+		var ip = new FloatProcessor(width, 5);
+		for (int y = 0; y < 5; y++) {
+			for (int x = 0; x < width; x++)
+				ip.setf(x, y, Math.abs(x - 10));
+		}
+		for (boolean conn8 : new boolean[] {false, true}) {
+			var ipLabels = new ShortProcessor(width, 5);
+			ipLabels.setf(0, 2, 1);
+			ipLabels.setf(width-1, 2, 2);
+			Watershed.doWatershed(ip, ipLabels, conn8);
+			for (int y = 0; y < 5; y++) {
+				for (int x = 0; x < 10; x++) {
+					assertEquals(1, ipLabels.getf(x, y), 0.0);
+					assertEquals(2, ipLabels.getf(width-1-x, y), 0.0);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testThreshold() {
+		// Flat image, so that labels are expanded in the order pixels are reached
+		var ip = new FloatProcessor(50, 50);
+		ip.set(1);
+		for (int x = 30; x < 50; x++)
+			ip.setf(x, 10, 0);
+		var ipLabels = new ShortProcessor(50, 50);
+		ipLabels.setf(5, 10, 1);
+		Watershed.doWatershed(ip, ipLabels, 0.5, false);
+		assertEquals(1, ipLabels.getf(29, 10), 0.0);
+		assertEquals(1, ipLabels.getf(49, 49), 0.0);
+		for (int x = 30; x < 50; x++)
+			assertEquals(0, ipLabels.getf(x, 10), 0.0);
+	}
+
+	@Test
+	public void testNaN() {
+		// NaN pixels should never be labelled, so labels can't pass through them
+		var ip = new FloatProcessor(50, 50);
+		ip.set(1);
+		for (int y = 0; y < 50; y++)
+			ip.setf(25, y, Float.NaN);
+		ip.setf(40, 40, Float.NaN);
+		for (boolean conn8 : new boolean[] {false, true}) {
+			var ipLabels = new ShortProcessor(50, 50);
+			ipLabels.setf(5, 5, 1);
+			Watershed.doWatershed(ip, ipLabels, conn8);
+			for (int y = 0; y < 50; y++) {
+				for (int x = 0; x < 50; x++)
+					assertEquals(x < 25 ? 1 : 0, ipLabels.getf(x, y), 0.0);
+			}
+		}
+	}
+
+	@Test
+	public void testRetainedWorkspace() {
+		// Flooding a large image shouldn't leave large arrays in the workspace
+		int width = 1200, height = 1000;
+		var ip = new ShortProcessor(width, height);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				ip.set(x, y, (x * 7 + y * 13) % 5000);
+		}
+		var ipLabels = new ShortProcessor(width, height);
+		ipLabels.setf(width/2, height/2, 1);
+		var workspace = new Watershed.WatershedWorkspace();
+		workspace.initialize(ip, ipLabels, Double.NEGATIVE_INFINITY);
+		int n = 0;
+		int ind;
+		while ((ind = workspace.poll()) >= 0) {
+			n++;
+			workspace.add(ind % width - 1, ind / width);
+			workspace.add(ind % width + 1, ind / width);
+			workspace.add(ind % width, ind / width - 1);
+			workspace.add(ind % width, ind / width + 1);
+		}
+		assertEquals(width * height - 1, n);
+		assertTrue(workspace.getRetainedLength() > Watershed.WatershedWorkspace.MAX_RETAINED_LENGTH);
+		workspace.reset();
+		assertTrue(workspace.getRetainedLength() <= Watershed.WatershedWorkspace.MAX_RETAINED_LENGTH);
+
+		// The workspace should still work afterwards
+		var ipSmall = new FloatProcessor(21, 5);
+		for (int y = 0; y < 5; y++) {
+			for (int x = 0; x < 21; x++)
+				ipSmall.setf(x, y, Math.abs(x - 10));
+		}
+		var ipLabelsSmall = new ShortProcessor(21, 5);
+		ipLabelsSmall.setf(0, 2, 1);
+		workspace.initialize(ipSmall, ipLabelsSmall, Double.NEGATIVE_INFINITY);
+		n = 0;
+		while (workspace.poll() >= 0)
+			n++;
+		// Only the pixels adjacent to the label are queued initially
+		assertEquals(3, n);
+	}
+
+	@Test
+	public void testExpand() {
+		// Expanding the same image twice should give the same result, even though the workspace is reused
+		var bp = new ByteProcessor(100, 100);
+		bp.setValue(255);
+		bp.fillOval(10, 10, 20, 20);
+		bp.fillOval(35, 10, 20, 20);
+		var ipLabels = Watershed.watershedExpand(bp, 5, false);
+		assertEquals(1, ipLabels.getf(20, 20), 0.0);
+		assertEquals(2, ipLabels.getf(45, 20), 0.0);
+		// Within 5 pixels of the first object only
+		assertEquals(1, ipLabels.getf(20, 33), 0.0);
+		assertEquals(0, ipLabels.getf(20, 40), 0.0);
+
+		var ipLabels2 = Watershed.watershedExpand(bp, 5, false);
+		for (int i = 0; i < ipLabels.getPixelCount(); i++)
+			assertEquals(ipLabels.getf(i), ipLabels2.getf(i), 0.0);
+	}
+
+}
@@ -30,6 +30,7 @@ import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -42,9 +43,8 @@ import org.slf4j.LoggerFactory;
 import qupath.lib.algorithms.IntensityFeaturesPlugin.BasicFeatureComputer.Feature;
 import qupath.lib.analysis.algorithms.FloatArraySimpleImage;
 import qupath.lib.analysis.algorithms.SimpleImage;
-import qupath.lib.analysis.features.CoocurranceMatrices;
-import qupath.lib.analysis.features.HaralickFeatureComputer;
 import qupath.lib.analysis.features.HaralickFeatures;
+import qupath.lib.analysis.features.SparseCoocurranceMatrices;
 import qupath.lib.analysis.stats.RunningStatistics;
 import qupath.lib.analysis.stats.StatisticsHelper;
 import qupath.lib.color.ColorDeconvolutionStains;
@@ -66,6 +66,7 @@ import qupath.lib.plugins.PluginRunner;
 import qupath.lib.plugins.parameters.ParameterList;
 import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.PathROIToolsAwt;
+import qupath.lib.roi.interfaces.PathArea;
 import qupath.lib.roi.interfaces.ROI;
 
 /**
@@ -90,6 +91,12 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 	
 	private static Map<Integer, BasicChannel> channelMap = new HashMap<>();
 	
+	/**
+	 * Approximate size of the tiles (in pixels at the resolution used for measurement) within which small objects 
+	 * are grouped, so that the pixels can be read and transformed once for all of them.
+	 */
+	private static final int SHARED_TILE_SIZE = 1024;
+	
 	static enum RegionType {
 		ROI, SQUARE, CIRCLE;
 		
@@ -370,6 +377,44 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 		tasks.add(new IntensityFeatureRunnable(server, parentObject, params, imageData.getColorDeconvolutionStains()));
 	}
 	
+	/**
+	 * Create tasks so that small objects that are close together are measured together, 
+	 * sharing a single image tile; any other objects are measured individually.
+	 */
+	@Override
+	protected Collection<Runnable> getTasks(final PluginRunner<BufferedImage> runner) {
+		Collection<? extends PathObject> parentObjects = getParentObjects(runner);
+		if (parentObjects == null || parentObjects.isEmpty())
+			return Collections.emptyList();
+		
+		ImageData<BufferedImage> imageData = runner.getImageData();
+		final ParameterList params = getParameterList(imageData);
+		final ImageServer<BufferedImage> server = imageData.getServer();
+		final ColorDeconvolutionStains stains = imageData.getColorDeconvolutionStains();
+		double downsample = getDownsample(server, params);
+		double tileSize = SHARED_TILE_SIZE * downsample;
+		
+		List<Runnable> tasks = new ArrayList<>();
+		Map<String, List<PathObject>> tileMap = new LinkedHashMap<>();
+		for (PathObject pathObject : parentObjects) {
+			RegionRequest region = getSharedTileRegion(pathObject, params, server, downsample);
+			if (region == null) {
+				addRunnableTasks(imageData, pathObject, tasks);
+				continue;
+			}
+			String key = region.getZ() + ":" + region.getT() + ":" + 
+					(int)Math.floor(region.getX() / tileSize) + ":" + (int)Math.floor(region.getY() / tileSize);
+			tileMap.computeIfAbsent(key, k -> new ArrayList<>()).add(pathObject);
+		}
+		for (List<PathObject> pathObjects : tileMap.values()) {
+			if (pathObjects.size() == 1)
+				addRunnableTasks(imageData, pathObjects.get(0), tasks);
+			else
+				tasks.add(new SharedTileIntensityFeatureRunnable(server, pathObjects, params, stains));
+		}
+		return tasks;
+	}
+	
 	
 //	@Override
 //	protected Collection<Runnable> getTasks(final PluginRunner<BufferedImage> runner) {
@@ -437,16 +482,107 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 	}
 	
 	
+	static class SharedTileIntensityFeatureRunnable implements Runnable {
+		
+		private ImageServer<BufferedImage> server;
+		private ParameterList params;
+		private List<PathObject> pathObjects;
+		private ColorDeconvolutionStains stains;
+		
+		public SharedTileIntensityFeatureRunnable(final ImageServer<BufferedImage> server, final List<PathObject> pathObjects, final ParameterList params, final ColorDeconvolutionStains stains) {
+			this.server = server;
+			this.pathObjects = pathObjects;
+			this.params = params;
+			this.stains = stains;
+		}
+
+		@Override
+		public void run() {
+			try {
+				processObjects(pathObjects, params, server, stains);
+			} catch (IOException e) {
+				logger.error("Unable to process " + pathObjects.size() + " objects", e);
+			} finally {
+				for (PathObject pathObject : pathObjects)
+					pathObject.getMeasurementList().close();
+				server = null;
+				params = null;
+			}
+		}
+		
+		
+		@Override
+		public String toString() {
+			return "Intensity measurements";
+		}
+		
+	}
+	
+	
+	
+
+	/**
+	 * Determine the downsample at which features should be calculated.
+	 */
+	static double getDownsample(final ImageServer<BufferedImage> server, final ParameterList params) {
+		if (server.hasPixelSizeMicrons())
+			return params.getDoubleParameterValue("pixelSizeMicrons") / server.getAveragedPixelSizeMicrons();
+		else
+			return params.getDoubleParameterValue("downsample");
+	}
+	
+	/**
+	 * Create a map of feature computers for each color transform that may be applied to the image.
+	 */
+	static Map<FeatureColorTransform, List<FeatureComputer>> createFeatureComputers(final ImageServer<BufferedImage> server) {
+		Map<FeatureColorTransform, List<FeatureComputer>> map = new LinkedHashMap<>();
+		for (FeatureColorTransform transform : getTransforms(server)) {
+			List<FeatureComputer> list = new ArrayList<>();
+			map.put(transform, list);
+			for (FeatureComputerBuilder builder : builders) {
+				list.add(builder.build());
+			}
+		}
+		return map;
+	}
+	
+	static List<FeatureColorTransform> getTransforms(final ImageServer<BufferedImage> server) {
+		if (server.isRGB())
+			return Arrays.asList(FeatureColorTransformEnum.values());
+		else
+			return getBasicChannelTransforms(server.nChannels());
+	}
+	
+	/**
+	 * Get the region that should be read to compute features for a ROI.
+	 */
+	static RegionRequest getRegion(final ImageServer<BufferedImage> server, final ROI pathROI, final ParameterList params, final double downsample, final RegionType regionType) {
+		if (regionType == RegionType.ROI) {
+			return RegionRequest.createInstance(server.getPath(), downsample, pathROI);
+		} else {
+			ImmutableDimension size = getPreferredTileSizePixels(server, params);
+			//		RegionRequest region = RegionRequest.createInstance(server.getPath(), downsample, (int)(pathROI.getCentroidX() + .5) - size.width/2, (int)(pathROI.getCentroidY() + .5) - size.height/2, size.width, size.height, pathROI.getT(), pathROI.getZ());
+			// Try to align with pixel boundaries according to the downsample being used - otherwise, interpolation can cause some strange, pattern artefacts
+			int xStart = (int)((int)(pathROI.getCentroidX() / downsample + .5) * downsample) - size.width/2;
+			int yStart = (int)((int)(pathROI.getCentroidY() / downsample + .5) * downsample) - size.height/2;
+			int width = Math.min(server.getWidth(), xStart + size.width) - xStart;
+			int height = Math.min(server.getHeight(), yStart + size.height) - yStart;
+			return RegionRequest.createInstance(server.getPath(), downsample, xStart, yStart, width, height, pathROI.getT(), pathROI.getZ());			
+		}
+	}
+	
+	/**
+	 * Get the size of the region to use when splitting large ROIs into tiles.
+	 */
+	private static ImmutableDimension getSplitTileSize(final double downsample) {
+		return new ImmutableDimension((int)(2000*downsample), (int)(2000*downsample));
+	}
 	
 
 	static boolean processObject(final PathObject pathObject, final ParameterList params, final ImageServer<BufferedImage> server, final ColorDeconvolutionStains stains) throws IOException {
 
 		// Determine amount to downsample
-		double downsample;
-		if (server.hasPixelSizeMicrons()) {
-			downsample = params.getDoubleParameterValue("pixelSizeMicrons") / server.getAveragedPixelSizeMicrons();
-		} else
-			downsample = params.getDoubleParameterValue("downsample");
+		double downsample = getDownsample(server, params);
 
 		// Determine region shape
 		RegionType regionType = (RegionType)params.getChoiceParameterValue("region");
@@ -459,29 +595,12 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 			return false;
 		
 		// Create a map - this is useful for occasions when tiling is needed
-		Map<FeatureColorTransform, List<FeatureComputer>> map = new LinkedHashMap<>();
-		if (server.isRGB()) {
-			for (FeatureColorTransform transform : FeatureColorTransformEnum.values()) {
-				List<FeatureComputer> list = new ArrayList<>();
-				map.put(transform, list);
-				for (FeatureComputerBuilder builder : builders) {
-					list.add(builder.build());
-				}
-			}
-		} else {
-			for (FeatureColorTransform transform : getBasicChannelTransforms(server.nChannels())) {
-				List<FeatureComputer> list = new ArrayList<>();
-				map.put(transform, list);
-				for (FeatureComputerBuilder builder : builders) {
-					list.add(builder.build());
-				}
-			}
-		}
+		Map<FeatureColorTransform, List<FeatureComputer>> map = createFeatureComputers(server);
 		
 		String prefix = getDiameterString(server, params);
 
 		// Create tiled ROIs, if required
-		ImmutableDimension sizePreferred = new ImmutableDimension((int)(2000*downsample), (int)(2000*downsample));
+		ImmutableDimension sizePreferred = getSplitTileSize(downsample);
 //		ImmutableDimension sizePreferred = new ImmutableDimension((int)(200*downsample), (int)(200*downsample));
 		Collection<? extends ROI> rois = PathROIToolsAwt.computeTiledROIs(roi, sizePreferred, sizePreferred, false, 0);
 		if (rois.size() > 1)
@@ -495,19 +614,7 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 			}
 			
 			// Get bounds
-			RegionRequest region;
-			if (regionType == RegionType.ROI) {
-				region = RegionRequest.createInstance(server.getPath(), downsample, pathROI);
-			} else {
-				ImmutableDimension size = getPreferredTileSizePixels(server, params);
-				//		RegionRequest region = RegionRequest.createInstance(server.getPath(), downsample, (int)(pathROI.getCentroidX() + .5) - size.width/2, (int)(pathROI.getCentroidY() + .5) - size.height/2, size.width, size.height, pathROI.getT(), pathROI.getZ());
-				// Try to align with pixel boundaries according to the downsample being used - otherwise, interpolation can cause some strange, pattern artefacts
-				int xStart = (int)((int)(pathROI.getCentroidX() / downsample + .5) * downsample) - size.width/2;
-				int yStart = (int)((int)(pathROI.getCentroidY() / downsample + .5) * downsample) - size.height/2;
-				int width = Math.min(server.getWidth(), xStart + size.width) - xStart;
-				int height = Math.min(server.getHeight(), yStart + size.height) - yStart;
-				region = RegionRequest.createInstance(server.getPath(), downsample, xStart, yStart, width, height, pathROI.getT(), pathROI.getZ());			
-			}
+			RegionRequest region = getRegion(server, pathROI, params, downsample, regionType);
 			
 			// Check image large enough to do *anything* of value
 			if (region.getWidth() / downsample < 3 || region.getHeight() / downsample < 3)
@@ -530,11 +637,7 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 			}
 			
 			boolean isRGB = server.isRGB();
-			List<FeatureColorTransform> transforms;
-			if (isRGB)
-				transforms = Arrays.asList(FeatureColorTransformEnum.values());
-			else
-				transforms = getBasicChannelTransforms(server.nChannels());
+			List<FeatureColorTransform> transforms = getTransforms(server);
 			
 			int w = img.getWidth();
 	 		int h = img.getHeight();
@@ -547,37 +650,59 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 					// Transform the pixels
 					pixels = transform.getTransformedPixels(img, rgbBuffer, stains, pixels);
 					
-					// Create the simple image
-					FloatArraySimpleImage pixelImage = new FloatArraySimpleImage(pixels, w, h);
-					
-					// Apply any arbitrary mask
-					if (maskBytes != null) {
-						for (int i = 0; i < pixels.length; i++) {
-							if (maskBytes[i] == (byte)0)
-								pixelImage.setValue(i % w, i / w, Float.NaN);
-						}
-					} else if (regionType == RegionType.CIRCLE) {
-						// Apply circular tile mask
-						double cx = (w-1) / 2;
-						double cy = (h-1) / 2;
-						double radius = Math.max(w, h) * .5;
-						double distThreshold = radius * radius;
-						for (int y = 0; y < h; y++) {
-							for (int x = 0; x < w; x++) {
-								if ((cx - x)*(cx - x) + (cy - y)*(cy - y) > distThreshold)
-									pixelImage.setValue(x, y, Float.NaN);
-							}			
-						}
-					}
-					
 					// Do the computations
-					for (FeatureComputer computer : map.get(transform)) {
-						computer.updateFeatures(pixelImage, transform, params);
-					}
+					updateFeatures(pixels, w, h, maskBytes, regionType, transform, map.get(transform), params);
 				}
 			}
 		}
 		
+		addMeasurements(pathObject, map, prefix, stains, params);
+		
+		return true;
+	}
+	
+	
+	/**
+	 * Apply any mask to the transformed pixels, then update the feature computers.
+	 * Note that this may modify the pixel array.
+	 */
+	private static void updateFeatures(final float[] pixels, final int w, final int h, final byte[] maskBytes, final RegionType regionType, 
+			final FeatureColorTransform transform, final List<FeatureComputer> computers, final ParameterList params) {
+		// Create the simple image
+		FloatArraySimpleImage pixelImage = new FloatArraySimpleImage(pixels, w, h);
+		
+		// Apply any arbitrary mask
+		if (maskBytes != null) {
+			for (int i = 0; i < w * h; i++) {
+				if (maskBytes[i] == (byte)0)
+					pixelImage.setValue(i % w, i / w, Float.NaN);
+			}
+		} else if (regionType == RegionType.CIRCLE) {
+			// Apply circular tile mask
+			double cx = (w-1) / 2;
+			double cy = (h-1) / 2;
+			double radius = Math.max(w, h) * .5;
+			double distThreshold = radius * radius;
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					if ((cx - x)*(cx - x) + (cy - y)*(cy - y) > distThreshold)
+						pixelImage.setValue(x, y, Float.NaN);
+				}			
+			}
+		}
+		
+		// Do the computations
+		for (FeatureComputer computer : computers) {
+			computer.updateFeatures(pixelImage, transform, params);
+		}
+	}
+	
+	
+	/**
+	 * Add measurements to the object, and lock it if required.
+	 */
+	private static void addMeasurements(final PathObject pathObject, final Map<FeatureColorTransform, List<FeatureComputer>> map, final String prefix,
+			final ColorDeconvolutionStains stains, final ParameterList params) {
 		// Add measurements to the parent object
 		for (Entry<FeatureColorTransform, List<FeatureComputer>> entry : map.entrySet()) {
 			String name = prefix + ": " + entry.getKey().getName(stains) + ": ";
@@ -591,7 +716,137 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 			((PathAnnotationObject)pathObject).setLocked(true);
 		else if (pathObject instanceof TMACoreObject)
 			((TMACoreObject)pathObject).setLocked(true);
+	}
+	
+	
+	/**
+	 * Get the region to read for an object, if it can be measured within a shared tile.
+	 * <p>
+	 * This requires that the object is small, lies entirely within the image, and wouldn't be split into separate tiles 
+	 * by {@link #processObject(PathObject, ParameterList, ImageServer, ColorDeconvolutionStains)}.
+	 * Furthermore, the region must be aligned with the pixels of a resolution level of the server, so that cropping it 
+	 * from a larger tile gives the same pixels as reading it directly.
+	 * 
+	 * @return the region, or null if the object should be measured on its own
+	 */
+	static RegionRequest getSharedTileRegion(final PathObject pathObject, final ParameterList params, final ImageServer<BufferedImage> server, final double downsample) {
+		ROI roi = pathObject.getROI();
+		if (roi == null)
+			return null;
+		var sizeMax = getSplitTileSize(downsample);
+		if (roi instanceof PathArea && (roi.getBoundsWidth() > sizeMax.width || roi.getBoundsHeight() > sizeMax.height))
+			return null;
+		RegionType regionType = (RegionType)params.getChoiceParameterValue("region");
+		var region = getRegion(server, roi, params, downsample, regionType);
+		double maxSize = SHARED_TILE_SIZE / 2.0 * downsample;
+		if (region.getX() < 0 || region.getY() < 0 ||
+				region.getX() + region.getWidth() > server.getWidth() || 
+				region.getY() + region.getHeight() > server.getHeight() ||
+				region.getWidth() / downsample < 3 || region.getHeight() / downsample < 3 ||
+				region.getWidth() > maxSize || region.getHeight() > maxSize)
+			return null;
+		if (!isPixelAligned(region.getX(), downsample) || !isPixelAligned(region.getY(), downsample) ||
+				!isPixelAligned(region.getWidth(), downsample) || !isPixelAligned(region.getHeight(), downsample))
+			return null;
+		for (double d : server.getPreferredDownsamples()) {
+			if (GeneralTools.almostTheSame(d, downsample, 1e-6))
+				return region;
+		}
+		return null;
+	}
+	
+	private static boolean isPixelAligned(final int value, final double downsample) {
+		double v = value / downsample;
+		return Math.abs(v - Math.round(v)) < 1e-6;
+	}
+	
+	
+	/**
+	 * Compute features for objects that are close together, reading the image and applying the color transforms 
+	 * only once for the region containing all of them.
+	 * <p>
+	 * Objects are expected to have passed {@link #getSharedTileRegion(PathObject, ParameterList, ImageServer, double)}, 
+	 * and to be on the same image plane.
+	 * 
+	 * @param pathObjects
+	 * @param params
+	 * @param server
+	 * @param stains
+	 * @return
+	 * @throws IOException
+	 */
+	static boolean processObjects(final List<PathObject> pathObjects, final ParameterList params, final ImageServer<BufferedImage> server, final ColorDeconvolutionStains stains) throws IOException {
+		
+		double downsample = getDownsample(server, params);
+		RegionType regionType = (RegionType)params.getChoiceParameterValue("region");
+
+		// Determine the regions for each object & the bounding box of all of them
+		List<RegionRequest> regions = new ArrayList<>();
+		int x1 = Integer.MAX_VALUE, y1 = Integer.MAX_VALUE, x2 = Integer.MIN_VALUE, y2 = Integer.MIN_VALUE;
+		for (var pathObject : pathObjects) {
+			var region = getRegion(server, pathObject.getROI(), params, downsample, regionType);
+			regions.add(region);
+			x1 = Math.min(x1, region.getX());
+			y1 = Math.min(y1, region.getY());
+			x2 = Math.max(x2, region.getX() + region.getWidth());
+			y2 = Math.max(y2, region.getY() + region.getHeight());
+		}
+		if (regions.isEmpty())
+			return false;
+		
+		if (Thread.currentThread().isInterrupted()) {
+			logger.warn("Measurement skipped - thread interrupted!");
+			return false;
+		}
+		
+		var first = regions.get(0);
+		var tileRegion = RegionRequest.createInstance(server.getPath(), downsample, x1, y1, x2 - x1, y2 - y1, first.getZ(), first.getT());
+		BufferedImage img = server.readBufferedImage(tileRegion);
+		if (img == null) {
+			logger.error("Could not read image - unable to compute intensity features for {} objects", pathObjects.size());
+			return false;
+		}
+		
+		// Apply the color transforms to the whole tile
+		int w = img.getWidth();
+		int h = img.getHeight();
+		int[] rgbBuffer = server.isRGB() ? img.getRGB(0, 0, w, h, null, 0, w) : null;
+		Map<FeatureColorTransform, float[]> transformedPixels = new LinkedHashMap<>();
+		for (FeatureColorTransform transform : getTransforms(server)) {
+			if (Boolean.TRUE.equals(params.getBooleanParameterValue(transform.getKey())))
+				transformedPixels.put(transform, transform.getTransformedPixels(img, rgbBuffer, stains, null));
+		}
 		
+		// Compute features for each object from the relevant part of the tile.
+		// This is already running as one of the plugin's tasks, so the objects are measured sequentially.
+		String prefix = getDiameterString(server, params);
+		int tileX = (int)Math.round(x1 / downsample);
+		int tileY = (int)Math.round(y1 / downsample);
+		for (int i = 0; i < pathObjects.size(); i++) {
+			var pathObject = pathObjects.get(i);
+			var region = regions.get(i);
+			// Use the same rounding as when reading the region directly
+			int x = Math.max(0, (int)Math.round(region.getX() / downsample) - tileX);
+			int y = Math.max(0, (int)Math.round(region.getY() / downsample) - tileY);
+			int rw = Math.min((int)Math.round(region.getWidth() / downsample), w - x);
+			int rh = Math.min((int)Math.round(region.getHeight() / downsample), h - y);
+			
+			byte[] maskBytes = null;
+			if (regionType == RegionType.ROI) {
+				BufferedImage imgMask = BufferedImageTools.createROIMask(rw, rh, pathObject.getROI(), region);
+				maskBytes = ((DataBufferByte)imgMask.getRaster().getDataBuffer()).getData();
+			}
+			
+			var map = createFeatureComputers(server);
+			float[] pixels = new float[rw * rh];
+			for (var entry : transformedPixels.entrySet()) {
+				float[] tilePixels = entry.getValue();
+				for (int yy = 0; yy < rh; yy++)
+					System.arraycopy(tilePixels, (y + yy) * w + x, pixels, yy * rw, rw);
+				updateFeatures(pixels, rw, rh, maskBytes, regionType, entry.getKey(), map.get(entry.getKey()), params);
+			}
+			addMeasurements(pathObject, map, prefix, stains, params);
+		}
 		return true;
 	}
 	
@@ -986,7 +1241,8 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 	
 	static class HaralickFeaturesComp implements FeatureComputer {
 		
-		private CoocurranceMatrices matrices;
+		private SparseCoocurranceMatrices matrices;
+		private HaralickFeatures haralickFeatures;
 
 		@Override
 		public void updateFeatures(SimpleImage img, FeatureColorTransform transform, ParameterList params) {
@@ -1005,16 +1261,24 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 			int d = params.getIntParameterValue("haralickDistance");
 			int nBins = params.getIntParameterValue("haralickBins");
 			
-			matrices = HaralickFeatureComputer.updateCooccurrenceMatrices(matrices, img, null, nBins, minMax[0], minMax[1], d);
+			if (matrices == null)
+				matrices = SparseCoocurranceMatrices.acquire(nBins);
+			matrices.update(img, null, 0, 0, img.getWidth(), img.getHeight(), minMax[0], minMax[1], d);
+			haralickFeatures = null;
 		}
 
 		@Override
 		public void addMeasurements(PathObject pathObject, String name, ParameterList params) {
-			if (matrices == null)
-				return;
+			if (haralickFeatures == null) {
+				if (matrices == null)
+					return;
+				// Compute the features once all updates are complete, then return the matrices for reuse
+				haralickFeatures = matrices.getMeanFeatures();
+				matrices.release();
+				matrices = null;
+			}
 			
 			MeasurementList measurementList = pathObject.getMeasurementList();
-			HaralickFeatures haralickFeatures = matrices.getMeanFeatures();
 			for (int i = 0; i < haralickFeatures.nFeatures(); i++) {
 				measurementList.putMeasurement(String.format("%s Haralick %s (F%d)", name,
 						haralickFeatures.getFeatureName(i),
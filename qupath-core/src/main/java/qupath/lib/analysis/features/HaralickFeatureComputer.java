@@ -68,13 +68,15 @@ public class HaralickFeatureComputer {
 			maxValue = stats.getMax();
 		}
 		
-		// Create & update cooccurrance matrices
-		CoocurranceMatrices matricies = updateCooccurrenceMatrices(null, ip, bpMask, xx, yy, ww, hh, nBins, minValue, maxValue, d);
-
-		// Get features
-		HaralickFeatures features = matricies.getMeanFeatures();
-
-		return features;
+		// Create & update cooccurrance matrices, reusing those of the current thread
+		SparseCoocurranceMatrices matrices = SparseCoocurranceMatrices.acquire(nBins);
+		try {
+			matrices.update(ip, bpMask, xx, yy, ww, hh, minValue, maxValue, d);
+			// Get features
+			return matrices.getMeanFeatures();
+		} finally {
+			matrices.release();
+		}
 	}
 	
 	
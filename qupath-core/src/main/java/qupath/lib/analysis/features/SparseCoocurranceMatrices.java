@@ -0,0 +1,462 @@
+package qupath.lib.analysis.features;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import qupath.lib.analysis.algorithms.SimpleImage;
+import qupath.lib.analysis.stats.RunningStatistics;
+
+/**
+ * Cooccurrence matrices for the 0, 45, 90 and 135 degree directions, designed for computing Haralick features
+ * for very large numbers of small objects.
+ * <p>
+ * This gives the same features as {@link CoocurranceMatrices} (up to rounding errors), but
+ * <ul>
+ *   <li>pixels are quantized once, and all four directions updated in a single sweep</li>
+ *   <li>the non-zero entries of each matrix are tracked, so that features are computed (and matrices reset) from only these</li>
+ *   <li>matrices and working arrays are reused by each thread, rather than being allocated for every object</li>
+ * </ul>
+ * Instances should be obtained with {@link #acquire(int)} and returned with {@link #release()} when no longer needed.
+ *
+ * @author Pete Bankhead
+ *
+ */
+public class SparseCoocurranceMatrices {
+
+	/**
+	 * Maximum number of released matrices to retain for reuse by each thread.
+	 */
+	private final static int MAX_POOL_SIZE = 16;
+
+	/**
+	 * Maximum number of quantized pixels to retain in the workspace of each thread; 
+	 * larger bounding boxes use a temporary array.
+	 */
+	private final static int MAX_RETAINED_BINS = 1024 * 1024;
+
+	/**
+	 * Natural log of every count below 65536, as used by {@link CoocMatrix}; larger counts are logged directly.
+	 */
+	private final static double[] logCounts = new double[256 * 256];
+
+	static {
+		for (int i = 1; i < logCounts.length; i++)
+			logCounts[i] = Math.log(i);
+	}
+
+	private final static ThreadLocal<Deque<SparseCoocurranceMatrices>> pool = ThreadLocal.withInitial(ArrayDeque::new);
+
+	private final static ThreadLocal<Workspace> workspace = ThreadLocal.withInitial(Workspace::new);
+
+	private final int n;
+
+	// Raw counts for each direction, in the order 0, 45, 90, 135 degrees
+	private final int[][] counts = new int[4][];
+	private final int[] sums = new int[4];
+
+	// Indices of the non-zero counts for each direction
+	private final int[][] nonZero = new int[4][];
+	private final int[] nNonZero = new int[4];
+
+	private boolean isReleased = false;
+
+	private SparseCoocurranceMatrices(final int n) {
+		this.n = n;
+		for (int dir = 0; dir < 4; dir++) {
+			counts[dir] = new int[n * n];
+			nonZero[dir] = new int[Math.min(n * n, 64)];
+		}
+	}
+
+	/**
+	 * Get empty cooccurrence matrices for the specified number of bins, reusing previously-released matrices
+	 * for the current thread where possible.
+	 *
+	 * @param nBins
+	 * @return
+	 */
+	public static SparseCoocurranceMatrices acquire(final int nBins) {
+		var deque = pool.get();
+		var iter = deque.iterator();
+		while (iter.hasNext()) {
+			var matrices = iter.next();
+			if (matrices.n == nBins) {
+				iter.remove();
+				matrices.isReleased = false;
+				return matrices;
+			}
+		}
+		return new SparseCoocurranceMatrices(nBins);
+	}
+
+	/**
+	 * Reset the matrices and return them for reuse by the current thread.
+	 * The matrices should not be used after this has been called.
+	 */
+	public void release() {
+		if (isReleased)
+			return;
+		reset();
+		isReleased = true;
+		var deque = pool.get();
+		if (deque.size() >= MAX_POOL_SIZE)
+			deque.pollLast();
+		deque.addFirst(this);
+	}
+
+	/**
+	 * Reset all counts to zero.
+	 */
+	public void reset() {
+		for (int dir = 0; dir < 4; dir++) {
+			int[] mat = counts[dir];
+			int[] inds = nonZero[dir];
+			for (int k = 0; k < nNonZero[dir]; k++)
+				mat[inds[k]] = 0;
+			nNonZero[dir] = 0;
+			sums[dir] = 0;
+		}
+	}
+
+	/**
+	 * Get the number of bins (i.e. the size of each matrix dimension).
+	 *
+	 * @return
+	 */
+	public int getN() {
+		return n;
+	}
+
+	/**
+	 * Update the matrices using pixels within a specified bounding box (given by xx, yy, ww, and hh).
+	 * <p>
+	 * This is equivalent to {@link HaralickFeatureComputer#updateCooccurrenceMatrices(CoocurranceMatrices, SimpleImage, SimpleImage, int, int, int, int, int, double, double, int)}.
+	 *
+	 * @param ip
+	 * @param bpMask optional mask; only non-zero pixels in the mask are included
+	 * @param xx
+	 * @param yy
+	 * @param ww
+	 * @param hh
+	 * @param minValue
+	 * @param maxValue
+	 * @param d
+	 */
+	public void update(final SimpleImage ip, final SimpleImage bpMask, final int xx, final int yy, final int ww, final int hh, final double minValue, final double maxValue, final int d) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+
+		// Quantize the bounding box, along with the neighbors that may be needed
+		int x0 = Math.max(0, xx - d);
+		int x1 = Math.min(width, xx + ww + d);
+		int y0 = yy;
+		int y1 = Math.min(height, yy + hh + d);
+		int w = x1 - x0;
+		int h = y1 - y0;
+		if (w <= 0 || h <= 0)
+			return;
+		int[] bins = workspace.get().getBins(w * h);
+		double binDepth = (maxValue - minValue) / n;
+		for (int y = y0; y < y1; y++) {
+			int ind = (y - y0) * w;
+			for (int x = x0; x < x1; x++) {
+				if (bpMask != null && bpMask.getValue(x, y) == 0)
+					bins[ind++] = -1;
+				else
+					bins[ind++] = getBinValue(ip.getValue(x, y), minValue, binDepth, n);
+			}
+		}
+
+		// Update all directions in one pass, using the same neighbors as HaralickFeatureComputer
+		int xEnd = Math.min(xx + ww, width);
+		int yEnd = Math.min(yy + hh, height);
+		for (int y = Math.max(yy, 0); y < yEnd; y++) {
+			boolean hasBelow = y < height - d;
+			int row = (y - y0) * w - x0;
+			int rowBelow = row + d * w;
+			for (int x = Math.max(xx, 0); x < xEnd; x++) {
+				int i = bins[row + x];
+				if (i < 0)
+					continue;
+				boolean hasRight = x < width - d;
+				if (hasRight)
+					add(0, i, bins[row + x + d]);
+				if (hasBelow) {
+					if (hasRight)
+						add(1, i, bins[rowBelow + x + d]);
+					add(2, i, bins[rowBelow + x]);
+					if (x >= d)
+						add(3, i, bins[rowBelow + x - d]);
+				}
+			}
+		}
+	}
+
+	private static int getBinValue(float val, double minValue, double binDepth, int nBins) {
+		// If we have NaN, return -1 to indicate a NaN value
+		if (Float.isNaN(val))
+			return -1;
+		int ind = (int)((val - minValue) / binDepth);
+		if (ind < 0)
+			return 0;
+		else if (ind >= nBins)
+			return nBins-1;
+		return ind;
+	}
+
+	private void add(final int dir, final int i, final int j) {
+		if (j < 0)
+			return;
+		int[] mat = counts[dir];
+		int ind = i * n + j;
+		if (mat[ind]++ == 0)
+			addNonZero(dir, ind);
+		ind = j * n + i;
+		if (mat[ind]++ == 0)
+			addNonZero(dir, ind);
+		sums[dir] += 2;
+	}
+
+	private void addNonZero(final int dir, final int ind) {
+		int k = nNonZero[dir];
+		if (k == nonZero[dir].length)
+			nonZero[dir] = Arrays.copyOf(nonZero[dir], Math.min(k * 2, n * n));
+		nonZero[dir][k] = ind;
+		nNonZero[dir] = k + 1;
+	}
+
+	/**
+	 * Compute Haralick features for each direction, and return the mean.
+	 *
+	 * @return
+	 */
+	public HaralickFeatures getMeanFeatures() {
+		HaralickFeatures featuresMean = new HaralickFeatures(null);
+		double[] featuresMeanArray = featuresMean.features();
+		var ws = workspace.get();
+		for (int dir = 0; dir < 4; dir++) {
+			double[] featuresTemp = computeFeatures(dir, ws);
+			for (int ind = 0; ind < featuresTemp.length; ind++)
+				featuresMeanArray[ind] += featuresTemp[ind]/4;
+		}
+		return featuresMean;
+	}
+
+	/**
+	 * Compute Haralick features for one direction, following {@link HaralickFeatures#computeFeatures()}
+	 * but visiting only the non-zero matrix entries.
+	 * <p>
+	 * Entries are visited in the same (row-major) order, so that the results are identical - except for the
+	 * information measures of correlation.  These use entropies computed from all pairs of marginal probabilities,
+	 * which are found here from the marginal entropies instead; the results then differ only by rounding errors.
+	 */
+	private double[] computeFeatures(final int dir, final Workspace ws) {
+		double[] f = ws.features;
+		int sum = sums[dir];
+		if (sum == 0) {
+			// Probabilities are all NaN, and so are the features
+			Arrays.fill(f, Double.NaN);
+			return f;
+		}
+
+		int[] mat = counts[dir];
+		int[] inds = nonZero[dir];
+		int k = nNonZero[dir];
+		if (k * 8 < n * n)
+			Arrays.sort(inds, 0, k);
+		else {
+			// Scanning is cheaper than sorting when most entries are non-zero
+			int t = 0;
+			for (int ind = 0; ind < n * n; ind++) {
+				if (mat[ind] != 0)
+					inds[t++] = ind;
+			}
+		}
+		double logSum = Math.log(sum);
+
+		ws.ensureSize(n, k);
+		double[] px = ws.px;
+		double[] py = ws.py;
+		double[] px_and_y = ws.px_and_y;
+		double[] px_y = ws.px_y;
+		double[] vals = ws.vals;
+		int[] rows = ws.rows;
+		int[] cols = ws.cols;
+		Arrays.fill(px, 0, n, 0);
+		Arrays.fill(py, 0, n, 0);
+		Arrays.fill(px_and_y, 0, 2*n+1, 0);
+		Arrays.fill(px_y, 0, n, 0);
+
+		double mx = 0;
+		double my = 0;
+		for (int t = 0; t < k; t++) {
+			int ind = inds[t];
+			int i = ind / n;
+			int j = ind - i * n;
+			double val = (double)mat[ind] / sum;
+			px[i] += val;
+			py[j] += val;
+			px_and_y[i + j] += val;
+			px_y[Math.abs(i - j)] += val;
+
+			mx += (i + 1) * val;
+			my += (j + 1) * val;
+
+			rows[t] = i + 1;
+			cols[t] = j + 1;
+			vals[t] = val;
+		}
+
+		// Standard deviations for marginal-probability matrices
+		// Angular second moment (f1)
+		// Correlation (f3)
+		// Inverse difference moment (f5)
+		// Entropy (f9)
+		double sx = 0;
+		double sy = 0;
+		double f1 = 0;
+		double f3 = 0;
+		double f5 = 0;
+		double f9 = 0;
+		for (int t = 0; t < k; t++) {
+			int i = rows[t];
+			int j = cols[t];
+			double val = vals[t];
+			sx += (i - mx) * (i - mx) * val;
+			sy += (j - my) * (j - my) * val;
+
+			int count = mat[inds[t]];
+			double logCount = count < logCounts.length ? logCounts[count] : Math.log(count);
+			double logVal = (logCount - logSum) / HaralickFeatures.LOG2;
+			f1 += val * val;
+			f3 += i*j * val;
+			f5 += val / (1 + (i - j)*(i - j));
+			f9 -= val * logVal;
+		}
+		sx = Math.sqrt(sx);
+		sy = Math.sqrt(sy);
+
+		double Hxy = f9;
+		f3 -= mx*my;
+		f3 /= sx*sy;
+
+		// Sum of squares (f4)
+		double f4 = sx*sx;
+
+		// Contrast (f2)
+		double f2 = 0;
+		for (int nn = 0; nn < n; nn++) {
+			f2 += nn * nn * px_y[nn];
+		}
+
+		// Sum average (f6)
+		// Sum entropy (f8)
+		double f6 = 0;
+		double f8 = 0;
+		for (int i = 2; i <= 2*n; i++) {
+			double val = px_and_y[i];
+			if (val != 0) {
+				f6 += i * val;
+				f8 -= val * (Math.log(val) / HaralickFeatures.LOG2);
+			}
+		}
+
+		// Sum variance (f7)
+		double f7 = 0;
+		for (int i = 2; i <= 2*n; i++) {
+			f7 += (i - f6) * (i - f6) * px_and_y[i];
+		}
+
+		// Difference entropy (f11)
+		double f11 = 0;
+		for (int i = 0; i < n; i++) {
+			double val = px_y[i];
+			if (val != 0)
+				f11 -= val * (Math.log(val) / HaralickFeatures.LOG2);
+		}
+
+		// Difference variance (f10)
+		RunningStatistics px_yStats = new RunningStatistics();
+		for (int i = 0; i < n; i++)
+			px_yStats.addValue(px_y[i]);
+		double f10 = px_yStats.getVariance();
+
+		double Hx = 0;
+		double Hy = 0;
+		double sumPx = 0;
+		double sumPy = 0;
+		for (int i = 0; i < n; i++) {
+			double val = px[i];
+			if (val != 0)
+				Hx -= val * Math.log(val)/HaralickFeatures.LOG2;
+			sumPx += val;
+			val = py[i];
+			if (val != 0)
+				Hy -= val * Math.log(val)/HaralickFeatures.LOG2;
+			sumPy += val;
+		}
+
+		// Since log(px*py) = log(px) + log(py), these follow from the marginal entropies
+		// (using that each row of the matrix sums to px, and each column to py)
+		double Hxy1 = Hx + Hy;
+		double Hxy2 = Hx * sumPy + Hy * sumPx;
+
+		// Information measures of correlation
+		double f12 = (Hxy - Hxy1) / Math.max(Hx, Hy);
+		double f13 = Math.sqrt(1 - Math.exp(-2 * (Hxy2 - Hxy)));
+
+		f[0] = f1;
+		f[1] = f2;
+		f[2] = f3;
+		f[3] = f4;
+		f[4] = f5;
+		f[5] = f6;
+		f[6] = f7;
+		f[7] = f8;
+		f[8] = f9;
+		f[9] = f10;
+		f[10] = f11;
+		f[11] = f12;
+		f[12] = f13;
+		return f;
+	}
+
+
+	/**
+	 * Working arrays reused by each thread.
+	 */
+	private static class Workspace {
+
+		private int[] bins = new int[0];
+		private double[] features = new double[13];
+		private double[] px, py, px_and_y, px_y;
+		private double[] vals = new double[0];
+		private int[] rows = new int[0];
+		private int[] cols = new int[0];
+
+		int[] getBins(int size) {
+			if (size > MAX_RETAINED_BINS)
+				return new int[size];
+			if (bins.length < size)
+				bins = new int[size];
+			return bins;
+		}
+
+		void ensureSize(int n, int nNonZero) {
+			if (px == null || px.length < n) {
+				px = new double[n];
+				py = new double[n];
+				px_and_y = new double[2*n+1];
+				px_y = new double[n];
+			}
+			if (vals.length < nNonZero) {
+				vals = new double[nNonZero];
+				rows = new int[nNonZero];
+				cols = new int[nNonZero];
+			}
+		}
+
+	}
+
+}
@@ -23,17 +23,21 @@
 
 package qupath.lib.analysis.objects;
 
-import java.awt.geom.Area;
-import java.awt.geom.Path2D;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Location;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,10 +57,11 @@ import qupath.lib.plugins.AbstractDetectionPlugin;
 import qupath.lib.plugins.PathTask;
 import qupath.lib.plugins.PluginRunner;
 import qupath.lib.plugins.parameters.ParameterList;
-import qupath.lib.roi.PathROIToolsAwt;
-import qupath.lib.roi.PolygonROI;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.interfaces.PathArea;
 import qupath.lib.roi.interfaces.ROI;
-import qupath.lib.roi.interfaces.PathShape;
+import qupath.lib.roi.jts.ConverterJTS;
+import qupath.lib.roi.jts.GeometryMerger;
 
 /**
  * Plugin to merge classified tiles into annotation objects.
@@ -192,78 +197,59 @@ public class TileClassificationsToAnnotationsPlugin<T> extends AbstractDetection
 			boolean doSplit = params.getBooleanParameterValue("splitAnnotations");
 			boolean deleteTiles = params.getBooleanParameterValue("deleteTiles");
 
+			// Group the tiles by classification
+			Map<PathClass, List<PathObject>> tilesByClass = new LinkedHashMap<>();
 			for (PathClass pathClass : pathClasses) {
-				PathObject pathSingleAnnotation = null;
+				if (pathClass == null)
+					continue;
 				List<PathObject> tiles = new ArrayList<>();
-				if (pathClass != null) {
-					Path2D path = null;
-					for (PathObject pathObject : parentObject.getChildObjects()) {
-						if ((pathObject instanceof PathTileObject) && (pathObject.getROI() instanceof PathShape) && pathClass.equals(pathObject.getPathClass())) {
-							PathShape pathShape = (PathShape)pathObject.getROI();
-							if (path == null)
-								path = new Path2D.Float(PathROIToolsAwt.getShape(pathShape));
-							else
-								path.append(PathROIToolsAwt.getShape(pathShape), false);
-							tiles.add(pathObject);
-						}
-					}
-					if (!tiles.isEmpty()) {
-						ROI pathROINew = null;
-						ROI parentROI = parentObject.getROI();
-						if (parentROI != null)
-							pathROINew = PathROIToolsAwt.getShapeROI(new Area(path), parentROI.getC(), parentROI.getZ(), parentROI.getT());
-						else
-							pathROINew = PathROIToolsAwt.getShapeROI(new Area(path), -1, 0, 0);
-						pathSingleAnnotation = PathObjects.createAnnotationObject(pathROINew, pathClass);
-						if (!deleteTiles)
-							pathSingleAnnotation.addPathObjects(tiles);
-					}
+				for (PathObject pathObject : parentObject.getChildObjects()) {
+					if ((pathObject instanceof PathTileObject) && (pathObject.getROI() instanceof PathArea) && pathClass.equals(pathObject.getPathClass()))
+						tiles.add(pathObject);
 				}
+				if (!tiles.isEmpty())
+					tilesByClass.put(pathClass, tiles);
+			}
+			
+			// Merging is the slow part, so do it for each class in parallel
+			Map<PathClass, Geometry> geometries = tilesByClass.entrySet().parallelStream().collect(Collectors.toMap(
+					e -> e.getKey(),
+					e -> GeometryMerger.unionGeometry(e.getValue().stream().map(p -> p.getROI()).collect(Collectors.toList()))));
+			
+			ROI parentROI = parentObject.getROI();
+			ImagePlane plane = parentROI == null ? ImagePlane.getDefaultPlane() : ImagePlane.getPlaneWithChannel(parentROI);
+			for (var entry : tilesByClass.entrySet()) {
+				PathClass pathClass = entry.getKey();
+				List<PathObject> tiles = entry.getValue();
+				Geometry geometry = geometries.get(pathClass);
 				
-				if (pathSingleAnnotation == null) {
+				// Split if necessary
+				if (!doSplit || geometry.getNumGeometries() == 1) {
+					PathObject pathSingleAnnotation = PathObjects.createAnnotationObject(ConverterJTS.convertGeometryToROI(geometry, plane), pathClass);
+					if (!deleteTiles)
+						pathSingleAnnotation.addPathObjects(tiles);
+					pathAnnotations.add(pathSingleAnnotation);
 					continue;
 				}
-				
-				// Split if necessary
-				if (doSplit) {
-					PathShape pathShape = (PathShape)pathSingleAnnotation.getROI();
-					Area area = PathROIToolsAwt.getArea(pathShape);
-					if (area.isSingular()) {
-						pathAnnotations.add(pathSingleAnnotation);
-//						resultsString = "Created 1 annotation from " + tiles.size() + " tiles: " + pathSingleAnnotation;
-					}
-					else {
-						PolygonROI[][] polygons = PathROIToolsAwt.splitAreaToPolygons(area, pathShape.getC(), pathShape.getZ(), pathShape.getT());
-						for (PolygonROI poly : polygons[1]) {
-							PathShape shape = poly;
-							Iterator<PathObject> iter = tiles.iterator();
-							List<PathObject> children = new ArrayList<>();
-							if (!deleteTiles) {
-								while (iter.hasNext()) {
-									PathObject next = iter.next();
-									ROI roi = next.getROI();
-									if (poly.contains(roi.getCentroidX(), roi.getCentroidY())) {
-										iter.remove();
-										children.add(next);
-									}
-								}
+				for (int i = 0; i < geometry.getNumGeometries(); i++) {
+					Geometry polygon = geometry.getGeometryN(i);
+					List<PathObject> children = new ArrayList<>();
+					if (!deleteTiles) {
+						var locator = new IndexedPointInAreaLocator(polygon);
+						Iterator<PathObject> iter = tiles.iterator();
+						while (iter.hasNext()) {
+							PathObject next = iter.next();
+							ROI roi = next.getROI();
+							if (locator.locate(new Coordinate(roi.getCentroidX(), roi.getCentroidY())) != Location.EXTERIOR) {
+								iter.remove();
+								children.add(next);
 							}
-							
-							for (PolygonROI hole : polygons[0]) {
-								if (PathObjectTools.containsROI(poly, hole))
-									shape = PathROIToolsAwt.combineROIs(shape, hole, PathROIToolsAwt.CombineOp.SUBTRACT);
-							}
-//							PathObjectTools.containsObject(pathSingleAnnotation, childObject)
-							PathObject annotation = PathObjects.createAnnotationObject(shape, pathClass);
-							if (!deleteTiles)
-								annotation.addPathObjects(children);
-							pathAnnotations.add(annotation);
 						}
 					}
-				}
-				else {
-					pathAnnotations.add(pathSingleAnnotation);
-//					resultsString = "Created annotation from " + tiles.size() + " tiles: " + pathSingleAnnotation;
+					PathObject annotation = PathObjects.createAnnotationObject(ConverterJTS.convertGeometryToROI(polygon, plane), pathClass);
+					if (!deleteTiles)
+						annotation.addPathObjects(children);
+					pathAnnotations.add(annotation);
 				}
 			}
 			
@@ -0,0 +1,724 @@
+package qupath.lib.common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared scheduler for all background tasks, so that different parts of the software do not compete
+ * for (and oversubscribe) the available processors.
+ * <p>
+ * Tasks are submitted through {@link TaskExecutor}s, each of which has a name, a {@link Priority} and
+ * a maximum number of tasks that may run concurrently. Each priority uses either the CPU or the I/O budget;
+ * tasks only start when there is space in the corresponding budget, with higher priority tasks started first.
+ * <p>
+ * Some space in each budget is reserved for higher priority tasks, so that (for example) long-running
+ * analysis tasks cannot delay painting an overlay indefinitely.
+ * <p>
+ * If a task running in the scheduler needs to wait for other tasks, it should use {@link TaskExecutor#invokeAll(java.util.Collection)},
+ * {@link TaskExecutor#runIfQueued(Future)} or {@link TaskExecutor#runQueuedTask()} so that waiting tasks can be run
+ * in the calling thread; otherwise, a task waiting for tasks that cannot start (because the budget is full)
+ * could wait forever.
+ *
+ * @author Pete Bankhead
+ *
+ */
+public class TaskScheduler {
+
+	private final static Logger logger = LoggerFactory.getLogger(TaskScheduler.class);
+
+	/**
+	 * Resources that are limited by a budget.
+	 */
+	public static enum Resource {
+		/**
+		 * Processor-bound tasks.
+		 */
+		CPU,
+		/**
+		 * Tasks that spend much of their time waiting for disk or network access.
+		 */
+		IO
+	}
+
+	/**
+	 * Priority classes for tasks.  Within each resource, tasks with an earlier priority are started first.
+	 */
+	public static enum Priority {
+
+		/**
+		 * Reading image tiles for display.
+		 */
+		INTERACTIVE_TILE(Resource.IO, Thread.NORM_PRIORITY),
+		/**
+		 * Computing overlays or generated image tiles for display.
+		 */
+		OVERLAY(Resource.CPU, Thread.NORM_PRIORITY-2),
+		/**
+		 * Running analysis commands and scripts.
+		 */
+		ANALYSIS(Resource.CPU, Thread.NORM_PRIORITY),
+		/**
+		 * Reading or writing data in the background, where the user is not waiting for the result.
+		 */
+		BACKGROUND_IO(Resource.IO, Thread.NORM_PRIORITY-1);
+
+		private final Resource resource;
+		private final int threadPriority;
+
+		private Priority(final Resource resource, final int threadPriority) {
+			this.resource = resource;
+			this.threadPriority = threadPriority;
+		}
+
+		/**
+		 * Get the resource whose budget is used by tasks with this priority.
+		 * @return
+		 */
+		public Resource getResource() {
+			return resource;
+		}
+
+	}
+
+	private static TaskScheduler instance = new TaskScheduler();
+
+	private static ThreadLocal<TaskExecutor> currentExecutor = new ThreadLocal<>();
+
+	/**
+	 * Threads are created as needed; the number running at any time is limited by the budgets.
+	 */
+	private final ExecutorService threads = Executors.newCachedThreadPool(new SimpleThreadFactory("qupath-task-", true));
+
+	// All the following are guarded by 'this'
+	private final Map<Resource, Integer> budgets = new EnumMap<>(Resource.class);
+	private final Map<Resource, Integer> running = new EnumMap<>(Resource.class);
+	private final Map<Priority, Integer> runningByPriority = new EnumMap<>(Priority.class);
+	private final Map<Priority, TaskMetrics> metrics = new EnumMap<>(Priority.class);
+	private final Set<TaskExecutor> queuedExecutors = new LinkedHashSet<>();
+	private long sequence = 0;
+
+	TaskScheduler() {
+		int nProcessors = Runtime.getRuntime().availableProcessors();
+		// Allow one more than the number of processors, so that one can be reserved for higher priority tasks
+		budgets.put(Resource.CPU, nProcessors + 1);
+		budgets.put(Resource.IO, Math.max(8, Math.min(nProcessors * 4, 32)));
+		for (var resource : Resource.values())
+			running.put(resource, 0);
+		for (var priority : Priority.values()) {
+			runningByPriority.put(priority, 0);
+			metrics.put(priority, new TaskMetrics());
+		}
+	}
+
+	/**
+	 * Get the scheduler shared by the application.
+	 * @return
+	 */
+	public static TaskScheduler getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Returns true if the current thread is running a task for a {@link TaskExecutor}.
+	 * @return
+	 */
+	public static boolean isTaskThread() {
+		return currentExecutor.get() != null;
+	}
+
+	/**
+	 * Create a new executor for tasks with the specified priority, limited only by the budget.
+	 *
+	 * @param name name of the executor, used for thread names & logging
+	 * @param priority
+	 * @return
+	 */
+	public TaskExecutor createExecutor(final String name, final Priority priority) {
+		return createExecutor(name, priority, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Create a new executor for tasks with the specified priority.
+	 *
+	 * @param name name of the executor, used for thread names & logging
+	 * @param priority
+	 * @param maxConcurrency maximum number of tasks submitted to the executor that may run at the same time;
+	 * 						 if 1, tasks are run one at a time in the order they were submitted
+	 * @return
+	 */
+	public TaskExecutor createExecutor(final String name, final Priority priority, final int maxConcurrency) {
+		if (maxConcurrency < 1)
+			throw new IllegalArgumentException("Maximum concurrency must be at least 1");
+		return new TaskExecutor(name, priority, maxConcurrency);
+	}
+
+	/**
+	 * Set the maximum number of tasks using a resource that may run at the same time.
+	 *
+	 * @param resource
+	 * @param budget
+	 */
+	public synchronized void setBudget(final Resource resource, final int budget) {
+		if (budget < 1)
+			throw new IllegalArgumentException("Budget must be at least 1");
+		budgets.put(resource, budget);
+		dispatch();
+	}
+
+	/**
+	 * Get the maximum number of tasks using a resource that may run at the same time.
+	 *
+	 * @param resource
+	 * @return
+	 */
+	public synchronized int getBudget(final Resource resource) {
+		return budgets.get(resource);
+	}
+
+	/**
+	 * Get the maximum number of tasks with a specific priority that may run at the same time.
+	 * <p>
+	 * Analysis tasks may use all but one of the CPU budget, and background I/O tasks a quarter of the I/O budget,
+	 * so that there is always space to start higher priority tasks.
+	 *
+	 * @param priority
+	 * @return
+	 */
+	public synchronized int getPriorityLimit(final Priority priority) {
+		int budget = budgets.get(priority.resource);
+		switch (priority) {
+		case ANALYSIS:
+			return Math.max(1, budget - 1);
+		case BACKGROUND_IO:
+			return Math.max(1, budget / 4);
+		default:
+			return budget;
+		}
+	}
+
+	/**
+	 * Get a snapshot of the metrics for all tasks with a specified priority.
+	 *
+	 * @param priority
+	 * @return
+	 */
+	public synchronized TaskMetrics getMetrics(final Priority priority) {
+		return new TaskMetrics(metrics.get(priority));
+	}
+
+	/**
+	 * Start as many queued tasks as the budgets allow, highest priority (then oldest) first.
+	 */
+	private synchronized void dispatch() {
+		for (var resource : Resource.values()) {
+			while (running.get(resource) < budgets.get(resource)) {
+				TaskExecutor best = null;
+				for (var executor : queuedExecutors) {
+					if (executor.priority.resource != resource || executor.nRunning >= executor.maxConcurrency ||
+							runningByPriority.get(executor.priority) >= getPriorityLimit(executor.priority))
+						continue;
+					if (best == null || executor.priority.compareTo(best.priority) < 0 ||
+							(executor.priority == best.priority && executor.queue.peek().sequence < best.queue.peek().sequence))
+						best = executor;
+				}
+				if (best == null)
+					break;
+				var task = best.poll();
+				if (task == null)
+					continue;
+				start(best, task);
+			}
+		}
+	}
+
+	private synchronized void start(final TaskExecutor executor, final QueuedTask task) {
+		var priority = executor.priority;
+		running.put(priority.resource, running.get(priority.resource) + 1);
+		runningByPriority.put(priority, runningByPriority.get(priority) + 1);
+		executor.nRunning++;
+		metrics.get(priority).nRunning++;
+		executor.metrics.nRunning++;
+		try {
+			threads.execute(() -> runTask(executor, task, true));
+		} catch (RejectedExecutionException e) {
+			logger.error("Unable to start task for {}", executor.name, e);
+			finished(executor, task, 0L, 0L, true, true);
+		}
+	}
+
+	/**
+	 * Run a task, either in one of the scheduler threads (in which case it is counted against the budget),
+	 * or inline in the calling thread.
+	 */
+	private void runTask(final TaskExecutor executor, final QueuedTask task, final boolean budgeted) {
+		var thread = Thread.currentThread();
+		var previousExecutor = currentExecutor.get();
+		String threadName = thread.getName();
+		int threadPriority = thread.getPriority();
+		if (budgeted) {
+			thread.setName(executor.name + "-" + threadName);
+			thread.setPriority(executor.priority.threadPriority);
+			synchronized (this) {
+				executor.threads.add(thread);
+			}
+		}
+		currentExecutor.set(executor);
+		long startTime = System.nanoTime();
+		boolean failed = false;
+		try {
+			task.runnable.run();
+			failed = hasFailed(task.runnable);
+		} catch (Throwable t) {
+			failed = true;
+			logger.error("Error running task for " + executor.name, t);
+		} finally {
+			long endTime = System.nanoTime();
+			currentExecutor.set(previousExecutor);
+			if (budgeted) {
+				synchronized (this) {
+					executor.threads.remove(thread);
+				}
+				// Don't let an interrupt leak into the next task
+				Thread.interrupted();
+				thread.setName(threadName);
+				thread.setPriority(threadPriority);
+			}
+			finished(executor, task, startTime, endTime, failed, budgeted);
+		}
+	}
+
+	private synchronized void finished(final TaskExecutor executor, final QueuedTask task, final long startTime, final long endTime, final boolean failed, final boolean budgeted) {
+		var priority = executor.priority;
+		if (budgeted) {
+			running.put(priority.resource, running.get(priority.resource) - 1);
+			runningByPriority.put(priority, runningByPriority.get(priority) - 1);
+			executor.nRunning--;
+			metrics.get(priority).nRunning--;
+			executor.metrics.nRunning--;
+		}
+		boolean cancelled = task.runnable instanceof Future && ((Future<?>)task.runnable).isCancelled();
+		metrics.get(priority).addTask(task.queuedTime, startTime, endTime, failed, cancelled);
+		executor.metrics.addTask(task.queuedTime, startTime, endTime, failed, cancelled);
+		dispatch();
+		notifyAll();
+	}
+
+	/**
+	 * Check if a task that is also a future completed with an exception.
+	 */
+	private static boolean hasFailed(final Runnable runnable) {
+		if (!(runnable instanceof Future))
+			return false;
+		var future = (Future<?>)runnable;
+		if (!future.isDone() || future.isCancelled())
+			return false;
+		try {
+			future.get();
+			return false;
+		} catch (ExecutionException e) {
+			return true;
+		} catch (InterruptedException | CancellationException e) {
+			return false;
+		}
+	}
+
+
+	private static class QueuedTask {
+
+		private final Runnable runnable;
+		private final long sequence;
+		private final long queuedTime = System.nanoTime();
+
+		private QueuedTask(final Runnable runnable, final long sequence) {
+			this.runnable = runnable;
+			this.sequence = sequence;
+		}
+
+	}
+
+
+	/**
+	 * Executor that submits tasks to the {@link TaskScheduler}.
+	 * <p>
+	 * Shutting down the executor only affects tasks submitted to it; {@link #shutdownNow()} removes all
+	 * queued tasks, and interrupts any that are running.
+	 */
+	public class TaskExecutor extends AbstractExecutorService {
+
+		private final String name;
+		private final Priority priority;
+		private final int maxConcurrency;
+
+		// All the following are guarded by the scheduler
+		private final ArrayDeque<QueuedTask> queue = new ArrayDeque<>();
+		private final Set<Thread> threads = new LinkedHashSet<>();
+		private final TaskMetrics metrics = new TaskMetrics();
+		private int nRunning = 0;
+		private int nInline = 0;
+		private boolean isShutdown = false;
+
+		private TaskExecutor(final String name, final Priority priority, final int maxConcurrency) {
+			this.name = name;
+			this.priority = priority;
+			this.maxConcurrency = maxConcurrency;
+		}
+
+		/**
+		 * Get the name of the executor.
+		 * @return
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Get the priority of tasks submitted to the executor.
+		 * @return
+		 */
+		public Priority getPriority() {
+			return priority;
+		}
+
+		/**
+		 * Get a snapshot of the metrics for all tasks submitted to this executor.
+		 * @return
+		 */
+		public TaskMetrics getMetrics() {
+			synchronized (TaskScheduler.this) {
+				return new TaskMetrics(metrics);
+			}
+		}
+
+		@Override
+		public void execute(final Runnable command) {
+			synchronized (TaskScheduler.this) {
+				if (isShutdown)
+					throw new RejectedExecutionException(name + " has been shut down");
+				queue.add(new QueuedTask(command, sequence++));
+				metrics.nQueued++;
+				TaskScheduler.this.metrics.get(priority).nQueued++;
+				queuedExecutors.add(this);
+				dispatch();
+			}
+		}
+
+		/**
+		 * Remove the next task from the queue that hasn't been cancelled, or null if there are no more tasks.
+		 * Cancelled tasks are counted in the metrics, but not run.
+		 */
+		private QueuedTask poll() {
+			synchronized (TaskScheduler.this) {
+				QueuedTask task;
+				while ((task = queue.poll()) != null) {
+					dequeued();
+					if (task.runnable instanceof Future && ((Future<?>)task.runnable).isCancelled()) {
+						metrics.nCancelled++;
+						TaskScheduler.this.metrics.get(priority).nCancelled++;
+						continue;
+					}
+					break;
+				}
+				if (queue.isEmpty())
+					queuedExecutors.remove(this);
+				return task;
+			}
+		}
+
+		private void dequeued() {
+			metrics.nQueued--;
+			TaskScheduler.this.metrics.get(priority).nQueued--;
+		}
+
+		/**
+		 * Run the next queued task in the calling thread, without waiting for space in the budget.
+		 * <p>
+		 * This is intended for tasks that need to wait for other tasks submitted to the same executor.
+		 *
+		 * @return true if a task was run, false if the queue was empty
+		 */
+		public boolean runQueuedTask() {
+			QueuedTask task;
+			synchronized (TaskScheduler.this) {
+				task = poll();
+				if (task == null)
+					return false;
+				nInline++;
+			}
+			runInline(task);
+			return true;
+		}
+
+		/**
+		 * Run a task in the calling thread if it is still waiting in the queue, without waiting for space in the budget.
+		 *
+		 * @param future a future returned by one of the submit methods of this executor
+		 * @return true if the task was run, false if it had already started or was never submitted to this executor
+		 */
+		public boolean runIfQueued(final Future<?> future) {
+			QueuedTask task = null;
+			synchronized (TaskScheduler.this) {
+				Iterator<QueuedTask> iter = queue.iterator();
+				while (iter.hasNext()) {
+					var temp = iter.next();
+					if (temp.runnable == future) {
+						iter.remove();
+						dequeued();
+						task = temp;
+						break;
+					}
+				}
+				if (task == null)
+					return false;
+				if (queue.isEmpty())
+					queuedExecutors.remove(this);
+				nInline++;
+			}
+			runInline(task);
+			return true;
+		}
+
+		private void runInline(final QueuedTask task) {
+			try {
+				runTask(this, task, false);
+			} finally {
+				synchronized (TaskScheduler.this) {
+					nInline--;
+					TaskScheduler.this.notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Submit all tasks and wait for them to complete.  If called from a thread that is itself running a task
+		 * for the scheduler, any tasks that have not started by the time they are needed are run in the calling thread.
+		 */
+		@Override
+		public <T> List<Future<T>> invokeAll(final Collection<? extends Callable<T>> tasks) throws InterruptedException {
+			if (!isTaskThread())
+				return super.invokeAll(tasks);
+			List<Future<T>> futures = new ArrayList<>();
+			try {
+				for (var task : tasks)
+					futures.add(submit(task));
+				for (var future : futures) {
+					runIfQueued(future);
+					try {
+						future.get();
+					} catch (ExecutionException | CancellationException e) {
+						// Handled by the caller
+					}
+				}
+				return futures;
+			} catch (InterruptedException | RuntimeException e) {
+				for (var future : futures)
+					future.cancel(true);
+				throw e;
+			}
+		}
+
+		@Override
+		public void shutdown() {
+			synchronized (TaskScheduler.this) {
+				isShutdown = true;
+				TaskScheduler.this.notifyAll();
+			}
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			List<Runnable> pending = new ArrayList<>();
+			synchronized (TaskScheduler.this) {
+				isShutdown = true;
+				for (var task : queue) {
+					pending.add(task.runnable);
+					dequeued();
+				}
+				metrics.nCancelled += pending.size();
+				TaskScheduler.this.metrics.get(priority).nCancelled += pending.size();
+				queue.clear();
+				queuedExecutors.remove(this);
+				for (var thread : threads)
+					thread.interrupt();
+				TaskScheduler.this.notifyAll();
+			}
+			if (!pending.isEmpty())
+				logger.debug("{} shut down with {} queued tasks", name, pending.size());
+			return pending;
+		}
+
+		@Override
+		public boolean isShutdown() {
+			synchronized (TaskScheduler.this) {
+				return isShutdown;
+			}
+		}
+
+		@Override
+		public boolean isTerminated() {
+			synchronized (TaskScheduler.this) {
+				return isShutdown && queue.isEmpty() && nRunning == 0 && nInline == 0;
+			}
+		}
+
+		@Override
+		public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+			long endTime = System.nanoTime() + unit.toNanos(timeout);
+			synchronized (TaskScheduler.this) {
+				while (!isTerminated()) {
+					long remaining = endTime - System.nanoTime();
+					if (remaining <= 0)
+						return false;
+					TimeUnit.NANOSECONDS.timedWait(TaskScheduler.this, remaining);
+				}
+				return true;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return name + " (" + priority + "): " + getMetrics();
+		}
+
+	}
+
+
+	/**
+	 * Counts and timings for tasks submitted to the scheduler.
+	 */
+	public static class TaskMetrics {
+
+		private long nSubmitted, nCompleted, nFailed, nCancelled;
+		private int nQueued, nRunning;
+		private long totalWaitNanos, totalRunNanos, maxRunNanos;
+
+		private TaskMetrics() {}
+
+		private TaskMetrics(final TaskMetrics metrics) {
+			nCompleted = metrics.nCompleted;
+			nFailed = metrics.nFailed;
+			nCancelled = metrics.nCancelled;
+			nQueued = metrics.nQueued;
+			nRunning = metrics.nRunning;
+			totalWaitNanos = metrics.totalWaitNanos;
+			totalRunNanos = metrics.totalRunNanos;
+			maxRunNanos = metrics.maxRunNanos;
+			nSubmitted = nCompleted + nFailed + nCancelled + nQueued + nRunning;
+		}
+
+		private void addTask(final long queuedTime, final long startTime, final long endTime, final boolean failed, final boolean cancelled) {
+			if (cancelled) {
+				nCancelled++;
+				return;
+			}
+			if (failed)
+				nFailed++;
+			else
+				nCompleted++;
+			totalWaitNanos += startTime - queuedTime;
+			long runNanos = endTime - startTime;
+			totalRunNanos += runNanos;
+			maxRunNanos = Math.max(maxRunNanos, runNanos);
+		}
+
+		/**
+		 * Total number of tasks submitted, including those that have not yet completed.
+		 * @return
+		 */
+		public long getSubmittedCount() {
+			return nSubmitted;
+		}
+
+		/**
+		 * Number of tasks that completed normally.
+		 * @return
+		 */
+		public long getCompletedCount() {
+			return nCompleted;
+		}
+
+		/**
+		 * Number of tasks that threw an exception.
+		 * @return
+		 */
+		public long getFailedCount() {
+			return nFailed;
+		}
+
+		/**
+		 * Number of tasks that were cancelled, or removed from the queue when an executor was shut down.
+		 * @return
+		 */
+		public long getCancelledCount() {
+			return nCancelled;
+		}
+
+		/**
+		 * Number of tasks waiting to start.
+		 * @return
+		 */
+		public int getQueuedCount() {
+			return nQueued;
+		}
+
+		/**
+		 * Number of tasks currently running in the scheduler's threads.
+		 * @return
+		 */
+		public int getRunningCount() {
+			return nRunning;
+		}
+
+		/**
+		 * Mean time between submitting and starting a task, for tasks that have finished.
+		 * @return
+		 */
+		public double getMeanWaitMillis() {
+			long n = nCompleted + nFailed;
+			return n == 0 ? 0 : totalWaitNanos / (n * 1e6);
+		}
+
+		/**
+		 * Mean time taken to run a task, for tasks that have finished.
+		 * @return
+		 */
+		public double getMeanRunMillis() {
+			long n = nCompleted + nFailed;
+			return n == 0 ? 0 : totalRunNanos / (n * 1e6);
+		}
+
+		/**
+		 * Longest time taken to run any task.
+		 * @return
+		 */
+		public double getMaxRunMillis() {
+			return maxRunNanos / 1e6;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d submitted, %d completed, %d failed, %d cancelled, %d queued, %d running, mean wait %.1f ms, mean run %.1f ms, max run %.1f ms",
+					nSubmitted, nCompleted, nFailed, nCancelled, nQueued, nRunning, getMeanWaitMillis(), getMeanRunMillis(), getMaxRunMillis());
+		}
+
+	}
+
+}
@@ -2,25 +2,47 @@ package qupath.lib.images.servers;
 
 import java.awt.image.BandedSampleModel;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
 import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import qupath.lib.awt.color.model.ColorModelFactory;
+import qupath.lib.common.TaskScheduler;
+import qupath.lib.common.TaskScheduler.Priority;
+import qupath.lib.common.TaskScheduler.TaskExecutor;
 import qupath.lib.regions.RegionRequest;
 
 /**
  * Concatenate ImageServers along the channel dimension.
- * 
+ * <p>
+ * Tiles are read from all the servers concurrently, and cached in the same way as for other tiled servers.
+ * Where possible, the bands of the concatenated tiles share the data arrays of the tiles read from each server,
+ * rather than copying the pixels.
+ *
  * @author Pete Bankhead
  *
  */
-public class ConcatChannelsImageServer extends WrappedImageServer<BufferedImage> {
-	
+public class ConcatChannelsImageServer extends AbstractTileableImageServer {
+
+	/**
+	 * Pool for reading tiles from the concatenated servers; this uses the I/O budget, since reading is often I/O-bound.
+	 */
+	private static TaskExecutor pool = TaskScheduler.getInstance().createExecutor("concat-channels", Priority.INTERACTIVE_TILE);
+
 	private ImageServerMetadata originalMetadata;
 	private List<ImageServer<BufferedImage>> allServers = new ArrayList<>();
 
@@ -29,26 +51,33 @@ public class ConcatChannelsImageServer extends WrappedImageServer<BufferedImage>
 	 * <p>
 	 * The order of entries in the collection determines the order in which the channels will be appended.
 	 * <p>
-	 * The main server is used to determine the metadata. If the main server is also inside the 
-	 * collection, then it will be inserted at the corresponding location in the collection; 
+	 * The main server is used to determine the metadata (including the tile size and resolution levels).
+	 * If the main server is also inside the collection, then it will be inserted at the corresponding location in the collection;
 	 * otherwise it will be the first server (i.e. first channels).
-	 * 
+	 *
 	 * @param server
 	 * @param imageServers
 	 */
 	public ConcatChannelsImageServer(ImageServer<BufferedImage> server, Collection<ImageServer<BufferedImage>> imageServers) {
-		super(server);
+		super();
 		if (!imageServers.contains(server))
 			allServers.add(server);
 		allServers.addAll(imageServers);
-		
+
 		var channels = new ArrayList<ImageChannel>();
-		for (var s : allServers)
+		int bitDepth = server.getBitsPerPixel();
+		for (var s : allServers) {
 			channels.addAll(s.getChannels());
-		
+			// Channels with different bit depths are combined as float
+			if (s.getBitsPerPixel() != bitDepth)
+				bitDepth = 32;
+		}
+
 		originalMetadata = new ImageServerMetadata.Builder(getClass(), server.getMetadata())
 				.path("Merged channels ["+String.join(", ", allServers.stream().map(s -> s.getPath()).collect(Collectors.toList())) + "]")
 				.channels(channels)
+				.rgb(server.isRGB() && allServers.size() == 1)
+				.bitDepth(bitDepth)
 				.build();
 	}
 
@@ -56,52 +85,180 @@ public class ConcatChannelsImageServer extends WrappedImageServer<BufferedImage>
 	public String getServerType() {
 		return "Channel concat image server";
 	}
-	
+
 	@Override
 	public ImageServerMetadata getOriginalMetadata() {
 		return originalMetadata;
 	}
-	
+
 	@Override
-	public BufferedImage readBufferedImage(RegionRequest request) throws IOException {
-		
+	protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+
+		// Read from all servers concurrently, using the current thread for the first
+		var request = tileRequest.getRegionRequest();
+		List<Future<BufferedImage>> futures = new ArrayList<>();
+		for (int i = 1; i < allServers.size(); i++) {
+			var server = allServers.get(i);
+			futures.add(pool.submit(() -> server.readBufferedImage(RegionRequest.createInstance(server.getPath(), request.getDownsample(), request))));
+		}
 		List<WritableRaster> rasters = new ArrayList<>();
 		boolean premultiplied = false;
-		int nBands = 0;
-		for (var server : allServers) {
-			var img = server.readBufferedImage(request);
+		try {
+			var server = allServers.get(0);
+			var img = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), request.getDownsample(), request));
 			premultiplied = img.isAlphaPremultiplied();
-			nBands += img.getRaster().getNumBands();
 			rasters.add(img.getRaster());
+			// Read any tiles that haven't started yet in this thread, rather than waiting for space in the budget
+			for (var future : futures) {
+				pool.runIfQueued(future);
+				rasters.add(future.get().getRaster());
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while reading " + request, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		} finally {
+			for (var future : futures)
+				future.cancel(true);
+		}
+
+		WritableRaster raster = createSharedRaster(rasters);
+		if (raster == null)
+			raster = createCopiedRaster(rasters);
+
+		// The raster may have a different type from the main server (e.g. float if the servers have different types)
+		return new BufferedImage(
+				ColorModelFactory.getDummyColorModel(DataBuffer.getDataTypeSize(raster.getDataBuffer().getDataType())),
+				raster, premultiplied, null);
+	}
+
+
+	/**
+	 * Create a banded raster that shares the data arrays of the input rasters.
+	 * This is possible if all the rasters have the same type and dimensions, with one sample per data element
+	 * for each band and no gaps between rows.
+	 *
+	 * @param rasters
+	 * @return the banded raster, or null if it is not possible to share the data arrays
+	 */
+	static WritableRaster createSharedRaster(List<? extends Raster> rasters) {
+		var first = rasters.get(0);
+		int width = first.getWidth();
+		int height = first.getHeight();
+		int dataType = first.getDataBuffer().getDataType();
+		List<Object> banks = new ArrayList<>();
+		List<Integer> offsets = new ArrayList<>();
+		for (var raster : rasters) {
+			if (raster.getWidth() != width || raster.getHeight() != height ||
+					raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0 ||
+					raster.getDataBuffer().getDataType() != dataType ||
+					!(raster.getSampleModel() instanceof ComponentSampleModel))
+				return null;
+			var sampleModel = (ComponentSampleModel)raster.getSampleModel();
+			if (sampleModel.getPixelStride() != 1 || sampleModel.getScanlineStride() != width)
+				return null;
+			var buffer = raster.getDataBuffer();
+			int[] bankIndices = sampleModel.getBankIndices();
+			int[] bandOffsets = sampleModel.getBandOffsets();
+			for (int b = 0; b < raster.getNumBands(); b++) {
+				int bank = bankIndices[b];
+				banks.add(getBank(buffer, bank));
+				offsets.add(buffer.getOffsets()[bank] + bandOffsets[b]);
+			}
 		}
+		int nBands = banks.size();
+		int size = width * height;
+		int[] bankOffsets = offsets.stream().mapToInt(i -> i).toArray();
+		DataBuffer buffer;
+		switch (dataType) {
+		case DataBuffer.TYPE_BYTE:
+			buffer = new DataBufferByte(banks.toArray(byte[][]::new), size, bankOffsets);
+			break;
+		case DataBuffer.TYPE_USHORT:
+			buffer = new DataBufferUShort(banks.toArray(short[][]::new), size, bankOffsets);
+			break;
+		case DataBuffer.TYPE_SHORT:
+			buffer = new DataBufferShort(banks.toArray(short[][]::new), size, bankOffsets);
+			break;
+		case DataBuffer.TYPE_INT:
+			buffer = new DataBufferInt(banks.toArray(int[][]::new), size, bankOffsets);
+			break;
+		case DataBuffer.TYPE_FLOAT:
+			buffer = new DataBufferFloat(banks.toArray(float[][]::new), size, bankOffsets);
+			break;
+		case DataBuffer.TYPE_DOUBLE:
+			buffer = new DataBufferDouble(banks.toArray(double[][]::new), size, bankOffsets);
+			break;
+		default:
+			return null;
+		}
+		int[] bankIndices = new int[nBands];
+		for (int b = 0; b < nBands; b++)
+			bankIndices[b] = b;
+		// Offsets are applied by the DataBuffer, so the sample model doesn't need any
+		var sampleModel = new BandedSampleModel(dataType, width, height, width, bankIndices, new int[nBands]);
+		return Raster.createWritableRaster(sampleModel, buffer, null);
+	}
+
+	private static Object getBank(DataBuffer buffer, int bank) {
+		if (buffer instanceof DataBufferByte)
+			return ((DataBufferByte)buffer).getData(bank);
+		if (buffer instanceof DataBufferUShort)
+			return ((DataBufferUShort)buffer).getData(bank);
+		if (buffer instanceof DataBufferShort)
+			return ((DataBufferShort)buffer).getData(bank);
+		if (buffer instanceof DataBufferInt)
+			return ((DataBufferInt)buffer).getData(bank);
+		if (buffer instanceof DataBufferFloat)
+			return ((DataBufferFloat)buffer).getData(bank);
+		if (buffer instanceof DataBufferDouble)
+			return ((DataBufferDouble)buffer).getData(bank);
+		throw new IllegalArgumentException("Unsupported DataBuffer " + buffer);
+	}
+
+	/**
+	 * Create a banded raster by copying the samples of the input rasters.
+	 * The data type of the first raster is used if all rasters have the same type, otherwise float.
+	 *
+	 * @param rasters
+	 * @return
+	 */
+	static WritableRaster createCopiedRaster(List<? extends Raster> rasters) {
 		var first = rasters.get(0);
 		int width = first.getWidth();
 		int height = first.getHeight();
-		
-		WritableRaster raster;
-		if (first.getDataBuffer().getDataType() != DataBuffer.TYPE_BYTE && first.getDataBuffer().getDataType() != DataBuffer.TYPE_USHORT) {
-			BandedSampleModel sampleModel = new BandedSampleModel(DataBuffer.TYPE_FLOAT, width, height, nBands);
-			raster = WritableRaster.createWritableRaster(sampleModel, null);
-		} else
-			raster = WritableRaster.createInterleavedRaster(first.getDataBuffer().getDataType(), width, height, nBands, null);
-		
-//		var raster = WritableRaster.createBandedRaster(first.getDataBuffer().getDataType(), width, height, nBands, null);
-		float[] samples = new float[width * height];
+		int dataType = first.getDataBuffer().getDataType();
+		int nBands = 0;
+		for (var raster : rasters) {
+			nBands += raster.getNumBands();
+			if (raster.getDataBuffer().getDataType() != dataType)
+				dataType = DataBuffer.TYPE_FLOAT;
+		}
+		var raster = Raster.createWritableRaster(new BandedSampleModel(dataType, width, height, nBands), null);
+		boolean isInteger = dataType == DataBuffer.TYPE_BYTE || dataType == DataBuffer.TYPE_USHORT ||
+				dataType == DataBuffer.TYPE_SHORT || dataType == DataBuffer.TYPE_INT;
+		int[] intSamples = null;
+		double[] samples = null;
 		int currentBand = 0;
 		for (var temp : rasters) {
 			int w = Math.min(width, temp.getWidth());
 			int h = Math.min(height, temp.getHeight());
+			int x = temp.getMinX();
+			int y = temp.getMinY();
 			for (int b = 0; b < temp.getNumBands(); b++) {
-				samples = temp.getSamples(0, 0, w, h, b, samples);
-				raster.setSamples(0, 0, w, h, currentBand, samples);
+				if (isInteger) {
+					intSamples = temp.getSamples(x, y, w, h, b, intSamples);
+					raster.setSamples(0, 0, w, h, currentBand, intSamples);
+				} else {
+					samples = temp.getSamples(x, y, w, h, b, samples);
+					raster.setSamples(0, 0, w, h, currentBand, samples);
+				}
 				currentBand++;
 			}
 		}
-		
-		return new BufferedImage(
-				ColorModelFactory.getDummyColorModel(getBitsPerPixel()),
-				raster, premultiplied, null);
+		return raster;
 	}
-	
-	
+
 }
@@ -23,11 +23,16 @@
 
 package qupath.lib.images.servers;
 
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -77,6 +82,8 @@ public class FileFormatInfo {
 	static final int SAMPLES_PER_PIXEL = 277;
 	static final int SOFTWARE = 305;
 	static final int SAMPLE_FORMAT = 339;
+	
+	static final int TYPE_SHORT = 3;
 
 	
 	public static ImageCheckType checkImageType(final URI uri) {
@@ -103,13 +110,13 @@ public class FileFormatInfo {
 			if (file.getName().toLowerCase().endsWith(".ndpi"))
 				return ImageCheckType.UNKNOWN;
 			
-			RandomAccessFile in = null;
+			BufferedInput in = null;
 			FileFormatInfo.ImageCheckType type = null;
 			try {
-				in = new RandomAccessFile(file, "r");
+				in = new BufferedInput(file.toPath());
 				
 				boolean littleEndian;
-				int byteOrder = in.readShort();
+				int byteOrder = readShort(in, false);
 				if (byteOrder == 0x4949) // "II"
 					littleEndian = true;
 				else if (byteOrder == 0x4d4d) // "MM"
@@ -148,7 +155,7 @@ public class FileFormatInfo {
 	}
 	
 	
-	static ImageCheckType checkStandardTiff(final RandomAccessFile in, final boolean littleEndian) throws IOException {
+	static ImageCheckType checkStandardTiff(final BufferedInput in, final boolean littleEndian) throws IOException {
 		long offset = readUnsignedInt(in, littleEndian);
 		if (offset < 0)
 			return ImageCheckType.UNKNOWN;
@@ -167,9 +174,14 @@ public class FileFormatInfo {
 			int nEntries = readShort(in, littleEndian);
 			for (int i = 0; i < nEntries; i++) {
 				int tag = readShort(in, littleEndian);
-				readShort(in, littleEndian);
+				int fieldType = readShort(in, littleEndian);
 				long count = readUnsignedInt(in, littleEndian);
 				long valueOrOffset = readUnsignedInt(in, littleEndian);
+				// Single SHORT values are stored in the first two bytes of the value field
+				if (fieldType == TYPE_SHORT && count == 1 && !littleEndian)
+					valueOrOffset = valueOrOffset >>> 16;
+				else if (fieldType == TYPE_SHORT && count == 1)
+					valueOrOffset = valueOrOffset & 0xffff;
 				
 				switch (tag) {
 				case IMAGE_DESCRIPTION:
@@ -188,8 +200,7 @@ public class FileFormatInfo {
 					break;
 				case BITS_PER_SAMPLE:
 					if (count==1) {
-						// TODO: Check this... could be quite questionable...
-						int val = littleEndian ? (int)((valueOrOffset & 0x00ff0000) >> 16) : (int)((valueOrOffset & 0xff000000) >> 24);
+						int val = (int)valueOrOffset;
 						if (val > 64 || val <= 0)
 							logger.warn("Strange 'bits per sample' of {}", val);
 						bitsPerSample = new int[]{val};
@@ -204,7 +215,7 @@ public class FileFormatInfo {
 					}
 					break;
 				case EXTRA_SAMPLES:
-					extraSamples = readShort(in, littleEndian);
+					extraSamples = (int)valueOrOffset;
 					break;
 				}
 			}
@@ -231,7 +242,7 @@ public class FileFormatInfo {
 		return ImageCheckType.TIFF_OTHER;
 	}
 	
-	static ImageCheckType checkBigTiff(final RandomAccessFile in, final boolean littleEndian) throws IOException {
+	static ImageCheckType checkBigTiff(final BufferedInput in, final boolean littleEndian) throws IOException {
 		
 		logger.error("Checking Big TIFF images currently not supported!!!");
 		
@@ -239,7 +250,7 @@ public class FileFormatInfo {
 	}
 	
 	
-	static int readShort(final RandomAccessFile in, final boolean littleEndian) throws IOException {
+	static int readShort(final BufferedInput in, final boolean littleEndian) throws IOException {
 		int b1 = in.read();
 		int b2 = in.read();
 		if (littleEndian)
@@ -248,7 +259,7 @@ public class FileFormatInfo {
 			return ((b1<<8) + b2);
 	}
 	
-	static int readInt(final RandomAccessFile in, final boolean littleEndian) throws IOException {
+	static int readInt(final BufferedInput in, final boolean littleEndian) throws IOException {
 		int b1 = in.read();
 		int b2 = in.read();
 		int b3 = in.read();
@@ -259,13 +270,13 @@ public class FileFormatInfo {
 			return ((b1 << 24) + (b2 << 16) + (b3 << 8) + b4);
 	}
 	
-	static long readUnsignedInt(final RandomAccessFile in, final boolean littleEndian) throws IOException {
+	static long readUnsignedInt(final BufferedInput in, final boolean littleEndian) throws IOException {
 		return ((long)readInt(in, littleEndian)) & 0xffffffffL;
 	}
 	
 	
 	
-	static String getString(final RandomAccessFile in, final int count, final long offset) throws IOException {
+	static String getString(final BufferedInput in, final int count, final long offset) throws IOException {
 		byte[] bytes = new byte[count - 1]; // Skip null byte
 		long saveLoc = in.getFilePointer();
 		in.seek(offset);
@@ -275,5 +286,80 @@ public class FileFormatInfo {
 	}
 	
 	
+	/**
+	 * Minimal replacement for a RandomAccessFile that reads through a buffer, since header parsing
+	 * requests a few bytes at a time from scattered locations.
+	 */
+	static class BufferedInput implements Closeable {
+		
+		private static final int BUFFER_SIZE = 8192;
+		
+		private final FileChannel channel;
+		private final long length;
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		// File position corresponding to the start of the buffer
+		private long bufferStart = 0;
+		
+		BufferedInput(final Path path) throws IOException {
+			this.channel = FileChannel.open(path, StandardOpenOption.READ);
+			this.length = channel.size();
+			buffer.limit(0);
+		}
+		
+		long length() {
+			return length;
+		}
+		
+		long getFilePointer() {
+			return bufferStart + buffer.position();
+		}
+		
+		void seek(final long pos) {
+			if (pos >= bufferStart && pos <= bufferStart + buffer.limit())
+				buffer.position((int)(pos - bufferStart));
+			else {
+				bufferStart = pos;
+				buffer.limit(0);
+			}
+		}
+		
+		/**
+		 * Read the next byte, or -1 if the end of the file has been reached.
+		 */
+		int read() throws IOException {
+			if (!buffer.hasRemaining() && !fill())
+				return -1;
+			return buffer.get() & 0xff;
+		}
+		
+		void readFully(final byte[] bytes) throws IOException {
+			int n = 0;
+			while (n < bytes.length) {
+				if (!buffer.hasRemaining() && !fill())
+					throw new EOFException();
+				int len = Math.min(buffer.remaining(), bytes.length - n);
+				buffer.get(bytes, n, len);
+				n += len;
+			}
+		}
+		
+		private boolean fill() throws IOException {
+			bufferStart = getFilePointer();
+			buffer.clear();
+			while (buffer.hasRemaining()) {
+				int n = channel.read(buffer, bufferStart + buffer.position());
+				if (n < 0)
+					break;
+			}
+			buffer.flip();
+			return buffer.hasRemaining();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+		
+	}
 	
-}
\ No newline at end of file
+}
@@ -83,15 +83,15 @@ public class ImageIoImageServer extends AbstractImageServer<BufferedImage> {
 
 	@Override
 	public BufferedImage readBufferedImage(RegionRequest request) {
-		// TODO: Check this - there is a very real possibility it's completely wrong!
 		double downsampleFactor = request.getDownsample();
 		int w = (int)(request.getWidth() / downsampleFactor + .5);
 		int h = (int)(request.getHeight() / downsampleFactor + .5);
 		BufferedImage img2 = new BufferedImage(w, h, img.getType());
 		Graphics2D g2d = img2.createGraphics();
-		g2d.translate(-request.getX(), -request.getY());
+		// Scale first, so that the translation is applied in full resolution coordinates
 		if (downsampleFactor != 1)
 			g2d.scale(1.0/downsampleFactor, 1.0/downsampleFactor);
+		g2d.translate(-request.getX(), -request.getY());
 		g2d.drawImage(img, 0, 0, null);
 		g2d.dispose();
 		return img2;
@@ -23,20 +23,27 @@
 
 package qupath.lib.images.servers;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import qupath.lib.common.GeneralTools;
 import qupath.lib.images.servers.FileFormatInfo.ImageCheckType;
 import qupath.lib.regions.RegionRequest;
 
@@ -58,6 +65,22 @@ public class ImageServerProvider {
 	@SuppressWarnings("rawtypes")
 	private static ServiceLoader<ImageServerBuilder> serviceLoader = ServiceLoader.load(ImageServerBuilder.class);
 	
+	/**
+	 * Maximum number of images for which probe results are cached.
+	 */
+	private static final int MAX_PROBE_CACHE_SIZE = 500;
+	
+	/**
+	 * Cache of file format information &amp; builder support levels, so that the same file need not be probed repeatedly.
+	 */
+	private static Map<ProbeKey, ProbeResult> probeCache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ProbeKey, ProbeResult> eldest) {
+			return size() > MAX_PROBE_CACHE_SIZE;
+		}
+	});
+	
 	public static <T> void setCache(Map<RegionRequest, T> cache, final Class<T> cls) {
 		cacheMap.put(cls, cache);
 	}
@@ -76,6 +99,17 @@ public class ImageServerProvider {
 	 */
 	public static void setServiceLoader(final ServiceLoader<ImageServerBuilder> newLoader) {
 		serviceLoader = newLoader;
+		clearProbeCache();
+	}
+	
+	/**
+	 * Clear any cached file format information &amp; builder support levels.
+	 * <p>
+	 * Cached results are automatically ignored if a file's size or last modified time changes,
+	 * but this may be needed if a builder's ability to handle a file has changed for another reason.
+	 */
+	public static void clearProbeCache() {
+		probeCache.clear();
 	}
 
 	
@@ -129,7 +163,8 @@ public class ImageServerProvider {
 		
 		URI uri = uriTemp;
 
-		final ImageCheckType type = FileFormatInfo.checkImageType(uri);
+		var probe = getProbeResult(uri);
+		final ImageCheckType type = probe.type;
 		List<ImageServerBuilder<?>> providers = new ArrayList<>();
 		List<String> requestedBuilders = Arrays.asList(requestedServerBuilderClassnames);
 		for (ImageServerBuilder<?> provider : serviceLoader) {
@@ -142,9 +177,12 @@ public class ImageServerProvider {
 			}
 		}
 		
-		// Sort by support level, then by name
+		// Determine support levels once (or reuse them from a previous probe), then sort by support level, then by name
+		Map<ImageServerBuilder<?>, Float> supportLevels = new HashMap<>();
+		for (ImageServerBuilder<?> provider : providers)
+			supportLevels.put(provider, probe.getSupportLevel(provider, uri, cls));
 		Collections.sort(providers, (p1, p2) -> {
-			int support = -Float.compare(p1.supportLevel(uri, type, cls), p2.supportLevel(uri, type, cls));
+			int support = -Float.compare(supportLevels.get(p1), supportLevels.get(p2));
 			if (support == 0)
 				return p1.getClass().getName().compareTo(p2.getClass().getName());
 			return support;
@@ -152,11 +190,11 @@ public class ImageServerProvider {
 		
 		if (logger.isDebugEnabled()) {
 			for (ImageServerBuilder<?> provider : providers)
-				logger.debug("{}: rank {} ", provider, provider.supportLevel(uri, type, cls));				
+				logger.debug("{}: rank {} ", provider, supportLevels.get(provider));				
 		}
 		long maxImageSize = Runtime.getRuntime().maxMemory() / 2;
 		for (ImageServerBuilder<?> provider : providers) {
-			if (provider.supportLevel(uri, type, cls) == 0) {
+			if (supportLevels.get(provider) == 0) {
 				logger.error("No image server provider found for {}", path);
 				return null;
 			}
@@ -165,6 +203,17 @@ public class ImageServerProvider {
 				ImageServerBuilder<T> possibleProvider = (ImageServerBuilder<T>)provider;
 				ImageServer<T> server = possibleProvider.buildServer(uri);
 				if (server != null) {
+					// Generate a pyramid for large images that are not already pyramidal
+					if (cls == BufferedImage.class && PyramidGeneratingImageServer.shouldGeneratePyramid(server, maxImageSize)) {
+						logger.info("Generating pyramid for {} ({} x {} pixels)", path, server.getWidth(), server.getHeight());
+						try {
+							@SuppressWarnings("unchecked")
+							var pyramidServer = (ImageServer<T>)new PyramidGeneratingImageServer((ImageServer<BufferedImage>)server);
+							server = pyramidServer;
+						} catch (IOException e) {
+							logger.warn("Unable to generate pyramid: {}", e.getLocalizedMessage());
+						}
+					}
 					// Check size is reasonable - should be small, or large & tiled
 					if (server.nResolutions() > 1 || (long)server.getWidth() * server.getHeight() * server.getBitsPerPixel() * server.nChannels() / 8 < maxImageSize) {
 						logger.info("Returning server: {} for {}", server.getServerType(), path);
@@ -175,7 +224,7 @@ public class ImageServerProvider {
 			} catch (Exception e) {
 				logger.warn("ImageServer creation failed", e);
 			}
-			logger.debug("Provider " + provider + " support level " + provider.supportLevel(uri, type, cls));
+			logger.debug("Provider " + provider + " support level " + supportLevels.get(provider));
 		}
 		
 		logger.error("Unable to build whole slide server - check your classpath for a suitable library (e.g. OpenSlide, BioFormats)\n\t");
@@ -184,4 +233,101 @@ public class ImageServerProvider {
 	}
 	
 	
+	/**
+	 * Get the probe result for a URI, reusing a cached result if the file has not changed.
+	 * 
+	 * @param uri
+	 * @return
+	 */
+	static ProbeResult getProbeResult(final URI uri) {
+		var key = ProbeKey.create(uri);
+		var probe = probeCache.get(key);
+		if (probe == null) {
+			probe = new ProbeResult(FileFormatInfo.checkImageType(uri));
+			probeCache.put(key, probe);
+		} else
+			logger.debug("Using cached probe result for {}", uri);
+		return probe;
+	}
+	
+	
+	/**
+	 * Key for cached probe results, which includes the file size &amp; last modified time (where available) 
+	 * so that files that have changed are probed again.
+	 */
+	static class ProbeKey {
+		
+		private final URI uri;
+		private final long size;
+		private final long lastModified;
+		
+		private ProbeKey(final URI uri, final long size, final long lastModified) {
+			this.uri = uri;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+		
+		static ProbeKey create(final URI uri) {
+			long size = -1L;
+			long lastModified = -1L;
+			if ("file".equals(uri.getScheme())) {
+				try {
+					var path = GeneralTools.toPath(uri);
+					if (path != null && Files.exists(path)) {
+						size = Files.size(path);
+						lastModified = Files.getLastModifiedTime(path).toMillis();
+					}
+				} catch (Exception e) {
+					logger.debug("Unable to read file attributes for {}: {}", uri, e.getLocalizedMessage());
+				}
+			}
+			return new ProbeKey(uri, size, lastModified);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(uri, size, lastModified);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof ProbeKey))
+				return false;
+			var other = (ProbeKey)obj;
+			return size == other.size && lastModified == other.lastModified && uri.equals(other.uri);
+		}
+		
+	}
+	
+	
+	/**
+	 * Cached file format information &amp; support levels for each builder, for a single image.
+	 */
+	static class ProbeResult {
+		
+		private final ImageCheckType type;
+		private final Map<String, Float> supportLevels = new ConcurrentHashMap<>();
+		
+		private ProbeResult(final ImageCheckType type) {
+			this.type = type;
+		}
+		
+		ImageCheckType getType() {
+			return type;
+		}
+		
+		float getSupportLevel(final ImageServerBuilder<?> builder, final URI uri, final Class<?> cls) {
+			String key = builder.getClass().getName() + "::" + cls.getName();
+			var level = supportLevels.get(key);
+			if (level == null) {
+				level = builder.supportLevel(uri, type, cls);
+				supportLevels.put(key, level);
+			}
+			return level;
+		}
+		
+	}
+	
 }
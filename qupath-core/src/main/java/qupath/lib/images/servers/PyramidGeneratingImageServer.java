@@ -0,0 +1,563 @@
+package qupath.lib.images.servers;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.TaskScheduler;
+import qupath.lib.common.TaskScheduler.Priority;
+import qupath.lib.common.TaskScheduler.TaskExecutor;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * ImageServer that wraps a non-pyramidal ImageServer, and generates lower resolution levels on the fly.
+ * <p>
+ * The full resolution image is read from the wrapped server. Each lower resolution level has half the
+ * width and height of the level above, and is created by averaging 2x2 blocks of pixels. Tiles of these
+ * levels are written to a memory-mapped cache file on disk, so they are only ever computed once.
+ * <p>
+ * A background thread builds the levels in order, so that the full resolution image is streamed only once
+ * and each subsequent level is computed from the cached tiles of the level above. Tiles that are requested
+ * before the background thread reaches them are computed immediately (and cached in the same way).
+ * Each tile is only computed by one thread at a time; other threads requesting the same tile wait for it.
+ * <p>
+ * Closing the server waits for any tiles currently being computed, and stops the background thread, before
+ * the cache is released. Any subsequent attempt to read pixels fails with an IOException.
+ *
+ * @author Pete Bankhead
+ *
+ */
+public class PyramidGeneratingImageServer extends AbstractTileableImageServer {
+
+	private final static Logger logger = LoggerFactory.getLogger(PyramidGeneratingImageServer.class);
+
+	/**
+	 * Tile size used for all levels.
+	 */
+	static final int TILE_SIZE = 256;
+
+	/**
+	 * Minimum width or height for which a pyramid should be generated for a non-pyramidal image,
+	 * if it is not already too large to read in one go.
+	 */
+	private static final int MIN_PYRAMID_SIZE = 8192;
+
+	/**
+	 * Maximum size of each mapped region of the cache file.
+	 */
+	private static final long SEGMENT_SIZE = 1L << 30;
+
+	/**
+	 * Pyramids are built one at a time, to avoid several images competing to read from disk.
+	 */
+	private static TaskExecutor pool = TaskScheduler.getInstance().createExecutor("pyramid-builder", Priority.BACKGROUND_IO, 1);
+
+	private ImageServer<BufferedImage> server;
+	private ImageServerMetadata metadata;
+
+	// Template used to create rasters & images for lower resolution levels
+	private ColorModel colorModel;
+	private WritableRaster templateRaster;
+	private boolean isAlphaPremultiplied;
+	private boolean hasAlpha;
+	private int dataType;
+	private int nBands;
+
+	private Path cachePath;
+	private MappedByteBuffer[] segments;
+	private int slotBytes;
+	private int slotsPerSegment;
+	private long[] levelStartSlots;
+	private int[] levelTilesX;
+	private int[] levelTilesY;
+	private BitSet availableSlots = new BitSet();
+	// Tiles currently being computed, so that other threads can wait for them rather than computing them again
+	private Map<Integer, CompletableFuture<Void>> pendingSlots = new ConcurrentHashMap<>();
+
+	private Future<?> builder;
+	private volatile boolean closed = false;
+	// Held for reading while tiles are read or computed, and for writing when the cache is released
+	private ReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+	/**
+	 * Create a server that generates a pyramid for a non-pyramidal server.
+	 *
+	 * @param server the server providing the full resolution image
+	 * @throws IOException if the cache file could not be created
+	 */
+	public PyramidGeneratingImageServer(final ImageServer<BufferedImage> server) throws IOException {
+		super();
+		this.server = server;
+
+		var serverMetadata = server.getMetadata();
+		int width = serverMetadata.getWidth();
+		int height = serverMetadata.getHeight();
+		var levelBuilder = new ImageServerMetadata.ImageResolutionLevel.Builder(width, height);
+		levelBuilder.addFullResolutionLevel();
+		double downsample = 1;
+		while (Math.max(width / downsample, height / downsample) > TILE_SIZE && Math.min(width / downsample, height / downsample) >= 2) {
+			downsample *= 2;
+			levelBuilder.addLevelByDownsample(downsample);
+		}
+		var levels = levelBuilder.build();
+		metadata = new ImageServerMetadata.Builder(getClass(), serverMetadata)
+				.path(server.getPath())
+				.levels(levels)
+				.preferredTileSize(TILE_SIZE, TILE_SIZE)
+				.build();
+
+		// Read a small region to find out how pixels should be stored
+		var img = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), 1, 0, 0, Math.min(width, 8), Math.min(height, 8)));
+		if (img == null)
+			throw new IOException("Unable to read pixels from " + server.getPath());
+		colorModel = img.getColorModel();
+		templateRaster = img.getRaster();
+		isAlphaPremultiplied = img.isAlphaPremultiplied();
+		hasAlpha = colorModel.hasAlpha();
+		dataType = templateRaster.getTransferType();
+		nBands = templateRaster.getNumBands();
+		if (isRGB())
+			slotBytes = TILE_SIZE * TILE_SIZE * 4;
+		else
+			slotBytes = TILE_SIZE * TILE_SIZE * nBands * DataBuffer.getDataTypeSize(dataType) / 8;
+
+		createCache();
+
+		if (nResolutions() > 1)
+			builder = pool.submit(this::buildPyramid);
+	}
+
+	/**
+	 * Check whether a pyramid should be generated for a server, i.e. if it has a single resolution level
+	 * but is either too large to be read in one go, or large enough that reading it at a low resolution
+	 * would be slow.
+	 *
+	 * @param server
+	 * @param maxImageSize the maximum size in bytes of an image that may be read in one go
+	 * @return
+	 */
+	public static boolean shouldGeneratePyramid(final ImageServer<?> server, final long maxImageSize) {
+		if (server.nResolutions() > 1)
+			return false;
+		long imageSize = (long)server.getWidth() * server.getHeight() * server.getBitsPerPixel() * server.nChannels() / 8;
+		return imageSize >= maxImageSize || Math.max(server.getWidth(), server.getHeight()) > MIN_PYRAMID_SIZE;
+	}
+
+	/**
+	 * Get underlying ImageServer, i.e. the one providing the full resolution image.
+	 *
+	 * @return
+	 */
+	protected ImageServer<BufferedImage> getWrappedServer() {
+		return server;
+	}
+
+	/**
+	 * Returns true if all resolution levels have been written to the cache.
+	 *
+	 * @return
+	 */
+	public boolean isPyramidComplete() {
+		return builder == null || builder.isDone();
+	}
+
+	/**
+	 * Create the memory-mapped cache file, with one fixed-size slot for every tile of every lower resolution level.
+	 */
+	private void createCache() throws IOException {
+		int nLevels = nResolutions();
+		int nPlanes = nZSlices() * nTimepoints();
+		levelStartSlots = new long[nLevels + 1];
+		levelTilesX = new int[nLevels];
+		levelTilesY = new int[nLevels];
+		long nSlots = 0;
+		for (int level = 0; level < nLevels; level++) {
+			levelTilesX[level] = (getLevelWidth(level) + TILE_SIZE - 1) / TILE_SIZE;
+			levelTilesY[level] = (getLevelHeight(level) + TILE_SIZE - 1) / TILE_SIZE;
+			levelStartSlots[level] = nSlots;
+			// The full resolution level is read directly from the wrapped server
+			if (level > 0)
+				nSlots += (long)levelTilesX[level] * levelTilesY[level] * nPlanes;
+		}
+		levelStartSlots[nLevels] = nSlots;
+		if (nSlots > Integer.MAX_VALUE)
+			throw new IOException("Too many tiles to generate a pyramid for " + server.getPath());
+
+		slotsPerSegment = (int)Math.max(1, SEGMENT_SIZE / slotBytes);
+		long length = nSlots * slotBytes;
+		cachePath = Files.createTempFile("qupath-pyramid-", ".cache");
+		cachePath.toFile().deleteOnExit();
+		long usableSpace = cachePath.toFile().getUsableSpace();
+		if (usableSpace > 0 && length > usableSpace) {
+			Files.deleteIfExists(cachePath);
+			throw new IOException(String.format("Not enough disk space to generate pyramid for %s (%.1f MB required)", server.getPath(), length / (1024.0 * 1024.0)));
+		}
+		logger.debug("Creating {} MB pyramid cache for {} at {}", length / (1024 * 1024), server.getPath(), cachePath);
+		try (var file = new RandomAccessFile(cachePath.toFile(), "rw")) {
+			file.setLength(length);
+			var channel = file.getChannel();
+			int nSegments = (int)((nSlots + slotsPerSegment - 1) / slotsPerSegment);
+			segments = new MappedByteBuffer[nSegments];
+			for (int i = 0; i < nSegments; i++) {
+				long start = (long)i * slotsPerSegment * slotBytes;
+				segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min((long)slotsPerSegment * slotBytes, length - start));
+			}
+		}
+	}
+
+	/**
+	 * Compute all tiles for all levels in order, skipping any that have already been requested.
+	 */
+	private void buildPyramid() {
+		long startTime = System.currentTimeMillis();
+		try {
+			for (int level = 1; level < nResolutions(); level++) {
+				for (int t = 0; t < nTimepoints(); t++) {
+					for (int z = 0; z < nZSlices(); z++) {
+						for (int ty = 0; ty < levelTilesY[level]; ty++) {
+							for (int tx = 0; tx < levelTilesX[level]; tx++) {
+								if (closed)
+									return;
+								readTileIfOpen(level, tx, ty, z, t);
+							}
+						}
+					}
+				}
+				logger.debug("Pyramid level {} generated for {}", level, server.getPath());
+			}
+			long endTime = System.currentTimeMillis();
+			logger.info("Pyramid with {} levels generated for {} in {} ms", nResolutions(), server.getPath(), endTime - startTime);
+		} catch (Exception e) {
+			if (!closed)
+				logger.error("Error generating pyramid for " + server.getPath(), e);
+		}
+	}
+
+	@Override
+	protected BufferedImage readTile(final TileRequest tileRequest) throws IOException {
+		int level = tileRequest.getLevel();
+		// Tiles of the full resolution level have the same path as the wrapped server
+		if (level == 0) {
+			if (closed)
+				throw new IOException("Server has been closed: " + getPath());
+			return server.readBufferedImage(tileRequest.getRegionRequest());
+		}
+		return readTileIfOpen(level, tileRequest.getTileX() / TILE_SIZE, tileRequest.getTileY() / TILE_SIZE, tileRequest.getZ(), tileRequest.getT());
+	}
+
+	/**
+	 * Read a tile for a lower resolution level, preventing the server from being closed until it is complete.
+	 * @throws IOException if the server has already been closed
+	 */
+	private BufferedImage readTileIfOpen(int level, int tx, int ty, int z, int t) throws IOException {
+		var lock = closeLock.readLock();
+		lock.lock();
+		try {
+			if (closed)
+				throw new IOException("Server has been closed: " + getPath());
+			return readLevelTile(level, tx, ty, z, t);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int getTileWidth(int level, int tx) {
+		return Math.min(TILE_SIZE, getLevelWidth(level) - tx * TILE_SIZE);
+	}
+
+	private int getTileHeight(int level, int ty) {
+		return Math.min(TILE_SIZE, getLevelHeight(level) - ty * TILE_SIZE);
+	}
+
+	private int getSlot(int level, int tx, int ty, int z, int t) {
+		long plane = (long)t * nZSlices() + z;
+		return (int)(levelStartSlots[level] + (plane * levelTilesY[level] + ty) * levelTilesX[level] + tx);
+	}
+
+	private ByteBuffer getSlotBuffer(int slot) {
+		int pos = (slot % slotsPerSegment) * slotBytes;
+		var buffer = segments[slot / slotsPerSegment].duplicate();
+		buffer.position(pos);
+		buffer.limit(pos + slotBytes);
+		return buffer.slice().order(ByteOrder.nativeOrder());
+	}
+
+	private synchronized boolean isAvailable(int slot) {
+		return availableSlots.get(slot);
+	}
+
+	private synchronized void setAvailable(int slot) {
+		availableSlots.set(slot);
+	}
+
+	/**
+	 * Read a tile for a lower resolution level, either from the cache or by downsampling the level above.
+	 * <p>
+	 * This bypasses the main tile cache, since the (possibly many) tiles needed to compute another tile
+	 * are unlikely to be needed again.
+	 * <p>
+	 * If another thread is already computing the tile, this waits for it and then reads it from the cache.
+	 */
+	private BufferedImage readLevelTile(int level, int tx, int ty, int z, int t) throws IOException {
+		int slot = getSlot(level, tx, ty, z, t);
+		int width = getTileWidth(level, tx);
+		int height = getTileHeight(level, ty);
+		if (isAvailable(slot))
+			return readFromCache(slot, width, height);
+
+		var future = new CompletableFuture<Void>();
+		var existing = pendingSlots.putIfAbsent(slot, future);
+		if (existing != null) {
+			try {
+				existing.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for tile to be generated");
+			} catch (ExecutionException e) {
+				throw new IOException("Unable to generate tile", e.getCause());
+			}
+			return readFromCache(slot, width, height);
+		}
+
+		try {
+			// The tile may have been completed since we last checked
+			if (isAvailable(slot))
+				return readFromCache(slot, width, height);
+
+			BufferedImage imgSource;
+			if (level == 1) {
+				var request = RegionRequest.createInstance(server.getPath(), 1, tx * TILE_SIZE * 2, ty * TILE_SIZE * 2, width * 2, height * 2, z, t);
+				imgSource = server.readBufferedImage(request);
+				if (imgSource == null)
+					throw new IOException("Unable to read " + request);
+			} else
+				imgSource = combineTiles(level - 1, tx * 2, ty * 2, width * 2, height * 2, z, t);
+
+			var img = downsample(imgSource, width, height);
+			writeToCache(slot, img);
+			setAvailable(slot);
+			future.complete(null);
+			return img;
+		} catch (IOException | RuntimeException e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			pendingSlots.remove(slot, future);
+		}
+	}
+
+	/**
+	 * Combine up to 2x2 tiles from a level into a single image.
+	 */
+	private BufferedImage combineTiles(int level, int tx, int ty, int width, int height, int z, int t) throws IOException {
+		var raster = createRaster(width, height);
+		for (int dy = 0; dy < 2; dy++) {
+			for (int dx = 0; dx < 2; dx++) {
+				if (tx + dx >= levelTilesX[level] || ty + dy >= levelTilesY[level] || dx * TILE_SIZE >= width || dy * TILE_SIZE >= height)
+					continue;
+				var tile = readLevelTile(level, tx + dx, ty + dy, z, t);
+				raster.setRect(dx * TILE_SIZE, dy * TILE_SIZE, tile.getRaster());
+			}
+		}
+		return createImage(raster);
+	}
+
+	private WritableRaster createRaster(int width, int height) {
+		if (isRGB())
+			return createRGBImage(width, height).getRaster();
+		return templateRaster.createCompatibleWritableRaster(width, height);
+	}
+
+	private BufferedImage createRGBImage(int width, int height) {
+		return new BufferedImage(width, height, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+	}
+
+	private BufferedImage createImage(WritableRaster raster) {
+		if (isRGB())
+			return new BufferedImage(createRGBImage(1, 1).getColorModel(), raster, false, null);
+		return new BufferedImage(colorModel, raster, isAlphaPremultiplied, null);
+	}
+
+	/**
+	 * Downsample an image by 2, by averaging 2x2 blocks of pixels.
+	 * The source image should be (at least) twice the width and height of the output.
+	 */
+	private BufferedImage downsample(BufferedImage imgSource, int width, int height) {
+		if (isRGB()) {
+			int sourceWidth = width * 2;
+			int[] rgb = imgSource.getRGB(0, 0, sourceWidth, height * 2, null, 0, sourceWidth);
+			var img = createRGBImage(width, height);
+			int[] output = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					int ind = y * 2 * sourceWidth + x * 2;
+					int v1 = rgb[ind];
+					int v2 = rgb[ind + 1];
+					int v3 = rgb[ind + sourceWidth];
+					int v4 = rgb[ind + sourceWidth + 1];
+					int val = 0;
+					for (int shift = 0; shift <= 24; shift += 8) {
+						int sum = ((v1 >> shift) & 0xff) + ((v2 >> shift) & 0xff) + ((v3 >> shift) & 0xff) + ((v4 >> shift) & 0xff);
+						val |= ((sum + 2) / 4) << shift;
+					}
+					output[y * width + x] = val;
+				}
+			}
+			return img;
+		}
+
+		Raster source = imgSource.getRaster();
+		int sourceWidth = width * 2;
+		var raster = createRaster(width, height);
+		boolean isInteger = dataType != DataBuffer.TYPE_FLOAT && dataType != DataBuffer.TYPE_DOUBLE;
+		double[] samples = null;
+		double[] output = new double[width * height];
+		for (int b = 0; b < nBands; b++) {
+			samples = source.getSamples(source.getMinX(), source.getMinY(), sourceWidth, height * 2, b, samples);
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					int ind = y * 2 * sourceWidth + x * 2;
+					double val = (samples[ind] + samples[ind + 1] + samples[ind + sourceWidth] + samples[ind + sourceWidth + 1]) / 4.0;
+					output[y * width + x] = isInteger ? Math.round(val) : val;
+				}
+			}
+			raster.setSamples(0, 0, width, height, b, output);
+		}
+		return createImage(raster);
+	}
+
+	private void writeToCache(int slot, BufferedImage img) {
+		var buffer = getSlotBuffer(slot);
+		int width = img.getWidth();
+		int height = img.getHeight();
+		if (isRGB()) {
+			buffer.asIntBuffer().put(((DataBufferInt)img.getRaster().getDataBuffer()).getData(), 0, width * height);
+			return;
+		}
+		var raster = img.getRaster();
+		double[] samples = null;
+		for (int b = 0; b < nBands; b++) {
+			samples = raster.getSamples(0, 0, width, height, b, samples);
+			for (double v : samples) {
+				switch (dataType) {
+				case DataBuffer.TYPE_BYTE:
+					buffer.put((byte)v);
+					break;
+				case DataBuffer.TYPE_USHORT:
+				case DataBuffer.TYPE_SHORT:
+					buffer.putShort((short)v);
+					break;
+				case DataBuffer.TYPE_INT:
+					buffer.putInt((int)v);
+					break;
+				case DataBuffer.TYPE_FLOAT:
+					buffer.putFloat((float)v);
+					break;
+				default:
+					buffer.putDouble(v);
+				}
+			}
+		}
+	}
+
+	private BufferedImage readFromCache(int slot, int width, int height) {
+		var buffer = getSlotBuffer(slot);
+		if (isRGB()) {
+			var img = createRGBImage(width, height);
+			buffer.asIntBuffer().get(((DataBufferInt)img.getRaster().getDataBuffer()).getData(), 0, width * height);
+			return img;
+		}
+		var raster = createRaster(width, height);
+		double[] samples = new double[width * height];
+		for (int b = 0; b < nBands; b++) {
+			for (int i = 0; i < samples.length; i++) {
+				switch (dataType) {
+				case DataBuffer.TYPE_BYTE:
+					samples[i] = buffer.get() & 0xff;
+					break;
+				case DataBuffer.TYPE_USHORT:
+					samples[i] = buffer.getShort() & 0xffff;
+					break;
+				case DataBuffer.TYPE_SHORT:
+					samples[i] = buffer.getShort();
+					break;
+				case DataBuffer.TYPE_INT:
+					samples[i] = buffer.getInt();
+					break;
+				case DataBuffer.TYPE_FLOAT:
+					samples[i] = buffer.getFloat();
+					break;
+				default:
+					samples[i] = buffer.getDouble();
+				}
+			}
+			raster.setSamples(0, 0, width, height, b, samples);
+		}
+		return createImage(raster);
+	}
+
+	@Override
+	public String getServerType() {
+		return server.getServerType() + " (generated pyramid)";
+	}
+
+	@Override
+	public String getDisplayedImageName() {
+		return server.getDisplayedImageName();
+	}
+
+	@Override
+	public ImageServerMetadata getOriginalMetadata() {
+		return metadata;
+	}
+
+	@Override
+	public boolean usesBaseServer(ImageServer<?> server) {
+		return super.usesBaseServer(server) || this.server.usesBaseServer(server);
+	}
+
+	@Override
+	public void close() throws Exception {
+		if (closed)
+			return;
+		closed = true;
+		if (builder != null)
+			builder.cancel(false);
+		// Wait for any tiles being read or computed (including by the builder) before releasing the cache
+		var lock = closeLock.writeLock();
+		lock.lock();
+		try {
+			segments = null;
+			if (cachePath != null && !cachePath.toFile().delete())
+				logger.debug("Unable to delete pyramid cache {} - will try again on exit", cachePath);
+		} finally {
+			lock.unlock();
+		}
+		server.close();
+		super.close();
+	}
+
+}
@@ -24,6 +24,17 @@
 package qupath.lib.images.servers;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
 
 import qupath.lib.images.DefaultPathImage;
@@ -33,11 +44,19 @@ import qupath.lib.regions.RegionRequest;
 /**
  * ImageServer that wraps another ImageServer, but intercepts region requests to 
  * effectively rotate the image by 90, 180 or 270 degrees.
+ * <p>
+ * Rotated tiles are cached, so that requesting the same region again does not require the rotation to be repeated.
  * 
  * @author Pete Bankhead
  *
  */
-public class RotatedImageServer extends WrappedImageServer<BufferedImage> {
+public class RotatedImageServer extends AbstractTileableImageServer {
+	
+	/**
+	 * Size of the square blocks used when rotating by 90 or 270 degrees, so that reading from the source 
+	 * (which is accessed column by column) makes better use of the CPU cache.
+	 */
+	private static final int BLOCK_SIZE = 64;
 	
 	public static enum Rotation{
 		
@@ -61,6 +80,7 @@ public class RotatedImageServer extends WrappedImageServer<BufferedImage> {
 		
 	}
 	
+	private ImageServer<BufferedImage> server;
 	private ImageServerMetadata metadata;
 	private Rotation rotation;
 	
@@ -69,7 +89,8 @@ public class RotatedImageServer extends WrappedImageServer<BufferedImage> {
 	}
 	
 	public RotatedImageServer(final ImageServer<BufferedImage> server, final Rotation rotation) {
-		super(server);
+		super();
+		this.server = server;
 		this.rotation = rotation;
 		
 		switch (rotation) {
@@ -87,6 +108,24 @@ public class RotatedImageServer extends WrappedImageServer<BufferedImage> {
 		}
 	}
 	
+	/**
+	 * Get underlying ImageServer, i.e. the one that is being rotated.
+	 * 
+	 * @return
+	 */
+	protected ImageServer<BufferedImage> getWrappedServer() {
+		return server;
+	}
+	
+	/**
+	 * Get the rotation applied to the wrapped server.
+	 * 
+	 * @return
+	 */
+	public Rotation getRotation() {
+		return rotation;
+	}
+	
 	
 	/**
 	 * Need to rotate pixel & image dimensions if rotating by 90 or 270 degrees.
@@ -121,99 +160,289 @@ public class RotatedImageServer extends WrappedImageServer<BufferedImage> {
 	public PathImage<BufferedImage> readRegion(RegionRequest request) throws IOException {
 		return new DefaultPathImage<>(this, rotateRequest(request), readBufferedImage(request));
 	}
-
+	
 	@Override
-	public BufferedImage readBufferedImage(RegionRequest request) throws IOException {
-		switch (rotation) {
-		case ROTATE_180:
-			return rotate180(request);
-		case ROTATE_270:
-			return rotate270(request);
-		case ROTATE_90:
-			return rotate90(request);
-		case ROTATE_NONE:
-		default:
-			// Don't apply annotation rotation
-			return getWrappedServer().readBufferedImage(request);
-		}
+	protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+		var request = rotateRequest(tileRequest.getRegionRequest());
+		var img = getWrappedServer().readBufferedImage(request);
+		if (img == null)
+			throw new IOException("Unable to read image for " + request);
+		if (rotation == Rotation.ROTATE_NONE)
+			return img;
+		var raster = rotateRaster(img.getRaster(), rotation);
+		return new BufferedImage(img.getColorModel(), raster, img.isAlphaPremultiplied(), null);
 	}
 	
-	BufferedImage rotate90(RegionRequest request) throws IOException {
-		var request2 = rotateRequest(request);
-		
-		var img = getWrappedServer().readBufferedImage(request2);
-		if (img == null)
-			throw new IOException("Unable to read image for " + request2);
-		var raster = img.getRaster();
+	/**
+	 * Create a new raster containing the pixels of the input raster, rotated clockwise by 90 degrees (ROTATE_90), 
+	 * anticlockwise by 90 degrees (ROTATE_270) or by 180 degrees.
+	 * <p>
+	 * Where the data elements can be accessed directly (i.e. a component or single pixel packed sample model), 
+	 * these are copied without converting samples; otherwise, samples are copied band by band.
+	 * 
+	 * @param raster
+	 * @param rotation
+	 * @return
+	 */
+	static WritableRaster rotateRaster(Raster raster, Rotation rotation) {
 		int w = raster.getWidth();
 		int h = raster.getHeight();
-		var raster2 = raster.createCompatibleWritableRaster(h, w);
-		float[] samples = new float[w * h];
-		float[] samples2 = new float[w * h];
-		for (int b = 0; b < raster.getNumBands(); b++) {
-			samples = raster.getSamples(0, 0, w, h, b, samples);
-			for (int y = 0; y < h; y++) {
-				for (int x = 0; x < w; x++) {
-					int ind1 = y*w + x;
-					int ind2 = x*h + (h - y - 1);
-					float temp = samples[ind1];
-					samples[ind1] = samples[ind2];							
-					samples2[ind2] = temp;							
-				}				
+		boolean isQuarter = rotation == Rotation.ROTATE_90 || rotation == Rotation.ROTATE_270;
+		int w2 = isQuarter ? h : w;
+		int h2 = isQuarter ? w : h;
+		var raster2 = raster.createCompatibleWritableRaster(w2, h2);
+		if (rotation == Rotation.ROTATE_NONE) {
+			raster2.setRect(-raster.getMinX(), -raster.getMinY(), raster);
+			return raster2;
+		}
+		
+		var planes = getPlanes(raster);
+		var planes2 = getPlanes(raster2);
+		if (planes == null || planes2 == null || planes.length != planes2.length) {
+			rotateSamples(raster, raster2, rotation);
+			return raster2;
+		}
+		
+		var buffer = raster.getDataBuffer();
+		var buffer2 = raster2.getDataBuffer();
+		for (int p = 0; p < planes.length; p++) {
+			var plane = planes[p];
+			var plane2 = planes2[p];
+			// Express the source index as start + x2*stepX + y2*stepY, for output coordinates x2, y2
+			int start, stepX, stepY;
+			switch (rotation) {
+			case ROTATE_90:
+				start = plane.offset + (h - 1) * plane.scanlineStride;
+				stepX = -plane.scanlineStride;
+				stepY = plane.pixelStride;
+				break;
+			case ROTATE_270:
+				start = plane.offset + (w - 1) * plane.pixelStride;
+				stepX = plane.scanlineStride;
+				stepY = -plane.pixelStride;
+				break;
+			case ROTATE_180:
+			default:
+				start = plane.offset + (w - 1) * plane.pixelStride + (h - 1) * plane.scanlineStride;
+				stepX = -plane.pixelStride;
+				stepY = -plane.scanlineStride;
+			}
+			switch (buffer.getDataType()) {
+			case DataBuffer.TYPE_BYTE:
+				copy(((DataBufferByte)buffer).getData(plane.bank), start, stepX, stepY,
+						((DataBufferByte)buffer2).getData(plane2.bank), plane2.offset, plane2.pixelStride, plane2.scanlineStride, w2, h2);
+				break;
+			case DataBuffer.TYPE_USHORT:
+				copy(((DataBufferUShort)buffer).getData(plane.bank), start, stepX, stepY,
+						((DataBufferUShort)buffer2).getData(plane2.bank), plane2.offset, plane2.pixelStride, plane2.scanlineStride, w2, h2);
+				break;
+			case DataBuffer.TYPE_SHORT:
+				copy(((DataBufferShort)buffer).getData(plane.bank), start, stepX, stepY,
+						((DataBufferShort)buffer2).getData(plane2.bank), plane2.offset, plane2.pixelStride, plane2.scanlineStride, w2, h2);
+				break;
+			case DataBuffer.TYPE_INT:
+				copy(((DataBufferInt)buffer).getData(plane.bank), start, stepX, stepY,
+						((DataBufferInt)buffer2).getData(plane2.bank), plane2.offset, plane2.pixelStride, plane2.scanlineStride, w2, h2);
+				break;
+			case DataBuffer.TYPE_FLOAT:
+				copy(((DataBufferFloat)buffer).getData(plane.bank), start, stepX, stepY,
+						((DataBufferFloat)buffer2).getData(plane2.bank), plane2.offset, plane2.pixelStride, plane2.scanlineStride, w2, h2);
+				break;
+			case DataBuffer.TYPE_DOUBLE:
+				copy(((DataBufferDouble)buffer).getData(plane.bank), start, stepX, stepY,
+						((DataBufferDouble)buffer2).getData(plane2.bank), plane2.offset, plane2.pixelStride, plane2.scanlineStride, w2, h2);
+				break;
 			}
-			raster2.setSamples(0, 0, h, w, b, samples2);
 		}
-		return new BufferedImage(img.getColorModel(), raster2, img.isAlphaPremultiplied(), null);
+		return raster2;
 	}
-
-	BufferedImage rotate180(RegionRequest request) throws IOException {
-		var request2 = rotateRequest(request);
+	
+	/**
+	 * Layout of the data elements for a single band (or, for packed pixels, for all bands) within a DataBuffer.
+	 */
+	private static class Plane {
 		
-		var img = getWrappedServer().readBufferedImage(request2);
-		var raster = img.getRaster();
-		int w = raster.getWidth();
-		int h = raster.getHeight();
-		float[] samples = new float[w * h];
-		for (int b = 0; b < raster.getNumBands(); b++) {
-			samples = raster.getSamples(0, 0, w, h, b, samples);
-			for (int ind1 = 0; ind1 < w*h/2; ind1++) {
-//				for (int x = 0; x < w/2; x++) {
-//					int ind1 = y*w + x;
-					int ind2 = w*h - ind1 - 1;
-					float temp = samples[ind1];
-					samples[ind1] = samples[ind2];							
-					samples[ind2] = temp;							
-//				}				
+		private final int bank;
+		private final int offset;
+		private final int pixelStride;
+		private final int scanlineStride;
+		
+		Plane(int bank, int offset, int pixelStride, int scanlineStride) {
+			this.bank = bank;
+			this.offset = offset;
+			this.pixelStride = pixelStride;
+			this.scanlineStride = scanlineStride;
+		}
+		
+	}
+	
+	/**
+	 * Get the data layout for a raster, or null if the data elements can't be copied directly.
+	 * 
+	 * @param raster
+	 * @return
+	 */
+	private static Plane[] getPlanes(Raster raster) {
+		var buffer = raster.getDataBuffer();
+		int dataType = buffer.getDataType();
+		if (dataType == DataBuffer.TYPE_UNDEFINED)
+			return null;
+		int x = raster.getMinX() - raster.getSampleModelTranslateX();
+		int y = raster.getMinY() - raster.getSampleModelTranslateY();
+		var sampleModel = raster.getSampleModel();
+		if (sampleModel instanceof ComponentSampleModel) {
+			var componentSampleModel = (ComponentSampleModel)sampleModel;
+			int[] bankIndices = componentSampleModel.getBankIndices();
+			var planes = new Plane[raster.getNumBands()];
+			for (int b = 0; b < planes.length; b++) {
+				int bank = bankIndices[b];
+				planes[b] = new Plane(bank,
+						buffer.getOffsets()[bank] + componentSampleModel.getOffset(x, y, b),
+						componentSampleModel.getPixelStride(),
+						componentSampleModel.getScanlineStride());
 			}
-			raster.setSamples(0, 0, w, h, b, samples);
+			return planes;
 		}
-		return img;
+		if (sampleModel instanceof SinglePixelPackedSampleModel && dataType == DataBuffer.TYPE_INT) {
+			// All bands are packed into a single int per pixel
+			var packedSampleModel = (SinglePixelPackedSampleModel)sampleModel;
+			return new Plane[] {
+					new Plane(0, buffer.getOffset() + packedSampleModel.getOffset(x, y), 1, packedSampleModel.getScanlineStride())
+			};
+		}
+		return null;
 	}
-
-	BufferedImage rotate270(RegionRequest request) throws IOException {
-		var request2 = rotateRequest(request);
-		
-		var img = getWrappedServer().readBufferedImage(request2);
-		var raster = img.getRaster();
+	
+	/**
+	 * Rotate by copying samples band by band; this is used whenever the data elements can't be accessed directly.
+	 * 
+	 * @param raster
+	 * @param raster2
+	 * @param rotation
+	 */
+	private static void rotateSamples(Raster raster, WritableRaster raster2, Rotation rotation) {
 		int w = raster.getWidth();
 		int h = raster.getHeight();
-		var raster2 = raster.createCompatibleWritableRaster(h, w);
-		float[] samples = new float[w * h];
-		float[] samples2 = new float[w * h];
+		int w2 = raster2.getWidth();
+		int h2 = raster2.getHeight();
+		double[] samples = null;
+		double[] samples2 = new double[w * h];
 		for (int b = 0; b < raster.getNumBands(); b++) {
-			samples = raster.getSamples(0, 0, w, h, b, samples);
-			for (int y = 0; y < h; y++) {
-				for (int x = 0; x < w; x++) {
-					int ind1 = y*w + x;
-					int ind2 = (w - x - 1)*h + y;
-					float temp = samples[ind1];
-					samples[ind1] = samples[ind2];							
-					samples2[ind2] = temp;							
-				}				
+			samples = raster.getSamples(raster.getMinX(), raster.getMinY(), w, h, b, samples);
+			for (int y2 = 0; y2 < h2; y2++) {
+				for (int x2 = 0; x2 < w2; x2++) {
+					int ind;
+					switch (rotation) {
+					case ROTATE_90:
+						ind = (h - 1 - x2) * w + y2;
+						break;
+					case ROTATE_270:
+						ind = x2 * w + (w - 1 - y2);
+						break;
+					case ROTATE_180:
+					default:
+						ind = (h - 1 - y2) * w + (w - 1 - x2);
+					}
+					samples2[y2 * w2 + x2] = samples[ind];
+				}
+			}
+			raster2.setSamples(0, 0, w2, h2, b, samples2);
+		}
+	}
+	
+	/*
+	 * Copy elements in square blocks, so that strided reads from the source remain in the cache.
+	 * The source index for output pixel (x, y) is given by start + x*stepX + y*stepY.
+	 */
+	
+	private static void copy(byte[] src, int start, int stepX, int stepY, byte[] dst, int offset, int pixelStride, int scanlineStride, int width, int height) {
+		for (int yy = 0; yy < height; yy += BLOCK_SIZE) {
+			int yEnd = Math.min(yy + BLOCK_SIZE, height);
+			for (int xx = 0; xx < width; xx += BLOCK_SIZE) {
+				int xEnd = Math.min(xx + BLOCK_SIZE, width);
+				for (int y = yy; y < yEnd; y++) {
+					int ind = start + xx * stepX + y * stepY;
+					int ind2 = offset + xx * pixelStride + y * scanlineStride;
+					for (int x = xx; x < xEnd; x++) {
+						dst[ind2] = src[ind];
+						ind += stepX;
+						ind2 += pixelStride;
+					}
+				}
+			}
+		}
+	}
+	
+	private static void copy(short[] src, int start, int stepX, int stepY, short[] dst, int offset, int pixelStride, int scanlineStride, int width, int height) {
+		for (int yy = 0; yy < height; yy += BLOCK_SIZE) {
+			int yEnd = Math.min(yy + BLOCK_SIZE, height);
+			for (int xx = 0; xx < width; xx += BLOCK_SIZE) {
+				int xEnd = Math.min(xx + BLOCK_SIZE, width);
+				for (int y = yy; y < yEnd; y++) {
+					int ind = start + xx * stepX + y * stepY;
+					int ind2 = offset + xx * pixelStride + y * scanlineStride;
+					for (int x = xx; x < xEnd; x++) {
+						dst[ind2] = src[ind];
+						ind += stepX;
+						ind2 += pixelStride;
+					}
+				}
+			}
+		}
+	}
+	
+	private static void copy(int[] src, int start, int stepX, int stepY, int[] dst, int offset, int pixelStride, int scanlineStride, int width, int height) {
+		for (int yy = 0; yy < height; yy += BLOCK_SIZE) {
+			int yEnd = Math.min(yy + BLOCK_SIZE, height);
+			for (int xx = 0; xx < width; xx += BLOCK_SIZE) {
+				int xEnd = Math.min(xx + BLOCK_SIZE, width);
+				for (int y = yy; y < yEnd; y++) {
+					int ind = start + xx * stepX + y * stepY;
+					int ind2 = offset + xx * pixelStride + y * scanlineStride;
+					for (int x = xx; x < xEnd; x++) {
+						dst[ind2] = src[ind];
+						ind += stepX;
+						ind2 += pixelStride;
+					}
+				}
+			}
+		}
+	}
+	
+	private static void copy(float[] src, int start, int stepX, int stepY, float[] dst, int offset, int pixelStride, int scanlineStride, int width, int height) {
+		for (int yy = 0; yy < height; yy += BLOCK_SIZE) {
+			int yEnd = Math.min(yy + BLOCK_SIZE, height);
+			for (int xx = 0; xx < width; xx += BLOCK_SIZE) {
+				int xEnd = Math.min(xx + BLOCK_SIZE, width);
+				for (int y = yy; y < yEnd; y++) {
+					int ind = start + xx * stepX + y * stepY;
+					int ind2 = offset + xx * pixelStride + y * scanlineStride;
+					for (int x = xx; x < xEnd; x++) {
+						dst[ind2] = src[ind];
+						ind += stepX;
+						ind2 += pixelStride;
+					}
+				}
+			}
+		}
+	}
+	
+	private static void copy(double[] src, int start, int stepX, int stepY, double[] dst, int offset, int pixelStride, int scanlineStride, int width, int height) {
+		for (int yy = 0; yy < height; yy += BLOCK_SIZE) {
+			int yEnd = Math.min(yy + BLOCK_SIZE, height);
+			for (int xx = 0; xx < width; xx += BLOCK_SIZE) {
+				int xEnd = Math.min(xx + BLOCK_SIZE, width);
+				for (int y = yy; y < yEnd; y++) {
+					int ind = start + xx * stepX + y * stepY;
+					int ind2 = offset + xx * pixelStride + y * scanlineStride;
+					for (int x = xx; x < xEnd; x++) {
+						dst[ind2] = src[ind];
+						ind += stepX;
+						ind2 += pixelStride;
+					}
+				}
 			}
-			raster2.setSamples(0, 0, h, w, b, samples2);
 		}
-		return new BufferedImage(img.getColorModel(), raster2, img.isAlphaPremultiplied(), null);
 	}
 
 	RegionRequest rotateRequest(RegionRequest request) {
@@ -238,7 +467,7 @@ public class RotatedImageServer extends WrappedImageServer<BufferedImage> {
 					request.getHeight(), request.getWidth(), request.getZ(), request.getT());
 		case ROTATE_NONE:
 		default:
-			return request;
+			return RegionRequest.createInstance(path, request.getDownsample(), request);
 		}
 	}
 	
@@ -0,0 +1,274 @@
+package qupath.lib.images.servers.tiff;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Decoders for the TIFF compression types supported by {@link TiffImageServer}.
+ * <p>
+ * All methods are stateless, so tiles can be decoded concurrently.
+ *
+ * @author Pete Bankhead
+ */
+class TiffDecoder {
+
+	static final int COMPRESSION_NONE = 1;
+	static final int COMPRESSION_LZW = 5;
+	static final int COMPRESSION_JPEG = 7;
+	static final int COMPRESSION_DEFLATE = 8;
+	static final int COMPRESSION_DEFLATE_ADOBE = 32946;
+
+	static final int PREDICTOR_NONE = 1;
+	static final int PREDICTOR_HORIZONTAL = 2;
+
+	private static final int LZW_CLEAR = 256;
+	private static final int LZW_EOI = 257;
+
+	/**
+	 * Check if a compression type can be decoded.
+	 * @param compression
+	 * @return
+	 */
+	static boolean isSupported(final int compression) {
+		switch (compression) {
+		case COMPRESSION_NONE:
+		case COMPRESSION_LZW:
+		case COMPRESSION_JPEG:
+		case COMPRESSION_DEFLATE:
+		case COMPRESSION_DEFLATE_ADOBE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Decompress a tile.
+	 *
+	 * @param compression TIFF compression type
+	 * @param input compressed bytes
+	 * @param jpegTables optional JPEG tables, for JPEG compression
+	 * @param nBytes expected number of bytes after decompression
+	 * @param nSamples number of samples per pixel, used for JPEG
+	 * @return decompressed bytes, with length nBytes
+	 * @throws IOException
+	 */
+	static byte[] decompress(final int compression, final byte[] input, final byte[] jpegTables, final int nBytes, final int nSamples) throws IOException {
+		switch (compression) {
+		case COMPRESSION_NONE:
+			if (input.length == nBytes)
+				return input;
+			byte[] output = new byte[nBytes];
+			System.arraycopy(input, 0, output, 0, Math.min(nBytes, input.length));
+			return output;
+		case COMPRESSION_LZW:
+			return decodeLZW(input, nBytes);
+		case COMPRESSION_DEFLATE:
+		case COMPRESSION_DEFLATE_ADOBE:
+			return inflate(input, nBytes);
+		case COMPRESSION_JPEG:
+			return decodeJPEG(input, jpegTables, nBytes, nSamples);
+		default:
+			throw new IOException("Unsupported TIFF compression " + compression);
+		}
+	}
+
+	/**
+	 * Decode TIFF LZW data, which uses 9-12 bit codes read most significant bit first,
+	 * increasing the code length one code early.
+	 */
+	static byte[] decodeLZW(final byte[] input, final int nBytes) {
+		byte[] output = new byte[nBytes];
+		int[] prefix = new int[4096];
+		byte[] suffix = new byte[4096];
+		byte[] first = new byte[4096];
+		int[] lengths = new int[4096];
+		for (int i = 0; i < 256; i++) {
+			suffix[i] = (byte)i;
+			first[i] = (byte)i;
+			lengths[i] = 1;
+		}
+
+		int nextCode = 258;
+		int codeLength = 9;
+		int oldCode = -1;
+		int outPos = 0;
+		long bitPos = 0;
+		long nBits = input.length * 8L;
+		while (outPos < nBytes && bitPos + codeLength <= nBits) {
+			// Read the next code
+			int code = 0;
+			for (int i = 0; i < codeLength; i++) {
+				int b = input[(int)(bitPos >> 3)];
+				code = (code << 1) | ((b >> (7 - (int)(bitPos & 7))) & 1);
+				bitPos++;
+			}
+			if (code == LZW_EOI)
+				break;
+			if (code == LZW_CLEAR) {
+				nextCode = 258;
+				codeLength = 9;
+				oldCode = -1;
+				continue;
+			}
+			if (oldCode < 0) {
+				if (code >= 256)
+					break;
+				output[outPos++] = (byte)code;
+				oldCode = code;
+				continue;
+			}
+			if (code > nextCode || nextCode >= 4096)
+				break;
+			// Add a new table entry
+			prefix[nextCode] = oldCode;
+			suffix[nextCode] = code < nextCode ? first[code] : first[oldCode];
+			first[nextCode] = first[oldCode];
+			lengths[nextCode] = lengths[oldCode] + 1;
+			nextCode++;
+			if (nextCode == 511)
+				codeLength = 10;
+			else if (nextCode == 1023)
+				codeLength = 11;
+			else if (nextCode == 2047)
+				codeLength = 12;
+
+			// Write the string for the code, from the end
+			int len = lengths[code];
+			int c = code;
+			for (int i = Math.min(len, nBytes - outPos) ; i < len; i++)
+				c = prefix[c];
+			for (int i = Math.min(len, nBytes - outPos) - 1; i >= 0; i--) {
+				output[outPos + i] = suffix[c];
+				c = prefix[c];
+			}
+			outPos += Math.min(len, nBytes - outPos);
+			oldCode = code;
+		}
+		return output;
+	}
+
+	static byte[] inflate(final byte[] input, final int nBytes) throws IOException {
+		byte[] output = new byte[nBytes];
+		var inflater = new Inflater();
+		try {
+			inflater.setInput(input);
+			int n = 0;
+			while (n < nBytes && !inflater.finished()) {
+				int count = inflater.inflate(output, n, nBytes - n);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				n += count;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflater.end();
+		}
+		return output;
+	}
+
+	/**
+	 * Decode a JPEG tile to interleaved 8-bit samples.
+	 * If the TIFF provides separate JPEG tables, these are inserted before the tile data.
+	 */
+	static byte[] decodeJPEG(byte[] input, final byte[] jpegTables, final int nBytes, final int nSamples) throws IOException {
+		if (jpegTables != null && jpegTables.length > 4) {
+			// Tables end with an EOI marker, and the tile starts with an SOI marker
+			byte[] merged = new byte[jpegTables.length - 2 + input.length - 2];
+			System.arraycopy(jpegTables, 0, merged, 0, jpegTables.length - 2);
+			System.arraycopy(input, 2, merged, jpegTables.length - 2, input.length - 2);
+			input = merged;
+		}
+		BufferedImage img = readJPEG(input);
+		byte[] output = new byte[nBytes];
+		int w = img.getWidth();
+		int h = img.getHeight();
+		if (nSamples == 1) {
+			var raster = img.getRaster();
+			int[] row = new int[w];
+			for (int y = 0; y < h && (y + 1) * w <= nBytes; y++) {
+				raster.getSamples(0, y, w, 1, 0, row);
+				for (int x = 0; x < w; x++)
+					output[y * w + x] = (byte)row[x];
+			}
+		} else {
+			int[] rgb = img.getRGB(0, 0, w, h, null, 0, w);
+			for (int i = 0; i < rgb.length && i * nSamples + 2 < nBytes; i++) {
+				int val = rgb[i];
+				output[i * nSamples] = (byte)(val >> 16);
+				output[i * nSamples + 1] = (byte)(val >> 8);
+				output[i * nSamples + 2] = (byte)val;
+			}
+		}
+		return output;
+	}
+
+	/**
+	 * Read a JPEG image from memory, avoiding ImageIO's disk cache.
+	 */
+	private static BufferedImage readJPEG(final byte[] input) throws IOException {
+		var readers = ImageIO.getImageReadersByFormatName("jpeg");
+		if (!readers.hasNext())
+			throw new IOException("No JPEG reader available");
+		var reader = readers.next();
+		try (var stream = new MemoryCacheImageInputStream(new ByteArrayInputStream(input))) {
+			reader.setInput(stream, true, true);
+			return reader.read(0);
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	/**
+	 * Reverse horizontal differencing, applied to each row of samples.
+	 *
+	 * @param bytes decompressed bytes
+	 * @param width number of pixels per row
+	 * @param height number of rows
+	 * @param nSamples number of interleaved samples per pixel
+	 * @param bytesPerSample 1, 2 or 4
+	 * @param order byte order for samples with more than one byte
+	 */
+	static void undoHorizontalPredictor(final byte[] bytes, final int width, final int height, final int nSamples, final int bytesPerSample, final ByteOrder order) {
+		int rowLength = width * nSamples;
+		boolean littleEndian = order == ByteOrder.LITTLE_ENDIAN;
+		for (int y = 0; y < height; y++) {
+			int rowStart = y * rowLength;
+			for (int i = nSamples; i < rowLength; i++) {
+				int ind = rowStart + i;
+				if (bytesPerSample == 1)
+					bytes[ind] += bytes[ind - nSamples];
+				else {
+					long value = getSample(bytes, ind * bytesPerSample, bytesPerSample, littleEndian) +
+							getSample(bytes, (ind - nSamples) * bytesPerSample, bytesPerSample, littleEndian);
+					setSample(bytes, ind * bytesPerSample, bytesPerSample, littleEndian, value);
+				}
+			}
+		}
+	}
+
+	static long getSample(final byte[] bytes, final int pos, final int bytesPerSample, final boolean littleEndian) {
+		long value = 0;
+		for (int b = 0; b < bytesPerSample; b++) {
+			int shift = littleEndian ? b * 8 : (bytesPerSample - 1 - b) * 8;
+			value |= (bytes[pos + b] & 0xffL) << shift;
+		}
+		return value;
+	}
+
+	private static void setSample(final byte[] bytes, final int pos, final int bytesPerSample, final boolean littleEndian, final long value) {
+		for (int b = 0; b < bytesPerSample; b++) {
+			int shift = littleEndian ? b * 8 : (bytesPerSample - 1 - b) * 8;
+			bytes[pos + b] = (byte)(value >> shift);
+		}
+	}
+
+}
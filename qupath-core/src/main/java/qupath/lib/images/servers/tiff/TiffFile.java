@@ -0,0 +1,446 @@
+package qupath.lib.images.servers.tiff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Memory-mapped TIFF or BigTIFF file, with all image file directories (IFDs) parsed when the file is opened.
+ * <p>
+ * Reads use independent views of the mapped buffers, so may be made concurrently from any number of threads.
+ * Alternatively, {@link #readFirstDirectory(Path)} reads only the header and first directory without mapping the file,
+ * for checking whether a file is supported.
+ *
+ * @author Pete Bankhead
+ */
+class TiffFile {
+
+	static final int NEW_SUBFILE_TYPE = 254;
+	static final int IMAGE_WIDTH = 256;
+	static final int IMAGE_LENGTH = 257;
+	static final int BITS_PER_SAMPLE = 258;
+	static final int COMPRESSION = 259;
+	static final int PHOTOMETRIC = 262;
+	static final int IMAGE_DESCRIPTION = 270;
+	static final int STRIP_OFFSETS = 273;
+	static final int SAMPLES_PER_PIXEL = 277;
+	static final int ROWS_PER_STRIP = 278;
+	static final int STRIP_BYTE_COUNTS = 279;
+	static final int PLANAR_CONFIGURATION = 284;
+	static final int PREDICTOR = 317;
+	static final int TILE_WIDTH = 322;
+	static final int TILE_LENGTH = 323;
+	static final int TILE_OFFSETS = 324;
+	static final int TILE_BYTE_COUNTS = 325;
+	static final int SUB_IFDS = 330;
+	static final int SAMPLE_FORMAT = 339;
+	static final int JPEG_TABLES = 347;
+
+	// Sizes in bytes of each TIFF field type, indexed by type
+	private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8, 4, 0, 0, 8, 8, 8};
+
+	/**
+	 * Maximum size of each mapped region; files larger than this are mapped in several segments.
+	 */
+	private static final long SEGMENT_SIZE = 1L << 30;
+
+	/**
+	 * Maximum number of directories to parse, to avoid problems with corrupt files.
+	 */
+	private static final int MAX_DIRECTORIES = 100_000;
+
+	private final Path path;
+	private final long length;
+	private final MappedByteBuffer[] segments;
+	private final FileChannel channel;
+	private final ByteOrder order;
+	private final boolean bigTiff;
+	private final List<TiffDirectory> directories;
+
+	TiffFile(final Path path) throws IOException {
+		this(path, null);
+	}
+
+	/**
+	 * Read the header and first directory of a TIFF file, without memory-mapping the file or parsing any other directories.
+	 *
+	 * @param path
+	 * @return the first directory, or null if the file contains no directories
+	 * @throws IOException if the file is not a TIFF file
+	 */
+	static TiffDirectory readFirstDirectory(final Path path) throws IOException {
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			var directories = new TiffFile(path, channel).getDirectories();
+			return directories.isEmpty() ? null : directories.get(0);
+		}
+	}
+
+	/**
+	 * Open a TIFF file, either memory-mapping the file (if the channel is null) or reading only the first directory from the channel.
+	 */
+	private TiffFile(final Path path, final FileChannel channel) throws IOException {
+		this.path = path;
+		this.channel = channel;
+		if (channel == null) {
+			try (var mapChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+				length = mapChannel.size();
+				int nSegments = (int)((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+				segments = new MappedByteBuffer[nSegments];
+				for (int i = 0; i < nSegments; i++) {
+					long start = i * SEGMENT_SIZE;
+					segments[i] = mapChannel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+				}
+			}
+		} else {
+			length = channel.size();
+			segments = null;
+		}
+		if (length < 8)
+			throw new IOException(path + " is too short to be a TIFF file");
+
+		var header = readBuffer(0, 8);
+		int byteOrder = header.getShort() & 0xffff;
+		if (byteOrder == 0x4949)
+			order = ByteOrder.LITTLE_ENDIAN;
+		else if (byteOrder == 0x4d4d)
+			order = ByteOrder.BIG_ENDIAN;
+		else
+			throw new IOException(path + " is not a TIFF file");
+		header.order(order);
+		int version = header.getShort() & 0xffff;
+		long firstOffset;
+		if (version == 42) {
+			bigTiff = false;
+			firstOffset = header.getInt() & 0xffffffffL;
+		} else if (version == 43) {
+			bigTiff = true;
+			firstOffset = readBuffer(8, 8).getLong();
+		} else
+			throw new IOException(path + " is not a TIFF file (version " + version + ")");
+
+		if (channel == null)
+			directories = Collections.unmodifiableList(readDirectoryChain(firstOffset, new HashSet<>()));
+		else if (firstOffset > 0 && firstOffset < length)
+			directories = List.of(readDirectory(firstOffset));
+		else
+			directories = Collections.emptyList();
+	}
+
+	Path getPath() {
+		return path;
+	}
+
+	boolean isBigTiff() {
+		return bigTiff;
+	}
+
+	ByteOrder getByteOrder() {
+		return order;
+	}
+
+	/**
+	 * Get the directories in the main IFD chain. Any SubIFDs are available from each directory.
+	 * @return
+	 */
+	List<TiffDirectory> getDirectories() {
+		return directories;
+	}
+
+	private List<TiffDirectory> readDirectoryChain(long offset, final Set<Long> visited) throws IOException {
+		List<TiffDirectory> list = new ArrayList<>();
+		while (offset > 0 && offset < length && visited.add(offset)) {
+			if (visited.size() > MAX_DIRECTORIES)
+				throw new IOException("Too many image directories in " + path);
+			var dir = readDirectory(offset);
+			list.add(dir);
+			for (long subOffset : dir.subIFDs)
+				dir.subDirectories.addAll(readDirectoryChain(subOffset, visited));
+			offset = dir.nextOffset;
+		}
+		return list;
+	}
+
+	private TiffDirectory readDirectory(final long offset) throws IOException {
+		int entrySize = bigTiff ? 20 : 12;
+		long nEntries = bigTiff ? readBuffer(offset, 8).getLong() : (readBuffer(offset, 2).getShort() & 0xffff);
+		long entriesStart = offset + (bigTiff ? 8 : 2);
+		if (nEntries < 0 || entriesStart + nEntries * entrySize > length)
+			throw new IOException("Invalid image directory at offset " + offset);
+		var buffer = readBuffer(entriesStart, (int)(nEntries * entrySize + (bigTiff ? 8 : 4)));
+		Map<Integer, long[]> values = new HashMap<>();
+		Map<Integer, byte[]> bytes = new HashMap<>();
+		for (int i = 0; i < nEntries; i++) {
+			int tag = buffer.getShort() & 0xffff;
+			int type = buffer.getShort() & 0xffff;
+			long count = bigTiff ? buffer.getLong() : buffer.getInt() & 0xffffffffL;
+			int valuePos = buffer.position();
+			buffer.position(valuePos + (bigTiff ? 8 : 4));
+
+			int typeSize = type < TYPE_SIZES.length ? TYPE_SIZES[type] : 0;
+			if (typeSize == 0 || count <= 0 || count * typeSize > Integer.MAX_VALUE)
+				continue;
+			// Values are stored inline if they fit, otherwise the field contains an offset
+			int nBytes = (int)(count * typeSize);
+			ByteBuffer valueBuffer;
+			if (nBytes <= (bigTiff ? 8 : 4))
+				valueBuffer = buffer.duplicate().order(order).position(valuePos).limit(valuePos + nBytes).slice().order(order);
+			else {
+				long valueOffset = bigTiff ? buffer.getLong(valuePos) : buffer.getInt(valuePos) & 0xffffffffL;
+				if (valueOffset + nBytes > length)
+					continue;
+				valueBuffer = readBuffer(valueOffset, nBytes);
+			}
+			if (type == 1 || type == 2 || type == 6 || type == 7) {
+				byte[] b = new byte[nBytes];
+				valueBuffer.get(b);
+				bytes.put(tag, b);
+			} else
+				values.put(tag, readValues(valueBuffer, type, (int)count));
+		}
+		long nextOffset = bigTiff ? buffer.getLong() : buffer.getInt() & 0xffffffffL;
+		return new TiffDirectory(values, bytes, nextOffset);
+	}
+
+	/**
+	 * Read integer values; rational and floating point values are not required here, and are truncated.
+	 */
+	private static long[] readValues(final ByteBuffer buffer, final int type, final int count) {
+		long[] values = new long[count];
+		for (int i = 0; i < count; i++) {
+			switch (type) {
+			case 3:
+				values[i] = buffer.getShort() & 0xffff;
+				break;
+			case 8:
+				values[i] = buffer.getShort();
+				break;
+			case 4:
+			case 13:
+				values[i] = buffer.getInt() & 0xffffffffL;
+				break;
+			case 9:
+				values[i] = buffer.getInt();
+				break;
+			case 5:
+			case 10:
+				long num = buffer.getInt() & 0xffffffffL;
+				long den = buffer.getInt() & 0xffffffffL;
+				values[i] = den == 0 ? 0 : num / den;
+				break;
+			case 11:
+				values[i] = (long)buffer.getFloat();
+				break;
+			case 12:
+				values[i] = (long)buffer.getDouble();
+				break;
+			default:
+				values[i] = buffer.getLong();
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Read bytes into a new buffer, using the byte order of the file.
+	 */
+	private ByteBuffer readBuffer(final long offset, final int nBytes) throws IOException {
+		byte[] bytes = new byte[nBytes];
+		read(offset, bytes, 0, nBytes);
+		return ByteBuffer.wrap(bytes).order(order == null ? ByteOrder.BIG_ENDIAN : order);
+	}
+
+	/**
+	 * Read bytes from the file. This is thread-safe if the file is memory-mapped.
+	 *
+	 * @param offset
+	 * @param bytes
+	 * @param off
+	 * @param len
+	 * @throws IOException if the requested bytes extend beyond the end of the file
+	 */
+	void read(long offset, final byte[] bytes, int off, int len) throws IOException {
+		if (offset < 0 || offset + len > length)
+			throw new IOException("Cannot read " + len + " bytes from offset " + offset + " in " + path);
+		if (segments == null) {
+			var buffer = ByteBuffer.wrap(bytes, off, len);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, offset + buffer.position() - off) < 0)
+					throw new IOException("Unexpected end of file " + path);
+			}
+			return;
+		}
+		while (len > 0) {
+			int segment = (int)(offset / SEGMENT_SIZE);
+			int pos = (int)(offset % SEGMENT_SIZE);
+			var buffer = segments[segment].duplicate();
+			buffer.position(pos);
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(bytes, off, n);
+			offset += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+
+	/**
+	 * A single image file directory.
+	 */
+	static class TiffDirectory {
+
+		private final Map<Integer, long[]> values;
+		private final Map<Integer, byte[]> bytes;
+		private final long nextOffset;
+		private final long[] subIFDs;
+		private final List<TiffDirectory> subDirectories = new ArrayList<>();
+
+		private TiffDirectory(final Map<Integer, long[]> values, final Map<Integer, byte[]> bytes, final long nextOffset) {
+			this.values = values;
+			this.bytes = bytes;
+			this.nextOffset = nextOffset;
+			this.subIFDs = values.getOrDefault(SUB_IFDS, new long[0]);
+		}
+
+		long getValue(final int tag, final long defaultValue) {
+			var v = values.get(tag);
+			return v == null ? defaultValue : v[0];
+		}
+
+		int getInt(final int tag, final int defaultValue) {
+			return (int)getValue(tag, defaultValue);
+		}
+
+		long[] getValues(final int tag) {
+			return values.get(tag);
+		}
+
+		byte[] getBytes(final int tag) {
+			return bytes.get(tag);
+		}
+
+		String getString(final int tag) {
+			var b = bytes.get(tag);
+			if (b == null)
+				return null;
+			int len = b.length;
+			while (len > 0 && b[len-1] == 0)
+				len--;
+			return new String(b, 0, len, StandardCharsets.UTF_8);
+		}
+
+		int getWidth() {
+			return getInt(IMAGE_WIDTH, 0);
+		}
+
+		int getHeight() {
+			return getInt(IMAGE_LENGTH, 0);
+		}
+
+		/**
+		 * Get the tile width, or the image width if the image is stored in strips.
+		 * @return
+		 */
+		int getTileWidth() {
+			return isTiled() ? getInt(TILE_WIDTH, 0) : getWidth();
+		}
+
+		/**
+		 * Get the tile height, or the number of rows per strip if the image is stored in strips.
+		 * @return
+		 */
+		int getTileHeight() {
+			return isTiled() ? getInt(TILE_LENGTH, 0) : (int)Math.min(getValue(ROWS_PER_STRIP, Integer.MAX_VALUE), getHeight());
+		}
+
+		boolean isTiled() {
+			return getInt(TILE_WIDTH, 0) > 0 && getInt(TILE_LENGTH, 0) > 0 && values.containsKey(TILE_OFFSETS) && values.containsKey(TILE_BYTE_COUNTS);
+		}
+
+		boolean isStripped() {
+			return !isTiled() && getTileHeight() > 0 && values.containsKey(STRIP_OFFSETS) && values.containsKey(STRIP_BYTE_COUNTS);
+		}
+
+		/**
+		 * Get the offsets of each tile, or of each strip if the image is not tiled.
+		 * @return
+		 */
+		long[] getTileOffsets() {
+			return values.get(isTiled() ? TILE_OFFSETS : STRIP_OFFSETS);
+		}
+
+		/**
+		 * Get the byte counts of each tile, or of each strip if the image is not tiled.
+		 * @return
+		 */
+		long[] getTileByteCounts() {
+			return values.get(isTiled() ? TILE_BYTE_COUNTS : STRIP_BYTE_COUNTS);
+		}
+
+		int getSamplesPerPixel() {
+			return getInt(SAMPLES_PER_PIXEL, 1);
+		}
+
+		int getBitsPerSample() {
+			return getInt(BITS_PER_SAMPLE, 1);
+		}
+
+		int getSampleFormat() {
+			return getInt(SAMPLE_FORMAT, 1);
+		}
+
+		int getCompression() {
+			return getInt(COMPRESSION, 1);
+		}
+
+		int getPhotometric() {
+			return getInt(PHOTOMETRIC, -1);
+		}
+
+		boolean isPlanar() {
+			return getInt(PLANAR_CONFIGURATION, 1) == 2;
+		}
+
+		int getPredictor() {
+			return getInt(PREDICTOR, 1);
+		}
+
+		boolean isReducedResolution() {
+			return (getValue(NEW_SUBFILE_TYPE, 0) & 1) != 0;
+		}
+
+		List<TiffDirectory> getSubDirectories() {
+			return subDirectories;
+		}
+
+		/**
+		 * Check whether another directory follows this one in the main IFD chain.
+		 * This is available even when only the first directory has been read.
+		 * @return
+		 */
+		boolean hasNextDirectory() {
+			return nextOffset > 0;
+		}
+
+		int nTilesX() {
+			return (getWidth() + getTileWidth() - 1) / getTileWidth();
+		}
+
+		int nTilesY() {
+			return (getHeight() + getTileHeight() - 1) / getTileHeight();
+		}
+
+	}
+
+}
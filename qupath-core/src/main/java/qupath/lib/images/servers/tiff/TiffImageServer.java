@@ -0,0 +1,617 @@
+package qupath.lib.images.servers.tiff;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteOrder;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.awt.color.model.ColorModelFactory;
+import qupath.lib.images.servers.AbstractTileableImageServer;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.ImageServerMetadata.ImageResolutionLevel;
+import qupath.lib.images.servers.TileRequest;
+import qupath.lib.images.servers.tiff.TiffFile.TiffDirectory;
+
+/**
+ * ImageServer for tiled TIFF and BigTIFF images, read directly from a memory-mapped file.
+ * <p>
+ * Image file directories are parsed once when the server is created.
+ * Tiles are then decoded without any shared state or locking, so can be read concurrently from many threads.
+ * <p>
+ * Supported images are tiled, with uncompressed, LZW, Deflate or JPEG compression, and 8-bit or 16-bit
+ * unsigned integer or 32-bit floating point pixels.
+ * Resolution levels are read from SubIFDs (as written by OME-TIFF pyramid writers), or from reduced-resolution
+ * images following the first image in the file (e.g. as in Aperio SVS).
+ * OME-TIFF images containing a single series may have multiple channels, z-slices and timepoints.
+ * Any other smaller images, such as the label and macro images in Aperio SVS files, are available as associated images
+ * if they are 8-bit RGB or grayscale; these may be tiled or stored in strips.
+ *
+ * @author Pete Bankhead
+ */
+public class TiffImageServer extends AbstractTileableImageServer {
+
+	private final static Logger logger = LoggerFactory.getLogger(TiffImageServer.class);
+
+	private static final int PHOTOMETRIC_MIN_IS_WHITE = 0;
+	private static final int PHOTOMETRIC_MIN_IS_BLACK = 1;
+	private static final int PHOTOMETRIC_RGB = 2;
+	private static final int PHOTOMETRIC_YCBCR = 6;
+
+	private static final int SAMPLE_FORMAT_UINT = 1;
+	private static final int SAMPLE_FORMAT_FLOAT = 3;
+
+	private final TiffFile tiff;
+	private final ImageServerMetadata originalMetadata;
+
+	/**
+	 * Directories for each plane, indexed by [level][t][z][c].
+	 * Each directory may provide one or more channels.
+	 */
+	private final TiffDirectory[][][][] directories;
+	private final Map<String, TiffDirectory> associatedImages;
+	private final int nChannels;
+	private final int bytesPerSample;
+	private final boolean isFloat;
+
+	/**
+	 * Create a server for a tiled TIFF image.
+	 *
+	 * @param uri
+	 * @throws IOException if the file cannot be read, or is not a supported TIFF
+	 */
+	public TiffImageServer(final URI uri) throws IOException {
+		this(uri, new TiffFile(Paths.get(uri)));
+	}
+
+	private TiffImageServer(final URI uri, final TiffFile tiff) throws IOException {
+		super();
+		this.tiff = tiff;
+
+		var layout = Layout.create(tiff);
+		if (layout.error != null)
+			throw new IOException("Unsupported TIFF: " + layout.error);
+		this.directories = layout.directories;
+		this.associatedImages = layout.associatedImages;
+
+		var base = directories[0][0][0][0];
+		int bitsPerSample = base.getBitsPerSample();
+		this.bytesPerSample = bitsPerSample / 8;
+		this.isFloat = base.getSampleFormat() == SAMPLE_FORMAT_FLOAT;
+		this.nChannels = layout.isRGB ? 3 : directories[0][0][0].length * base.getSamplesPerPixel();
+
+		var levelBuilder = new ImageResolutionLevel.Builder(base.getWidth(), base.getHeight());
+		for (var level : directories)
+			levelBuilder.addLevel(level[0][0][0].getWidth(), level[0][0][0].getHeight());
+
+		String path = uri.toString();
+		originalMetadata = new ImageServerMetadata.Builder(getClass(), path)
+				.width(base.getWidth())
+				.height(base.getHeight())
+				.name(tiff.getPath().getFileName().toString())
+				.rgb(layout.isRGB)
+				.bitDepth(bitsPerSample)
+				.channels(layout.isRGB ? ImageChannel.getDefaultRGBChannels() : ImageChannel.getDefaultChannelList(nChannels))
+				.sizeZ(directories[0][0].length)
+				.sizeT(directories[0].length)
+				.levels(levelBuilder.build())
+				.preferredTileSize(base.getTileWidth(), base.getTileHeight())
+				.pixelSizeMicrons(layout.pixelWidthMicrons, layout.pixelHeightMicrons)
+				.magnification(layout.magnification)
+				.build();
+		logger.debug("Opened {} with {} resolution levels", path, directories.length);
+	}
+
+	/**
+	 * How completely a file is supported by this server.
+	 */
+	static enum Support {
+		/**
+		 * The file cannot be read.
+		 */
+		NONE,
+		/**
+		 * The first image can be read, but other images in the file may not be interpreted correctly.
+		 */
+		PARTIAL,
+		/**
+		 * All images in the file are expected to be read, because the file contains a single image, 
+		 * an OME-TIFF with a single series, or is an Aperio SVS file.
+		 */
+		FULL
+	}
+
+	/**
+	 * Check whether a file can be read by this server, without creating the server.
+	 * Only the TIFF header and first image directory are read, and the file is not memory-mapped.
+	 *
+	 * @param uri
+	 * @return
+	 */
+	static Support checkSupport(final URI uri) {
+		try {
+			var first = TiffFile.readFirstDirectory(Paths.get(uri));
+			if (first == null)
+				return Support.NONE;
+			String error = Layout.checkReadable(first, true);
+			String description = first.getString(TiffFile.IMAGE_DESCRIPTION);
+			if (error == null && description != null && description.startsWith("ImageJ="))
+				error = "ImageJ TIFF";
+			if (error == null && Layout.isOME(description) && Layout.countOMEImages(description) != 1)
+				error = "OME-TIFF with multiple images";
+			if (error != null) {
+				logger.debug("Cannot read {} as a tiled TIFF: {}", uri, error);
+				return Support.NONE;
+			}
+			if (!first.hasNextDirectory() || Layout.isOME(description) || Layout.isAperio(description))
+				return Support.FULL;
+			return Support.PARTIAL;
+		} catch (Exception e) {
+			logger.debug("Cannot read {} as a tiled TIFF: {}", uri, e.getLocalizedMessage());
+			return Support.NONE;
+		}
+	}
+
+	@Override
+	public String getServerType() {
+		return "TIFF (memory-mapped)";
+	}
+
+	@Override
+	public ImageServerMetadata getOriginalMetadata() {
+		return originalMetadata;
+	}
+
+	@Override
+	public List<String> getAssociatedImageList() {
+		return new ArrayList<>(associatedImages.keySet());
+	}
+
+	@Override
+	public BufferedImage getAssociatedImage(final String name) {
+		var dir = associatedImages.get(name);
+		if (dir == null)
+			throw new IllegalArgumentException("No associated image with name '" + name + "' for " + getPath());
+		try {
+			int width = dir.getWidth();
+			int height = dir.getHeight();
+			if (dir.getSamplesPerPixel() >= 3)
+				return readRGB(dir, 0, 0, width, height);
+			var img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+			byte[] pixels = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
+			boolean invert = dir.getPhotometric() == PHOTOMETRIC_MIN_IS_WHITE;
+			readRegion(dir, 0, 0, width, height, (sample, ind, bytes, pos) -> {
+				pixels[ind] = invert ? (byte)~bytes[pos] : bytes[pos];
+			});
+			return img;
+		} catch (IOException e) {
+			logger.error("Unable to read associated image " + name, e);
+			return null;
+		}
+	}
+
+	@Override
+	protected BufferedImage readTile(final TileRequest tileRequest) throws IOException {
+		var planeDirectories = directories[tileRequest.getLevel()][tileRequest.getT()][tileRequest.getZ()];
+		int x = tileRequest.getTileX();
+		int y = tileRequest.getTileY();
+		int width = tileRequest.getTileWidth();
+		int height = tileRequest.getTileHeight();
+		int n = width * height;
+
+		if (isRGB())
+			return readRGB(planeDirectories[0], x, y, width, height);
+
+		// Read each channel into a separate band
+		DataBuffer buffer;
+		if (isFloat)
+			buffer = new DataBufferFloat(n, nChannels);
+		else if (bytesPerSample == 2)
+			buffer = new DataBufferUShort(n, nChannels);
+		else
+			buffer = new DataBufferByte(n, nChannels);
+		boolean littleEndian = tiff.getByteOrder() == ByteOrder.LITTLE_ENDIAN;
+		int channel = 0;
+		for (var dir : planeDirectories) {
+			int c0 = channel;
+			boolean invert = dir.getPhotometric() == PHOTOMETRIC_MIN_IS_WHITE && !isFloat;
+			readRegion(dir, x, y, width, height, (sample, ind, bytes, pos) -> {
+				int band = c0 + sample;
+				long value = TiffDecoder.getSample(bytes, pos, bytesPerSample, littleEndian);
+				if (isFloat)
+					buffer.setElemFloat(band, ind, Float.intBitsToFloat((int)value));
+				else
+					buffer.setElem(band, ind, invert ? (int)(~value & ((1L << (bytesPerSample*8)) - 1)) : (int)value);
+			});
+			channel += dir.getSamplesPerPixel();
+		}
+		var sampleModel = new BandedSampleModel(buffer.getDataType(), width, height, nChannels);
+		var raster = WritableRaster.createWritableRaster(sampleModel, buffer, null);
+		int[] colors = getMetadata().getChannels().stream().mapToInt(c -> c.getColor()).toArray();
+		var colorModel = ColorModelFactory.createProbabilityColorModel(bytesPerSample * 8, nChannels, false, colors);
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	private BufferedImage readRGB(final TiffDirectory dir, final int x, final int y, final int width, final int height) throws IOException {
+		var img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		int[] rgb = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+		readRegion(dir, x, y, width, height, (sample, ind, bytes, pos) -> {
+			// Ignore any alpha channel
+			if (sample < 3)
+				rgb[ind] |= (bytes[pos] & 0xff) << (16 - sample * 8);
+		});
+		return img;
+	}
+
+
+	/**
+	 * Consumer for decoded samples.
+	 */
+	private static interface SampleConsumer {
+
+		/**
+		 * Accept a sample.
+		 * @param sample the sample (channel) index within the directory
+		 * @param ind the pixel index within the requested region
+		 * @param bytes the decoded tile
+		 * @param pos the position of the first byte for the sample in the decoded tile
+		 */
+		void accept(int sample, int ind, byte[] bytes, int pos);
+
+	}
+
+	/**
+	 * Decode all TIFF tiles (or strips) that overlap a region, passing each sample to a consumer.
+	 * Missing tiles (with an offset or byte count of 0) are skipped, leaving the region empty.
+	 */
+	private void readRegion(final TiffDirectory dir, final int x, final int y, final int width, final int height, final SampleConsumer consumer) throws IOException {
+		int tw = dir.getTileWidth();
+		int th = dir.getTileHeight();
+		int nSamples = dir.getSamplesPerPixel();
+		boolean planar = dir.isPlanar() && nSamples > 1;
+		int samplesPerTile = planar ? 1 : nSamples;
+		int tilesPerPlane = dir.nTilesX() * dir.nTilesY();
+		int sampleBytes = dir.getBitsPerSample() / 8;
+		long[] offsets = dir.getTileOffsets();
+		long[] byteCounts = dir.getTileByteCounts();
+
+		int txStart = x / tw;
+		int txEnd = Math.min((x + width - 1) / tw, dir.nTilesX() - 1);
+		int tyStart = y / th;
+		int tyEnd = Math.min((y + height - 1) / th, dir.nTilesY() - 1);
+		for (int ty = tyStart; ty <= tyEnd; ty++) {
+			for (int tx = txStart; tx <= txEnd; tx++) {
+				for (int plane = 0; plane < (planar ? nSamples : 1); plane++) {
+					int tileIndex = plane * tilesPerPlane + ty * dir.nTilesX() + tx;
+					if (tileIndex >= offsets.length || tileIndex >= byteCounts.length || offsets[tileIndex] == 0 || byteCounts[tileIndex] == 0)
+						continue;
+					byte[] bytes = readTileBytes(dir, offsets[tileIndex], byteCounts[tileIndex], samplesPerTile);
+
+					// Copy the overlapping part of the tile
+					int xStart = Math.max(x, tx * tw);
+					int xEnd = Math.min(x + width, (tx + 1) * tw);
+					int yStart = Math.max(y, ty * th);
+					int yEnd = Math.min(y + height, (ty + 1) * th);
+					for (int yy = yStart; yy < yEnd; yy++) {
+						for (int xx = xStart; xx < xEnd; xx++) {
+							int ind = (yy - y) * width + (xx - x);
+							int pos = ((yy - ty * th) * tw + (xx - tx * tw)) * samplesPerTile * sampleBytes;
+							if (planar)
+								consumer.accept(plane, ind, bytes, pos);
+							else {
+								for (int s = 0; s < nSamples; s++)
+									consumer.accept(s, ind, bytes, pos + s * sampleBytes);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private byte[] readTileBytes(final TiffDirectory dir, final long offset, final long byteCount, final int samplesPerTile) throws IOException {
+		if (byteCount > Integer.MAX_VALUE)
+			throw new IOException("Tile too large: " + byteCount + " bytes");
+		byte[] compressed = new byte[(int)byteCount];
+		tiff.read(offset, compressed, 0, compressed.length);
+		int tw = dir.getTileWidth();
+		int th = dir.getTileHeight();
+		int sampleBytes = dir.getBitsPerSample() / 8;
+		int nBytes = tw * th * samplesPerTile * sampleBytes;
+		byte[] bytes = TiffDecoder.decompress(dir.getCompression(), compressed, dir.getBytes(TiffFile.JPEG_TABLES), nBytes, samplesPerTile);
+		if (dir.getPredictor() == TiffDecoder.PREDICTOR_HORIZONTAL)
+			TiffDecoder.undoHorizontalPredictor(bytes, tw, th, samplesPerTile, sampleBytes, tiff.getByteOrder());
+		return bytes;
+	}
+
+
+	/**
+	 * Arrangement of directories as resolution levels, channels, z-slices and timepoints,
+	 * or the reason why the file is not supported.
+	 */
+	private static class Layout {
+
+		private static final Pattern PATTERN_OME_IMAGE = Pattern.compile("<(\\w+:)?Image[\\s>]");
+		private static final Pattern PATTERN_OME_PIXELS = Pattern.compile("<(\\w+:)?Pixels\\s[^>]*>");
+		private static final Pattern PATTERN_APERIO_MPP = Pattern.compile("\\|\\s*MPP\\s*=\\s*([0-9.]+)");
+		private static final Pattern PATTERN_APERIO_MAG = Pattern.compile("\\|\\s*AppMag\\s*=\\s*([0-9.]+)");
+
+		private TiffDirectory[][][][] directories;
+		private Map<String, TiffDirectory> associatedImages = Collections.emptyMap();
+		private boolean isRGB;
+		private double pixelWidthMicrons = Double.NaN;
+		private double pixelHeightMicrons = Double.NaN;
+		private double magnification = Double.NaN;
+		private String error;
+
+		static Layout create(final TiffFile tiff) {
+			var layout = new Layout();
+			layout.error = layout.parse(tiff);
+			return layout;
+		}
+
+		/**
+		 * Parse the layout, returning an error message if the file is not supported.
+		 */
+		private String parse(final TiffFile tiff) {
+			var mainDirectories = tiff.getDirectories();
+			if (mainDirectories.isEmpty())
+				return "no image directories";
+			var first = mainDirectories.get(0);
+			String description = first.getString(TiffFile.IMAGE_DESCRIPTION);
+			if (description != null && description.startsWith("ImageJ="))
+				return "ImageJ TIFF";
+
+			// Determine the planes, using OME-XML if available
+			int sizeC = 1, sizeZ = 1, sizeT = 1;
+			String order = "XYCZT";
+			boolean isOME = isOME(description);
+			if (isOME) {
+				int nImages = countOMEImages(description);
+				if (nImages != 1)
+					return "OME-TIFF with " + nImages + " images";
+				var matcherPixels = PATTERN_OME_PIXELS.matcher(description);
+				if (!matcherPixels.find())
+					return "OME-TIFF without pixels";
+				String pixels = matcherPixels.group();
+				sizeC = (int)getAttribute(pixels, "SizeC", 1);
+				sizeZ = (int)getAttribute(pixels, "SizeZ", 1);
+				sizeT = (int)getAttribute(pixels, "SizeT", 1);
+				String dimensionOrder = getAttribute(pixels, "DimensionOrder");
+				if (dimensionOrder != null)
+					order = dimensionOrder;
+				String unit = getAttribute(pixels, "PhysicalSizeXUnit");
+				if (unit == null || "\u00B5m".equals(unit) || "\u03BCm".equals(unit) || "um".equals(unit)) {
+					pixelWidthMicrons = getAttribute(pixels, "PhysicalSizeX", Double.NaN);
+					pixelHeightMicrons = getAttribute(pixels, "PhysicalSizeY", Double.NaN);
+				}
+				magnification = getAttribute(description.substring(0, matcherPixels.start()), "NominalMagnification", Double.NaN);
+				// Interleaved RGB images store several channels in each directory
+				int samples = first.getSamplesPerPixel();
+				if (samples > 1 && sizeC % samples == 0)
+					sizeC /= samples;
+			} else if (isAperio(description)) {
+				pixelWidthMicrons = getNumber(PATTERN_APERIO_MPP.matcher(description));
+				pixelHeightMicrons = pixelWidthMicrons;
+				magnification = getNumber(PATTERN_APERIO_MAG.matcher(description));
+			}
+			int nPlanes = sizeC * sizeZ * sizeT;
+			if (nPlanes <= 0 || mainDirectories.size() < nPlanes)
+				return "expected " + nPlanes + " planes, but found " + mainDirectories.size() + " image directories";
+
+			// Determine the resolution levels
+			List<List<TiffDirectory>> levels = new ArrayList<>();
+			if (!first.getSubDirectories().isEmpty() || nPlanes > 1) {
+				// Use SubIFDs, which must be available for every plane
+				int nLevels = Integer.MAX_VALUE;
+				for (int p = 0; p < nPlanes; p++)
+					nLevels = Math.min(nLevels, 1 + mainDirectories.get(p).getSubDirectories().size());
+				for (int level = 0; level < nLevels; level++) {
+					List<TiffDirectory> list = new ArrayList<>();
+					for (int p = 0; p < nPlanes; p++) {
+						var dir = mainDirectories.get(p);
+						list.add(level == 0 ? dir : dir.getSubDirectories().get(level - 1));
+					}
+					levels.add(list);
+				}
+			} else {
+				// Use tiled, reduced-resolution images following the first image
+				levels.add(List.of(first));
+				var previous = first;
+				for (var dir : mainDirectories.subList(1, mainDirectories.size())) {
+					if (dir.isTiled() && isCompatible(first, dir) &&
+							dir.getWidth() < previous.getWidth() && dir.getHeight() < previous.getHeight() &&
+							Math.abs((double)first.getWidth() / dir.getWidth() - (double)first.getHeight() / dir.getHeight()) < 0.05 * first.getWidth() / dir.getWidth()) {
+						levels.add(List.of(dir));
+						previous = dir;
+					}
+				}
+			}
+
+			// Check the directories are all readable
+			for (var level : levels) {
+				for (var dir : level) {
+					if (!isCompatible(first, dir))
+						return "inconsistent pixel types";
+					String error = checkReadable(dir, true);
+					if (error != null)
+						return error;
+				}
+			}
+			for (int p = 1; p < nPlanes; p++) {
+				if (levels.get(0).get(p).getWidth() != first.getWidth() || levels.get(0).get(p).getHeight() != first.getHeight())
+					return "planes have different sizes";
+			}
+			int bits = first.getBitsPerSample();
+
+			// Use any other smaller images in the main chain as associated images, if they are 8-bit RGB or grayscale
+			Map<TiffDirectory, Boolean> used = new IdentityHashMap<>();
+			for (var level : levels) {
+				for (var dir : level)
+					used.put(dir, Boolean.TRUE);
+			}
+			associatedImages = new LinkedHashMap<>();
+			int nIgnored = 0;
+			for (int i = 0; i < mainDirectories.size(); i++) {
+				var dir = mainDirectories.get(i);
+				if (used.containsKey(dir))
+					continue;
+				if (!isOME && dir.getWidth() < first.getWidth() && dir.getHeight() < first.getHeight() &&
+						checkReadable(dir, false) == null && dir.getBitsPerSample() == 8 && dir.getSampleFormat() == SAMPLE_FORMAT_UINT &&
+						(dir.getSamplesPerPixel() == 1 || (dir.getSamplesPerPixel() >= 3 && dir.getPhotometric() != PHOTOMETRIC_MIN_IS_WHITE && dir.getPhotometric() != PHOTOMETRIC_MIN_IS_BLACK))) {
+					String name = getAssociatedImageName(dir, i, isAperio(description));
+					if (associatedImages.containsKey(name))
+						name = name + " (" + (i + 1) + ")";
+					associatedImages.put(name, dir);
+				} else
+					nIgnored++;
+			}
+			if (nIgnored > 0)
+				logger.warn("{} image directories in {} are not supported and will be ignored", nIgnored, tiff.getPath());
+
+			int photometric = first.getPhotometric();
+			isRGB = sizeC == 1 && bits == 8 && (photometric == PHOTOMETRIC_RGB || photometric == PHOTOMETRIC_YCBCR) &&
+					(first.getSamplesPerPixel() == 3 || first.getSamplesPerPixel() == 4);
+
+			// Arrange directories by [level][t][z][c]
+			int posC = order.indexOf('C') - 2;
+			int posZ = order.indexOf('Z') - 2;
+			int posT = order.indexOf('T') - 2;
+			if (posC < 0 || posZ < 0 || posT < 0)
+				return "unsupported dimension order " + order;
+			int[] sizes = new int[3];
+			sizes[posC] = sizeC;
+			sizes[posZ] = sizeZ;
+			sizes[posT] = sizeT;
+			directories = new TiffDirectory[levels.size()][sizeT][sizeZ][sizeC];
+			for (int level = 0; level < levels.size(); level++) {
+				for (int t = 0; t < sizeT; t++) {
+					for (int z = 0; z < sizeZ; z++) {
+						for (int c = 0; c < sizeC; c++) {
+							int[] inds = new int[3];
+							inds[posC] = c;
+							inds[posZ] = z;
+							inds[posT] = t;
+							int ind = inds[0] + sizes[0] * (inds[1] + sizes[1] * inds[2]);
+							directories[level][t][z][c] = levels.get(level).get(ind);
+						}
+					}
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Check whether the pixels of a directory can be decoded, returning an error message if not.
+		 */
+		static String checkReadable(final TiffDirectory dir, final boolean requireTiles) {
+			if (requireTiles ? !dir.isTiled() : !dir.isTiled() && !dir.isStripped())
+				return "image is not tiled";
+			if (!TiffDecoder.isSupported(dir.getCompression()))
+				return "unsupported compression " + dir.getCompression();
+			int predictor = dir.getPredictor();
+			if (predictor != TiffDecoder.PREDICTOR_NONE && predictor != TiffDecoder.PREDICTOR_HORIZONTAL)
+				return "unsupported predictor " + predictor;
+			int photometric = dir.getPhotometric();
+			if (photometric != PHOTOMETRIC_MIN_IS_WHITE && photometric != PHOTOMETRIC_MIN_IS_BLACK && photometric != PHOTOMETRIC_RGB && photometric != PHOTOMETRIC_YCBCR)
+				return "unsupported photometric interpretation " + photometric;
+			if (photometric == PHOTOMETRIC_YCBCR && dir.getCompression() != TiffDecoder.COMPRESSION_JPEG)
+				return "YCbCr is only supported with JPEG compression";
+			if (dir.getCompression() == TiffDecoder.COMPRESSION_JPEG && (dir.getBitsPerSample() != 8 || (dir.getSamplesPerPixel() != 1 && dir.getSamplesPerPixel() != 3)))
+				return "JPEG is only supported for 8-bit images with 1 or 3 samples per pixel";
+			int bits = dir.getBitsPerSample();
+			int format = dir.getSampleFormat();
+			if (!((format == SAMPLE_FORMAT_UINT && (bits == 8 || bits == 16)) || (format == SAMPLE_FORMAT_FLOAT && bits == 32)))
+				return "unsupported pixel type (" + bits + "-bit, sample format " + format + ")";
+			return null;
+		}
+
+		static boolean isOME(final String description) {
+			return description != null && description.contains("<OME");
+		}
+
+		static boolean isAperio(final String description) {
+			return description != null && description.startsWith("Aperio");
+		}
+
+		static int countOMEImages(final String description) {
+			var matcherImage = PATTERN_OME_IMAGE.matcher(description);
+			int nImages = 0;
+			while (matcherImage.find())
+				nImages++;
+			return nImages;
+		}
+
+		/**
+		 * Get a name for an associated image, using the names given by Aperio where possible.
+		 */
+		private static String getAssociatedImageName(final TiffDirectory dir, final int index, final boolean isAperio) {
+			String description = dir.getString(TiffFile.IMAGE_DESCRIPTION);
+			if (description != null) {
+				String lower = description.toLowerCase();
+				if (lower.contains("label"))
+					return "label";
+				if (lower.contains("macro"))
+					return "macro";
+			}
+			// Aperio stores a thumbnail as the second image
+			if (isAperio && index == 1)
+				return "thumbnail";
+			return "image " + (index + 1);
+		}
+
+		private static boolean isCompatible(final TiffDirectory first, final TiffDirectory dir) {
+			return first.getSamplesPerPixel() == dir.getSamplesPerPixel() &&
+					first.getBitsPerSample() == dir.getBitsPerSample() &&
+					first.getSampleFormat() == dir.getSampleFormat();
+		}
+
+		private static String getAttribute(final String element, final String name) {
+			Matcher matcher = Pattern.compile("\\s" + name + "=\"([^\"]*)\"").matcher(element);
+			return matcher.find() ? matcher.group(1) : null;
+		}
+
+		private static double getAttribute(final String element, final String name, final double defaultValue) {
+			String value = getAttribute(element, name);
+			if (value == null)
+				return defaultValue;
+			try {
+				return Double.parseDouble(value);
+			} catch (NumberFormatException e) {
+				logger.debug("Unable to parse {}={}", name, value);
+				return defaultValue;
+			}
+		}
+
+		private static double getNumber(final Matcher matcher) {
+			if (!matcher.find())
+				return Double.NaN;
+			try {
+				return Double.parseDouble(matcher.group(1));
+			} catch (NumberFormatException e) {
+				return Double.NaN;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,60 @@
+package qupath.lib.images.servers.tiff;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URI;
+
+import qupath.lib.images.servers.FileFormatInfo.ImageCheckType;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerBuilder;
+
+/**
+ * Builder for ImageServers that read tiled TIFF and BigTIFF images directly, using memory-mapping.
+ * <p>
+ * Files with a layout that is fully supported are preferred over other readers, since tiles can be read concurrently 
+ * without the overhead of a general-purpose library.  Other tiled TIFFs containing several images are given a lower 
+ * support level, so that readers that can interpret the additional images are used if available.
+ * 
+ * @author Pete Bankhead
+ *
+ */
+public class TiffImageServerBuilder implements ImageServerBuilder<BufferedImage> {
+
+	@Override
+	public float supportLevel(URI uri, ImageCheckType info, Class<?> cls) {
+		if (cls != BufferedImage.class)
+			return 0;
+		if (!"file".equals(uri.getScheme()) || uri.getQuery() != null || uri.getFragment() != null)
+			return 0;
+		switch (info) {
+		case TIFF_2D_RGB:
+		case TIFF_OTHER:
+			switch (TiffImageServer.checkSupport(uri)) {
+			case FULL:
+				return 4;
+			case PARTIAL:
+				return 1.5f;
+			default:
+				return 0;
+			}
+		default:
+			return 0;
+		}
+	}
+
+	@Override
+	public ImageServer<BufferedImage> buildServer(URI uri) throws IOException {
+		return new TiffImageServer(uri);
+	}
+
+	@Override
+	public String getName() {
+		return "TIFF builder";
+	}
+
+	@Override
+	public String getDescription() {
+		return "Reads tiled TIFF and BigTIFF images directly, with uncompressed, LZW, Deflate or JPEG compression";
+	}
+
+}
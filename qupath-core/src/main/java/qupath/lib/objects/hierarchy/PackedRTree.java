@@ -0,0 +1,289 @@
+package qupath.lib.objects.hierarchy;
+
+import java.util.Arrays;
+
+/**
+ * Static R-tree for 2D bounding boxes, bulk-loaded using Sort-Tile-Recursive (STR) packing.
+ * <p>
+ * Items are identified by int IDs, which are typically indices into an array held elsewhere.
+ * The tree is stored in flat primitive arrays (bounds as floats, rounded outwards so that no intersection is missed),
+ * with all the nodes at one level stored contiguously and the children of any node stored consecutively.
+ * This keeps memory use to a small fraction of that of an object-based spatial index, and means that
+ * queries do not need to allocate any objects.
+ * <p>
+ * The tree cannot be modified after it is built, and is therefore safe to query from multiple threads.
+ * Changes can be supported by building additional trees and merging them periodically.
+ */
+class PackedRTree {
+
+	/**
+	 * Default maximum number of children per node.
+	 */
+	final static int DEFAULT_NODE_SIZE = 16;
+
+	/**
+	 * Callback to receive the IDs of items found by a query.
+	 */
+	@FunctionalInterface
+	static interface ItemVisitor {
+
+		/**
+		 * Visit an item.
+		 * @param id the ID of the item
+		 * @return true if the query should continue, false if it should stop
+		 */
+		boolean visit(int id);
+
+	}
+
+	private final int nodeSize;
+	private final int numItems;
+
+	/**
+	 * Bounds for each item &amp; node, stored as minX, minY, maxX, maxY.
+	 */
+	private final float[] boxes;
+
+	/**
+	 * ID for each item, or index of the first child for each node.
+	 */
+	private final int[] indices;
+
+	/**
+	 * End index (exclusive) for each level, starting with the items.
+	 */
+	private final int[] levelEnds;
+
+	/**
+	 * Build a tree using the default node size.
+	 * @param bounds item bounds, stored as minX, minY, maxX, maxY for each item
+	 * @param numItems number of items; the ID of each item is its index in the bounds array
+	 */
+	PackedRTree(double[] bounds, int numItems) {
+		this(bounds, numItems, DEFAULT_NODE_SIZE);
+	}
+
+	/**
+	 * Build a tree.
+	 * @param bounds item bounds, stored as minX, minY, maxX, maxY for each item
+	 * @param numItems number of items; the ID of each item is its index in the bounds array
+	 * @param nodeSize maximum number of children per node
+	 */
+	PackedRTree(double[] bounds, int numItems, int nodeSize) {
+		if (nodeSize < 2)
+			throw new IllegalArgumentException("Node size must be at least 2!");
+		if (bounds.length < numItems * 4)
+			throw new IllegalArgumentException("Bounds array must have 4 values per item!");
+		this.nodeSize = nodeSize;
+		this.numItems = numItems;
+
+		// Determine the number of nodes at each level
+		int[] levelCounts = new int[32];
+		int nLevels = 0;
+		levelCounts[nLevels++] = numItems;
+		int total = numItems;
+		if (numItems > 0) {
+			int count = numItems;
+			do {
+				count = (count + nodeSize - 1) / nodeSize;
+				levelCounts[nLevels++] = count;
+				total += count;
+			} while (count > 1);
+		}
+		levelEnds = new int[nLevels];
+		int end = 0;
+		for (int i = 0; i < nLevels; i++) {
+			end += levelCounts[i];
+			levelEnds[i] = end;
+		}
+		boxes = new float[total * 4];
+		indices = new int[total];
+
+		// Add the items
+		for (int i = 0; i < numItems; i++) {
+			int b = i * 4;
+			boxes[b] = floor(bounds[b]);
+			boxes[b+1] = floor(bounds[b+1]);
+			boxes[b+2] = ceil(bounds[b+2]);
+			boxes[b+3] = ceil(bounds[b+3]);
+			indices[i] = i;
+		}
+
+		// Sort each level &amp; build its parents
+		long[] keys = new long[numItems];
+		float[] tempBoxes = new float[numItems * 4];
+		int[] tempIndices = new int[numItems];
+		int start = 0;
+		for (int level = 0; level < nLevels - 1; level++) {
+			int levelEnd = levelEnds[level];
+			sortTileRecursive(start, levelEnd, keys, tempBoxes, tempIndices);
+			int parent = levelEnd;
+			for (int i = start; i < levelEnd; i += nodeSize) {
+				int childEnd = Math.min(i + nodeSize, levelEnd);
+				float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+				float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+				for (int c = i; c < childEnd; c++) {
+					int b = c * 4;
+					minX = Math.min(minX, boxes[b]);
+					minY = Math.min(minY, boxes[b+1]);
+					maxX = Math.max(maxX, boxes[b+2]);
+					maxY = Math.max(maxY, boxes[b+3]);
+				}
+				int b = parent * 4;
+				boxes[b] = minX;
+				boxes[b+1] = minY;
+				boxes[b+2] = maxX;
+				boxes[b+3] = maxY;
+				indices[parent] = i;
+				parent++;
+			}
+			start = levelEnd;
+		}
+	}
+
+	/**
+	 * Reorder the entries between start (inclusive) and end (exclusive) using STR:
+	 * sort by x into vertical slices, then sort each slice by y.
+	 */
+	private void sortTileRecursive(int start, int end, long[] keys, float[] tempBoxes, int[] tempIndices) {
+		int n = end - start;
+		if (n <= nodeSize)
+			return;
+		int nParents = (n + nodeSize - 1) / nodeSize;
+		int nSlices = (int)Math.ceil(Math.sqrt(nParents));
+		int sliceSize = nodeSize * ((nParents + nSlices - 1) / nSlices);
+
+		for (int i = 0; i < n; i++) {
+			int b = (start + i) * 4;
+			keys[i] = sortKey(boxes[b] + boxes[b+2], i);
+		}
+		Arrays.sort(keys, 0, n);
+		for (int s = 0; s < n; s += sliceSize) {
+			int sliceEnd = Math.min(s + sliceSize, n);
+			for (int i = s; i < sliceEnd; i++) {
+				int ind = (int)keys[i];
+				int b = (start + ind) * 4;
+				keys[i] = sortKey(boxes[b+1] + boxes[b+3], ind);
+			}
+			Arrays.sort(keys, s, sliceEnd);
+		}
+
+		// Apply the new order
+		System.arraycopy(boxes, start * 4, tempBoxes, 0, n * 4);
+		System.arraycopy(indices, start, tempIndices, 0, n);
+		for (int i = 0; i < n; i++) {
+			int ind = (int)keys[i];
+			System.arraycopy(tempBoxes, ind * 4, boxes, (start + i) * 4, 4);
+			indices[start + i] = tempIndices[ind];
+		}
+	}
+
+	/**
+	 * Create a key that sorts by value first, then by index.
+	 * The value is encoded in the upper 32 bits so that signed long comparisons match float comparisons.
+	 */
+	private static long sortKey(float value, int index) {
+		int bits = Float.floatToIntBits(value);
+		if (bits < 0)
+			bits ^= 0x7fffffff;
+		return ((long)bits << 32) | index;
+	}
+
+	private static float floor(double value) {
+		float f = (float)value;
+		return f > value ? Math.nextDown(f) : f;
+	}
+
+	private static float ceil(double value) {
+		float f = (float)value;
+		return f < value ? Math.nextUp(f) : f;
+	}
+
+	/**
+	 * Get the number of items in the tree.
+	 * @return
+	 */
+	int size() {
+		return numItems;
+	}
+
+	/**
+	 * Get the ID of the item stored at the specified position.
+	 * Items are stored in the tree's order, rather than the order of their IDs.
+	 * @param position
+	 * @return
+	 */
+	int getId(int position) {
+		return indices[position];
+	}
+
+	/**
+	 * Get the minimum x coordinate of the item at the specified position.
+	 * Because bounds are stored as floats, this may be slightly smaller than the value used to build the tree.
+	 * @param position
+	 * @return
+	 */
+	double getMinX(int position) {
+		return boxes[position * 4];
+	}
+
+	/**
+	 * Get the minimum y coordinate of the item at the specified position.
+	 * @param position
+	 * @return
+	 */
+	double getMinY(int position) {
+		return boxes[position * 4 + 1];
+	}
+
+	/**
+	 * Get the maximum x coordinate of the item at the specified position.
+	 * @param position
+	 * @return
+	 */
+	double getMaxX(int position) {
+		return boxes[position * 4 + 2];
+	}
+
+	/**
+	 * Get the maximum y coordinate of the item at the specified position.
+	 * @param position
+	 * @return
+	 */
+	double getMaxY(int position) {
+		return boxes[position * 4 + 3];
+	}
+
+	/**
+	 * Visit all items with bounds that intersect the specified rectangle (including items that only touch its boundary).
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param visitor
+	 * @return false if the query was stopped by the visitor, true otherwise
+	 */
+	boolean query(double minX, double minY, double maxX, double maxY, ItemVisitor visitor) {
+		if (numItems == 0)
+			return true;
+		return search(indices.length - 1, levelEnds.length - 1, minX, minY, maxX, maxY, visitor);
+	}
+
+	private boolean search(int node, int level, double minX, double minY, double maxX, double maxY, ItemVisitor visitor) {
+		int first = indices[node];
+		int childLevel = level - 1;
+		int end = Math.min(first + nodeSize, levelEnds[childLevel]);
+		for (int c = first; c < end; c++) {
+			int b = c * 4;
+			if (boxes[b] > maxX || boxes[b+1] > maxY || boxes[b+2] < minX || boxes[b+3] < minY)
+				continue;
+			if (childLevel == 0) {
+				if (!visitor.visit(indices[c]))
+					return false;
+			} else if (!search(c, childLevel, minX, minY, maxX, maxY, visitor))
+				return false;
+		}
+		return true;
+	}
+
+}
@@ -92,7 +92,7 @@ public final class PathObjectHierarchy implements Serializable {
 
 	
 	
-	private TMAGrid tmaGrid = null;
+	private volatile TMAGrid tmaGrid = null;
 	private PathObject rootObject = new PathRootObject();
 	
 	transient private PathObjectSelectionModel selectionModel = new PathObjectSelectionModel();
@@ -109,10 +109,13 @@ public final class PathObjectHierarchy implements Serializable {
 	
 	/**
 	 * Check if the hierarchy is empty (i.e. no objects apart from the root object, no feature maps)
+	 * <p>
+	 * This does not acquire the hierarchy lock, so that it can be called while painting without 
+	 * waiting for any other thread that is modifying the hierarchy.
 	 * 
 	 * @return
 	 */
-	public synchronized boolean isEmpty() {
+	public boolean isEmpty() {
 		return (tmaGrid == null || tmaGrid.nCores() == 0) && !rootObject.hasChildren();// && featureMaps.isEmpty();
 	}
 	
@@ -128,7 +131,7 @@ public final class PathObjectHierarchy implements Serializable {
 		return rootObject;
 	}
 		
-	public synchronized TMAGrid getTMAGrid() {
+	public TMAGrid getTMAGrid() {
 		return tmaGrid;
 	}
 	
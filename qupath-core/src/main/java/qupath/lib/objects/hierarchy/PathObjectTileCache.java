@@ -23,30 +23,29 @@
 
 package qupath.lib.objects.hierarchy;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.WeakHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
 import org.locationtech.jts.algorithm.locate.PointOnGeometryLocator;
 import org.locationtech.jts.algorithm.locate.SimplePointInAreaLocator;
 import org.locationtech.jts.geom.Coordinate;
-import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.LinearRing;
 import org.locationtech.jts.geom.Location;
 import org.locationtech.jts.geom.Polygonal;
 import org.locationtech.jts.geom.prep.PreparedGeometry;
 import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
-import org.locationtech.jts.index.SpatialIndex;
-import org.locationtech.jts.index.quadtree.Quadtree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -67,6 +66,11 @@ import qupath.lib.roi.interfaces.ROI;
  * In practice, the cache itself is constructed lazily whenever a request is made 
  * through getObjectsForRegion, so as to avoid rebuilding it too often when the hierarchy
  * is changing a lot.
+ * <p>
+ * The spatial index is never modified after it has been published. Instead, each change to the hierarchy 
+ * results in a new (immutable) snapshot being published, which shares most of its content with the previous one.
+ * This means that readers (e.g. viewers painting objects) never need to acquire a lock, and are never 
+ * blocked by a plugin that is adding objects to the hierarchy.
  * 
  * @author Pete Bankhead
  *
@@ -78,24 +82,27 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	final private static Logger logger = LoggerFactory.getLogger(PathObjectTileCache.class);
 	
 	/**
-	 * Largest positive envelope, used when all objects are requested.
+	 * Maximum number of removed or detached objects to track before the spatial index is compacted.
 	 */
-	private final static Envelope MAX_ENVELOPE = new Envelope(-Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE);
+	private final static int MAX_REMOVED_BEFORE_COMPACTION = 4096;
 	
 	/**
-	 * Keep a map of envelopes per ROI; ROIs should be immutable.
+	 * Current version of the spatial index, or null if it needs to be rebuilt.
+	 * Readers query whichever snapshot is current without locking; writers publish a new snapshot after each change.
 	 */
-	private Map<ROI, Envelope> envelopeMap = new WeakHashMap<>();
+	private volatile SpatialSnapshot snapshot;
 	
 	/**
-	 * Keep a map of envelopes per object, because potentially an object might have its ROI replaced behind our back...
+	 * Lock held whenever a new snapshot is being built or published.
 	 */
-	private Map<PathObject, Envelope> lastEnvelopeMap = new WeakHashMap<>();
+	private final Object writeLock = new Object();
 	
 	/**
-	 * Store a spatial index according to the class of PathObject.
+	 * Number of objects that remain in the current snapshot after being removed from the hierarchy.
+	 * These are filtered out when querying, and discarded when the snapshot is compacted.
+	 * This should only be accessed while holding the write lock.
 	 */
-	private Map<Class<? extends PathObject>, SpatialIndex> map = new HashMap<>();
+	private int nDetached = 0;
 	
 	/**
 	 * Map to cache Geometries, specifically for annotations.
@@ -105,11 +112,6 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 //	final private static Map<ROI, Coordinate> centroidMap = Collections.synchronizedMap(new WeakHashMap<>());
 
 	private PathObjectHierarchy hierarchy;
-	private boolean isActive = false;
-	
-	private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
-    private final Lock r = rwl.readLock();
-    private final Lock w = rwl.writeLock();
 	
 	
 	public PathObjectTileCache(PathObjectHierarchy hierarchy) {
@@ -119,71 +121,189 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	}
 	
 	public void resetCache() {
-		isActive = false;
+		snapshot = null;
 		logger.trace("Cache reset!");
 	}
 	
-//	int cacheCounter = 0;
-
-	private void constructCache(Class<? extends PathObject> limitToClass) {
-		w.lock();
-		try {
-	//		logger.info("Skipping cache reconstruction...");
-			long startTime = System.currentTimeMillis();
-			isActive = true;
-			if (limitToClass == null)
-				map.clear();
-			else
-				map.remove(limitToClass);
-			addToCache(hierarchy.getRootObject(), true, limitToClass);
-			long endTime = System.currentTimeMillis();
-			logger.debug("Cache reconstructed in " + (endTime - startTime)/1000.);
-		} finally {
-			w.unlock();
+	/**
+	 * Get the current snapshot, constructing it if necessary.
+	 * If several threads request a snapshot while it is being constructed, only one of them builds it.
+	 */
+	private SpatialSnapshot ensureCacheConstructed() {
+		var current = snapshot;
+		if (current != null)
+			return current;
+		synchronized (writeLock) {
+			current = snapshot;
+			if (current == null) {
+				current = constructCache();
+				snapshot = current;
+			}
+			return current;
 		}
-//		cacheCounter += (endTime - startTime);
-//		logger.info("Cache count: " + (cacheCounter)/1000.);
 	}
 	
-	private void ensureCacheConstructed() {
-		if (!isActive())
-			constructCache(null);
+	private SpatialSnapshot constructCache() {
+		long startTime = System.currentTimeMillis();
+		var pathObjects = new ArrayList<PathObject>();
+		collectObjects(hierarchy.getRootObject(), pathObjects);
+		var segment = createSegment(1L, pathObjects);
+		nDetached = 0;
+		long endTime = System.currentTimeMillis();
+		logger.debug("Cache reconstructed in " + (endTime - startTime)/1000.);
+		return new SpatialSnapshot(Collections.singletonList(segment), Collections.emptyMap(), segment.generation);
 	}
 	
 	// TRUE if the cache has been constructed
 	public boolean isActive() {
-		return isActive;
+		return snapshot != null;
 	}
 	
 	/**
-	 * Add a PathObject to the cache, optionally including children.
+	 * Add a PathObject to a collection if it has a ROI, along with all its descendants 
+	 * (apart from those of temporary objects).
 	 * 
 	 * @param pathObject
-	 * @param includeChildren
+	 * @param pathObjects
+	 */
+	private static void collectObjects(PathObject pathObject, Collection<PathObject> pathObjects) {
+		if (pathObject.hasROI())
+			pathObjects.add(pathObject);
+		if (!(pathObject instanceof TemporaryObject) && pathObject.hasChildren()) {
+			for (PathObject child : pathObject.getChildObjects().toArray(PathObject[]::new))
+				collectObjects(child, pathObjects);
+		}
+	}
+	
+	/**
+	 * Check if an object is (still) connected to a root object.
+	 * Objects may remain in the spatial index for a while after they have been removed from the hierarchy, 
+	 * so this needs to be checked before returning them.
+	 */
+	private static boolean isInHierarchy(PathObject pathObject) {
+		var temp = pathObject;
+		while (!temp.isRootObject()) {
+			temp = temp.getParent();
+			if (temp == null)
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Publish a snapshot that includes the specified objects, indexed using their current ROIs.
+	 * Any objects that are already in the snapshot are re-indexed, since their ROIs may have changed.
+	 * This should only be called while holding the write lock.
+	 * 
+	 * @param pathObjects
 	 */
-	private void addToCache(PathObject pathObject, boolean includeChildren, Class<? extends PathObject> limitToClass) {
+	private void addToCache(Collection<PathObject> pathObjects) {
 		// If the cache isn't active, we can ignore this... it will be constructed when it is needed
-		if (!isActive())
+		var current = snapshot;
+		if (current == null)
 			return;
-
-		if (pathObject.hasROI()) {
-			Class<? extends PathObject> cls = pathObject.getClass();
-			if (limitToClass == null || cls == limitToClass) {
-				SpatialIndex mapObjects = map.get(cls);
-				if (mapObjects == null) {
-					mapObjects = createSpatialIndex();
-					map.put(cls, mapObjects);
-				}
-				Envelope envelope = getEnvelope(pathObject);
-				mapObjects.insert(envelope, pathObject);
+		
+		var toAdd = new ArrayList<PathObject>();
+		var removed = current.removed;
+		for (var pathObject : pathObjects) {
+			if (!pathObject.hasROI())
+				continue;
+			if (current.contains(pathObject)) {
+				if (removed == current.removed)
+					removed = new IdentityHashMap<>(current.removed);
+				removed.put(pathObject, current.generation);
 			}
+			toAdd.add(pathObject);
 		}
+		if (toAdd.isEmpty())
+			return;
 		
-		// Add the children
-		if (includeChildren && !(pathObject instanceof TemporaryObject) && pathObject.hasChildren()) {
+		// Append a new segment, then merge the most recent segments until each is less than half the size of the one before.
+		// This keeps the number of segments to query logarithmic in the number of objects.
+		long generation = current.generation + 1;
+		var segments = new ArrayList<>(current.segments);
+		segments.add(createSegment(generation, toAdd));
+		int n = segments.size();
+		while (n > 1 && segments.get(n-2).size() <= segments.get(n-1).size() * 2) {
+			var merged = mergeSegments(segments.subList(n-2, n), removed);
+			segments.remove(n-1);
+			segments.set(n-2, merged);
+			n--;
+		}
+		publish(segments, removed, generation);
+	}
+	
+	/**
+	 * Record that an object (along with its descendants) has been removed from the hierarchy.
+	 * The current snapshot doesn't need to be replaced, since detached objects are already filtered out when querying; 
+	 * rather, a compacted snapshot is published only once too many objects have been removed.
+	 * This should only be called while holding the write lock.
+	 * 
+	 * @param pathObject
+	 */
+	private void removeFromCache(PathObject pathObject) {
+		// If the cache isn't active, then nothing to remove
+		var current = snapshot;
+		if (current == null || !current.contains(pathObject))
+			return;
+		nDetached += countObjects(pathObject);
+		if (current.removed.size() + nDetached > MAX_REMOVED_BEFORE_COMPACTION)
+			publish(current.segments, current.removed, current.generation);
+		logger.trace("Removed {} from cache", pathObject);
+	}
+	
+	private static int countObjects(PathObject pathObject) {
+		int n = 1;
+		if (!(pathObject instanceof TemporaryObject) && pathObject.hasChildren()) {
 			for (PathObject child : pathObject.getChildObjects().toArray(PathObject[]::new))
-				addToCache(child, includeChildren, limitToClass);
+				n += countObjects(child);
 		}
+		return n;
+	}
+	
+	/**
+	 * Publish a new snapshot, compacting the segments first if too many objects have been removed.
+	 * This should only be called while holding the write lock.
+	 */
+	private void publish(List<SpatialSegment> segments, Map<PathObject, Long> removed, long generation) {
+		if (removed.size() + nDetached > MAX_REMOVED_BEFORE_COMPACTION) {
+			var merged = mergeSegments(segments, removed);
+			segments = Collections.singletonList(merged);
+			removed = Collections.emptyMap();
+			nDetached = 0;
+		}
+		snapshot = new SpatialSnapshot(segments, removed, generation);
+	}
+	
+	private static SpatialSegment createSegment(long generation, List<PathObject> pathObjects) {
+		var builder = new SegmentBuilder();
+		for (var pathObject : pathObjects) {
+			var roi = pathObject.getROI();
+			builder.add(pathObject, roi.getBoundsX(), roi.getBoundsY(),
+					roi.getBoundsX() + roi.getBoundsWidth(), roi.getBoundsY() + roi.getBoundsHeight());
+		}
+		return builder.build(generation);
+	}
+	
+	/**
+	 * Merge segments into a single segment, discarding any entries that are no longer visible or no longer in the hierarchy.
+	 * Stored bounds are reused, so that objects are indexed consistently even if their ROIs have been changed.
+	 */
+	private static SpatialSegment mergeSegments(List<SpatialSegment> segments, Map<PathObject, Long> removed) {
+		var builder = new SegmentBuilder();
+		long generation = 0L;
+		for (var segment : segments) {
+			generation = Math.max(generation, segment.generation);
+			for (var index : segment.indexes.values()) {
+				var tree = index.tree;
+				for (int i = 0; i < tree.size(); i++) {
+					var pathObject = index.pathObjects[tree.getId(i)];
+					if (SpatialSnapshot.isVisible(removed, pathObject, segment) && isInHierarchy(pathObject))
+						builder.add(pathObject, tree.getMinX(i), tree.getMinY(i), tree.getMaxX(i), tree.getMaxY(i));
+				}
+			}
+		}
+		return builder.build(generation);
 	}
 
 	Geometry getGeometry(ROI roi) {
@@ -294,76 +414,6 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	}
 	
 	
-	private SpatialIndex createSpatialIndex() {
-		return new Quadtree();
-//		return new STRtree();
-	}
-	
-	private Envelope getEnvelope(PathObject pathObject) {
-		var envelope = getEnvelope(pathObject.getROI());
-		lastEnvelopeMap.put(pathObject, envelope);
-		return envelope;
-	}
-	
-	private Envelope getEnvelope(ROI roi) {
-		var envelope = envelopeMap.get(roi);
-		if (envelope == null) {
-			envelope = new Envelope(roi.getBoundsX(), roi.getBoundsX() + roi.getBoundsWidth(),
-					roi.getBoundsY(), roi.getBoundsY() + roi.getBoundsHeight());
-			envelopeMap.put(roi, envelope);
-		}
-		return envelope;
-	}
-	
-	private Envelope getEnvelope(ImageRegion region) {
-		return new Envelope(region.getMinX(), region.getMaxX(),
-				region.getMinY(), region.getMaxY());
-	}
-	
-	
-	
-	/**
-	 * This doesn't acquire the lock! The locking is done first.
-	 * 
-	 * @param pathObject
-	 * @param removeChildren
-	 */
-	private void removeFromCache(PathObject pathObject, boolean removeChildren) {
-		// If the cache isn't active, then nothing to remove
-		if (!isActive())
-			return;
-		
-		SpatialIndex mapObjects = map.get(pathObject.getClass());
-		
-		// We can remove objects from a Quadtree
-		if (mapObjects instanceof Quadtree) {
-			Envelope envelope = lastEnvelopeMap.get(pathObject);
-			envelope = MAX_ENVELOPE;
-//				System.err.println("Before: " + mapObjects.query(MAX_ENVELOPE).size());
-			if (envelope != null) {
-				if (mapObjects.remove(envelope, pathObject)) {
-					logger.debug("Removed {} from cache", pathObject);
-				} else
-					logger.debug("Unable to remove {} from cache", pathObject);
-			} else {
-				logger.debug("No envelope found for {}", pathObject);					
-			}
-//				System.err.println("After: " + mapObjects.query(MAX_ENVELOPE).size());
-			// Remove the children
-			if (removeChildren) {
-				for (PathObject child : pathObject.getChildObjects())
-					removeFromCache(child, removeChildren);
-			}
-		} else if (mapObjects instanceof SpatialIndex && !removeChildren) {
-			// We can't remove objects from a STRtree, but since we're just removing one object we can rebuild only the cache for this class
-			constructCache(pathObject.getClass());
-		} else {
-			// If we need to remove multiple objects, better to just rebuild the entire cache
-			constructCache(null);
-		}
-	}
-	
-	
 //	/**
 //	 * Add a PathObject to the cache.  Child objects are not added.
 //	 * @param pathObject
@@ -392,69 +442,62 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	 * @return
 	 */
 	public Collection<PathObject> getObjectsForRegion(Class<? extends PathObject> cls, ImageRegion region, Collection<PathObject> pathObjects, boolean includeSubclasses) {
-		ensureCacheConstructed();
-		
-		var envelope = region == null ? MAX_ENVELOPE : getEnvelope(region);
+		var current = ensureCacheConstructed();
 		
-		int z = region == null ? -1 : region.getZ();
-		int t = region == null ? -1 : region.getT();
-		r.lock();
-		try {
+		var results = pathObjects == null ? new HashSet<PathObject>() : pathObjects;
+		for (var segment : current.segments) {
 			// Iterate through all the classes, getting objects of the specified class or subclasses thereof
-			for (Entry<Class<? extends PathObject>, SpatialIndex> entry : map.entrySet()) {
+			for (Entry<Class<? extends PathObject>, ClassIndex> entry : segment.indexes.entrySet()) {
 				if (cls == null || (includeSubclasses && cls.isAssignableFrom(entry.getKey())) || cls.isInstance(entry.getKey())) {
-					if (entry.getValue() != null) {
-						var list = entry.getValue().query(envelope);
-						if (pathObjects == null)
-							pathObjects = new HashSet<PathObject>();
-						
-						// Add all objects that have a parent, i.e. might be in the hierarchy
-						for (PathObject pathObject : (List<PathObject>)list) {
-							var roi = pathObject.getROI();
-							if (roi == null || region == null || (roi.getZ() == z && roi.getT() == t)) {
-								if (pathObject.getParent() != null || pathObject.isRootObject())
-									pathObjects.add(pathObject);
-							}
-						}
-					}
-//						pathObjects = entry.getValue().getObjectsForRegion(region, pathObjects);
+					// Add all objects that are still in the hierarchy
+					var index = entry.getValue();
+					query(index.tree, region, id -> {
+						var pathObject = index.pathObjects[id];
+						if (isInRegion(pathObject, region) && current.isVisible(pathObject, segment) && isInHierarchy(pathObject))
+							results.add(pathObject);
+						return true;
+					});
 				}
 			}
-	//		logger.info("Objects for " + region + ": " + (pathObjects == null ? 0 : pathObjects.size()));
-			if (pathObjects == null)
-				return Collections.emptySet();
-			return pathObjects;
-		} finally {
-			r.unlock();
 		}
+		return results;
 	}
 	
 	public boolean hasObjectsForRegion(Class<? extends PathObject> cls, ImageRegion region, boolean includeSubclasses) {
-		ensureCacheConstructed();
-		
-		var envelope = getEnvelope(region);
+		var current = ensureCacheConstructed();
 		
-		int z = region == null ? -1 : region.getZ();
-		int t = region == null ? -1 : region.getT();
-		r.lock();
-		try {
+		for (var segment : current.segments) {
 			// Iterate through all the classes, getting objects of the specified class or subclasses thereof
-			for (Entry<Class<? extends PathObject>, SpatialIndex> entry : map.entrySet()) {
+			for (Entry<Class<? extends PathObject>, ClassIndex> entry : segment.indexes.entrySet()) {
 				if (cls == null || cls.isInstance(entry.getKey()) || (includeSubclasses && cls.isAssignableFrom(entry.getKey()))) {
-					if (entry.getValue() != null) {
-						var list = (List<PathObject>)entry.getValue().query(envelope);
-						if (list.stream().anyMatch(p -> p.hasROI() && 
-								(region == null || (p.getROI().getZ() == z && p.getROI().getT() == t))))
-							return true;
-//						if (entry.getValue().hasObjectsForRegion(region))
-//							return true;
-					}
+					// Stop as soon as any object is found
+					var index = entry.getValue();
+					boolean completed = query(index.tree, region, id -> {
+						var pathObject = index.pathObjects[id];
+						return !(isInRegion(pathObject, region) && current.isVisible(pathObject, segment) && isInHierarchy(pathObject));
+					});
+					if (!completed)
+						return true;
 				}
 			}
-			return false;
-		} finally {
-			r.unlock();
 		}
+		return false;
+	}
+	
+	private static boolean query(PackedRTree tree, ImageRegion region, PackedRTree.ItemVisitor visitor) {
+		if (region == null)
+			return tree.query(-Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE, visitor);
+		return tree.query(region.getMinX(), region.getMinY(), region.getMaxX(), region.getMaxY(), visitor);
+	}
+	
+	/**
+	 * Check if an object has a ROI on the same plane as the region, or if the region is null.
+	 */
+	private static boolean isInRegion(PathObject pathObject, ImageRegion region) {
+		if (region == null)
+			return true;
+		var roi = pathObject.getROI();
+		return roi != null && roi.getZ() == region.getZ() && roi.getT() == region.getT();
 	}
 	
 //	public synchronized Collection<PathObject> getObjectsForRegion(Class<? extends PathObject> cls, Rectangle region, Collection<PathObject> pathObjects) {
@@ -491,29 +534,160 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 
 	@Override
 	public void hierarchyChanged(final PathObjectHierarchyEvent event) {
-		w.lock();
-		try {
+		synchronized (writeLock) {
+			if (snapshot == null)
+				return;
 			boolean singleChange = event.getChangedObjects().size() == 1;
 			PathObject singleObject = singleChange ? event.getChangedObjects().get(0) : null;
 			if (singleChange && event.getEventType() == HierarchyEventType.ADDED) {
-				removeFromCache(singleObject, false);
-				addToCache(singleObject, false, singleObject.getClass());
+				// The object may have been added along with descendants
+				var pathObjects = new ArrayList<PathObject>();
+				collectObjects(singleObject, pathObjects);
+				addToCache(pathObjects);
 			} else if (singleChange && event.getEventType() == HierarchyEventType.REMOVED) {
-				removeFromCache(singleObject, false);
-			} else if (event.getEventType() == HierarchyEventType.OTHER_STRUCTURE_CHANGE) {// || event.getEventType() == HierarchyEventType.CHANGE_OTHER) {
-//				if (singleChange && !singleObject.isRootObject()) {
-//					removeFromCache(singleObject, false);
-//					addToCache(singleObject, false, singleObject.getClass());					
-//				} else
-//				System.err.println(event);
-				if (!event.isChanging())
-					resetCache();
+				removeFromCache(singleObject);
+			} else if (singleChange && event.getEventType() == HierarchyEventType.CHANGE_OTHER && !event.isChanging()) {
+				// The ROI may have been updated
+				if (isInHierarchy(singleObject))
+					addToCache(Collections.singletonList(singleObject));
+			} else if (event.getEventType() == HierarchyEventType.OTHER_STRUCTURE_CHANGE) {
+				if (!event.isChanging()) {
+					// If only part of the hierarchy has changed, re-index everything below the base (since objects may have been 
+					// moved or had their ROIs changed). Objects that have been detached are filtered out when querying, since they 
+					// are no longer connected to the root, and discarded whenever segments are merged.
+					var base = event.getStructureChangeBase();
+					if (base == null || base.isRootObject() || !isInHierarchy(base))
+						resetCache();
+					else {
+						var pathObjects = new ArrayList<PathObject>();
+						collectObjects(base, pathObjects);
+						addToCache(pathObjects);
+					}
+				}
 			}
-		} finally {
-			w.unlock();
 		}
-//		else if (event.getEventType() == HierarchyEventType.OBJECT_CHANGE)
-//			resetCache(); // TODO: Check if full change is necessary for object change events			
+	}
+	
+	
+	/**
+	 * An immutable, indexed collection of objects.
+	 */
+	private static class SpatialSegment {
+		
+		/**
+		 * Generation of the most recent objects in this segment.
+		 */
+		private final long generation;
+		private final int size;
+		private final Set<PathObject> members;
+		private final Map<Class<? extends PathObject>, ClassIndex> indexes;
+		
+		SpatialSegment(long generation, Map<Class<? extends PathObject>, ClassIndex> indexes) {
+			this.generation = generation;
+			this.indexes = indexes;
+			int n = 0;
+			for (var index : indexes.values())
+				n += index.pathObjects.length;
+			this.size = n;
+			this.members = Collections.newSetFromMap(new IdentityHashMap<>(n));
+			for (var index : indexes.values())
+				Collections.addAll(members, index.pathObjects);
+		}
+		
+		int size() {
+			return size;
+		}
+		
+	}
+	
+	/**
+	 * Objects of a single class, with their bounds stored in a packed R-tree.
+	 * The ID of each object in the tree is its index in the array.
+	 */
+	private static class ClassIndex {
+		
+		private final PathObject[] pathObjects;
+		private final PackedRTree tree;
+		
+		ClassIndex(PathObject[] pathObjects, double[] bounds) {
+			this.pathObjects = pathObjects;
+			this.tree = new PackedRTree(bounds, pathObjects.length);
+		}
+		
+	}
+	
+	/**
+	 * Helper class to accumulate objects &amp; bounds (grouped by class) before building a segment.
+	 */
+	private static class SegmentBuilder {
+		
+		private final Map<Class<? extends PathObject>, List<PathObject>> objectMap = new HashMap<>();
+		private final Map<Class<? extends PathObject>, double[]> boundsMap = new HashMap<>();
+		
+		void add(PathObject pathObject, double minX, double minY, double maxX, double maxY) {
+			var cls = pathObject.getClass();
+			var list = objectMap.computeIfAbsent(cls, c -> new ArrayList<>());
+			int ind = list.size() * 4;
+			var bounds = boundsMap.get(cls);
+			if (bounds == null || bounds.length < ind + 4) {
+				bounds = bounds == null ? new double[64] : Arrays.copyOf(bounds, bounds.length * 2);
+				boundsMap.put(cls, bounds);
+			}
+			bounds[ind] = minX;
+			bounds[ind+1] = minY;
+			bounds[ind+2] = maxX;
+			bounds[ind+3] = maxY;
+			list.add(pathObject);
+		}
+		
+		SpatialSegment build(long generation) {
+			var indexes = new HashMap<Class<? extends PathObject>, ClassIndex>();
+			for (var entry : objectMap.entrySet()) {
+				var cls = entry.getKey();
+				indexes.put(cls, new ClassIndex(entry.getValue().toArray(PathObject[]::new), boundsMap.get(cls)));
+			}
+			return new SpatialSegment(generation, indexes);
+		}
+		
+	}
+	
+	/**
+	 * An immutable version of the spatial index, made up of one or more segments.
+	 * <p>
+	 * Removed objects are recorded along with the generation at which they were removed; entries for an object 
+	 * in any segment with the same or an earlier generation are hidden.
+	 */
+	private static class SpatialSnapshot {
+		
+		private final List<SpatialSegment> segments;
+		private final Map<PathObject, Long> removed;
+		private final long generation;
+		
+		SpatialSnapshot(List<SpatialSegment> segments, Map<PathObject, Long> removed, long generation) {
+			this.segments = segments;
+			this.removed = removed;
+			this.generation = generation;
+		}
+		
+		boolean isVisible(PathObject pathObject, SpatialSegment segment) {
+			return isVisible(removed, pathObject, segment);
+		}
+		
+		static boolean isVisible(Map<PathObject, Long> removed, PathObject pathObject, SpatialSegment segment) {
+			if (removed.isEmpty())
+				return true;
+			Long removedGeneration = removed.get(pathObject);
+			return removedGeneration == null || removedGeneration < segment.generation;
+		}
+		
+		boolean contains(PathObject pathObject) {
+			for (var segment : segments) {
+				if (segment.members.contains(pathObject) && isVisible(pathObject, segment))
+					return true;
+			}
+			return false;
+		}
+		
 	}
 	
 }
@@ -28,14 +28,15 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import qupath.lib.common.SimpleThreadFactory;
+import qupath.lib.common.TaskScheduler;
+import qupath.lib.common.TaskScheduler.Priority;
+import qupath.lib.common.TaskScheduler.TaskExecutor;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.objects.PathObject;
@@ -46,7 +47,8 @@ import qupath.lib.objects.hierarchy.PathObjectHierarchy;
  * Abstract PluginRunner to help with the creation of plugin runners for specific circumstances,
  * e.g. running through a GUI, or from a command line only.
  * 
- * Note!  This makes use of a static threadpool, which will be reused by all inheriting classes.
+ * Tasks are submitted to the shared {@link TaskScheduler}, using a new executor for each call to runTasks 
+ * so that several runners may be used concurrently (e.g. for different images).
  * 
  * @author Pete Bankhead
  *
@@ -57,9 +59,9 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 	final private static Logger logger = LoggerFactory.getLogger(AbstractPluginRunner.class);
 
 	private static int numThreadsRequested = Runtime.getRuntime().availableProcessors();
-	private static int counter = 0;
+	private static AtomicInteger counter = new AtomicInteger();
 
-	private static ExecutorService pool;
+	private TaskExecutor executor;
 	private ExecutorCompletionService<Runnable> service;
 
 	private Map<Future<Runnable>, Runnable> pendingTasks = new HashMap<>();
@@ -82,7 +84,7 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 	}
 	
 	/**
-	 * Set the number of threads requested to be used for the next threadpool created.
+	 * Set the number of threads requested to be used the next time tasks are run.
 	 * 
 	 * The request is stored as-is, but may be adjusted if it is outside a valid range, i.e. &gt; 0 and &lt;= available processors.
 	 * 
@@ -92,12 +94,7 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 	 * @param n
 	 */
 	public synchronized static void setNumThreadsRequested(int n) {
-		if (numThreadsRequested == n)
-			return;
 		numThreadsRequested = n;
-		// Need to shutdown the pool for this to take effect
-		if (pool != null)
-			pool.shutdown();
 	}
 	
 	/**
@@ -179,14 +176,11 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 		// Reset cancelled status
 		tasksCancelled = false;
 		
-		// Ensure we have a pool
-		if (pool == null || pool.isShutdown()) {
-			int n = getNumThreads();
-			pool = Executors.newFixedThreadPool(n, new SimpleThreadFactory("plugin-runner-"+(+counter)+"-", false));
-			logger.debug("New threadpool created with {} threads", n);
-			service = new ExecutorCompletionService<>(pool);
-		} else if (service == null)
-			service = new ExecutorCompletionService<>(pool);
+		// Executors are cheap views onto the shared scheduler, so create a new one each time
+		int n = getNumThreads();
+		executor = TaskScheduler.getInstance().createExecutor("plugin-runner-" + counter.incrementAndGet(), Priority.ANALYSIS, n);
+		logger.debug("New executor created for up to {} threads", n);
+		service = new ExecutorCompletionService<>(executor);
 		
 		monitor = makeProgressMonitor();
 		monitor.startMonitoring(null, tasks.size(), true);
@@ -194,9 +188,7 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 			Future<Runnable> future = service.submit(task, task);
 			pendingTasks.put(future, task);
 		}
-		// TODO: See if this needs to be shutdown here, or there's a better way..?
-		// In any case, it was inhibiting application shutdown just letting it be...
-		pool.shutdown();
+		executor.shutdown();
 		if (!pendingTasks.isEmpty())
 			awaitCompletion();
 	}
@@ -230,6 +222,12 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 					}
 					tasksCancelled = true;
 				}
+				// If we're running inside the scheduler, run pending tasks here rather than waiting for space in the budget
+				if (future == null && TaskScheduler.isTaskThread()) {
+					future = service.poll();
+					if (future == null && executor.runQueuedTask())
+						continue;
+				}
 				future = future == null ? service.take() : future;
 //				logger.warn("Future: {}", future);
 				// If the task finished without being cancelled, run post-processing if required & update the progress monitor
@@ -258,13 +256,13 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 //				logger.error("CAUSING Error running plugin: {}", e2.getLocalizedMessage(), e2);
 //			}
 //			e.printStackTrace();
-			if (pool != null)
-				pool.shutdownNow();
+			if (executor != null)
+				executor.shutdownNow();
 			monitor.pluginCompleted("Completed with error " + e.getLocalizedMessage());
 		} catch (Exception e) {
 			logger.error("Error running plugin: {}", e.getLocalizedMessage(), e);
-			if (pool != null)
-				pool.shutdownNow();
+			if (executor != null)
+				executor.shutdownNow();
 			monitor.pluginCompleted("Completed with error " + e.getLocalizedMessage());
 		} finally {
 			pendingTasks.clear();
@@ -0,0 +1,554 @@
+package qupath.lib.plugins.workflow;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.TaskScheduler;
+import qupath.lib.common.TaskScheduler.Priority;
+import qupath.lib.images.ImageData;
+import qupath.lib.plugins.CommandLinePluginRunner;
+import qupath.lib.plugins.PathPlugin;
+import qupath.lib.plugins.SimpleProgressMonitor;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.scripting.QP;
+
+/**
+ * Replay a {@link Workflow} headlessly for many images within a {@link Project}.
+ * <p>
+ * Several images are processed at once.  Each image is read, processed using a {@link CommandLinePluginRunner},
+ * saved and then closed before the next image is read - so only a few images need to be held in memory at any time.
+ * Plugins run for different images share the analysis budget of the {@link TaskScheduler}, so that processing
+ * several images at once does not oversubscribe the available processors.
+ * <p>
+ * Plugin steps are run directly; other scriptable steps are evaluated with Groovy (or JavaScript, if Groovy is unavailable),
+ * with the static methods of {@link QP} (or another scripting class) imported.
+ *
+ * @author Pete Bankhead
+ *
+ * @param <T>
+ */
+public class ProjectWorkflowRunner<T> {
+
+	private final static Logger logger = LoggerFactory.getLogger(ProjectWorkflowRunner.class);
+
+	private static AtomicInteger counter = new AtomicInteger();
+
+	private final List<WorkflowStep> steps;
+
+	private int maxConcurrentImages = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+	private boolean saveImageData = true;
+	private ClassLoader classLoader = ProjectWorkflowRunner.class.getClassLoader();
+	private Class<?> scriptingClass = QP.class;
+	private SimpleProgressMonitor monitor;
+
+	/**
+	 * Create a runner for all the steps within a workflow.
+	 *
+	 * @param workflow
+	 */
+	public ProjectWorkflowRunner(final Workflow workflow) {
+		this(workflow.getSteps());
+	}
+
+	/**
+	 * Create a runner for a list of workflow steps.
+	 *
+	 * @param steps
+	 */
+	public ProjectWorkflowRunner(final List<? extends WorkflowStep> steps) {
+		this.steps = Collections.unmodifiableList(new ArrayList<>(steps));
+	}
+
+	/**
+	 * Create a runner for a script, which is treated as a single workflow step.
+	 *
+	 * @param script
+	 */
+	public ProjectWorkflowRunner(final String script) {
+		this(Collections.singletonList(new DefaultScriptableWorkflowStep("Script", script)));
+	}
+
+	/**
+	 * Set the maximum number of images that may be processed at the same time.
+	 *
+	 * @param n
+	 */
+	public void setMaxConcurrentImages(final int n) {
+		if (n < 1)
+			throw new IllegalArgumentException("Number of concurrent images must be at least 1!");
+		this.maxConcurrentImages = n;
+	}
+
+	/**
+	 * Get the maximum number of images that may be processed at the same time.
+	 *
+	 * @return
+	 */
+	public int getMaxConcurrentImages() {
+		return maxConcurrentImages;
+	}
+
+	/**
+	 * Request whether the ImageData should be saved for each image after the workflow has been applied.
+	 * Default is true.
+	 *
+	 * @param saveImageData
+	 */
+	public void setSaveImageData(final boolean saveImageData) {
+		this.saveImageData = saveImageData;
+	}
+
+	/**
+	 * Set the ClassLoader used to find plugins and script engines, e.g. to include extensions.
+	 *
+	 * @param classLoader
+	 */
+	public void setClassLoader(final ClassLoader classLoader) {
+		this.classLoader = classLoader;
+	}
+
+	/**
+	 * Set the class whose static methods are imported for scripts, default {@link QP}.
+	 *
+	 * @param cls
+	 */
+	public void setScriptingClass(final Class<?> cls) {
+		this.scriptingClass = cls;
+	}
+
+	/**
+	 * Set a monitor to receive progress updates as each image is completed.
+	 * If null, progress is logged.
+	 *
+	 * @param monitor
+	 */
+	public void setProgressMonitor(final SimpleProgressMonitor monitor) {
+		this.monitor = monitor;
+	}
+
+	/**
+	 * Get the steps that will be applied to each image.
+	 *
+	 * @return
+	 */
+	public List<WorkflowStep> getSteps() {
+		return steps;
+	}
+
+	/**
+	 * Apply the workflow to all images in a project.
+	 *
+	 * @param project
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public Report run(final Project<T> project) throws InterruptedException {
+		var report = run(project.getImageList());
+		if (saveImageData) {
+			try {
+				project.syncChanges();
+			} catch (IOException e) {
+				logger.error("Unable to sync project changes", e);
+			}
+		}
+		return report;
+	}
+
+	/**
+	 * Apply the workflow to the specified project entries.
+	 *
+	 * @param entries
+	 * @return a report summarizing the results, throughput &amp; timings for each step
+	 * @throws InterruptedException
+	 */
+	public Report run(final Collection<? extends ProjectImageEntry<T>> entries) throws InterruptedException {
+		var report = new Report(steps);
+		int n = entries.size();
+		if (n == 0)
+			return report;
+
+		var monitor = this.monitor == null ? new CommandLinePluginRunner.CommandLineProgressMonitor() : this.monitor;
+		monitor.startMonitoring("Running workflow for " + n + " images", n, true);
+
+		var executor = TaskScheduler.getInstance().createExecutor("workflow-runner-" + counter.incrementAndGet(), Priority.ANALYSIS, maxConcurrentImages);
+		var service = new ExecutorCompletionService<ImageResult>(executor);
+		Map<Future<ImageResult>, ProjectImageEntry<T>> pending = new HashMap<>();
+		for (var entry : entries)
+			pending.put(service.submit(() -> processEntry(entry, report)), entry);
+		executor.shutdown();
+
+		boolean cancelled = false;
+		try {
+			while (!pending.isEmpty()) {
+				var future = service.poll(200, TimeUnit.MILLISECONDS);
+				if (future == null) {
+					// Images that have already started are allowed to finish, so that they aren't left half-processed
+					if (!cancelled && monitor.cancelled()) {
+						logger.warn("Workflow cancelled - waiting for running images to complete");
+						for (var f : pending.keySet())
+							f.cancel(false);
+						cancelled = true;
+					}
+					continue;
+				}
+				var entry = pending.remove(future);
+				ImageResult result;
+				try {
+					result = future.get();
+				} catch (CancellationException e) {
+					result = new ImageResult(entry.getImageName(), 0L, e);
+				} catch (ExecutionException e) {
+					result = new ImageResult(entry.getImageName(), 0L, e.getCause());
+				}
+				report.addResult(result);
+				String status = result.isSuccess() ? "Completed" : result.isCancelled() ? "Cancelled" : "Failed";
+				monitor.updateProgress(1, String.format("%s %s (%d/%d, %.1f images/min)",
+						status, result.getImageName(), report.getImageResults().size(), n, report.getImagesPerMinute()), null);
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			throw e;
+		}
+		report.setCompleted();
+		logger.info("{}", report);
+		return report;
+	}
+
+
+	private ImageResult processEntry(final ProjectImageEntry<T> entry, final Report report) {
+		String name = entry.getImageName();
+		long startTime = System.currentTimeMillis();
+		ImageData<T> imageData = null;
+		try {
+			imageData = entry.readImageData();
+			QP.setBatchImageData(imageData);
+			ScriptEngine engine = null;
+			for (int i = 0; i < steps.size(); i++) {
+				if (Thread.currentThread().isInterrupted())
+					throw new InterruptedException("Workflow interrupted for " + name);
+				var step = steps.get(i);
+				long stepStartTime = System.nanoTime();
+				boolean success = false;
+				try {
+					if (step instanceof SimplePluginWorkflowStep) {
+						var pluginStep = (SimplePluginWorkflowStep)step;
+						if (pluginStep.getScriptBefore() != null)
+							engine = runScript(engine, pluginStep.getScriptBefore());
+						success = runPlugin(imageData, pluginStep.getPluginClass(), pluginStep.getArgument());
+						if (pluginStep.getScriptAfter() != null)
+							engine = runScript(engine, pluginStep.getScriptAfter());
+					} else if (step instanceof ScriptableWorkflowStep) {
+						engine = runScript(engine, ((ScriptableWorkflowStep)step).getJavascript());
+						success = true;
+					} else
+						logger.warn("{} is not scriptable, and will be skipped", step.getName());
+				} finally {
+					report.getStepTimings().get(i).add(System.nanoTime() - stepStartTime, success);
+				}
+			}
+			if (saveImageData)
+				entry.saveImageData(imageData);
+			return new ImageResult(name, System.currentTimeMillis() - startTime, null);
+		} catch (Exception e) {
+			logger.error("Error running workflow for " + name, e);
+			return new ImageResult(name, System.currentTimeMillis() - startTime, e);
+		} finally {
+			// Release the image before moving on to the next one
+			QP.setBatchImageData(null);
+			if (imageData != null) {
+				try {
+					imageData.getServer().close();
+				} catch (Exception e) {
+					logger.warn("Unable to close server for " + name, e);
+				}
+			}
+		}
+	}
+
+
+	@SuppressWarnings("unchecked")
+	private boolean runPlugin(final ImageData<T> imageData, final String className, final String arg) throws Exception {
+		var cls = Class.forName(className, true, classLoader);
+		var plugin = (PathPlugin<T>)cls.getConstructor().newInstance();
+		if (plugin.runPlugin(new CommandLinePluginRunner<>(imageData, true), arg))
+			return true;
+		logger.warn("Plugin {} was not run successfully for {}", className, imageData.getServer().getPath());
+		return false;
+	}
+
+
+	/**
+	 * Run a script, creating a new engine if needed.
+	 * Engines aren't shared between images, since they aren't necessarily thread-safe.
+	 */
+	private ScriptEngine runScript(ScriptEngine engine, final String script) throws ScriptException {
+		if (engine == null) {
+			var manager = new ScriptEngineManager(classLoader);
+			engine = manager.getEngineByName("groovy");
+			if (engine == null)
+				engine = manager.getEngineByName("JavaScript");
+			if (engine == null)
+				throw new ScriptException("No script engine available to run " + script);
+		}
+		String className = scriptingClass.getName();
+		if (engine.getFactory().getNames().contains("groovy"))
+			engine.eval(String.format("import static %s.*;\n%s\n", className, script));
+		else
+			engine.eval(String.format("var QP = Java.type(\"%s\");\nwith (Object.bindProperties({}, QP)) {\n%s\n}\n", className, script));
+		return engine;
+	}
+
+
+	/**
+	 * The result of applying a workflow to a single image.
+	 */
+	public static class ImageResult {
+
+		private final String imageName;
+		private final long millis;
+		private final Throwable error;
+
+		ImageResult(final String imageName, final long millis, final Throwable error) {
+			this.imageName = imageName;
+			this.millis = millis;
+			this.error = error;
+		}
+
+		/**
+		 * Get the name of the image.
+		 *
+		 * @return
+		 */
+		public String getImageName() {
+			return imageName;
+		}
+
+		/**
+		 * Get the time taken to read, process &amp; save the image.
+		 *
+		 * @return
+		 */
+		public long getMillis() {
+			return millis;
+		}
+
+		/**
+		 * Get the error that stopped the workflow for this image, or null if it completed successfully.
+		 *
+		 * @return
+		 */
+		public Throwable getError() {
+			return error;
+		}
+
+		/**
+		 * Returns true if the workflow completed without an error.
+		 *
+		 * @return
+		 */
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		/**
+		 * Returns true if the image was skipped because the workflow was cancelled.
+		 *
+		 * @return
+		 */
+		public boolean isCancelled() {
+			return error instanceof CancellationException;
+		}
+
+		@Override
+		public String toString() {
+			if (isSuccess())
+				return String.format("%s: completed in %.2f s", imageName, millis / 1000.0);
+			return String.format("%s: %s", imageName, isCancelled() ? "cancelled" : "failed (" + error.getLocalizedMessage() + ")");
+		}
+
+	}
+
+
+	/**
+	 * Accumulated timing for a single workflow step, across all images.
+	 */
+	public static class StepTiming {
+
+		private final String name;
+		private final AtomicLong nanos = new AtomicLong();
+		private final AtomicInteger count = new AtomicInteger();
+		private final AtomicInteger failures = new AtomicInteger();
+
+		StepTiming(final String name) {
+			this.name = name;
+		}
+
+		void add(final long nanos, final boolean success) {
+			this.nanos.addAndGet(nanos);
+			count.incrementAndGet();
+			if (!success)
+				failures.incrementAndGet();
+		}
+
+		/**
+		 * Get the name of the step.
+		 *
+		 * @return
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Get the number of times the step has been run.
+		 *
+		 * @return
+		 */
+		public int getCount() {
+			return count.get();
+		}
+
+		/**
+		 * Get the number of times the step did not run successfully.
+		 *
+		 * @return
+		 */
+		public int getFailureCount() {
+			return failures.get();
+		}
+
+		/**
+		 * Get the total time spent running the step, summed across all images.
+		 *
+		 * @return
+		 */
+		public double getTotalMillis() {
+			return nanos.get() / 1e6;
+		}
+
+		/**
+		 * Get the mean time spent running the step for each image.
+		 *
+		 * @return
+		 */
+		public double getMeanMillis() {
+			int n = count.get();
+			return n == 0 ? Double.NaN : getTotalMillis() / n;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d runs, %d failed, mean %.1f ms, total %.1f ms", name, getCount(), getFailureCount(), getMeanMillis(), getTotalMillis());
+		}
+
+	}
+
+
+	/**
+	 * Summary of a workflow applied to a collection of images.
+	 */
+	public static class Report {
+
+		private final long startTime = System.currentTimeMillis();
+		private long endTime = -1;
+		private final List<ImageResult> results = Collections.synchronizedList(new ArrayList<>());
+		private final List<StepTiming> stepTimings = new ArrayList<>();
+
+		Report(final List<WorkflowStep> steps) {
+			for (var step : steps)
+				stepTimings.add(new StepTiming(step.getName()));
+		}
+
+		void addResult(final ImageResult result) {
+			results.add(result);
+		}
+
+		void setCompleted() {
+			endTime = System.currentTimeMillis();
+		}
+
+		/**
+		 * Get the results for each image, in the order in which they were completed.
+		 *
+		 * @return
+		 */
+		public List<ImageResult> getImageResults() {
+			return Collections.unmodifiableList(results);
+		}
+
+		/**
+		 * Get the accumulated timings for each step, in the order of the workflow.
+		 *
+		 * @return
+		 */
+		public List<StepTiming> getStepTimings() {
+			return Collections.unmodifiableList(stepTimings);
+		}
+
+		/**
+		 * Get the number of images processed successfully.
+		 *
+		 * @return
+		 */
+		public int getSuccessCount() {
+			return (int)results.stream().filter(r -> r.isSuccess()).count();
+		}
+
+		/**
+		 * Get the time elapsed since the workflow started, or the total time if it has completed.
+		 *
+		 * @return
+		 */
+		public long getElapsedMillis() {
+			return (endTime < 0 ? System.currentTimeMillis() : endTime) - startTime;
+		}
+
+		/**
+		 * Get the number of images completed per minute.
+		 *
+		 * @return
+		 */
+		public double getImagesPerMinute() {
+			long millis = getElapsedMillis();
+			return millis <= 0 ? 0 : results.size() * 60000.0 / millis;
+		}
+
+		@Override
+		public String toString() {
+			var sb = new StringBuilder();
+			sb.append(String.format("Workflow applied to %d/%d images in %.2f s (%.1f images/min)",
+					getSuccessCount(), results.size(), getElapsedMillis() / 1000.0, getImagesPerMinute()));
+			for (var timing : stepTimings)
+				sb.append("\n  ").append(timing);
+			synchronized (results) {
+				for (var result : results) {
+					if (!result.isSuccess())
+						sb.append("\n  ").append(result);
+				}
+			}
+			return sb.toString();
+		}
+
+	}
+
+}
@@ -82,6 +82,33 @@ public class SimplePluginWorkflowStep implements ScriptableWorkflowStep, Externa
 	public String getPluginClass() {
 		return pluginClass;
 	}
+	
+	/**
+	 * Get the argument string passed to the plugin.
+	 * 
+	 * @return
+	 */
+	public String getArgument() {
+		return arg;
+	}
+	
+	/**
+	 * Get any script that should be run before the plugin, or null if there is none.
+	 * 
+	 * @return
+	 */
+	public String getScriptBefore() {
+		return scriptBefore;
+	}
+	
+	/**
+	 * Get any script that should be run after the plugin, or null if there is none.
+	 * 
+	 * @return
+	 */
+	public String getScriptAfter() {
+		return scriptAfter;
+	}
 
 
 	@Override
@@ -25,6 +25,7 @@ package qupath.lib.projects;
 
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
@@ -130,6 +131,16 @@ class DefaultProject implements Project<BufferedImage> {
 	private long creationTimestamp;
 	private long modificationTimestamp;
 	
+	/**
+	 * Shared store for all entry thumbnails.
+	 */
+	private ThumbnailAtlas thumbnailAtlas;
+	
+	/**
+	 * True once thumbnails from older projects have been copied into the atlas.
+	 */
+	private boolean legacyThumbnailsCopied = false;
+	
 	DefaultProject(final File file) {
 		this.file = file;
 		if (file.isDirectory()) {
@@ -300,6 +311,12 @@ class DefaultProject implements Project<BufferedImage> {
 		return Paths.get(getClassifiersPath().toString(), "object_classifiers");
 	}
 	
+	private synchronized ThumbnailAtlas getThumbnailAtlas() {
+		if (thumbnailAtlas == null)
+			thumbnailAtlas = new ThumbnailAtlas(Paths.get(getBasePath().toString(), "thumbnails.atlas"));
+		return thumbnailAtlas;
+	}
+	
 	List<String> listFilenames(Path path, String ext) throws IOException {
 		if (!Files.isDirectory(path))
 			return Collections.emptyList();
@@ -330,7 +347,11 @@ class DefaultProject implements Project<BufferedImage> {
 	}
 	
 	public ProjectImageEntry<BufferedImage> addImage(final ImageServer<BufferedImage> server) {
-		var entry = new DefaultProjectImageEntry(server.getPath(), server.getDisplayedImageName(), null, null, null);
+		return addImage(server.getPath(), server.getDisplayedImageName());
+	}
+	
+	public ProjectImageEntry<BufferedImage> addImage(final String serverPath, final String imageName) {
+		var entry = new DefaultProjectImageEntry(serverPath, imageName, null, null, null);
 		if (addImage(entry)) {
 			return entry;
 		}
@@ -364,12 +385,20 @@ class DefaultProject implements Project<BufferedImage> {
 	}
 	
 	public void removeImage(final String path) {
-		images.remove(path);
+		var entry = images.remove(path);
+		if (entry != null && entry.uniqueName != null) {
+			try {
+				getThumbnailAtlas().remove(entry.uniqueName);
+			} catch (IOException e) {
+				logger.warn("Unable to remove thumbnail for {} ({})", path, e.getLocalizedMessage());
+			}
+		}
 	}
 	
 	public void syncChanges() throws IOException {
 		writeProject(getFile());
 		writePathClasses(pathClasses);
+		copyLegacyThumbnails();
 //		if (file.isDirectory())
 //			file = new File(dirBase, "project.qpproj");
 //		var json = new GsonBuilder().setLenient().setPrettyPrinting().create().toJson(this);
@@ -377,6 +406,27 @@ class DefaultProject implements Project<BufferedImage> {
 //		logger.warn("Syncing project not yet implemented!");
 	}
 	
+	/**
+	 * Copy any thumbnails stored as separate files by older versions into the atlas, if it does not already contain them.
+	 * <p>
+	 * The original files are retained, so that the project can still be opened by older versions.
+	 * 
+	 * @throws IOException
+	 */
+	private synchronized void copyLegacyThumbnails() throws IOException {
+		if (legacyThumbnailsCopied)
+			return;
+		var atlas = getThumbnailAtlas();
+		for (var entry : images.values()) {
+			if (entry.uniqueName == null || atlas.contains(entry.uniqueName))
+				continue;
+			var path = entry.getThumbnailPath();
+			if (Files.exists(path))
+				atlas.write(entry.uniqueName, Files.readAllBytes(path));
+		}
+		legacyThumbnailsCopied = true;
+	}
+	
 	/**
 	 * Try syncing changes quietly, logging any exceptions.
 	 */
@@ -858,6 +908,12 @@ class DefaultProject implements Project<BufferedImage> {
 
 		@Override
 		public synchronized BufferedImage getThumbnail() throws IOException {
+			var atlas = getThumbnailAtlas();
+			try (var stream = atlas.openStream(getUniqueName())) {
+				if (stream != null)
+					return ImageIO.read(stream);
+			}
+			// Older projects stored a separate thumbnail file for each entry - this is copied into the atlas when the project is saved
 			var path = getThumbnailPath();
 			if (Files.exists(path)) {
 				try (var stream = Files.newInputStream(path)) {
@@ -869,11 +925,10 @@ class DefaultProject implements Project<BufferedImage> {
 
 		@Override
 		public synchronized void setThumbnail(BufferedImage img) throws IOException {
-			getEntryPath(true);
-			var path = getThumbnailPath();
-			try (var stream = Files.newOutputStream(path)) {
-				ImageIO.write(img, "JPEG", stream);
-			}
+			var bytes = new ByteArrayOutputStream();
+			if (!ImageIO.write(img, "JPEG", bytes))
+				throw new IOException("Unable to encode thumbnail as JPEG");
+			getThumbnailAtlas().write(getUniqueName(), bytes.toByteArray());
 		}
 		
 	}
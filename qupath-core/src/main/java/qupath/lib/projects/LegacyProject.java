@@ -184,7 +184,11 @@ class LegacyProject<T> implements Project<T> {
 	}
 
 	public ProjectImageEntry<T> addImage(final ImageServer<T> server) {
-		var entry = new LegacyProjectImageEntry(server.getPath(), server.getDisplayedImageName(), null);
+		return addImage(server.getPath(), server.getDisplayedImageName());
+	}
+	
+	public ProjectImageEntry<T> addImage(final String serverPath, final String imageName) {
+		var entry = new LegacyProjectImageEntry(serverPath, imageName, null);
 		if (addImage(entry))
 			return entry;
 		return null;
@@ -171,6 +171,18 @@ public interface Project<T> {
 	 */
 	public ProjectImageEntry<T> addImage(final ImageServer<T> server);
 	
+	/**
+	 * Add an image with a known server path and name.
+	 * <p>
+	 * This is equivalent to {@link #addImage(ImageServer)}, but does not require the server to remain open; 
+	 * this is useful whenever servers are built and closed in advance, e.g. when importing many images in parallel.
+	 * 
+	 * @param serverPath path that may be used to build an {@link ImageServer} for the image
+	 * @param imageName name to use for the image
+	 * @return the new entry, or null if the project already contains an image with the same path
+	 */
+	public ProjectImageEntry<T> addImage(final String serverPath, final String imageName);
+	
 	/**
 	 * Request a {@link ProjectImageEntry} with an image server path.
 	 * @param path
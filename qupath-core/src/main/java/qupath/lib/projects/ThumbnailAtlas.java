@@ -0,0 +1,314 @@
+package qupath.lib.projects;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single-file store for project thumbnails.
+ * <p>
+ * Rather than writing one small image file per project entry, encoded thumbnails are appended to a
+ * single file alongside a key and timestamp. An index of the latest record for each key is built
+ * when the atlas is opened, so that subsequent reads require a single positional read.
+ * <p>
+ * Replaced and removed records are simply superseded in the file; the atlas is compacted automatically
+ * whenever more than half of its content is stale.
+ */
+class ThumbnailAtlas {
+
+	private final static Logger logger = LoggerFactory.getLogger(ThumbnailAtlas.class);
+
+	private final static int MAGIC = 0x51505448; // 'QPTH'
+	private final static int VERSION = 1;
+	private final static int HEADER_BYTES = 8;
+
+	/**
+	 * Minimum size of stale content before compaction will be considered.
+	 */
+	private final static long MIN_COMPACT_BYTES = 4L * 1024L * 1024L;
+
+	private final Path path;
+	private Map<String, AtlasRecord> index;
+	private long staleBytes = 0L;
+	private long dataLength = 0L;
+
+	ThumbnailAtlas(final Path path) {
+		this.path = path;
+	}
+
+	/**
+	 * Get the path to the atlas file.
+	 * @return
+	 */
+	Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Check if the atlas contains a thumbnail for the specified key.
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	synchronized boolean contains(final String key) throws IOException {
+		return ensureIndex().containsKey(key);
+	}
+
+	/**
+	 * Get the timestamp (in milliseconds) at which the thumbnail for a key was written,
+	 * or -1 if no thumbnail is available.
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	synchronized long getTimestamp(final String key) throws IOException {
+		var record = ensureIndex().get(key);
+		return record == null ? -1L : record.timestamp;
+	}
+
+	/**
+	 * Read the encoded bytes for a thumbnail, or null if no thumbnail is available.
+	 * <p>
+	 * This holds the lock while reading, since the record may otherwise be moved by {@link #compact()}.
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	synchronized byte[] read(final String key) throws IOException {
+		var record = ensureIndex().get(key);
+		if (record == null)
+			return null;
+		var buffer = ByteBuffer.allocate(record.length);
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long pos = record.offset;
+			while (buffer.hasRemaining()) {
+				int n = channel.read(buffer, pos);
+				if (n < 0)
+					throw new EOFException("Unexpected end of thumbnail atlas " + path);
+				pos += n;
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Get an input stream to read the encoded thumbnail for a key, or null if no thumbnail is available.
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	InputStream openStream(final String key) throws IOException {
+		var bytes = read(key);
+		return bytes == null ? null : new ByteArrayInputStream(bytes);
+	}
+
+	/**
+	 * Write the encoded bytes for a thumbnail, replacing any existing thumbnail for the same key.
+	 * @param key
+	 * @param bytes
+	 * @throws IOException
+	 */
+	synchronized void write(final String key, final byte[] bytes) throws IOException {
+		append(key, System.currentTimeMillis(), bytes);
+	}
+
+	/**
+	 * Remove the thumbnail for the specified key.
+	 * @param key
+	 * @return true if a thumbnail was removed, false otherwise
+	 * @throws IOException
+	 */
+	synchronized boolean remove(final String key) throws IOException {
+		if (!ensureIndex().containsKey(key))
+			return false;
+		append(key, System.currentTimeMillis(), null);
+		return true;
+	}
+
+	private void append(final String key, final long timestamp, final byte[] bytes) throws IOException {
+		var index = ensureIndex();
+		var header = encodeRecordHeader(key, timestamp, bytes == null ? -1 : bytes.length);
+		long pos = dataLength;
+		try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			// Discard any incomplete record left at the end of the file
+			if (channel.size() > pos)
+				channel.truncate(pos);
+			if (pos == 0L) {
+				channel.write(ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).flip());
+				pos = HEADER_BYTES;
+			}
+			channel.position(pos);
+			channel.write(ByteBuffer.wrap(header));
+			if (bytes != null)
+				channel.write(ByteBuffer.wrap(bytes));
+			var previous = bytes == null ? index.remove(key) : index.put(key, new AtlasRecord(timestamp, pos + header.length, bytes.length, header.length));
+			if (previous != null)
+				staleBytes += previous.totalLength();
+			if (bytes == null)
+				staleBytes += header.length;
+			pos = channel.size();
+			dataLength = pos;
+		}
+		if (staleBytes > MIN_COMPACT_BYTES && staleBytes * 2 > pos)
+			compact();
+	}
+
+	private static byte[] encodeRecordHeader(final String key, final long timestamp, final int length) throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		try (var stream = new DataOutputStream(bytes)) {
+			stream.writeUTF(key);
+			stream.writeLong(timestamp);
+			stream.writeInt(length);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Rewrite the atlas so that it only contains the latest record for each key.
+	 * @throws IOException
+	 */
+	synchronized void compact() throws IOException {
+		var index = ensureIndex();
+		if (!Files.exists(path))
+			return;
+		logger.debug("Compacting thumbnail atlas {} ({} stale bytes)", path, staleBytes);
+		var pathTemp = path.resolveSibling(path.getFileName().toString() + ".tmp");
+		var newIndex = new LinkedHashMap<String, AtlasRecord>();
+		try (var channelIn = FileChannel.open(path, StandardOpenOption.READ);
+				var channelOut = FileChannel.open(pathTemp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			channelOut.write(ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).flip());
+			for (var entry : index.entrySet()) {
+				var record = entry.getValue();
+				var header = encodeRecordHeader(entry.getKey(), record.timestamp, record.length);
+				long pos = channelOut.position();
+				channelOut.write(ByteBuffer.wrap(header));
+				long transferred = 0L;
+				while (transferred < record.length)
+					transferred += channelIn.transferTo(record.offset + transferred, record.length - transferred, channelOut);
+				newIndex.put(entry.getKey(), new AtlasRecord(record.timestamp, pos + header.length, record.length, header.length));
+			}
+		}
+		Files.move(pathTemp, path, StandardCopyOption.REPLACE_EXISTING);
+		this.dataLength = Files.size(path);
+		this.index = newIndex;
+		this.staleBytes = 0L;
+	}
+
+	private Map<String, AtlasRecord> ensureIndex() throws IOException {
+		if (index == null)
+			index = readIndex();
+		return index;
+	}
+
+	/**
+	 * Scan the atlas file to find the latest record for each key.
+	 * If the file ends with a partially-written record (e.g. because QuPath was stopped during a write),
+	 * the incomplete record is ignored.
+	 */
+	private Map<String, AtlasRecord> readIndex() throws IOException {
+		var map = new LinkedHashMap<String, AtlasRecord>();
+		staleBytes = 0L;
+		dataLength = 0L;
+		if (!Files.exists(path))
+			return map;
+		long fileLength = Files.size(path);
+		try (var stream = new DataInputStream(Files.newInputStream(path))) {
+			if (fileLength < HEADER_BYTES || stream.readInt() != MAGIC) {
+				logger.warn("Unrecognized thumbnail atlas {} - thumbnails will be regenerated", path);
+				Files.delete(path);
+				return map;
+			}
+			int version = stream.readInt();
+			if (version != VERSION)
+				logger.warn("Unexpected thumbnail atlas version {} (expected {})", version, VERSION);
+			long pos = HEADER_BYTES;
+			while (pos < fileLength) {
+				String key;
+				long timestamp;
+				int length;
+				try {
+					key = stream.readUTF();
+					timestamp = stream.readLong();
+					length = stream.readInt();
+				} catch (EOFException e) {
+					logger.warn("Thumbnail atlas {} is truncated", path);
+					break;
+				}
+				int headerLength = encodedLength(key) + 12;
+				long offset = pos + headerLength;
+				if (length >= 0 && offset + length > fileLength) {
+					logger.warn("Thumbnail atlas {} is truncated", path);
+					break;
+				}
+				var previous = length < 0 ? map.remove(key) : map.put(key, new AtlasRecord(timestamp, offset, length, headerLength));
+				if (previous != null)
+					staleBytes += previous.totalLength();
+				if (length < 0) {
+					staleBytes += headerLength;
+					length = 0;
+				} else {
+					long remaining = length;
+					while (remaining > 0)
+						remaining -= stream.skip(remaining);
+				}
+				pos = offset + length;
+			}
+			dataLength = pos;
+		}
+		return map;
+	}
+
+	/**
+	 * Number of bytes needed to write a String with {@link DataOutputStream#writeUTF(String)}.
+	 */
+	private static int encodedLength(final String s) {
+		int n = 2;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F)
+				n++;
+			else if (c > 0x07FF)
+				n += 3;
+			else
+				n += 2;
+		}
+		return n;
+	}
+
+
+	private static class AtlasRecord {
+
+		private final long timestamp;
+		private final long offset;
+		private final int length;
+		private final int headerLength;
+
+		AtlasRecord(final long timestamp, final long offset, final int length, final int headerLength) {
+			this.timestamp = timestamp;
+			this.offset = offset;
+			this.length = length;
+			this.headerLength = headerLength;
+		}
+
+		long totalLength() {
+			return (long)length + headerLength;
+		}
+
+	}
+
+}
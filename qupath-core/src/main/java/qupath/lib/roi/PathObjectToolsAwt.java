@@ -37,8 +37,12 @@ import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjects;
 import qupath.lib.objects.helpers.PathObjectTools;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
 import qupath.lib.roi.experimental.ShapeSimplifier;
+import qupath.lib.roi.interfaces.PathArea;
 import qupath.lib.roi.interfaces.PathShape;
+import qupath.lib.roi.interfaces.ROI;
+import qupath.lib.roi.jts.GeometryMerger;
 
 /**
  * Several useful static methods for working with PathObjects, where AWT is required.
@@ -92,50 +96,61 @@ public class PathObjectToolsAwt {
 		}
 	
 		PathShape shapeMask = (PathShape)pathObject.getROI();
-		Area areaOriginal = PathROIToolsAwt.getArea(shapeMask);
-		Area areaNew = new Area(areaOriginal);
+		// Unions don't need an AWT Area - these are computed in one go below, since adding Areas one at a time is slow for many ROIs
+		Area areaMask = op == PathROIToolsAwt.CombineOp.ADD ? null : PathROIToolsAwt.getArea(shapeMask);
 		Iterator<PathObject> iter = pathObjects.iterator();
 		List<PathObject> objectsToAdd = new ArrayList<>();
 		int changes = 0;
 		while (iter.hasNext()) {
 			PathObject temp = iter.next();
+			changes++;
+			if (op == PathROIToolsAwt.CombineOp.ADD)
+				continue;
 			Area areaTemp = PathROIToolsAwt.getArea(temp.getROI());
 			PathObject annotationNew = null;
 			if (op == PathROIToolsAwt.CombineOp.SUBTRACT) {
-				areaTemp.subtract(areaNew);
+				areaTemp.subtract(areaMask);
 				if (!areaTemp.isEmpty()) {
 					PathShape shapeNew = PathROIToolsAwt.getShapeROI(areaTemp, shapeMask.getC(), shapeMask.getZ(), shapeMask.getT());
 					annotationNew = PathObjects.createAnnotationObject(shapeNew, temp.getPathClass());
 				}
 			} else if (op == PathROIToolsAwt.CombineOp.INTERSECT) {
-				areaTemp.intersect(areaNew);
+				areaTemp.intersect(areaMask);
 				if (!areaTemp.isEmpty()) {
 					PathShape shapeNew = PathROIToolsAwt.getShapeROI(areaTemp, shapeMask.getC(), shapeMask.getZ(), shapeMask.getT());
 					annotationNew = PathObjects.createAnnotationObject(shapeNew, temp.getPathClass());
 				}
-			} else {
-				PathROIToolsAwt.combineAreas(areaNew, areaTemp, op);
 			}
 			if (annotationNew != null) {
 				annotationNew.setColorRGB(temp.getColorRGB());
 				annotationNew.setName(temp.getName());
 				objectsToAdd.add(annotationNew);
 			}
-			changes++;
 		}
 		if (changes == 0) {
 			logger.debug("No changes were made");
 			return;
 		}
+		boolean isEmpty;
 		if (op == PathROIToolsAwt.CombineOp.ADD) {
-			PathShape shapeNew = PathROIToolsAwt.getShapeROI(areaNew, shapeMask.getC(), shapeMask.getZ(), shapeMask.getT());
-			if (!shapeNew.isEmpty())
-				objectsToAdd.add(PathObjects.createAnnotationObject(shapeNew, pathObject.getPathClass()));
-		}
+			// Lines have no area to contribute to the union (as with an AWT Area)
+			List<ROI> rois = new ArrayList<>();
+			if (shapeMask instanceof PathArea)
+				rois.add(shapeMask);
+			for (PathObject temp : pathObjects) {
+				if (temp.getROI() instanceof PathArea)
+					rois.add(temp.getROI());
+			}
+			ROI roiNew = GeometryMerger.union(rois, ImagePlane.getPlaneWithChannel(shapeMask));
+			isEmpty = roiNew.isEmpty();
+			if (!isEmpty)
+				objectsToAdd.add(PathObjects.createAnnotationObject(roiNew, pathObject.getPathClass()));
+		} else
+			isEmpty = areaMask.isEmpty();
 		// Remove previous objects
 		pathObjects.add(pathObject);
 		hierarchy.removeObjects(pathObjects, true);
-		if (areaNew.isEmpty()) {
+		if (isEmpty) {
 			logger.debug("No area ROI remains");
 			return;			
 		}
@@ -39,6 +39,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,6 +59,7 @@ import qupath.lib.roi.RectangleROI;
 import qupath.lib.roi.interfaces.PathArea;
 import qupath.lib.roi.interfaces.ROI;
 import qupath.lib.roi.jts.ConverterJTS;
+import qupath.lib.roi.jts.GeometryTiler;
 import qupath.lib.roi.interfaces.PathShape;
 
 /**
@@ -444,52 +446,18 @@ public class PathROIToolsAwt {
 		return containsShape(getShape(shape1), getShape(shape2));
 	}
 
+	/**
+	 * Create fixed-size tiles covering an area ROI, starting from the top left of its bounding box.
+	 * 
+	 * @param pathROI
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param trimToROI if true, tiles overlapping the boundary are clipped to the ROI; otherwise they are included only if their center is within the ROI
+	 * @return
+	 * @see GeometryTiler#streamTiles(PathArea, int, int, boolean)
+	 */
 	public static List<ROI> makeTiles(final PathArea pathROI, final int tileWidth, final int tileHeight, final boolean trimToROI) {
-		// Create a collection of tiles
-		Rectangle bounds = AwtTools.getBounds(pathROI);
-		Area area = getArea(pathROI);
-		List<ROI> tiles = new ArrayList<>();
-		//		int ind = 0;
-		for (int y = bounds.y; y < bounds.y + bounds.height; y += tileHeight) {
-			for (int x = bounds.x; x < bounds.x + bounds.width; x += tileWidth) {
-				//				int width = Math.min(x + tileWidth, bounds.x + bounds.width) - x;
-				//				int height = Math.min(y + tileHeight, bounds.y + bounds.height) - y;
-				int width = tileWidth;
-				int height = tileHeight;
-				Rectangle tileBounds = new Rectangle(x, y, width, height);
-				ROI tile;
-				// If the tile is completely contained by the ROI, it's straightforward
-				if (area.contains(x, y, width, height))
-					tile = new RectangleROI(x, y, width, height);
-				else if (!trimToROI) {
-					// If we aren't trimming, then check if the centroid is contained
-					if (area.contains(x+0.5*width, y+0.5*height))
-						tile = new RectangleROI(x, y, width, height);
-					else
-						continue;
-				}
-				else {
-					// Check if we are actually within the object
-					if (!area.intersects(x, y, width, height))
-						continue;
-					// Shrink the tile if that is sensible
-					// TODO: Avoid converting tiles to Areas where not essential
-					Area tileArea = new Area(tileBounds);
-					tileArea.intersect(area);
-					if (tileArea.isEmpty())
-						continue;
-					if (tileArea.isRectangular()) {
-						Rectangle2D bounds2 = tileArea.getBounds2D();
-						tile = new RectangleROI(bounds2.getX(), bounds2.getY(), bounds2.getWidth(), bounds2.getHeight());
-					}
-					else
-						tile = new AWTAreaROI(tileArea);
-				}
-				//				tile.setName("Tile " + (++ind));
-				tiles.add(tile);
-			}			
-		}
-		return tiles;
+		return GeometryTiler.streamTiles(pathROI, tileWidth, tileHeight, trimToROI).collect(Collectors.toList());
 	}
 	
 	
@@ -513,66 +481,10 @@ public class PathROIToolsAwt {
 	 * @param fixedSize
 	 * @param overlap
 	 * @return
+	 * @see GeometryTiler#streamTiledROIs(ROI, ImmutableDimension, ImmutableDimension, boolean, int)
 	 */
 	public static Collection<? extends ROI> computeTiledROIs(ROI parentROI, ImmutableDimension sizePreferred, ImmutableDimension sizeMax, boolean fixedSize, int overlap) {
-
-		PathArea pathArea = parentROI instanceof PathArea ? (PathArea)parentROI : null;
-		Rectangle2D bounds = AwtTools.getBounds2D(parentROI);
-		if (pathArea == null || (bounds.getWidth() <= sizeMax.width && bounds.getHeight() <= sizeMax.height)) {
-			return Collections.singletonList(parentROI);
-		}
-
-
-		List<ROI> pathROIs = new ArrayList<>();
-
-		Area area = getArea(pathArea);
-
-		double xMin = bounds.getMinX();
-		double yMin = bounds.getMinY();
-		int nx = (int)Math.ceil(bounds.getWidth() / sizePreferred.width);
-		int ny = (int)Math.ceil(bounds.getHeight() / sizePreferred.height);
-		double w = fixedSize ? sizePreferred.width : (int)Math.ceil(bounds.getWidth() / nx);
-		double h = fixedSize ? sizePreferred.height : (int)Math.ceil(bounds.getHeight() / ny);
-
-		// Center the tiles
-		xMin = (int)(bounds.getCenterX() - (nx * w * .5));
-		yMin = (int)(bounds.getCenterY() - (ny * h * .5));
-
-		for (int yi = 0; yi < ny; yi++) {
-			for (int xi = 0; xi < nx; xi++) {
-
-				double x = xMin + xi * w - overlap;
-				double y = yMin + yi * h - overlap;
-
-				Rectangle2D boundsTile = new Rectangle2D.Double(x, y, w + overlap*2, h + overlap*2);
-
-				//				double x = xMin + xi * w;
-				//				double y = yMin + yi * h;
-				//				
-				//				Rectangle2D boundsTile = new Rectangle2D.Double(x, y, w, h);
-				//					logger.info(boundsTile);
-				ROI pathROI = null;
-				Shape shape = getShape(pathArea);
-				if (shape.contains(boundsTile))
-					pathROI = new RectangleROI(boundsTile.getX(), boundsTile.getY(), boundsTile.getWidth(), boundsTile.getHeight(), parentROI.getC(), parentROI.getZ(), parentROI.getT());
-				else if (pathArea instanceof RectangleROI) {
-					Rectangle2D bounds2 = boundsTile.createIntersection(bounds);
-					pathROI = new RectangleROI(bounds2.getX(), bounds2.getY(), bounds2.getWidth(), bounds2.getHeight(), parentROI.getC(), parentROI.getZ(), parentROI.getT());
-				}
-				else {
-					if (!area.intersects(boundsTile))
-						continue;
-					Area areaTemp = new Area(boundsTile);
-					areaTemp.intersect(area);
-					if (!areaTemp.isEmpty())
-						pathROI = new AWTAreaROI(areaTemp, parentROI.getC(), parentROI.getZ(), parentROI.getT());					
-				}
-				if (pathROI != null)
-					pathROIs.add(pathROI);
-				x += w;
-			}
-		}
-		return pathROIs;
+		return GeometryTiler.streamTiledROIs(parentROI, sizePreferred, sizeMax, fixedSize, overlap).collect(Collectors.toList());
 	}
 	
 	
@@ -88,6 +88,18 @@ public class ROIs {
 		return new PolygonROI(points, plane.getC(), plane.getZ(), plane.getT());
 	}
 	
+	/**
+	 * Create a polygon ROI from separate arrays of x and y coordinates, which are copied.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param plane
+	 * @return
+	 */
+	public static PolygonROI createPolygonROI(float[] x, float[] y, ImagePlane plane) {
+		return new PolygonROI(x, y, plane.getC(), plane.getZ(), plane.getT());
+	}
+	
 	public static PolygonROI createPolygonROI(double x, double y, ImagePlane plane) {
 		return new PolygonROI(Collections.singletonList(new Point2(x, y)), plane.getC(), plane.getZ(), plane.getT());
 	}
@@ -39,7 +39,6 @@ public class ConverterJTS {
     private AffineTransform transform = null;
 
     private ShapeReader shapeReader;
-    private ShapeWriter shapeWriter;
     
     private static ConverterJTS DEFAULT_INSTANCE = new Builder().build();
     
@@ -156,10 +155,11 @@ public class ConverterJTS {
     }
 
 
+    /**
+     * Create a new ShapeWriter for each conversion, since it reuses a point internally and so isn't thread-safe.
+     */
     private ShapeWriter getShapeWriter() {
-        if (shapeWriter == null)
-            shapeWriter = new ShapeWriter(new Transformer());
-        return shapeWriter;
+        return new ShapeWriter(new Transformer());
     }
 
 
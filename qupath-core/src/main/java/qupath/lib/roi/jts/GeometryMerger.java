@@ -0,0 +1,375 @@
+package qupath.lib.roi.jts;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateList;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Location;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.RectangleROI;
+import qupath.lib.roi.interfaces.PathArea;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Merge large numbers of area ROIs, such as classified tiles.
+ * <p>
+ * Rectangles of the same size lying on a regular grid are merged by filling a bitmap of grid cells and tracing
+ * its contours, which scales linearly with the number of rectangles.
+ * Any other ROIs are merged with the result using a JTS cascaded union.
+ * <p>
+ * Only area ROIs can be merged. Lines, polylines and points are rejected rather than ignored, since they have no area 
+ * and would otherwise be silently lost from the result; callers should filter them out first if required.
+ * <p>
+ * This is intended to replace repeatedly adding shapes to a single {@link java.awt.geom.Area}, which becomes very
+ * slow for thousands of ROIs.
+ *
+ * @author Pete Bankhead
+ *
+ * @see UnaryUnionOp
+ */
+public class GeometryMerger {
+
+	private final static Logger logger = LoggerFactory.getLogger(GeometryMerger.class);
+
+	/**
+	 * Tolerance, as a proportion of the grid spacing, when deciding if rectangles are aligned to a grid.
+	 */
+	private final static double GRID_TOLERANCE = 1e-3;
+
+	/**
+	 * Maximum number of grid cells per rectangle on the grid; sparser grids are merged using a cascaded union instead, 
+	 * since the bitmap would otherwise be much larger than the input.
+	 */
+	private final static int MAX_CELLS_PER_RECTANGLE = 64;
+
+	// Directions for tracing, in clockwise order (with y increasing downwards)
+	private final static int EAST = 0, SOUTH = 1, WEST = 2, NORTH = 3;
+	private final static int[] DX = {1, 0, -1, 0};
+	private final static int[] DY = {0, 1, 0, -1};
+	// Order in which to try turning when tracing: right, straight on, then left
+	private final static int[] TURNS = {1, 0, 3};
+
+	/**
+	 * Merge area ROIs to create a single ROI.
+	 *
+	 * @param rois the area ROIs to merge; empty ROIs are ignored
+	 * @param plane the plane for the merged ROI
+	 * @return the merged ROI, or an empty ROI if there are no areas to merge
+	 * @throws IllegalArgumentException if any non-empty ROI is not an area
+	 */
+	public static ROI union(final Collection<? extends ROI> rois, final ImagePlane plane) {
+		var geometry = unionGeometry(rois);
+		return ConverterJTS.convertGeometryToROI(geometry, plane);
+	}
+
+	/**
+	 * Merge area ROIs to create a single Geometry.
+	 *
+	 * @param rois the area ROIs to merge; empty ROIs are ignored
+	 * @return the merged geometry (which may be empty)
+	 * @throws IllegalArgumentException if any non-empty ROI is not an area
+	 */
+	public static Geometry unionGeometry(final Collection<? extends ROI> rois) {
+		long startTime = System.currentTimeMillis();
+		List<ROI> areas = rois.stream().filter(r -> !r.isEmpty()).collect(Collectors.toList());
+		for (var roi : areas) {
+			if (!(roi instanceof PathArea))
+				throw new IllegalArgumentException("Only area ROIs can be merged, but found " + roi);
+		}
+		var factory = new GeometryFactory();
+		if (areas.isEmpty())
+			return factory.createPolygon();
+
+		// Merge rectangles on a grid, if we have enough for it to be worthwhile
+		List<ROI> remaining = new ArrayList<>();
+		var grid = GridCells.create(areas, remaining);
+		List<Geometry> geometries = new ArrayList<>();
+		if (grid == null)
+			remaining = areas;
+		else
+			geometries.add(grid.traceGeometry(factory));
+
+		geometries.addAll(remaining.parallelStream().map(r -> r.getGeometry()).collect(Collectors.toList()));
+		Geometry result = geometries.size() == 1 ? geometries.get(0) : UnaryUnionOp.union(geometries, factory);
+
+		long endTime = System.currentTimeMillis();
+		logger.debug("Merged {} ROIs ({} on a grid) in {} ms", areas.size(), areas.size() - remaining.size(), endTime - startTime);
+		return result;
+	}
+
+
+	/**
+	 * Bitmap of filled cells on a regular grid.
+	 */
+	static class GridCells {
+
+		private final double x0, y0, cellWidth, cellHeight;
+		private final int nx, ny;
+		private final boolean[] filled;
+
+		private GridCells(double x0, double y0, double cellWidth, double cellHeight, int nx, int ny) {
+			this.x0 = x0;
+			this.y0 = y0;
+			this.cellWidth = cellWidth;
+			this.cellHeight = cellHeight;
+			this.nx = nx;
+			this.ny = ny;
+			this.filled = new boolean[nx * ny];
+		}
+
+		/**
+		 * Create a grid from all rectangles that have the same size and alignment as the first rectangle.
+		 *
+		 * @param rois ROIs that may be on the grid
+		 * @param remaining list to which ROIs not on the grid will be added
+		 * @return the grid, or null if there are fewer than 2 rectangles on the grid, or they are too sparse
+		 */
+		static GridCells create(final List<? extends ROI> rois, final List<ROI> remaining) {
+			RectangleROI first = null;
+			for (var roi : rois) {
+				if (roi instanceof RectangleROI) {
+					first = (RectangleROI)roi;
+					break;
+				}
+			}
+			if (first == null)
+				return null;
+
+			double w = first.getBoundsWidth();
+			double h = first.getBoundsHeight();
+			double xOrigin = first.getBoundsX();
+			double yOrigin = first.getBoundsY();
+			List<ROI> onGrid = new ArrayList<>();
+			int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+			for (var roi : rois) {
+				if (roi instanceof RectangleROI &&
+						Math.abs(roi.getBoundsWidth() - w) < w * GRID_TOLERANCE &&
+						Math.abs(roi.getBoundsHeight() - h) < h * GRID_TOLERANCE) {
+					double gx = (roi.getBoundsX() - xOrigin) / w;
+					double gy = (roi.getBoundsY() - yOrigin) / h;
+					int ix = (int)Math.round(gx);
+					int iy = (int)Math.round(gy);
+					if (Math.abs(gx - ix) < GRID_TOLERANCE && Math.abs(gy - iy) < GRID_TOLERANCE) {
+						onGrid.add(roi);
+						minX = Math.min(minX, ix);
+						minY = Math.min(minY, iy);
+						maxX = Math.max(maxX, ix);
+						maxY = Math.max(maxY, iy);
+						continue;
+					}
+				}
+				remaining.add(roi);
+			}
+			long nCells = (long)(maxX - minX + 1) * (maxY - minY + 1);
+			if (onGrid.size() < 2 || nCells > Integer.MAX_VALUE / 2 || nCells > (long)onGrid.size() * MAX_CELLS_PER_RECTANGLE) {
+				remaining.addAll(onGrid);
+				return null;
+			}
+
+			var grid = new GridCells(xOrigin + minX * w, yOrigin + minY * h, w, h, maxX - minX + 1, maxY - minY + 1);
+			for (var roi : onGrid) {
+				int ix = (int)Math.round((roi.getBoundsX() - grid.x0) / w);
+				int iy = (int)Math.round((roi.getBoundsY() - grid.y0) / h);
+				grid.filled[iy * grid.nx + ix] = true;
+			}
+			return grid;
+		}
+
+		private boolean isFilled(int x, int y) {
+			return x >= 0 && y >= 0 && x < nx && y < ny && filled[y * nx + x];
+		}
+
+		/**
+		 * Trace the boundaries of the filled cells to create polygons.
+		 * <p>
+		 * Cells that touch only diagonally are treated as separate regions.
+		 *
+		 * @param factory
+		 * @return
+		 */
+		Geometry traceGeometry(final GeometryFactory factory) {
+			// Record the directions of boundary edges leaving each vertex, with filled cells on the right
+			int stride = nx + 1;
+			byte[] edges = new byte[stride * (ny + 1)];
+			for (int y = 0; y < ny; y++) {
+				for (int x = 0; x < nx; x++) {
+					if (!filled[y * nx + x])
+						continue;
+					if (!isFilled(x, y - 1))
+						edges[y * stride + x] |= 1 << EAST;
+					if (!isFilled(x + 1, y))
+						edges[y * stride + x + 1] |= 1 << SOUTH;
+					if (!isFilled(x, y + 1))
+						edges[(y + 1) * stride + x + 1] |= 1 << WEST;
+					if (!isFilled(x - 1, y))
+						edges[(y + 1) * stride + x] |= 1 << NORTH;
+				}
+			}
+
+			List<LinearRing> shells = new ArrayList<>();
+			List<LinearRing> holes = new ArrayList<>();
+			List<Coordinate> holePoints = new ArrayList<>();
+			List<int[]> vertices = new ArrayList<>();
+			for (int v = 0; v < edges.length; v++) {
+				while (edges[v] != 0) {
+					vertices.clear();
+					traceRing(edges, v % stride, v / stride, Integer.numberOfTrailingZeros(edges[v]), vertices);
+					for (var ring : splitRing(vertices)) {
+						var linearRing = createRing(ring, factory);
+						if (isHole(linearRing)) {
+							holes.add(linearRing);
+							// The cell to the left of the first edge is empty, and inside the hole
+							int x = ring.get(0)[0], y = ring.get(0)[1], dir = ring.get(0)[2];
+							int cx = x - (dir == WEST || dir == NORTH ? 1 : 0);
+							int cy = y - (dir == EAST || dir == NORTH ? 1 : 0);
+							holePoints.add(new Coordinate(x0 + (cx + 0.5) * cellWidth, y0 + (cy + 0.5) * cellHeight));
+						} else
+							shells.add(linearRing);
+					}
+				}
+			}
+			return createPolygons(shells, holes, holePoints, factory);
+		}
+
+		/**
+		 * Follow boundary edges from a vertex until returning to the first edge, removing edges as they are used.
+		 * Where there is a choice (i.e. cells touch diagonally), turn right to keep following the same cell.
+		 * <p>
+		 * Each corner is added to the output list as {x, y, outgoing direction}.
+		 */
+		private void traceRing(final byte[] edges, final int xStart, final int yStart, final int dirStart, final List<int[]> vertices) {
+			int stride = nx + 1;
+			int x = xStart, y = yStart, dir = dirStart;
+			vertices.add(new int[] {x, y, dir});
+			while (true) {
+				edges[y * stride + x] &= ~(1 << dir);
+				x += DX[dir];
+				y += DY[dir];
+				int available = edges[y * stride + x];
+				int next = -1;
+				for (int turn : TURNS) {
+					int d = (dir + turn) % 4;
+					if ((available & (1 << d)) != 0 || (x == xStart && y == yStart && d == dirStart)) {
+						next = d;
+						break;
+					}
+				}
+				if (x == xStart && y == yStart && next == dirStart)
+					return;
+				if (next != dir)
+					vertices.add(new int[] {x, y, next});
+				dir = next;
+			}
+		}
+
+		/**
+		 * Split a traced ring wherever it passes through the same vertex more than once, so that each ring is simple.
+		 * This happens where cells touch diagonally.
+		 */
+		private List<List<int[]>> splitRing(final List<int[]> vertices) {
+			List<List<int[]>> rings = new ArrayList<>();
+			List<int[]> stack = new ArrayList<>();
+			Map<Long, Integer> indices = new HashMap<>();
+			for (var vertex : vertices) {
+				long key = (long)vertex[1] * (nx + 1) + vertex[0];
+				Integer ind = indices.get(key);
+				if (ind == null) {
+					indices.put(key, stack.size());
+					stack.add(vertex);
+					continue;
+				}
+				// Remove the loop since the vertex was last visited, and continue from the vertex with the new direction
+				var loop = new ArrayList<>(stack.subList(ind, stack.size()));
+				for (var v : loop)
+					indices.remove((long)v[1] * (nx + 1) + v[0]);
+				rings.add(loop);
+				stack.subList(ind, stack.size()).clear();
+				indices.put(key, stack.size());
+				stack.add(vertex);
+			}
+			rings.add(stack);
+			return rings;
+		}
+
+		private LinearRing createRing(final List<int[]> vertices, final GeometryFactory factory) {
+			var coords = new CoordinateList();
+			for (var v : vertices)
+				coords.add(new Coordinate(x0 + v[0] * cellWidth, y0 + v[1] * cellHeight), false);
+			coords.closeRing();
+			return factory.createLinearRing(coords.toCoordinateArray());
+		}
+
+		/**
+		 * Holes are traced anticlockwise (with y increasing downwards), since the filled cells are always on the right.
+		 */
+		private static boolean isHole(LinearRing ring) {
+			var coords = ring.getCoordinates();
+			double area2 = 0;
+			for (int i = 0; i < coords.length - 1; i++)
+				area2 += coords[i].x * coords[i+1].y - coords[i+1].x * coords[i].y;
+			return area2 < 0;
+		}
+
+		/**
+		 * Assign each hole to the smallest shell containing it, and create the polygons.
+		 */
+		private static Geometry createPolygons(final List<LinearRing> shells, final List<LinearRing> holes, final List<Coordinate> holePoints, final GeometryFactory factory) {
+			List<List<LinearRing>> shellHoles = new ArrayList<>();
+			for (int i = 0; i < shells.size(); i++)
+				shellHoles.add(new ArrayList<>());
+			if (!holes.isEmpty()) {
+				var tree = new STRtree();
+				for (int i = 0; i < shells.size(); i++)
+					tree.insert(shells.get(i).getEnvelopeInternal(), i);
+				IndexedPointInAreaLocator[] locators = new IndexedPointInAreaLocator[shells.size()];
+				for (int h = 0; h < holes.size(); h++) {
+					var p = holePoints.get(h);
+					int best = -1;
+					double bestArea = Double.POSITIVE_INFINITY;
+					for (Object o : tree.query(new Envelope(p))) {
+						int i = (Integer)o;
+						var shell = shells.get(i);
+						double area = shell.getEnvelopeInternal().getArea();
+						if (area >= bestArea)
+							continue;
+						if (locators[i] == null)
+							locators[i] = new IndexedPointInAreaLocator(shell);
+						if (locators[i].locate(p) == Location.INTERIOR) {
+							best = i;
+							bestArea = area;
+						}
+					}
+					if (best >= 0)
+						shellHoles.get(best).add(holes.get(h));
+					else
+						logger.warn("Unable to find shell for hole at {}", p);
+				}
+			}
+			Polygon[] polygons = new Polygon[shells.size()];
+			for (int i = 0; i < shells.size(); i++) {
+				polygons[i] = factory.createPolygon(shells.get(i), shellHoles.get(i).toArray(LinearRing[]::new));
+			}
+			if (polygons.length == 1)
+				return polygons[0];
+			return factory.createMultiPolygon(polygons);
+		}
+
+	}
+
+}
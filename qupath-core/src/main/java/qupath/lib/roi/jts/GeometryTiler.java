@@ -0,0 +1,299 @@
+package qupath.lib.roi.jts;
+
+import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygonal;
+import org.locationtech.jts.geom.TopologyException;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.geom.util.PolygonExtracter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.awt.common.AwtTools;
+import qupath.lib.common.TaskScheduler;
+import qupath.lib.common.TaskScheduler.Priority;
+import qupath.lib.common.TaskScheduler.TaskExecutor;
+import qupath.lib.geom.ImmutableDimension;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.PathROIToolsAwt;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.RectangleROI;
+import qupath.lib.roi.interfaces.PathArea;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Split area ROIs into tiles using Java Topology Suite geometries.
+ * <p>
+ * The ROI is converted to a {@link PreparedGeometry} once, so that tiles entirely outside the ROI can be rejected
+ * and tiles entirely inside accepted cheaply.
+ * Only tiles crossing the ROI boundary need to be clipped; this is done in parallel (one row of tiles per task, 
+ * using the shared {@link TaskScheduler}), using the part of the ROI that falls within the same row of tiles.
+ * <p>
+ * Tiles are returned as a stream in row-major order.
+ *
+ * @author Pete Bankhead
+ *
+ * @see PathROIToolsAwt#computeTiledROIs(ROI, ImmutableDimension, ImmutableDimension, boolean, int)
+ * @see PathROIToolsAwt#makeTiles(PathArea, int, int, boolean)
+ */
+public class GeometryTiler {
+
+	private final static Logger logger = LoggerFactory.getLogger(GeometryTiler.class);
+
+	/**
+	 * Minimum number of vertices before clipping each row of tiles first, rather than clipping tiles directly.
+	 */
+	private final static int MIN_POINTS_FOR_ROWS = 500;
+
+	private static TaskExecutor pool = TaskScheduler.getInstance().createExecutor("geometry-tiler", Priority.ANALYSIS);
+
+	private final PathArea pathArea;
+	private final ImagePlane plane;
+	private final Geometry geometry;
+	private final PreparedGeometry prepared;
+	private final GeometryFactory factory;
+	private final boolean clipRows;
+
+	private final Map<Integer, Geometry> rowGeometries = new ConcurrentHashMap<>();
+	private Area area;
+
+	private GeometryTiler(final PathArea pathArea, final ImagePlane plane) {
+		this.pathArea = pathArea;
+		this.plane = plane;
+		Geometry geometry = null;
+		try {
+			geometry = pathArea.getGeometry();
+		} catch (IllegalArgumentException | TopologyException e) {
+			logger.warn("Unable to convert ROI to a JTS Geometry, will tile using java.awt.geom.Area instead ({})", e.getLocalizedMessage());
+		}
+		this.geometry = geometry;
+		if (geometry == null) {
+			this.prepared = null;
+			this.factory = new GeometryFactory();
+			this.clipRows = false;
+		} else {
+			this.prepared = PreparedGeometryFactory.prepare(geometry);
+			this.factory = geometry.getFactory();
+			this.clipRows = geometry.getNumPoints() >= MIN_POINTS_FOR_ROWS;
+		}
+	}
+
+	/**
+	 * Stream tiled ROIs corresponding to a specified parentROI if it is larger than sizeMax.
+	 * <p>
+	 * If the parentROI is smaller (or not an area), a stream containing only the parentROI is returned.
+	 * Otherwise, tiles are centered on the ROI bounds; tiles that are completely within the ROI are returned
+	 * as rectangles, while those overlapping the boundary are clipped.
+	 *
+	 * @param parentROI
+	 * @param sizePreferred
+	 * @param sizeMax
+	 * @param fixedSize
+	 * @param overlap
+	 * @return
+	 */
+	public static Stream<ROI> streamTiledROIs(final ROI parentROI, final ImmutableDimension sizePreferred, final ImmutableDimension sizeMax, final boolean fixedSize, final int overlap) {
+		PathArea pathArea = parentROI instanceof PathArea ? (PathArea)parentROI : null;
+		if (pathArea == null || (parentROI.getBoundsWidth() <= sizeMax.width && parentROI.getBoundsHeight() <= sizeMax.height))
+			return Stream.of(parentROI);
+
+		double boundsX = parentROI.getBoundsX();
+		double boundsY = parentROI.getBoundsY();
+		double boundsWidth = parentROI.getBoundsWidth();
+		double boundsHeight = parentROI.getBoundsHeight();
+
+		int nx = (int)Math.ceil(boundsWidth / sizePreferred.width);
+		int ny = (int)Math.ceil(boundsHeight / sizePreferred.height);
+		double w = fixedSize ? sizePreferred.width : (int)Math.ceil(boundsWidth / nx);
+		double h = fixedSize ? sizePreferred.height : (int)Math.ceil(boundsHeight / ny);
+
+		// Center the tiles
+		double xMin = (int)(boundsX + boundsWidth/2.0 - (nx * w * .5));
+		double yMin = (int)(boundsY + boundsHeight/2.0 - (ny * h * .5));
+
+		var plane = ImagePlane.getPlaneWithChannel(parentROI);
+		var bounds = new Rectangle2D.Double(boundsX, boundsY, boundsWidth, boundsHeight);
+		var tiler = parentROI instanceof RectangleROI ? null : new GeometryTiler(pathArea, plane);
+
+		return computeTiles(nx, ny, ind -> {
+			int xi = ind % nx;
+			int yi = ind / nx;
+			double x = xMin + xi * w - overlap;
+			double y = yMin + yi * h - overlap;
+			var tile = new Rectangle2D.Double(x, y, w + overlap*2, h + overlap*2);
+			if (tiler == null) {
+				// Rectangles can be intersected directly
+				var intersection = tile.createIntersection(bounds);
+				return ROIs.createRectangleROI(intersection.getX(), intersection.getY(), intersection.getWidth(), intersection.getHeight(), plane);
+			}
+			return tiler.getTileROI(tile, yi, xMin - overlap, nx * w + overlap*2);
+		});
+	}
+
+	/**
+	 * Stream fixed-size tiles covering an area ROI, starting from the top left of its bounding box.
+	 * <p>
+	 * Tiles completely within the ROI are always included.  Tiles overlapping the boundary are either clipped
+	 * to the ROI (if trimToROI is true), or included as rectangles only if their center is within the ROI.
+	 * Tiles are created for the default image plane.
+	 *
+	 * @param pathArea
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param trimToROI
+	 * @return
+	 */
+	public static Stream<ROI> streamTiles(final PathArea pathArea, final int tileWidth, final int tileHeight, final boolean trimToROI) {
+		var bounds = AwtTools.getBounds(pathArea);
+		int x0 = bounds.x;
+		int y0 = bounds.y;
+		int nx = (int)Math.ceil(bounds.width / (double)tileWidth);
+		int ny = (int)Math.ceil(bounds.height / (double)tileHeight);
+		if (nx <= 0 || ny <= 0)
+			return Stream.empty();
+
+		var tiler = new GeometryTiler(pathArea, ImagePlane.getDefaultPlane());
+		return computeTiles(nx, ny, ind -> {
+			int x = x0 + (ind % nx) * tileWidth;
+			int y = y0 + (ind / nx) * tileHeight;
+			var tile = new Rectangle2D.Double(x, y, tileWidth, tileHeight);
+			if (trimToROI)
+				return tiler.getTileROI(tile, ind / nx, x0, nx * tileWidth);
+			// If we aren't trimming, then check if the centroid is contained
+			if (tiler.containsTileOrCenter(tile))
+				return ROIs.createRectangleROI(x, y, tileWidth, tileHeight, tiler.plane);
+			return null;
+		});
+	}
+
+	/**
+	 * Compute the tiles for each row in parallel, and return the non-null tiles in row-major order.
+	 *
+	 * @param nx number of tiles in each row
+	 * @param ny number of rows
+	 * @param tileFunction function to compute the tile at each (row-major) index, or null if there is no tile
+	 * @return
+	 */
+	private static Stream<ROI> computeTiles(final int nx, final int ny, final IntFunction<ROI> tileFunction) {
+		List<Callable<List<ROI>>> tasks = new ArrayList<>();
+		for (int yi = 0; yi < ny; yi++) {
+			int start = yi * nx;
+			tasks.add(() -> {
+				List<ROI> row = new ArrayList<>();
+				for (int ind = start; ind < start + nx; ind++) {
+					var tile = tileFunction.apply(ind);
+					if (tile != null)
+						row.add(tile);
+				}
+				return row;
+			});
+		}
+		List<ROI> tiles = new ArrayList<>();
+		try {
+			for (var future : pool.invokeAll(tasks))
+				tiles.addAll(future.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Interrupted while computing tiles");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		return tiles.stream();
+	}
+
+	private boolean containsTileOrCenter(final Rectangle2D tile) {
+		if (prepared == null)
+			return getArea().contains(tile) || getArea().contains(tile.getCenterX(), tile.getCenterY());
+		var envelope = new Envelope(tile.getMinX(), tile.getMaxX(), tile.getMinY(), tile.getMaxY());
+		return prepared.contains(factory.toGeometry(envelope)) || prepared.contains(factory.createPoint(envelope.centre()));
+	}
+
+	/**
+	 * Get the ROI for a single tile, clipped to the geometry if necessary.
+	 *
+	 * @param tile the tile bounds; all tiles in the same row should have the same y-coordinate and height
+	 * @param row the row containing the tile
+	 * @param rowX x-coordinate of the start of every row
+	 * @param rowWidth width of every row
+	 * @return the tile ROI, or null if the tile does not intersect the geometry
+	 */
+	private ROI getTileROI(final Rectangle2D tile, final int row, final double rowX, final double rowWidth) {
+		if (prepared == null)
+			return getTileROIWithArea(tile);
+		var envelope = new Envelope(tile.getMinX(), tile.getMaxX(), tile.getMinY(), tile.getMaxY());
+		var tileGeometry = factory.toGeometry(envelope);
+		if (!prepared.intersects(tileGeometry))
+			return null;
+		if (prepared.contains(tileGeometry))
+			return ROIs.createRectangleROI(tile.getX(), tile.getY(), tile.getWidth(), tile.getHeight(), plane);
+
+		try {
+			Geometry source = geometry;
+			if (clipRows) {
+				source = rowGeometries.computeIfAbsent(row, r -> {
+					var rowEnvelope = new Envelope(rowX, rowX + rowWidth, tile.getMinY(), tile.getMaxY());
+					return geometry.intersection(factory.toGeometry(rowEnvelope));
+				});
+			}
+			var clipped = getPolygonal(source.intersection(tileGeometry));
+			if (clipped.isEmpty())
+				return null;
+			if (clipped.isRectangle()) {
+				var env = clipped.getEnvelopeInternal();
+				return ROIs.createRectangleROI(env.getMinX(), env.getMinY(), env.getWidth(), env.getHeight(), plane);
+			}
+			return ConverterJTS.convertGeometryToROI(clipped, plane);
+		} catch (TopologyException e) {
+			logger.debug("Unable to clip tile with JTS, will use java.awt.geom.Area instead ({})", e.getLocalizedMessage());
+			return getTileROIWithArea(tile);
+		}
+	}
+
+	private ROI getTileROIWithArea(final Rectangle2D tile) {
+		var area = getArea();
+		if (area.contains(tile))
+			return ROIs.createRectangleROI(tile.getX(), tile.getY(), tile.getWidth(), tile.getHeight(), plane);
+		if (!area.intersects(tile))
+			return null;
+		var tileArea = new Area(tile);
+		tileArea.intersect(area);
+		if (tileArea.isEmpty())
+			return null;
+		return PathROIToolsAwt.getShapeROI(tileArea, plane, -1);
+	}
+
+	/**
+	 * Remove any points or lines resulting from an intersection, where polygons only touch.
+	 */
+	private Geometry getPolygonal(final Geometry geometry) {
+		if (geometry instanceof Polygonal)
+			return geometry;
+		var polygons = PolygonExtracter.getPolygons(geometry);
+		if (polygons.isEmpty())
+			return factory.createPolygon();
+		return factory.buildGeometry(polygons);
+	}
+
+	private synchronized Area getArea() {
+		if (area == null)
+			area = PathROIToolsAwt.getArea(pathArea);
+		return area;
+	}
+
+}
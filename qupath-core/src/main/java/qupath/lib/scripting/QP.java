@@ -93,7 +93,7 @@ public class QP {
 	final public static ImageData.ImageType FLUORESCENCE = ImageData.ImageType.FLUORESCENCE;
 	final public static ImageData.ImageType OTHER = ImageData.ImageType.OTHER;
 	
-	private static WeakHashMap<Thread, ImageData<?>> batchImageData = new WeakHashMap<>();
+	private static Map<Thread, ImageData<?>> batchImageData = Collections.synchronizedMap(new WeakHashMap<>());
 	
 	
 	/**
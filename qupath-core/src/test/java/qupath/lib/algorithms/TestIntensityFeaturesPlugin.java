@@ -0,0 +1,73 @@
+package qupath.lib.algorithms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.ImageData.ImageType;
+import qupath.lib.images.servers.ImageIoImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.plugins.parameters.BooleanParameter;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+public class TestIntensityFeaturesPlugin {
+
+	private static List<PathObject> createObjects(final ImagePlane plane) {
+		List<PathObject> pathObjects = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			pathObjects.add(PathObjects.createDetectionObject(ROIs.createEllipseROI(10 + i * 30, 20 + i * 5, 20, 15, plane)));
+			pathObjects.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(15 + i * 25, 80, 12, 18, plane)));
+		}
+		return pathObjects;
+	}
+
+	@Test
+	public void testSharedTile() throws Exception {
+		var random = new Random(100L);
+		var img = new BufferedImage(200, 150, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++)
+				img.setRGB(x, y, random.nextInt(0xffffff));
+		}
+		var server = new ImageIoImageServer("test", null, img);
+		var imageData = new ImageData<>(server, ImageType.BRIGHTFIELD_H_DAB);
+		var stains = imageData.getColorDeconvolutionStains();
+
+		var params = new IntensityFeaturesPlugin().getDefaultParameterList(imageData);
+		for (var parameter : params.getParameters().values()) {
+			if (parameter instanceof BooleanParameter)
+				((BooleanParameter)parameter).setValue(Boolean.TRUE);
+		}
+
+		// Objects measured together using a shared tile should have the same measurements as those measured individually
+		var plane = ImagePlane.getDefaultPlane();
+		var expected = createObjects(plane);
+		for (var pathObject : expected)
+			assertTrue(IntensityFeaturesPlugin.processObject(pathObject, params, server, stains));
+		var shared = createObjects(plane);
+		for (var pathObject : shared)
+			assertNotNull(IntensityFeaturesPlugin.getSharedTileRegion(pathObject, params, server, 1.0));
+		assertTrue(IntensityFeaturesPlugin.processObjects(shared, params, server, stains));
+
+		for (int i = 0; i < expected.size(); i++) {
+			var measurementsExpected = expected.get(i).getMeasurementList();
+			var measurements = shared.get(i).getMeasurementList();
+			assertFalse(measurementsExpected.isEmpty());
+			assertEquals(measurementsExpected.getMeasurementNames(), measurements.getMeasurementNames());
+			for (int m = 0; m < measurementsExpected.size(); m++)
+				assertEquals(measurementsExpected.getMeasurementValue(m), measurements.getMeasurementValue(m), 1e-6);
+		}
+	}
+
+}
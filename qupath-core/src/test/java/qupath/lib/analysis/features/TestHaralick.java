@@ -23,9 +23,17 @@
 
 package qupath.lib.analysis.features;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import java.io.IOException;
+import java.util.Random;
+
 import org.junit.Test;
 
+import qupath.lib.analysis.algorithms.FloatArraySimpleImage;
+import qupath.lib.analysis.algorithms.SimpleImage;
+
 // TODO: Implement Haralick tests... this file is kept only to provide a starting point!
 public class TestHaralick {
 //	private final int PIXELS_SHORT_DIM = 4;
@@ -93,4 +101,87 @@ public class TestHaralick {
         
 	}
 	
+	@Test
+	public void test_sparseMatrices() {
+		var rand = new Random(100L);
+		int width = 40, height = 30;
+		for (int nBins : new int[] {8, 32, 256}) {
+			for (int d : new int[] {1, 2, 5}) {
+				float[] pixels = new float[width * height];
+				float[] maskPixels = new float[width * height];
+				for (int i = 0; i < pixels.length; i++) {
+					// Include NaNs and values outside the min/max range
+					pixels[i] = rand.nextInt(20) == 0 ? Float.NaN : (float)(rand.nextGaussian() * 50 + 100);
+					maskPixels[i] = rand.nextInt(5) == 0 ? 0 : 1;
+				}
+				SimpleImage img = new FloatArraySimpleImage(pixels, width, height);
+				SimpleImage mask = new FloatArraySimpleImage(maskPixels, width, height);
+				for (SimpleImage m : new SimpleImage[] {null, mask}) {
+					var expected = HaralickFeatureComputer.updateCooccurrenceMatrices(null, img, m, 5, 3, 30, 20, nBins, 20, 180, d).getMeanFeatures();
+					var sparse = SparseCoocurranceMatrices.acquire(nBins);
+					sparse.update(img, m, 5, 3, 30, 20, 20, 180, d);
+					var features = sparse.getMeanFeatures();
+					sparse.release();
+					for (int i = 0; i < expected.nFeatures(); i++)
+						assertFeatureEquals(expected, features, i);
+					assertTrue(!Double.isNaN(features.getFeature(0)));
+				}
+			}
+		}
+		
+		// Matrices should be reset before reuse, and updates should accumulate
+		float[] pixels = new float[width * height];
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = rand.nextFloat() * 255;
+		SimpleImage img = new FloatArraySimpleImage(pixels, width, height);
+		var expected = HaralickFeatureComputer.updateCooccurrenceMatrices(null, img, null, 0, 0, 20, height, 32, 0, 255, 1);
+		expected = HaralickFeatureComputer.updateCooccurrenceMatrices(expected, img, null, 20, 0, 20, height, 32, 0, 255, 1);
+		var sparse = SparseCoocurranceMatrices.acquire(32);
+		sparse.update(img, null, 0, 0, 20, height, 0, 255, 1);
+		sparse.update(img, null, 20, 0, 20, height, 0, 255, 1);
+		var features = sparse.getMeanFeatures();
+		for (int i = 0; i < features.nFeatures(); i++)
+			assertFeatureEquals(expected.getMeanFeatures(), features, i);
+		
+		// Neighbors outside the bounding box should be used in the same way
+		sparse.reset();
+		sparse.update(img, null, 0, 5, width, 1, 0, 255, 1);
+		features = sparse.getMeanFeatures();
+		var expectedFeatures = HaralickFeatureComputer.updateCooccurrenceMatrices(null, img, null, 0, 5, width, 1, 32, 0, 255, 1).getMeanFeatures();
+		for (int i = 0; i < features.nFeatures(); i++)
+			assertFeatureEquals(expectedFeatures, features, i);
+		sparse.release();
+	}
+	
+	@Test
+	public void test_sparseMatricesLargeROI() {
+		// A large, smooth region gives counts beyond the lookup table used for logs
+		var rand = new Random(101L);
+		int width = 2000, height = 1500;
+		float[] pixels = new float[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				pixels[y * width + x] = (float)(x * 255.0 / width + rand.nextGaussian() * 5);
+		}
+		SimpleImage img = new FloatArraySimpleImage(pixels, width, height);
+		for (int nBins : new int[] {4, 32}) {
+			var expected = HaralickFeatureComputer.updateCooccurrenceMatrices(null, img, null, 0, 0, width, height, nBins, 0, 255, 1).getMeanFeatures();
+			var sparse = SparseCoocurranceMatrices.acquire(nBins);
+			sparse.update(img, null, 0, 0, width, height, 0, 255, 1);
+			var features = sparse.getMeanFeatures();
+			sparse.release();
+			for (int i = 0; i < expected.nFeatures(); i++)
+				assertFeatureEquals(expected, features, i);
+		}
+	}
+	
+	/**
+	 * Most features should be identical, but information measures of correlation are computed differently
+	 * and so may differ by rounding errors.
+	 */
+	private static void assertFeatureEquals(HaralickFeatures expected, HaralickFeatures features, int i) {
+		double tol = i >= 11 ? 1e-10 : 0.0;
+		assertEquals(expected.getFeature(i), features.getFeature(i), tol);
+	}
+	
 }
@@ -0,0 +1,116 @@
+package qupath.lib.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import qupath.lib.common.TaskScheduler.Priority;
+import qupath.lib.common.TaskScheduler.Resource;
+
+public class TestTaskScheduler {
+
+	@Test
+	public void testSequential() throws Exception {
+		var scheduler = new TaskScheduler();
+		var executor = scheduler.createExecutor("sequential", Priority.ANALYSIS, 1);
+		List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+		for (int i = 0; i < 20; i++) {
+			int ind = i;
+			executor.submit(() -> order.add(ind));
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		for (int i = 0; i < 20; i++)
+			assertEquals(i, order.get(i).intValue());
+		assertEquals(20, executor.getMetrics().getCompletedCount());
+	}
+
+	@Test
+	public void testBudget() throws Exception {
+		var scheduler = new TaskScheduler();
+		scheduler.setBudget(Resource.CPU, 3);
+		var analysis = scheduler.createExecutor("analysis", Priority.ANALYSIS);
+		var running = new AtomicInteger();
+		var maxRunning = new AtomicInteger();
+		var started = new CountDownLatch(2);
+		var release = new CountDownLatch(1);
+		for (int i = 0; i < 10; i++) {
+			analysis.submit(() -> {
+				maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				started.countDown();
+				release.await();
+				running.decrementAndGet();
+				return null;
+			});
+		}
+		// Wait until the analysis tasks have taken all the budget available to them
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		// An overlay task should still start, because space is reserved for higher priority tasks
+		var overlay = scheduler.createExecutor("overlay", Priority.OVERLAY);
+		assertTrue(overlay.submit(() -> true).get(10, TimeUnit.SECONDS));
+		assertEquals(2, scheduler.getMetrics(Priority.ANALYSIS).getRunningCount());
+		assertEquals(8, scheduler.getMetrics(Priority.ANALYSIS).getQueuedCount());
+		assertEquals(2, maxRunning.get());
+
+		release.countDown();
+		analysis.shutdown();
+		assertTrue(analysis.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(2, maxRunning.get());
+		assertEquals(10, scheduler.getMetrics(Priority.ANALYSIS).getCompletedCount());
+	}
+
+	@Test
+	public void testNested() throws Exception {
+		// Tasks waiting for other tasks shouldn't deadlock, even if they use up the whole budget
+		var scheduler = new TaskScheduler();
+		scheduler.setBudget(Resource.IO, 1);
+		var outer = scheduler.createExecutor("outer", Priority.INTERACTIVE_TILE);
+		var inner = scheduler.createExecutor("inner", Priority.INTERACTIVE_TILE);
+		var future = outer.submit(() -> {
+			List<Callable<Integer>> tasks = new ArrayList<>();
+			for (int i = 0; i < 5; i++) {
+				int ind = i;
+				tasks.add(() -> ind);
+			}
+			int sum = 0;
+			for (var f : inner.invokeAll(tasks))
+				sum += f.get();
+			return sum;
+		});
+		assertEquals(10, future.get(10, TimeUnit.SECONDS).intValue());
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		var scheduler = new TaskScheduler();
+		var executor = scheduler.createExecutor("cancel", Priority.BACKGROUND_IO, 1);
+		var started = new CountDownLatch(1);
+		var interrupted = new CountDownLatch(1);
+		executor.submit(() -> {
+			started.countDown();
+			try {
+				Thread.sleep(10000);
+			} catch (InterruptedException e) {
+				interrupted.countDown();
+			}
+		});
+		for (int i = 0; i < 5; i++)
+			executor.submit(() -> {});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		assertEquals(5, executor.shutdownNow().size());
+		assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(5, executor.getMetrics().getCancelledCount());
+		assertEquals(1, executor.getMetrics().getCompletedCount());
+	}
+
+}
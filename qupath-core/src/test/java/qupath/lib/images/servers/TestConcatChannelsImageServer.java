@@ -0,0 +1,104 @@
+package qupath.lib.images.servers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import qupath.lib.regions.RegionRequest;
+
+public class TestConcatChannelsImageServer {
+
+	private static BufferedImage createGrayImage(int width, int height, long seed) {
+		var img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		var rand = new Random(seed);
+		byte[] pixels = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
+		rand.nextBytes(pixels);
+		return img;
+	}
+
+	@Test
+	public void testSharedRaster() {
+		var raster1 = createGrayImage(30, 20, 1L).getRaster();
+		var raster2 = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, 30, 20, 2, null);
+		raster2.setSample(5, 6, 1, 42);
+		var raster = ConcatChannelsImageServer.createSharedRaster(Arrays.asList(raster1, raster2));
+		assertNotNull(raster);
+		assertEquals(3, raster.getNumBands());
+		// The data arrays should be shared, not copied
+		var buffer = (DataBufferByte)raster.getDataBuffer();
+		assertSame(((DataBufferByte)raster1.getDataBuffer()).getData(), buffer.getData(0));
+		assertSame(((DataBufferByte)raster2.getDataBuffer()).getData(1), buffer.getData(2));
+		assertEquals(42, raster.getSample(5, 6, 2));
+		assertEquals(raster1.getSample(7, 8, 0), raster.getSample(7, 8, 0));
+
+		// Pixel-interleaved data can't be shared, but can be copied
+		var raster3 = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, 30, 20, 3, null);
+		raster3.setSample(1, 2, 2, 99);
+		var rasters = Arrays.asList(raster1, raster3);
+		assertNull(ConcatChannelsImageServer.createSharedRaster(rasters));
+		var copied = ConcatChannelsImageServer.createCopiedRaster(rasters);
+		assertEquals(DataBuffer.TYPE_BYTE, copied.getDataBuffer().getDataType());
+		assertEquals(99, copied.getSample(1, 2, 3));
+		assertEquals(raster1.getSample(7, 8, 0), copied.getSample(7, 8, 0));
+
+		// Mixed types are converted to float
+		WritableRaster raster4 = Raster.createBandedRaster(DataBuffer.TYPE_USHORT, 30, 20, 1, null);
+		raster4.setSample(3, 4, 0, 1000);
+		copied = ConcatChannelsImageServer.createCopiedRaster(Arrays.asList(raster1, raster4));
+		assertEquals(DataBuffer.TYPE_FLOAT, copied.getDataBuffer().getDataType());
+		assertEquals(1000f, copied.getSampleFloat(3, 4, 1), 0f);
+	}
+
+	@Test
+	public void testReadRegion() throws IOException {
+		var img1 = createGrayImage(200, 150, 1L);
+		var img2 = createGrayImage(200, 150, 2L);
+		var server1 = new ImageIoImageServer("server1", "server1", img1);
+		var server2 = new ImageIoImageServer("server2", "server2", img2);
+		var server = new ConcatChannelsImageServer(server1, Arrays.asList(server1, server2));
+		assertEquals(server1.nChannels() + server2.nChannels(), server.nChannels());
+
+		var request = RegionRequest.createInstance(server.getPath(), 1, 10, 20, 100, 50);
+		var img = server.readBufferedImage(request);
+		assertEquals(100, img.getWidth());
+		assertEquals(50, img.getHeight());
+		for (int y = 0; y < 50; y++) {
+			for (int x = 0; x < 100; x++) {
+				assertEquals(img1.getRaster().getSample(x + 10, y + 20, 0), img.getRaster().getSample(x, y, 0));
+				assertEquals(img2.getRaster().getSample(x + 10, y + 20, 0), img.getRaster().getSample(x, y, 1));
+			}
+		}
+	}
+
+	@Test
+	public void testReadMixedTypes() throws IOException {
+		var img1 = createGrayImage(200, 150, 1L);
+		var img2 = new BufferedImage(200, 150, BufferedImage.TYPE_USHORT_GRAY);
+		img2.getRaster().setSample(50, 60, 0, 1000);
+		var server1 = new ImageIoImageServer("server1", "server1", img1);
+		var server2 = new ImageIoImageServer("server2", "server2", img2);
+		var server = new ConcatChannelsImageServer(server1, Arrays.asList(server1, server2));
+		assertEquals(32, server.getBitsPerPixel());
+
+		// The channels should be combined as float, with a color model that matches
+		var request = RegionRequest.createInstance(server.getPath(), 1, 0, 0, 100, 100);
+		var img = server.readBufferedImage(request);
+		assertEquals(DataBuffer.TYPE_FLOAT, img.getRaster().getDataBuffer().getDataType());
+		assertEquals(32, img.getColorModel().getPixelSize());
+		assertEquals(img1.getRaster().getSample(50, 60, 0), img.getRaster().getSampleFloat(50, 60, 0), 0f);
+		assertEquals(1000f, img.getRaster().getSampleFloat(50, 60, 1), 0f);
+	}
+
+}
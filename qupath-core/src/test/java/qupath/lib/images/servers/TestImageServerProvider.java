@@ -0,0 +1,45 @@
+package qupath.lib.images.servers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import qupath.lib.images.servers.FileFormatInfo.ImageCheckType;
+
+public class TestImageServerProvider {
+
+	@Test
+	public void testProbeCache() throws IOException {
+		var file = File.createTempFile("qupath-probe", ".tif");
+		try {
+			ImageIO.write(new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB), "tiff", file);
+			var uri = file.toURI();
+			assertEquals(ImageCheckType.TIFF_2D_RGB, FileFormatInfo.checkImageType(uri));
+
+			var probe = ImageServerProvider.getProbeResult(uri);
+			assertEquals(ImageCheckType.TIFF_2D_RGB, probe.getType());
+			assertSame(probe, ImageServerProvider.getProbeResult(uri));
+
+			// Changing the file should result in it being probed again
+			Files.write(file.toPath(), new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+			var probeChanged = ImageServerProvider.getProbeResult(uri);
+			assertNotSame(probe, probeChanged);
+			assertEquals(ImageCheckType.UNKNOWN, probeChanged.getType());
+
+			ImageServerProvider.clearProbeCache();
+			assertNotSame(probeChanged, ImageServerProvider.getProbeResult(uri));
+		} finally {
+			file.delete();
+		}
+	}
+
+}
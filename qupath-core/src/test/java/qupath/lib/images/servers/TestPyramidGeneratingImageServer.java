@@ -0,0 +1,199 @@
+package qupath.lib.images.servers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import qupath.lib.regions.RegionRequest;
+
+public class TestPyramidGeneratingImageServer {
+
+	/**
+	 * Server that counts how often each region is requested, and reads slowly to make overlapping requests more likely.
+	 */
+	private static class CountingImageServer extends ImageIoImageServer {
+
+		private final Map<RegionRequest, AtomicInteger> counts = new ConcurrentHashMap<>();
+
+		CountingImageServer(String path, BufferedImage img) {
+			super(path, null, img);
+		}
+
+		@Override
+		public BufferedImage readBufferedImage(RegionRequest request) {
+			counts.computeIfAbsent(request, r -> new AtomicInteger()).incrementAndGet();
+			try {
+				Thread.sleep(5);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.readBufferedImage(request);
+		}
+
+		/**
+		 * Nothing to release, so narrow the exception thrown when closing.
+		 */
+		@Override
+		public void close() {}
+
+	}
+
+	/**
+	 * Average of a square block of samples from the full resolution image.
+	 */
+	private static double blockMean(BufferedImage img, int x, int y, int size, int shift) {
+		double sum = 0;
+		for (int yy = y; yy < y + size; yy++) {
+			for (int xx = x; xx < x + size; xx++) {
+				if (shift < 0)
+					sum += img.getRaster().getSample(xx, yy, 0);
+				else
+					sum += (img.getRGB(xx, yy) >> shift) & 0xff;
+			}
+		}
+		return sum / (size * size);
+	}
+
+	@Test
+	public void testRGB() throws Exception {
+		var random = new Random(10L);
+		var img = new BufferedImage(1100, 700, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++)
+				img.setRGB(x, y, random.nextInt(0xffffff));
+		}
+		var server = new PyramidGeneratingImageServer(new ImageIoImageServer("pyramid-rgb", null, img));
+		try {
+			assertTrue(server.isRGB());
+			assertArrayEquals(new double[] {1, 2, 4, 8}, server.getPreferredDownsamples(), 0.0);
+			assertEquals(550, server.getLevelWidth(1));
+			assertEquals(87, server.getLevelHeight(3));
+
+			// Full resolution tiles come straight from the original image
+			var full = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), 1, 300, 200, 400, 300));
+			for (int y = 0; y < full.getHeight(); y++) {
+				for (int x = 0; x < full.getWidth(); x++)
+					assertEquals(img.getRGB(x + 300, y + 200), full.getRGB(x, y));
+			}
+
+			// Check a tile at a lower resolution, which may or may not have been generated in the background
+			var tile = server.getTile(2, 1024, 0, 0, 0);
+			for (int repeat = 0; repeat < 2; repeat++) {
+				var imgTile = server.readTile(tile);
+				assertEquals(19, imgTile.getWidth());
+				assertEquals(175, imgTile.getHeight());
+				for (int y = 0; y < imgTile.getHeight(); y++) {
+					for (int x = 0; x < imgTile.getWidth(); x++) {
+						for (int shift = 0; shift <= 16; shift += 8) {
+							double expected = blockMean(img, 1024 + x * 4, y * 4, 4, shift);
+							assertEquals(expected, (imgTile.getRGB(x, y) >> shift) & 0xff, 1.0);
+						}
+					}
+				}
+				// Wait for the pyramid to be completed, then read from the cache instead
+				long startTime = System.currentTimeMillis();
+				while (!server.isPyramidComplete() && System.currentTimeMillis() - startTime < 10000)
+					Thread.sleep(10);
+				assertTrue(server.isPyramidComplete());
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentTiles() throws Exception {
+		var wrapped = new CountingImageServer("pyramid-concurrent", new BufferedImage(2048, 2048, BufferedImage.TYPE_INT_RGB));
+		var server = new PyramidGeneratingImageServer(wrapped);
+		var pool = Executors.newFixedThreadPool(4);
+		try {
+			// Request every tile of the lower resolution levels from several threads, while the pyramid is also being built
+			List<Callable<BufferedImage>> tasks = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				for (int level = server.nResolutions() - 1; level > 0; level--) {
+					for (var tile : server.getTiles(RegionRequest.createInstance(server.getPath(), server.getDownsampleForResolution(level), 0, 0, 2048, 2048)))
+						tasks.add(() -> server.readTile(tile));
+				}
+			}
+			for (var future : pool.invokeAll(tasks))
+				assertEquals(PyramidGeneratingImageServer.TILE_SIZE, future.get().getWidth());
+			long startTime = System.currentTimeMillis();
+			while (!server.isPyramidComplete() && System.currentTimeMillis() - startTime < 10000)
+				Thread.sleep(10);
+
+			// Each region of the full resolution image should only be read once (ignoring the small region read by the constructor)
+			int nRegions = 0;
+			for (var entry : wrapped.counts.entrySet()) {
+				if (entry.getKey().getWidth() == PyramidGeneratingImageServer.TILE_SIZE * 2) {
+					assertEquals(1, entry.getValue().get());
+					nRegions++;
+				}
+			}
+			assertEquals(16, nRegions);
+		} finally {
+			pool.shutdown();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		var wrapped = new CountingImageServer("pyramid-close", new BufferedImage(4096, 4096, BufferedImage.TYPE_INT_RGB));
+		var server = new PyramidGeneratingImageServer(wrapped);
+		var tile = server.getTile(3, 0, 0, 0, 0);
+		assertEquals(PyramidGeneratingImageServer.TILE_SIZE, server.readTile(tile).getWidth());
+
+		// Closing should stop the builder, and prevent any more tiles being read
+		server.close();
+		assertTrue(server.isPyramidComplete());
+		int nReads = wrapped.counts.size();
+		for (var request : new TileRequest[] {tile, server.getTile(2, 0, 0, 0, 0), server.getTile(1, 512, 512, 0, 0)}) {
+			try {
+				server.readTile(request);
+				fail("Reading a tile after closing should fail");
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+		Thread.sleep(50);
+		assertEquals(nReads, wrapped.counts.size());
+	}
+
+	@Test
+	public void testNonRGB() throws Exception {
+		var random = new Random(11L);
+		var img = new BufferedImage(600, 530, BufferedImage.TYPE_USHORT_GRAY);
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++)
+				img.getRaster().setSample(x, y, 0, random.nextInt(65536));
+		}
+		var server = new PyramidGeneratingImageServer(new ImageIoImageServer("pyramid-gray", null, img));
+		try {
+			assertEquals(3, server.nResolutions());
+			var region = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), 4, 0, 0, 600, 528));
+			assertEquals(150, region.getWidth());
+			assertEquals(132, region.getHeight());
+			for (int y = 0; y < region.getHeight(); y++) {
+				for (int x = 0; x < region.getWidth(); x++)
+					assertEquals(blockMean(img, x * 4, y * 4, 4, -1), region.getRaster().getSample(x, y, 0), 1.0);
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+}
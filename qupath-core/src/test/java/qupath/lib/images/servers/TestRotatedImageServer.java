@@ -0,0 +1,105 @@
+package qupath.lib.images.servers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import qupath.lib.images.servers.RotatedImageServer.Rotation;
+import qupath.lib.regions.RegionRequest;
+
+public class TestRotatedImageServer {
+	
+	private static void fillRandom(WritableRaster raster, Random rand) {
+		for (int y = 0; y < raster.getHeight(); y++) {
+			for (int x = 0; x < raster.getWidth(); x++) {
+				for (int b = 0; b < raster.getNumBands(); b++)
+					raster.setSample(x + raster.getMinX(), y + raster.getMinY(), b, rand.nextInt(256));
+			}
+		}
+	}
+	
+	/**
+	 * Check each rotated sample against the corresponding sample of the original.
+	 */
+	private static void checkRotated(Raster raster, Raster rotated, Rotation rotation) {
+		int w = raster.getWidth();
+		int h = raster.getHeight();
+		boolean isQuarter = rotation == Rotation.ROTATE_90 || rotation == Rotation.ROTATE_270;
+		assertEquals(isQuarter ? h : w, rotated.getWidth());
+		assertEquals(isQuarter ? w : h, rotated.getHeight());
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				int x2, y2;
+				switch (rotation) {
+				case ROTATE_90:
+					x2 = h - 1 - y;
+					y2 = x;
+					break;
+				case ROTATE_270:
+					x2 = y;
+					y2 = w - 1 - x;
+					break;
+				case ROTATE_180:
+					x2 = w - 1 - x;
+					y2 = h - 1 - y;
+					break;
+				default:
+					x2 = x;
+					y2 = y;
+				}
+				for (int b = 0; b < raster.getNumBands(); b++)
+					assertEquals(raster.getSampleDouble(x + raster.getMinX(), y + raster.getMinY(), b),
+							rotated.getSampleDouble(x2 + rotated.getMinX(), y2 + rotated.getMinY(), b), 0.0);
+			}
+		}
+	}
+
+	@Test
+	public void testRotateRaster() {
+		var rand = new Random(100L);
+		int w = 150, h = 83;
+		var rasters = Arrays.asList(
+				new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY).getRaster(),
+				new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB).getRaster(),
+				new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR).getRaster(),
+				new BufferedImage(w, h, BufferedImage.TYPE_BYTE_BINARY).getRaster(),
+				Raster.createBandedRaster(DataBuffer.TYPE_USHORT, w, h, 2, null),
+				Raster.createBandedRaster(DataBuffer.TYPE_INT, w, h, 1, null),
+				Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, w, h, 4, null),
+				// Child raster, with offsets into the parent data
+				new BufferedImage(w + 20, h + 10, BufferedImage.TYPE_3BYTE_BGR).getRaster().createWritableChild(7, 3, w, h, 7, 3, null)
+				);
+		for (var raster : rasters) {
+			fillRandom(raster, rand);
+			for (var rotation : Rotation.values())
+				checkRotated(raster, RotatedImageServer.rotateRaster(raster, rotation), rotation);
+		}
+	}
+	
+	@Test
+	public void testReadRegion() throws IOException {
+		// Large enough to require several tiles
+		for (int type : new int[] {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_GRAY}) {
+			var img = new BufferedImage(600, 420, type);
+			fillRandom(img.getRaster(), new Random(100L));
+			var server = new ImageIoImageServer("test", "test", img);
+			
+			for (var rotation : Rotation.values()) {
+				var rotated = new RotatedImageServer(server, rotation);
+				var request = RegionRequest.createInstance(rotated.getPath(), 1, 0, 0, rotated.getWidth(), rotated.getHeight());
+				checkRotated(img.getRaster(), rotated.readBufferedImage(request).getRaster(), rotation);
+				// Requesting again should give the same result (now from the cached tiles)
+				checkRotated(img.getRaster(), rotated.readBufferedImage(request).getRaster(), rotation);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,329 @@
+package qupath.lib.images.servers.tiff;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.plugins.tiff.BaselineTIFFTagSet;
+import javax.imageio.plugins.tiff.TIFFDirectory;
+import javax.imageio.plugins.tiff.TIFFField;
+import javax.imageio.plugins.tiff.TIFFTag;
+
+import org.junit.Test;
+
+import qupath.lib.images.servers.FileFormatInfo;
+import qupath.lib.regions.RegionRequest;
+
+public class TestTiffImageServer {
+
+	/**
+	 * Write a tiled TIFF, with each image after the first as a lower resolution level.
+	 */
+	private static File writeTiff(final String compression, final List<BufferedImage> images) throws IOException {
+		var file = File.createTempFile("qupath-tiff", ".tif");
+		file.deleteOnExit();
+		var writer = ImageIO.getImageWritersByFormatName("tiff").next();
+		try (var stream = ImageIO.createImageOutputStream(file)) {
+			writer.setOutput(stream);
+			var param = writer.getDefaultWriteParam();
+			param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setTiling(64, 48, 0, 0);
+			if (compression != null) {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionType(compression);
+			}
+			writer.prepareWriteSequence(null);
+			for (var img : images)
+				writer.writeToSequence(new IIOImage(img, null, null), param);
+			writer.endWriteSequence();
+		} finally {
+			writer.dispose();
+		}
+		return file;
+	}
+
+	/**
+	 * Write an LZW-compressed TIFF with a description for each image.
+	 * Images are tiled or written in strips according to {@code tiled}.
+	 */
+	private static File writeTiff(final List<BufferedImage> images, final List<String> descriptions, final List<Boolean> tiled) throws IOException {
+		var file = File.createTempFile("qupath-tiff", ".tif");
+		file.deleteOnExit();
+		var writer = ImageIO.getImageWritersByFormatName("tiff").next();
+		try (var stream = ImageIO.createImageOutputStream(file)) {
+			writer.setOutput(stream);
+			writer.prepareWriteSequence(null);
+			for (int i = 0; i < images.size(); i++) {
+				var img = images.get(i);
+				var param = writer.getDefaultWriteParam();
+				if (tiled.get(i)) {
+					param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+					param.setTiling(64, 48, 0, 0);
+				}
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionType("LZW");
+				var metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(img), param);
+				var dir = TIFFDirectory.createFromMetadata(metadata);
+				var tag = BaselineTIFFTagSet.getInstance().getTag(BaselineTIFFTagSet.TAG_IMAGE_DESCRIPTION);
+				dir.addTIFFField(new TIFFField(tag, TIFFTag.TIFF_ASCII, 1, new String[] {descriptions.get(i)}));
+				writer.writeToSequence(new IIOImage(img, null, dir.getAsMetadata()), param);
+			}
+			writer.endWriteSequence();
+		} finally {
+			writer.dispose();
+		}
+		return file;
+	}
+
+	private static BufferedImage createRGB(int width, int height, Random random) {
+		var img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				// Smooth with noise, so that compression and JPEG are both reasonable
+				int r = (x * 255 / width + random.nextInt(4)) & 0xff;
+				int g = (y * 255 / height) & 0xff;
+				int b = ((x + y) / 4) & 0xff;
+				img.setRGB(x, y, (r << 16) | (g << 8) | b);
+			}
+		}
+		return img;
+	}
+
+	private static BufferedImage createGray(int width, int height, int dataType, Random random) {
+		var sampleModel = new BandedSampleModel(dataType, width, height, 1);
+		WritableRaster raster = Raster.createWritableRaster(sampleModel, null);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (dataType == DataBuffer.TYPE_FLOAT)
+					raster.setSample(x, y, 0, (float)random.nextGaussian() * 100);
+				else
+					raster.setSample(x, y, 0, random.nextInt(65536));
+			}
+		}
+		var colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), false, false, Transparency.OPAQUE, dataType);
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	@Test
+	public void testRGBPyramid() throws Exception {
+		var random = new Random(100L);
+		var img = createRGB(300, 250, random);
+		var imgLow = createRGB(150, 125, random);
+		for (String compression : new String[] {null, "LZW", "Deflate"}) {
+			var file = writeTiff(compression, List.of(img, imgLow));
+			assertEquals(FileFormatInfo.ImageCheckType.TIFF_2D_RGB, FileFormatInfo.checkImageType(file.toURI()));
+			assertTrue(new TiffImageServerBuilder().supportLevel(file.toURI(), FileFormatInfo.ImageCheckType.TIFF_2D_RGB, BufferedImage.class) > 0);
+
+			var server = new TiffImageServer(file.toURI());
+			assertTrue(server.isRGB());
+			assertEquals(2, server.nResolutions());
+			assertEquals(2.0, server.getDownsampleForResolution(1), 1e-6);
+			assertEquals(64, server.getPreferredTileWidth());
+
+			// Read a region crossing several tiles
+			var region = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), 1, 50, 30, 200, 150));
+			for (int y = 0; y < region.getHeight(); y++) {
+				for (int x = 0; x < region.getWidth(); x++)
+					assertEquals(img.getRGB(x + 50, y + 30), region.getRGB(x, y));
+			}
+			// Read a tile from the lower resolution
+			var tile = server.getTile(1, 64, 48, 0, 0);
+			var imgTile = server.readBufferedImage(tile.getRegionRequest());
+			for (int y = 0; y < imgTile.getHeight(); y++) {
+				for (int x = 0; x < imgTile.getWidth(); x++)
+					assertEquals(imgLow.getRGB(x + tile.getTileX(), y + tile.getTileY()), imgTile.getRGB(x, y));
+			}
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testJPEG() throws Exception {
+		var img = createRGB(200, 100, new Random(1L));
+		var file = writeTiff("JPEG", List.of(img));
+		var server = new TiffImageServer(file.toURI());
+		var region = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), 1, 0, 0, 200, 100));
+		double diff = 0;
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++) {
+				int v1 = img.getRGB(x, y);
+				int v2 = region.getRGB(x, y);
+				for (int shift = 0; shift <= 16; shift += 8)
+					diff += Math.abs(((v1 >> shift) & 0xff) - ((v2 >> shift) & 0xff));
+			}
+		}
+		assertTrue(diff / (img.getWidth() * img.getHeight() * 3) < 5);
+		file.delete();
+	}
+
+	@Test
+	public void testNonRGB() throws Exception {
+		var random = new Random(2L);
+		for (int dataType : new int[] {DataBuffer.TYPE_USHORT, DataBuffer.TYPE_FLOAT}) {
+			var img = createGray(130, 100, dataType, random);
+			var file = writeTiff("LZW", List.of(img));
+			var server = new TiffImageServer(file.toURI());
+			assertEquals(1, server.nChannels());
+			assertEquals(dataType == DataBuffer.TYPE_FLOAT ? 32 : 16, server.getBitsPerPixel());
+			var region = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), 1, 10, 20, 120, 80));
+			for (int y = 0; y < region.getHeight(); y++) {
+				for (int x = 0; x < region.getWidth(); x++)
+					assertEquals(img.getRaster().getSampleFloat(x + 10, y + 20, 0), region.getRaster().getSampleFloat(x, y, 0), 0.0);
+			}
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testAssociatedImages() throws Exception {
+		var random = new Random(3L);
+		var img = createRGB(300, 250, random);
+		var imgLow = createRGB(150, 125, random);
+		var imgLabel = createRGB(40, 30, random);
+		var imgMacro = createGray(90, 35, DataBuffer.TYPE_BYTE, random);
+		var file = writeTiff(List.of(img, imgLow, imgLabel, imgMacro),
+				List.of("Aperio Image Library v12.0.15\r\n300x250 (64x48) LZW|AppMag = 20|MPP = 0.5", "Aperio Image Library v12.0.15", 
+						"Aperio Image Library v12.0.15\r\nlabel 40x30", "Aperio Image Library v12.0.15\r\nmacro 90x35"),
+				List.of(true, true, false, false));
+		var uri = file.toURI();
+		assertEquals(TiffImageServer.Support.FULL, TiffImageServer.checkSupport(uri));
+		assertEquals(4, new TiffImageServerBuilder().supportLevel(uri, FileFormatInfo.ImageCheckType.TIFF_2D_RGB, BufferedImage.class), 0.0f);
+
+		var server = new TiffImageServer(uri);
+		assertEquals(2, server.nResolutions());
+		assertEquals(0.5, server.getAveragedPixelSizeMicrons(), 1e-6);
+		assertEquals(List.of("label", "macro"), server.getAssociatedImageList());
+		var label = server.getAssociatedImage("label");
+		assertEquals(40, label.getWidth());
+		assertEquals(30, label.getHeight());
+		for (int y = 0; y < label.getHeight(); y++) {
+			for (int x = 0; x < label.getWidth(); x++)
+				assertEquals(imgLabel.getRGB(x, y), label.getRGB(x, y));
+		}
+		var macro = server.getAssociatedImage("macro");
+		for (int y = 0; y < macro.getHeight(); y++) {
+			for (int x = 0; x < macro.getWidth(); x++)
+				assertEquals(imgMacro.getRaster().getSample(x, y, 0), macro.getRaster().getSample(x, y, 0));
+		}
+		file.delete();
+	}
+
+	@Test
+	public void testSupportLevel() throws Exception {
+		var random = new Random(4L);
+		var img = createRGB(200, 150, random);
+		var builder = new TiffImageServerBuilder();
+
+		// A single image is fully supported
+		var file = writeTiff(null, List.of(img));
+		assertEquals(TiffImageServer.Support.FULL, TiffImageServer.checkSupport(file.toURI()));
+		file.delete();
+
+		// Other images of the same size would be ignored, so other readers should be preferred
+		file = writeTiff(null, List.of(img, createRGB(200, 150, random)));
+		assertEquals(TiffImageServer.Support.PARTIAL, TiffImageServer.checkSupport(file.toURI()));
+		float level = builder.supportLevel(file.toURI(), FileFormatInfo.ImageCheckType.TIFF_2D_RGB, BufferedImage.class);
+		assertTrue(level > 0 && level < 2);
+		var server = new TiffImageServer(file.toURI());
+		assertEquals(1, server.nResolutions());
+		assertTrue(server.getAssociatedImageList().isEmpty());
+		file.delete();
+
+		// Images that are not tiled are not supported
+		file = writeTiff(List.of(img), List.of("Not tiled"), List.of(false));
+		assertEquals(TiffImageServer.Support.NONE, TiffImageServer.checkSupport(file.toURI()));
+		assertEquals(0, builder.supportLevel(file.toURI(), FileFormatInfo.ImageCheckType.TIFF_2D_RGB, BufferedImage.class), 0.0f);
+		file.delete();
+	}
+
+	/**
+	 * Write a little-endian BigTIFF with 8-bit pixels, using horizontal differencing but no compression.
+	 */
+	@Test
+	public void testBigTiff() throws Exception {
+		int width = 40, height = 35, tileSize = 32;
+		int nTiles = 4;
+		int[] tags = {256, 257, 258, 259, 262, 277, 317, 322, 323, 324, 325};
+		int ifdSize = 8 + tags.length * 20 + 8;
+		int offsetsPos = 16 + ifdSize;
+		int countsPos = offsetsPos + nTiles * 8;
+		int dataPos = countsPos + nTiles * 8;
+		int tileBytes = tileSize * tileSize;
+		var buffer = ByteBuffer.allocate(dataPos + nTiles * tileBytes).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put((byte)'I').put((byte)'I').putShort((short)43).putShort((short)8).putShort((short)0).putLong(16);
+		buffer.putLong(tags.length);
+		long[] values = {width, height, 8, 1, 1, 1, 2, tileSize, tileSize, offsetsPos, countsPos};
+		for (int i = 0; i < tags.length; i++) {
+			boolean isArray = tags[i] == 324 || tags[i] == 325;
+			buffer.putShort((short)tags[i]).putShort((short)(isArray ? 16 : 3)).putLong(isArray ? nTiles : 1).putLong(values[i]);
+		}
+		buffer.putLong(0);
+		for (int t = 0; t < nTiles; t++)
+			buffer.putLong(dataPos + t * tileBytes);
+		for (int t = 0; t < nTiles; t++)
+			buffer.putLong(tileBytes);
+		for (int t = 0; t < nTiles; t++) {
+			for (int y = 0; y < tileSize; y++) {
+				for (int x = 0; x < tileSize; x++) {
+					int xx = (t % 2) * tileSize + x;
+					int yy = (t / 2) * tileSize + y;
+					// Store differences from the previous pixel in the row
+					int value = xx * 3 + yy;
+					int previous = x == 0 ? 0 : value - 3;
+					buffer.put((byte)(x == 0 ? value : value - previous));
+				}
+			}
+		}
+		var file = File.createTempFile("qupath-bigtiff", ".tif");
+		file.deleteOnExit();
+		Files.write(file.toPath(), buffer.array());
+
+		assertTrue(new TiffFile(file.toPath()).isBigTiff());
+		var server = new TiffImageServer(file.toURI());
+		assertEquals(width, server.getWidth());
+		assertEquals(height, server.getHeight());
+		var img = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), 1, 0, 0, width, height));
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				assertEquals((x * 3 + y) & 0xff, img.getRaster().getSample(x, y, 0));
+		}
+		file.delete();
+	}
+
+	@Test
+	public void testLZW() {
+		// Example from the TIFF specification, using the codes 256 (Clear), 7, 7, 7, 8, 8, 7, 7, 6, 6, 257 (EOI)
+		int[] codes = {256, 7, 7, 7, 8, 8, 7, 7, 6, 6, 257};
+		byte[] input = new byte[(codes.length * 9 + 7) / 8];
+		int bitPos = 0;
+		for (int code : codes) {
+			for (int i = 8; i >= 0; i--, bitPos++) {
+				if (((code >> i) & 1) != 0)
+					input[bitPos / 8] |= 1 << (7 - bitPos % 8);
+			}
+		}
+		byte[] output = TiffDecoder.decodeLZW(input, 9);
+		assertEquals("[7, 7, 7, 8, 8, 7, 7, 6, 6]", Arrays.toString(output));
+	}
+
+}
@@ -0,0 +1,89 @@
+package qupath.lib.objects.hierarchy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestPackedRTree {
+
+	@Test
+	public void testEmpty() {
+		var tree = new PackedRTree(new double[0], 0);
+		assertEquals(0, tree.size());
+		assertTrue(tree.query(-1e6, -1e6, 1e6, 1e6, id -> false));
+	}
+
+	@Test
+	public void testQueries() {
+		var rand = new Random(100L);
+		for (int n : new int[] {1, 2, 15, 16, 17, 255, 256, 257, 10_000}) {
+			double[] bounds = new double[n * 4];
+			for (int i = 0; i < n; i++) {
+				double x = rand.nextDouble() * 10_000 - 1000;
+				double y = rand.nextDouble() * 10_000 - 1000;
+				bounds[i*4] = x;
+				bounds[i*4+1] = y;
+				bounds[i*4+2] = x + rand.nextDouble() * 50;
+				bounds[i*4+3] = y + rand.nextDouble() * 50;
+			}
+			for (int nodeSize : new int[] {2, 4, PackedRTree.DEFAULT_NODE_SIZE}) {
+				var tree = new PackedRTree(bounds, n, nodeSize);
+				assertEquals(n, tree.size());
+
+				// All items should be stored once, with bounds at least as large as those provided
+				Set<Integer> ids = new HashSet<>();
+				for (int i = 0; i < n; i++) {
+					int id = tree.getId(i);
+					assertTrue(ids.add(id));
+					assertTrue(tree.getMinX(i) <= bounds[id*4]);
+					assertTrue(tree.getMinY(i) <= bounds[id*4+1]);
+					assertTrue(tree.getMaxX(i) >= bounds[id*4+2]);
+					assertTrue(tree.getMaxY(i) >= bounds[id*4+3]);
+				}
+
+				for (int q = 0; q < 50; q++) {
+					double minX = rand.nextDouble() * 10_000 - 1000;
+					double minY = rand.nextDouble() * 10_000 - 1000;
+					double maxX = minX + rand.nextDouble() * 2000;
+					double maxY = minY + rand.nextDouble() * 2000;
+					Set<Integer> found = new HashSet<>();
+					tree.query(minX, minY, maxX, maxY, id -> {
+						assertTrue(found.add(id));
+						return true;
+					});
+					for (int i = 0; i < n; i++) {
+						boolean intersects = bounds[i*4] <= maxX && bounds[i*4+1] <= maxY && bounds[i*4+2] >= minX && bounds[i*4+3] >= minY;
+						if (intersects)
+							assertTrue(found.contains(i));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testStopQuery() {
+		double[] bounds = new double[100 * 4];
+		for (int i = 0; i < 100; i++) {
+			bounds[i*4] = i;
+			bounds[i*4+1] = i;
+			bounds[i*4+2] = i + 1;
+			bounds[i*4+3] = i + 1;
+		}
+		var tree = new PackedRTree(bounds, 100);
+		int[] count = new int[1];
+		assertFalse(tree.query(0, 0, 100, 100, id -> ++count[0] < 5));
+		assertEquals(5, count[0]);
+
+		count[0] = 0;
+		assertTrue(tree.query(200, 200, 300, 300, id -> ++count[0] < 5));
+		assertEquals(0, count[0]);
+	}
+
+}
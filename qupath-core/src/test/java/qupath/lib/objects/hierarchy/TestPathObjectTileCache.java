@@ -0,0 +1,102 @@
+package qupath.lib.objects.hierarchy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.PathROIObject;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.ROIs;
+
+public class TestPathObjectTileCache {
+
+	private static ImageRegion createRegion(int x, int y) {
+		return ImageRegion.createInstance(x, y, 10, 10, 0, 0);
+	}
+
+	private static boolean contains(PathObjectHierarchy hierarchy, ImageRegion region, PathObject pathObject) {
+		return hierarchy.getObjectsForRegion(PathDetectionObject.class, region, null).contains(pathObject);
+	}
+
+	@Test
+	public void testMoveBelowParent() {
+		var hierarchy = new PathObjectHierarchy();
+		var annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 1000, 1000, ImagePlane.getDefaultPlane()));
+		hierarchy.addPathObject(annotation, false);
+		List<PathObject> detections = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			var detection = PathObjects.createDetectionObject(ROIs.createRectangleROI(i * 50, 100, 10, 10, ImagePlane.getDefaultPlane()));
+			detections.add(detection);
+			annotation.addPathObject(detection);
+		}
+		hierarchy.fireHierarchyChangedEvent(this, annotation);
+
+		// Ensure the cache is constructed
+		var moved = detections.get(3);
+		assertTrue(contains(hierarchy, createRegion(150, 100), moved));
+
+		// Move an object & notify the hierarchy that the annotation's descendants have changed (as when editing ROIs)
+		((PathROIObject)moved).setROI(ROIs.createRectangleROI(600, 600, 10, 10, ImagePlane.getDefaultPlane()));
+		hierarchy.fireHierarchyChangedEvent(this, annotation);
+		assertFalse(contains(hierarchy, createRegion(150, 100), moved));
+		assertTrue(contains(hierarchy, createRegion(600, 600), moved));
+		assertTrue(contains(hierarchy, createRegion(200, 100), detections.get(4)));
+
+		// Move it back again, after some other changes have been made
+		for (int i = 0; i < 3; i++)
+			hierarchy.fireHierarchyChangedEvent(this, annotation);
+		((PathROIObject)moved).setROI(ROIs.createRectangleROI(150, 100, 10, 10, ImagePlane.getDefaultPlane()));
+		hierarchy.fireHierarchyChangedEvent(this, annotation);
+		assertTrue(contains(hierarchy, createRegion(150, 100), moved));
+		assertFalse(contains(hierarchy, createRegion(600, 600), moved));
+
+		// Detached objects should no longer be returned
+		var detached = detections.get(5);
+		annotation.removePathObject(detached);
+		hierarchy.fireHierarchyChangedEvent(this, annotation);
+		assertFalse(contains(hierarchy, createRegion(250, 100), detached));
+		assertEquals(9, hierarchy.getObjectsForRegion(PathDetectionObject.class, null, null).size());
+	}
+
+	@Test
+	public void testRemoveObjects() {
+		var hierarchy = new PathObjectHierarchy();
+		List<PathObject> detections = new ArrayList<>();
+		for (int i = 0; i < 10000; i++) {
+			var detection = PathObjects.createDetectionObject(ROIs.createRectangleROI((i % 100) * 20, (i / 100) * 20, 10, 10, ImagePlane.getDefaultPlane()));
+			detections.add(detection);
+		}
+		hierarchy.addPathObjects(detections, false);
+		assertEquals(detections.size(), hierarchy.getObjectsForRegion(PathDetectionObject.class, null, null).size());
+
+		// Remove objects one at a time, so that the index needs to be compacted along the way
+		for (int i = 0; i < 6000; i++) {
+			hierarchy.removeObject(detections.get(i), false);
+			if (i % 1000 == 0) {
+				assertFalse(contains(hierarchy, createRegion((i % 100) * 20, (i / 100) * 20), detections.get(i)));
+				assertEquals(detections.size() - i - 1, hierarchy.getObjectsForRegion(PathDetectionObject.class, null, null).size());
+			}
+		}
+		assertEquals(4000, hierarchy.getObjectsForRegion(PathDetectionObject.class, null, null).size());
+		assertTrue(contains(hierarchy, createRegion(0, 1200), detections.get(6000)));
+
+		// Removed objects can be added again
+		var readded = detections.get(5999);
+		hierarchy.addPathObject(readded, false);
+		assertTrue(contains(hierarchy, createRegion(1980, 1180), readded));
+		assertEquals(4001, hierarchy.getObjectsForRegion(PathDetectionObject.class, null, null).size());
+		hierarchy.removeObject(readded, false);
+		assertFalse(contains(hierarchy, createRegion(1980, 1180), readded));
+		assertEquals(4000, hierarchy.getObjectsForRegion(PathDetectionObject.class, null, null).size());
+	}
+
+}
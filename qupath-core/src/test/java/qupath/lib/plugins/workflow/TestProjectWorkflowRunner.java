@@ -0,0 +1,117 @@
+package qupath.lib.plugins.workflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageIoImageServer;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.plugins.PathPlugin;
+import qupath.lib.plugins.PluginRunner;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+public class TestProjectWorkflowRunner {
+
+	/**
+	 * Plugin that adds the requested number of annotations, using one task per annotation.
+	 */
+	public static class AddAnnotationsPlugin implements PathPlugin<BufferedImage> {
+
+		@Override
+		public String getName() {
+			return "Add annotations";
+		}
+
+		@Override
+		public String getDescription() {
+			return null;
+		}
+
+		@Override
+		public boolean runPlugin(PluginRunner<BufferedImage> pluginRunner, String arg) {
+			var hierarchy = pluginRunner.getHierarchy();
+			List<Runnable> tasks = new ArrayList<>();
+			for (int i = 0; i < Integer.parseInt(arg); i++) {
+				int ind = i;
+				tasks.add(() -> hierarchy.addPathObject(
+						PathObjects.createAnnotationObject(ROIs.createRectangleROI(ind, ind, 5, 5, ImagePlane.getDefaultPlane())), false));
+			}
+			pluginRunner.runTasks(tasks);
+			return true;
+		}
+
+		@Override
+		public String getLastResultsDescription() {
+			return null;
+		}
+
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ProjectImageEntry<BufferedImage> createEntry(String name, Map<String, Integer> saved) {
+		return (ProjectImageEntry<BufferedImage>)Proxy.newProxyInstance(
+				TestProjectWorkflowRunner.class.getClassLoader(),
+				new Class<?>[] {ProjectImageEntry.class},
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getImageName":
+						return name;
+					case "readImageData":
+						if (name.startsWith("missing"))
+							throw new IOException("No image for " + name);
+						return new ImageData<>(new ImageIoImageServer(name, null, new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB)));
+					case "saveImageData":
+						saved.put(name, ((ImageData<?>)args[0]).getHierarchy().getAnnotationObjects().size());
+						return null;
+					default:
+						return null;
+					}
+				});
+	}
+
+	@Test
+	public void testRunWorkflow() throws Exception {
+		Map<String, Integer> saved = new ConcurrentHashMap<>();
+		List<ProjectImageEntry<BufferedImage>> entries = new ArrayList<>();
+		for (int i = 0; i < 6; i++)
+			entries.add(createEntry("image-" + i, saved));
+		entries.add(createEntry("missing", saved));
+
+		var workflow = new Workflow();
+		workflow.addStep(new SimplePluginWorkflowStep("Add 3", AddAnnotationsPlugin.class, "3"));
+		workflow.addStep(new SimplePluginWorkflowStep("Add 4", AddAnnotationsPlugin.class, "4"));
+		var runner = new ProjectWorkflowRunner<BufferedImage>(workflow);
+		runner.setMaxConcurrentImages(3);
+		var report = runner.run(entries);
+
+		assertEquals(7, report.getImageResults().size());
+		assertEquals(6, report.getSuccessCount());
+		assertEquals(6, saved.size());
+		for (int count : saved.values())
+			assertEquals(7, count);
+		assertFalse(report.getImageResults().stream().filter(r -> r.getImageName().equals("missing")).findFirst().get().isSuccess());
+
+		var timings = report.getStepTimings();
+		assertEquals(2, timings.size());
+		assertEquals("Add 3", timings.get(0).getName());
+		for (var timing : timings) {
+			assertEquals(6, timing.getCount());
+			assertEquals(0, timing.getFailureCount());
+		}
+		assertTrue(report.getImagesPerMinute() > 0);
+	}
+
+}
@@ -0,0 +1,68 @@
+package qupath.lib.projects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDefaultProject {
+
+	private Path dir;
+
+	@Before
+	public void createDirectory() throws IOException {
+		dir = Files.createTempDirectory("qupath-project");
+	}
+
+	@After
+	public void deleteDirectory() throws IOException {
+		try (var stream = Files.walk(dir)) {
+			for (var path : (Iterable<Path>)stream.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(path);
+		}
+	}
+
+	@Test
+	public void testLegacyThumbnail() throws IOException {
+		var project = new DefaultProject(dir.toFile());
+		var entry = project.addImage("legacy.tif", "Legacy");
+		assertNotNull(entry);
+
+		// Write a thumbnail in the same way as older versions
+		var entryPath = entry.getEntryPath();
+		Files.createDirectories(entryPath);
+		var legacyPath = entryPath.resolve("thumbnail.jpg");
+		ImageIO.write(new BufferedImage(20, 10, BufferedImage.TYPE_INT_RGB), "JPEG", legacyPath.toFile());
+
+		// Reading the thumbnail should not change the project
+		var img = entry.getThumbnail();
+		assertEquals(20, img.getWidth());
+		assertTrue(Files.exists(legacyPath));
+		assertFalse(Files.exists(dir.resolve("thumbnails.atlas")));
+
+		// Saving the project should copy the thumbnail into the atlas, but keep the original for older versions
+		project.syncChanges();
+		assertTrue(Files.exists(legacyPath));
+		var atlas = new ThumbnailAtlas(dir.resolve("thumbnails.atlas"));
+		assertTrue(atlas.contains(entry.getUniqueName()));
+		assertEquals(20, entry.getThumbnail().getWidth());
+
+		// New thumbnails should be written to the atlas only
+		entry.setThumbnail(new BufferedImage(30, 10, BufferedImage.TYPE_INT_RGB));
+		assertEquals(30, entry.getThumbnail().getWidth());
+		assertEquals(20, ImageIO.read(legacyPath.toFile()).getWidth());
+	}
+
+}
@@ -0,0 +1,121 @@
+package qupath.lib.projects;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestThumbnailAtlas {
+
+	private Path dir;
+
+	@Before
+	public void createDirectory() throws IOException {
+		dir = Files.createTempDirectory("qupath-atlas");
+	}
+
+	@After
+	public void deleteDirectory() throws IOException {
+		try (var stream = Files.list(dir)) {
+			for (var path : (Iterable<Path>)stream::iterator)
+				Files.delete(path);
+		}
+		Files.delete(dir);
+	}
+
+	private static byte[] createBytes(int n, Random random) {
+		byte[] bytes = new byte[n];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		var random = new Random(1L);
+		var path = dir.resolve("thumbnails.atlas");
+		var atlas = new ThumbnailAtlas(path);
+		assertFalse(atlas.contains("a"));
+		assertNull(atlas.read("a"));
+		assertEquals(-1L, atlas.getTimestamp("a"));
+
+		var bytesA = createBytes(100, random);
+		var bytesB = createBytes(2000, random);
+		atlas.write("a", bytesA);
+		atlas.write("b", bytesB);
+		assertArrayEquals(bytesA, atlas.read("a"));
+		assertArrayEquals(bytesB, atlas.openStream("b").readAllBytes());
+		assertTrue(atlas.getTimestamp("a") > 0);
+
+		// Replacing a thumbnail should return the latest bytes, including when the atlas is reopened
+		var bytesA2 = createBytes(50, random);
+		atlas.write("a", bytesA2);
+		assertArrayEquals(bytesA2, atlas.read("a"));
+		var atlas2 = new ThumbnailAtlas(path);
+		assertArrayEquals(bytesA2, atlas2.read("a"));
+		assertArrayEquals(bytesB, atlas2.read("b"));
+	}
+
+	@Test
+	public void testRemove() throws IOException {
+		var random = new Random(2L);
+		var path = dir.resolve("thumbnails.atlas");
+		var atlas = new ThumbnailAtlas(path);
+		atlas.write("a", createBytes(100, random));
+		var bytesB = createBytes(100, random);
+		atlas.write("b", bytesB);
+
+		assertTrue(atlas.remove("a"));
+		assertFalse(atlas.remove("a"));
+		assertFalse(atlas.contains("a"));
+		assertNull(atlas.read("a"));
+		assertArrayEquals(bytesB, atlas.read("b"));
+
+		var atlas2 = new ThumbnailAtlas(path);
+		assertFalse(atlas2.contains("a"));
+		assertArrayEquals(bytesB, atlas2.read("b"));
+	}
+
+	@Test
+	public void testCompact() throws IOException {
+		var random = new Random(3L);
+		var path = dir.resolve("thumbnails.atlas");
+		var atlas = new ThumbnailAtlas(path);
+		for (int i = 0; i < 10; i++)
+			atlas.write("a", createBytes(1000, random));
+		var bytesA = createBytes(1000, random);
+		atlas.write("a", bytesA);
+		atlas.write("b", createBytes(1000, random));
+		atlas.remove("b");
+		long timestamp = atlas.getTimestamp("a");
+
+		long sizeBefore = Files.size(path);
+		atlas.compact();
+		long sizeAfter = Files.size(path);
+		assertTrue(sizeAfter < sizeBefore);
+		assertTrue(sizeAfter < 1100);
+		assertFalse(Files.exists(dir.resolve("thumbnails.atlas.tmp")));
+
+		assertArrayEquals(bytesA, atlas.read("a"));
+		assertEquals(timestamp, atlas.getTimestamp("a"));
+		assertFalse(atlas.contains("b"));
+
+		// Writing after compaction should append to the compacted file
+		var bytesC = createBytes(500, random);
+		atlas.write("c", bytesC);
+		var atlas2 = new ThumbnailAtlas(path);
+		assertArrayEquals(bytesA, atlas2.read("a"));
+		assertArrayEquals(bytesC, atlas2.read("c"));
+		assertFalse(atlas2.contains("b"));
+	}
+
+}
@@ -0,0 +1,116 @@
+package qupath.lib.roi.jts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.geom.Area;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import qupath.lib.geom.Point2;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.PathROIToolsAwt;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.PathArea;
+import qupath.lib.roi.interfaces.ROI;
+
+public class TestGeometryMerger {
+
+	@Test
+	public void testGridUnion() {
+		var plane = ImagePlane.getPlaneWithChannel(0, 1, 2);
+		var random = new Random(100L);
+		List<ROI> rois = new ArrayList<>();
+		var area = new Area();
+		int w = 10, h = 15;
+		for (int y = 0; y < 40; y++) {
+			for (int x = 0; x < 40; x++) {
+				// Random cells give holes, diagonal touches and separate regions
+				if (random.nextDouble() < 0.6) {
+					var roi = ROIs.createRectangleROI(5.5 + x * w, 2 + y * h, w, h, plane);
+					rois.add(roi);
+					area.add(PathROIToolsAwt.getArea(roi));
+				}
+			}
+		}
+		var merged = GeometryMerger.union(rois, plane);
+		assertEquals(plane, ImagePlane.getPlaneWithChannel(merged));
+		assertEquals(getArea(area), ((PathArea)merged).getArea(), 1e-6);
+
+		var geometry = GeometryMerger.unionGeometry(rois);
+		assertTrue(geometry.isValid());
+		assertTrue(geometry.getNumGeometries() > 1);
+		// Every tile should be covered
+		for (var roi : rois)
+			assertTrue(geometry.covers(roi.getGeometry()));
+	}
+
+	@Test
+	public void testSparseGrid() {
+		var plane = ImagePlane.getDefaultPlane();
+		List<ROI> rois = new ArrayList<>();
+		for (int i = 0; i < 10; i++)
+			rois.add(ROIs.createRectangleROI(i * 100000, i * 50000, 10, 10, plane));
+
+		// Widely-separated rectangles shouldn't be merged using a (huge) grid
+		List<ROI> remaining = new ArrayList<>();
+		assertNull(GeometryMerger.GridCells.create(rois, remaining));
+		assertEquals(rois.size(), remaining.size());
+
+		var merged = GeometryMerger.unionGeometry(rois);
+		assertTrue(merged.isValid());
+		assertEquals(rois.size(), merged.getNumGeometries());
+		assertEquals(rois.size() * 100, merged.getArea(), 1e-6);
+	}
+
+	@Test
+	public void testMixedUnion() {
+		var plane = ImagePlane.getDefaultPlane();
+		List<ROI> rois = new ArrayList<>();
+		var area = new Area();
+		for (int i = 0; i < 20; i++) {
+			rois.add(ROIs.createRectangleROI(i * 20, 0, 20, 20, plane));
+			rois.add(ROIs.createEllipseROI(i * 20 + 3, 10, 25, 30, plane));
+			// Rectangles that aren't aligned to the grid
+			rois.add(ROIs.createRectangleROI(i * 20 + 7, 45, 20, 20, plane));
+		}
+		for (var roi : rois)
+			area.add(PathROIToolsAwt.getArea(roi));
+		var merged = GeometryMerger.unionGeometry(rois);
+		assertTrue(merged.isValid());
+		assertEquals(getArea(area), merged.getArea(), getArea(area) * 1e-3);
+
+		assertTrue(GeometryMerger.union(new ArrayList<>(), plane).isEmpty());
+	}
+
+	@Test
+	public void testRejectLines() {
+		var plane = ImagePlane.getDefaultPlane();
+		List<ROI> rois = new ArrayList<>();
+		rois.add(ROIs.createRectangleROI(0, 0, 20, 20, plane));
+		rois.add(ROIs.createLineROI(0, 0, 100, 100, plane));
+		try {
+			GeometryMerger.unionGeometry(rois);
+			fail("Lines should not be merged");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		rois.set(1, ROIs.createPolylineROI(List.of(new Point2(0, 0), new Point2(10, 20), new Point2(20, 5)), plane));
+		try {
+			GeometryMerger.unionGeometry(rois);
+			fail("Polylines should not be merged");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	private static double getArea(Area area) {
+		return ((PathArea)PathROIToolsAwt.getShapeROI(area, ImagePlane.getDefaultPlane(), -1)).getArea();
+	}
+
+}
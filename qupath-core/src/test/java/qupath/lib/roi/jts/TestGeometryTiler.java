@@ -0,0 +1,108 @@
+package qupath.lib.roi.jts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import qupath.lib.geom.ImmutableDimension;
+import qupath.lib.geom.Point2;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.PathROIToolsAwt;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.PathArea;
+import qupath.lib.roi.interfaces.ROI;
+
+public class TestGeometryTiler {
+
+	/**
+	 * Create a wavy polygon with many vertices, so that rows are clipped before tiles.
+	 */
+	private static PathArea createWavyPolygon(int nPoints, ImagePlane plane) {
+		List<Point2> points = new ArrayList<>();
+		for (int i = 0; i < nPoints; i++) {
+			double theta = i * 2 * Math.PI / nPoints;
+			double r = 850 + 150 * Math.sin(theta * 37);
+			points.add(new Point2(1200 + r * Math.cos(theta), 1100 + r * Math.sin(theta)));
+		}
+		return ROIs.createPolygonROI(points, plane);
+	}
+
+	private static double getArea(ROI roi) {
+		return ((PathArea)roi).getArea();
+	}
+
+	@Test
+	public void testTiledROIs() {
+		var plane = ImagePlane.getPlaneWithChannel(1, 2, 3);
+		var roi = createWavyPolygon(2000, plane);
+		var area = PathROIToolsAwt.getArea(roi);
+		var size = new ImmutableDimension(100, 100);
+		for (int overlap : new int[] {0, 10}) {
+			var tiles = GeometryTiler.streamTiledROIs(roi, size, size, false, overlap).collect(Collectors.toList());
+			// Compare with tiles clipped using java.awt.geom.Area
+			int n = 0;
+			double totalArea = 0;
+			for (var tile : tiles) {
+				assertEquals(plane, ImagePlane.getPlaneWithChannel(tile));
+				var bounds = new Rectangle2D.Double(tile.getBoundsX(), tile.getBoundsY(), tile.getBoundsWidth(), tile.getBoundsHeight());
+				var expected = new Area(bounds);
+				expected.intersect(area);
+				double tileArea = getArea(tile);
+				assertEquals(getArea(PathROIToolsAwt.getShapeROI(expected, plane, -1)), tileArea, tileArea * 1e-4 + 0.01);
+				assertTrue(tileArea > 0);
+				assertTrue(bounds.getWidth() <= 100 + overlap*2 + 1e-6);
+				totalArea += tileArea;
+				n++;
+			}
+			assertTrue(n > 100);
+			if (overlap == 0)
+				assertEquals(roi.getArea(), totalArea, roi.getArea() * 1e-6);
+			else
+				assertTrue(totalArea > roi.getArea());
+		}
+
+		// Small ROIs aren't tiled
+		var tiles = GeometryTiler.streamTiledROIs(roi, size, new ImmutableDimension(5000, 5000), false, 0).collect(Collectors.toList());
+		assertEquals(1, tiles.size());
+		assertTrue(tiles.get(0) == roi);
+	}
+
+	@Test
+	public void testMakeTiles() {
+		var roi = createWavyPolygon(400, ImagePlane.getDefaultPlane());
+		var area = PathROIToolsAwt.getArea(roi);
+		var bounds = area.getBounds();
+		int tileSize = 150;
+
+		// Count tiles using java.awt.geom.Area
+		int nIntersecting = 0;
+		int nCentroids = 0;
+		for (int y = bounds.y; y < bounds.y + bounds.height; y += tileSize) {
+			for (int x = bounds.x; x < bounds.x + bounds.width; x += tileSize) {
+				var tile = new Area(new Rectangle2D.Double(x, y, tileSize, tileSize));
+				tile.intersect(area);
+				if (!tile.isEmpty())
+					nIntersecting++;
+				if (area.contains(x + tileSize/2.0, y + tileSize/2.0))
+					nCentroids++;
+			}
+		}
+
+		var trimmed = PathROIToolsAwt.makeTiles(roi, tileSize, tileSize, true);
+		assertEquals(nIntersecting, trimmed.size());
+		assertEquals(roi.getArea(), trimmed.stream().mapToDouble(TestGeometryTiler::getArea).sum(), roi.getArea() * 1e-6);
+
+		var untrimmed = PathROIToolsAwt.makeTiles(roi, tileSize, tileSize, false);
+		assertEquals(nCentroids, untrimmed.size());
+		for (var tile : untrimmed)
+			assertEquals(tileSize * tileSize, getArea(tile), 1e-6);
+	}
+
+}
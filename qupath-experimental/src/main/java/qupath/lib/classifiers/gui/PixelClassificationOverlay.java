@@ -4,7 +4,8 @@ import qupath.lib.awt.common.AwtTools;
 import qupath.lib.classifiers.pixel.OpenCVPixelClassifierDNN;
 import qupath.lib.classifiers.pixel.PixelClassifierMetadata.OutputType;
 import qupath.lib.common.GeneralTools;
-import qupath.lib.common.SimpleThreadFactory;
+import qupath.lib.common.TaskScheduler;
+import qupath.lib.common.TaskScheduler.Priority;
 import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.gui.viewer.QuPathViewer;
 import qupath.lib.gui.viewer.QuPathViewerListener;
@@ -36,7 +37,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -77,9 +77,7 @@ public class PixelClassificationOverlay extends AbstractOverlay implements PathO
         int nThreads = Math.max(1, PathPrefs.getNumCommandThreads());
         if (classifierServer.getClassifier() instanceof OpenCVPixelClassifierDNN)
         	nThreads = 1;
-        pool = Executors.newFixedThreadPool(
-        		nThreads, new SimpleThreadFactory(
-        				"classifier-overlay", true, Thread.NORM_PRIORITY-2));
+        pool = TaskScheduler.getInstance().createExecutor("classifier-overlay", Priority.OVERLAY, nThreads);
         
         this.classifierServer = classifierServer;
         this.viewer = viewer;
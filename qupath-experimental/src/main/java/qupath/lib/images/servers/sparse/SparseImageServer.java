@@ -10,13 +10,19 @@ import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.SpatialIndex;
+import org.locationtech.jts.index.strtree.STRtree;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,7 +57,7 @@ public class SparseImageServer extends AbstractTileableImageServer {
 	
 	private SparseImageServerManager manager;
 	
-	private Map<String, BufferedImage> emptyTileMap = new HashMap<>();
+	private Map<String, BufferedImage> emptyTileMap = new ConcurrentHashMap<>();
 	
 	private ColorModel colorModel;
 	
@@ -83,8 +89,12 @@ public class SparseImageServer extends AbstractTileableImageServer {
 			// Read the first server
 			if (metadata == null) {
 				ImageServer<BufferedImage> server = manager.getServer(region, 1);
-				metadata = server.getMetadata();
-				colorModel = server.getBufferedThumbnail(100, 100, 0).getColorModel();
+				try {
+					metadata = server.getMetadata();
+					colorModel = server.getBufferedThumbnail(100, 100, 0).getColorModel();
+				} finally {
+					manager.releaseServer(region, 1);
+				}
 			}
 		}
 		// Here, we assume origin at zero
@@ -128,17 +138,21 @@ public class SparseImageServer extends AbstractTileableImageServer {
 		
 		WritableRaster raster = null;
 		
-		for (ImageRegion subRegion : manager.getRegions()) {
-			double downsample = tileRequest.getRegionRequest().getDownsample();
-			if (subRegion.intersects(tileRequest.getImageX() + originX, tileRequest.getImageY() + originY, tileRequest.getImageWidth(), tileRequest.getImageHeight())) {
-				// If we overlap, request the overlapping portion
-				ImageServer<BufferedImage> serverTemp = manager.getServer(subRegion, downsample);
-				
+		double downsample = tileRequest.getRegionRequest().getDownsample();
+		int tileX = tileRequest.getImageX() + originX;
+		int tileY = tileRequest.getImageY() + originY;
+		for (var regionServer : manager.getRegionServers(downsample, tileX, tileY, tileRequest.getImageWidth(), tileRequest.getImageHeight())) {
+			ImageRegion subRegion = regionServer.getRegion();
+			// If we overlap, request the overlapping portion
+			ImageServer<BufferedImage> serverTemp = manager.acquireServer(regionServer.getPath());
+			BufferedImage imgTemp = null;
+			int x1, y1;
+			try {
 				// Get image coordinates for bounding box of valid region
-				int x1 = Math.max(tileRequest.getImageX() + originX, subRegion.getX());
-				int y1 = Math.max(tileRequest.getImageY() + originY, subRegion.getY());
-				int x2 = Math.min(tileRequest.getImageX() + originX + tileRequest.getImageWidth(), subRegion.getX() + subRegion.getWidth());
-				int y2 = Math.min(tileRequest.getImageY() + originY + tileRequest.getImageHeight(), subRegion.getY() + subRegion.getHeight());
+				x1 = Math.max(tileX, subRegion.getX());
+				y1 = Math.max(tileY, subRegion.getY());
+				int x2 = Math.min(tileX + tileRequest.getImageWidth(), subRegion.getX() + subRegion.getWidth());
+				int y2 = Math.min(tileY + tileRequest.getImageHeight(), subRegion.getY() + subRegion.getHeight());
 				
 				// Determine request coordinates
 				// TODO: Test whether sparse images with pyramidal regions work
@@ -160,41 +174,36 @@ public class SparseImageServer extends AbstractTileableImageServer {
 						serverTemp.getPath(), requestDownsample,
 						xr, yr, xr2-xr, yr2-yr, tileRequest.getZ(), tileRequest.getT());
 				
-				BufferedImage imgTemp = null;
 				synchronized (serverTemp) {
 					imgTemp = serverTemp.readBufferedImage(requestTemp);					
 				}
-				
-				if (imgTemp == null)
-					continue;
-				
-				// If we don't have an output image yet, create a compatible one
-				if (raster == null) {
-					raster = imgTemp.getRaster().createCompatibleWritableRaster(tileRequest.getTileWidth(), tileRequest.getTileHeight());					
-				}
-				
-				int x = (int)Math.round((x1 - tileRequest.getImageX() - originX) / downsample);
-				int y = (int)Math.round((y1 - tileRequest.getImageY() - originY) / downsample);
-				int w = Math.min(imgTemp.getWidth(), raster.getWidth()-x);
-				int h = Math.min(imgTemp.getHeight(), raster.getHeight()-y);
-				raster.setDataElements(x, y, w, h, imgTemp.getRaster().getDataElements(0, 0, w, h, null));
+			} finally {
+				manager.releaseServer(regionServer.getPath());
+			}
+			
+			if (imgTemp == null)
+				continue;
+			
+			// If we don't have an output image yet, create a compatible one
+			if (raster == null) {
+				raster = imgTemp.getRaster().createCompatibleWritableRaster(tileRequest.getTileWidth(), tileRequest.getTileHeight());					
 			}
+			
+			int x = (int)Math.round((x1 - tileX) / downsample);
+			int y = (int)Math.round((y1 - tileY) / downsample);
+			int w = Math.min(imgTemp.getWidth(), raster.getWidth()-x);
+			int h = Math.min(imgTemp.getHeight(), raster.getHeight()-y);
+			raster.setDataElements(x, y, w, h, imgTemp.getRaster().getDataElements(0, 0, w, h, null));
 		}
 		
 		// To avoid problems with returning nulls, create an empty compatible raster where needed - 
 		// reusing an existing raster where possible to reduce memory requirements.
 		if (raster == null) {
 			String key = tileRequest.getTileWidth() + "x" + tileRequest.getTileHeight();
-			BufferedImage imgEmpty = emptyTileMap.get(key);
-			if (imgEmpty == null) {
+			return emptyTileMap.computeIfAbsent(key, k -> {
 				logger.trace("Creating new reusable empty tile for {}", tileRequest.getRegionRequest());
-				raster = colorModel.createCompatibleWritableRaster(tileRequest.getTileWidth(), tileRequest.getTileHeight());
-				imgEmpty = new BufferedImage(colorModel, raster, false, null);
-				emptyTileMap.put(key, imgEmpty);
-			} else {
-				logger.trace("Returning reusable empty tile for {}", tileRequest.getRegionRequest());
-			}
-			return imgEmpty;
+				return new BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(tileRequest.getTileWidth(), tileRequest.getTileHeight()), false, null);
+			});
 		}
 //		System.err.println(String.format("%.2f - %.2f", (double)tileRequest.getImageHeight()/raster.getHeight(), tileRequest.getDownsample()));
 		return new BufferedImage(colorModel, raster, false, null);
@@ -206,15 +215,37 @@ public class SparseImageServer extends AbstractTileableImageServer {
 	 * Helper class for SparseImageServers, capable of returning the appropriate ImageServer for 
 	 * different ImageRegions and different resolutions.
 	 * <p>
+	 * Regions are looked up using a spatial index for each resolution, and the ImageServers for each region are 
+	 * only opened when needed. To avoid running out of file handles when there are many regions, at most 
+	 * {@link #getMaxOpenServers()} servers are kept open at any time; the least recently used servers are closed 
+	 * (once they are no longer being read) and reopened if they are needed again.
+	 * <p>
 	 * This also allows serialization/deserialization with JSON.
 	 */
 	public static class SparseImageServerManager implements AutoCloseable {
 		
+		/**
+		 * Default maximum number of servers to keep open at any time.
+		 */
+		public static final int DEFAULT_MAX_OPEN_SERVERS = 64;
+		
 		private Map<ImageRegion, List<SparseImageServerManagerResolution>> regionMap = new LinkedHashMap<>();
 		private Set<Double> downsamples = new TreeSet<>();
 		
 		private transient List<ImageRegion> regionList;
-		private transient Map<String, ImageServer<BufferedImage>> serverMap = new HashMap<>();
+		private transient volatile NavigableMap<Double, SpatialIndex> resolutionIndex;
+		
+		/**
+		 * Servers that were provided directly; these are never closed until the manager itself is closed.
+		 */
+		private transient Map<String, ImageServer<BufferedImage>> serverMap = new ConcurrentHashMap<>();
+		
+		/**
+		 * Servers opened by the manager, in access order (least recently used first).
+		 */
+		private transient Map<String, OpenServer> openServers = new LinkedHashMap<>(16, 0.75f, true);
+		
+		private transient int maxOpenServers = DEFAULT_MAX_OPEN_SERVERS;
 		
 		/**
 		 * Add the path to a new ImageServer for a specified region & downsample.
@@ -248,13 +279,41 @@ public class SparseImageServer extends AbstractTileableImageServer {
 		 * @param downsample
 		 */
 		public synchronized void addRegionServer(ImageServer<BufferedImage> server, ImageRegion region, double downsample) {
-			 if (!serverMap.containsKey(server.getPath()))
-				serverMap.put(server.getPath(), server);
-			 addRegionServer(server.getPath(), region, downsample);
-		 }
+			serverMap.putIfAbsent(server.getPath(), server);
+			addRegionServer(server.getPath(), region, downsample);
+		}
 		
 		private void resetCaches() {
 			regionList = null;
+			resolutionIndex = null;
+		}
+		
+		/**
+		 * Set the maximum number of servers that the manager will keep open at any time.
+		 * <p>
+		 * Servers that were provided directly with {@link #addRegionServer(ImageServer, ImageRegion, double)} 
+		 * do not count towards this limit.
+		 * 
+		 * @param maxOpenServers
+		 */
+		public void setMaxOpenServers(int maxOpenServers) {
+			if (maxOpenServers < 1)
+				throw new IllegalArgumentException("Maximum number of open servers must be at least 1");
+			synchronized (openServers) {
+				this.maxOpenServers = maxOpenServers;
+			}
+			closeUnusedServers();
+		}
+		
+		/**
+		 * Get the maximum number of servers that the manager will keep open at any time.
+		 * 
+		 * @return
+		 */
+		public int getMaxOpenServers() {
+			synchronized (openServers) {
+				return maxOpenServers;
+			}
 		}
 		
 
@@ -272,42 +331,243 @@ public class SparseImageServer extends AbstractTileableImageServer {
 			return regionList;
 		}
 		
+		/**
+		 * Get the regions that intersect a specified bounding box, along with the paths to the servers that should 
+		 * be used for each region at the specified downsample.
+		 * 
+		 * @param downsample
+		 * @param x
+		 * @param y
+		 * @param width
+		 * @param height
+		 * @return
+		 */
+		List<SparseImageServerRegion> getRegionServers(double downsample, int x, int y, int width, int height) {
+			var index = getIndex(downsample);
+			if (index == null)
+				return Collections.emptyList();
+			var envelope = new Envelope(x, x + width, y, y + height);
+			List<SparseImageServerRegion> list = new ArrayList<>();
+			for (var obj : index.query(envelope)) {
+				var regionServer = (SparseImageServerRegion)obj;
+				if (regionServer.getRegion().intersects(x, y, width, height))
+					list.add(regionServer);
+			}
+			return list;
+		}
+		
+		/**
+		 * Get the spatial index for the closest available downsample that is not greater than the one requested, 
+		 * building the indexes if necessary.
+		 * 
+		 * @param downsample
+		 * @return
+		 */
+		private SpatialIndex getIndex(double downsample) {
+			var indexes = resolutionIndex;
+			if (indexes == null)
+				indexes = buildIndexes();
+			if (indexes.isEmpty())
+				return null;
+			var entry = indexes.floorEntry(downsample);
+			return entry == null ? indexes.firstEntry().getValue() : entry.getValue();
+		}
+		
+		private synchronized NavigableMap<Double, SpatialIndex> buildIndexes() {
+			if (resolutionIndex == null) {
+				var indexes = new TreeMap<Double, SpatialIndex>();
+				for (double d : downsamples) {
+					var index = new STRtree();
+					for (var entry : regionMap.entrySet()) {
+						var region = entry.getKey();
+						var resolution = getResolution(entry.getValue(), d);
+						index.insert(
+								new Envelope(region.getX(), region.getX() + region.getWidth(), region.getY(), region.getY() + region.getHeight()),
+								new SparseImageServerRegion(region, resolution.getPath()));
+					}
+					// Build now, so that later queries are read-only
+					index.build();
+					indexes.put(d, index);
+				}
+				resolutionIndex = indexes;
+			}
+			return resolutionIndex;
+		}
+		
+		/**
+		 * Get the resolution with the highest downsample that is not greater than the one requested, 
+		 * or the first resolution if all downsamples are greater.
+		 */
+		private static SparseImageServerManagerResolution getResolution(List<SparseImageServerManagerResolution> resolutions, double downsample) {
+			int level = resolutions.size()-1;
+			while (level > 0 && resolutions.get(level).getDownsample() > downsample) {
+				level--;
+			}
+			return resolutions.get(level);
+		}
+		
 		/**
 		 * Request the server for a specific downsample.
 		 * <p>
 		 * Note that this does not aim to return a server for any arbitrary region; rather, 
 		 * a server <i>must</i> exist for the specified region and downsample, otherwise this will return {@code null}. 
+		 * <p>
+		 * The server is acquired on behalf of the caller, and will not be closed by the manager until 
+		 * {@link #releaseServer(ImageRegion, double)} is called with the same region and downsample. 
+		 * This should be done once for every non-null server returned by this method.
 		 * 
 		 * @param region specified region to which the server should correspond (must be found within {@code getRegions()})
 		 * @param downsample specified downsample for the server (must be found within {@code getDownsamples()})
 		 * @return
 		 * @throws IOException 
 		 */
-		public synchronized ImageServer<BufferedImage> getServer(ImageRegion region, double downsample) throws IOException {
-			// Get the best resolution map for the specified region & return null if none found
+		public ImageServer<BufferedImage> getServer(ImageRegion region, double downsample) throws IOException {
+			String path = getServerPath(region, downsample);
+			return path == null ? null : acquireServer(path);
+		}
+		
+		/**
+		 * Release a server previously requested with {@link #getServer(ImageRegion, double)}, 
+		 * so that it can be closed if too many servers are open.
+		 * 
+		 * @param region
+		 * @param downsample
+		 */
+		public void releaseServer(ImageRegion region, double downsample) {
+			String path = getServerPath(region, downsample);
+			if (path == null)
+				logger.warn("Attempted to release server for unknown region: {}", region);
+			else
+				releaseServer(path);
+		}
+		
+		/**
+		 * Get the path of the server with the best resolution for the specified region and downsample, 
+		 * or {@code null} if the region is not found.
+		 */
+		private synchronized String getServerPath(ImageRegion region, double downsample) {
 			List<SparseImageServerManagerResolution> resolutions = regionMap.get(region);
 			if (resolutions == null || resolutions.isEmpty())
 				return null;
-			int level = resolutions.size()-1;
-			while (level > 0 && resolutions.get(level).getDownsample() > downsample) {
-				level--;
-			}
+			return getResolution(resolutions, downsample).getPath();
+		}
+		
+		/**
+		 * Get the server with the specified path, opening it if necessary.
+		 * <p>
+		 * The server will not be closed by the manager until it has been released by a call to 
+		 * {@link #releaseServer(String)}, which should be made once for every call to this method.
+		 * 
+		 * @param path
+		 * @return
+		 * @throws IOException
+		 */
+		public ImageServer<BufferedImage> acquireServer(String path) throws IOException {
+			var server = serverMap.get(path);
+			if (server != null)
+				return server;
 			
-			// Create a new ImageServer if we need to, or reuse an existing one
 			// Note: the same server might be reused for multiple regions/resolutions if they have the same path
-			String path = resolutions.get(level).getPath();
-			ImageServer<BufferedImage> server = serverMap.get(path);
-			if (server == null) {
-				server = ImageServerProvider.buildServer(path, BufferedImage.class);
-				serverMap.put(path, server);
+			OpenServer openServer;
+			synchronized (openServers) {
+				openServer = openServers.computeIfAbsent(path, p -> new OpenServer());
+				openServer.users++;
 			}
+			// Build the server if needed, without blocking requests for other paths
+			synchronized (openServer) {
+				if (openServer.server == null) {
+					try {
+						openServer.server = ImageServerProvider.buildServer(path, BufferedImage.class);
+					} catch (IOException | RuntimeException e) {
+						releaseServer(path);
+						throw e;
+					}
+					if (openServer.server == null) {
+						releaseServer(path);
+						throw new IOException("Unable to build server for " + path);
+					}
+				}
+				server = openServer.server;
+			}
+			closeUnusedServers();
 			return server;
 		}
+		
+		/**
+		 * Release a server previously requested with {@link #acquireServer(String)}, 
+		 * so that it can be closed if too many servers are open.
+		 * 
+		 * @param path
+		 */
+		public void releaseServer(String path) {
+			if (serverMap.containsKey(path))
+				return;
+			synchronized (openServers) {
+				var openServer = openServers.get(path);
+				if (openServer == null || openServer.users == 0) {
+					logger.warn("Attempted to release server that is not in use: {}", path);
+					return;
+				}
+				openServer.users--;
+				// Don't keep a record of servers that failed to open
+				if (openServer.users == 0 && openServer.server == null)
+					openServers.remove(path);
+			}
+			closeUnusedServers();
+		}
+		
+		/**
+		 * Close the least recently used servers that are not currently in use, until no more than the maximum 
+		 * number of servers are open.
+		 */
+		private void closeUnusedServers() {
+			List<ImageServer<BufferedImage>> toClose = new ArrayList<>();
+			synchronized (openServers) {
+				int n = openServers.size();
+				var iter = openServers.values().iterator();
+				while (n > maxOpenServers && iter.hasNext()) {
+					var openServer = iter.next();
+					if (openServer.users == 0) {
+						toClose.add(openServer.server);
+						iter.remove();
+						n--;
+					}
+				}
+			}
+			for (var server : toClose) {
+				try {
+					logger.debug("Closing {}", server.getPath());
+					server.close();
+				} catch (Exception e) {
+					logger.warn("Error closing server: {}", e.getLocalizedMessage());
+				}
+			}
+		}
 
 		@Override
 		public void close() throws Exception {
 			for (ImageServer<BufferedImage> server : serverMap.values())
 				server.close();
+			List<OpenServer> toClose;
+			synchronized (openServers) {
+				toClose = new ArrayList<>(openServers.values());
+				openServers.clear();
+			}
+			for (var openServer : toClose) {
+				if (openServer.server != null)
+					openServer.server.close();
+			}
+		}
+		
+		/**
+		 * Get the number of servers currently opened by this manager (excluding any that were provided directly).
+		 * 
+		 * @return
+		 */
+		int nOpenServers() {
+			synchronized (openServers) {
+				return openServers.size();
+			}
 		}
 		
 		double[] getAvailableDownsamples() {
@@ -342,6 +602,39 @@ public class SparseImageServer extends AbstractTileableImageServer {
 		
 	}
 	
+	/**
+	 * A server that has been opened by a {@link SparseImageServerManager}, along with the number of callers currently using it.
+	 */
+	private static class OpenServer {
+		
+		private ImageServer<BufferedImage> server;
+		private int users = 0;
+		
+	}
+	
+	/**
+	 * A region, and the path to the server that should be used for it at a specific resolution.
+	 */
+	static class SparseImageServerRegion {
+		
+		private final ImageRegion region;
+		private final String path;
+		
+		SparseImageServerRegion(ImageRegion region, String path) {
+			this.region = region;
+			this.path = path;
+		}
+		
+		ImageRegion getRegion() {
+			return region;
+		}
+		
+		String getPath() {
+			return path;
+		}
+		
+	}
+	
 	static class SparseImageServerManagerRegion {
 		
 		private ImageRegion region;
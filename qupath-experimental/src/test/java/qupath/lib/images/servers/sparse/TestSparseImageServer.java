@@ -0,0 +1,222 @@
+package qupath.lib.images.servers.sparse;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+
+import org.junit.Test;
+
+import qupath.lib.images.servers.ImageIoImageServer;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.sparse.SparseImageServer.SparseImageServerManager;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.regions.RegionRequest;
+
+public class TestSparseImageServer {
+
+	private static final ImageRegion REGION_A = ImageRegion.createInstance(0, 0, 1000, 1000, 0, 0);
+	private static final ImageRegion REGION_B = ImageRegion.createInstance(2000, 0, 1000, 1000, 0, 0);
+
+	private static BufferedImage createImage(int width, int height, Color color) {
+		var img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		var g2d = img.createGraphics();
+		g2d.setColor(color);
+		g2d.fillRect(0, 0, width, height);
+		g2d.dispose();
+		return img;
+	}
+
+	/**
+	 * Write a small tiled TIFF, so that the manager can open servers from the path.
+	 */
+	private static File writeTiff(Color color) throws IOException {
+		var file = File.createTempFile("qupath-sparse", ".tif");
+		file.deleteOnExit();
+		var writer = ImageIO.getImageWritersByFormatName("tiff").next();
+		try (var stream = ImageIO.createImageOutputStream(file)) {
+			writer.setOutput(stream);
+			var param = writer.getDefaultWriteParam();
+			param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setTiling(64, 48, 0, 0);
+			writer.write(null, new IIOImage(createImage(128, 96, color), null, null), param);
+		} finally {
+			writer.dispose();
+		}
+		return file;
+	}
+
+	/**
+	 * Create a manager with region A available at downsamples 1 and 4, and region B only at downsample 1.
+	 */
+	private static SparseImageServerManager createManager() {
+		var manager = new SparseImageServerManager();
+		manager.addRegionServer(new ImageIoImageServer("a1", null, createImage(1000, 1000, Color.RED)), REGION_A, 1);
+		manager.addRegionServer(new ImageIoImageServer("a4", null, createImage(250, 250, Color.GREEN)), REGION_A, 4);
+		manager.addRegionServer(new ImageIoImageServer("b1", null, createImage(1000, 1000, Color.BLUE)), REGION_B, 1);
+		return manager;
+	}
+
+	private static Map<ImageRegion, String> getRegionServers(SparseImageServerManager manager, double downsample, int x, int y, int width, int height) {
+		Map<ImageRegion, String> map = new TreeMap<>((r1, r2) -> Integer.compare(r1.getX(), r2.getX()));
+		for (var regionServer : manager.getRegionServers(downsample, x, y, width, height))
+			map.put(regionServer.getRegion(), regionServer.getPath());
+		return map;
+	}
+
+	@Test
+	public void testRegionLookup() throws Exception {
+		var manager = createManager();
+		try {
+			assertArrayEquals(new double[] {1, 4}, manager.getAvailableDownsamples(), 0.0);
+
+			// The highest downsample that isn't greater than the one requested should be used for each region
+			assertEquals(Map.of(REGION_A, "a1", REGION_B, "b1"), getRegionServers(manager, 0.5, 0, 0, 3000, 1000));
+			assertEquals(Map.of(REGION_A, "a1", REGION_B, "b1"), getRegionServers(manager, 1, 0, 0, 3000, 1000));
+			assertEquals(Map.of(REGION_A, "a1", REGION_B, "b1"), getRegionServers(manager, 2, 0, 0, 3000, 1000));
+			assertEquals(Map.of(REGION_A, "a4", REGION_B, "b1"), getRegionServers(manager, 4, 0, 0, 3000, 1000));
+			assertEquals(Map.of(REGION_A, "a4", REGION_B, "b1"), getRegionServers(manager, 16, 0, 0, 3000, 1000));
+
+			// Only regions intersecting the request should be returned
+			assertEquals(Map.of(REGION_A, "a1"), getRegionServers(manager, 1, 500, 500, 500, 500));
+			assertEquals(Map.of(REGION_B, "b1"), getRegionServers(manager, 4, 2500, 0, 1000, 1000));
+			assertTrue(getRegionServers(manager, 1, 1200, 0, 500, 500).isEmpty());
+			assertTrue(getRegionServers(manager, 4, 0, 1000, 3000, 1000).isEmpty());
+		} finally {
+			manager.close();
+		}
+	}
+
+	@Test
+	public void testReadRegion() throws Exception {
+		var server = new SparseImageServer("sparse", createManager());
+		try {
+			assertEquals(3000, server.getWidth());
+			assertEquals(1000, server.getHeight());
+
+			var img = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), 1, 2100, 100, 10, 10));
+			assertEquals(Color.BLUE.getRGB(), img.getRGB(5, 5));
+			img = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), 1, 100, 100, 10, 10));
+			assertEquals(Color.RED.getRGB(), img.getRGB(5, 5));
+			img = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), 4, 100, 100, 40, 40));
+			assertEquals(Color.GREEN.getRGB(), img.getRGB(5, 5));
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		List<String> paths = new ArrayList<>();
+		var manager = new SparseImageServerManager();
+		try {
+			for (int i = 0; i < 3; i++) {
+				var path = writeTiff(Color.RED).getAbsolutePath();
+				manager.addRegionServer(path, ImageRegion.createInstance(i * 200, 0, 128, 96, 0, 0), 1);
+				paths.add(path);
+			}
+			manager.setMaxOpenServers(2);
+
+			List<ImageServer<BufferedImage>> servers = new ArrayList<>();
+			for (var path : paths) {
+				servers.add(manager.acquireServer(path));
+				manager.releaseServer(path);
+			}
+			assertEquals(2, manager.nOpenServers());
+
+			// The least recently used server should have been closed
+			assertSame(servers.get(1), manager.acquireServer(paths.get(1)));
+			manager.releaseServer(paths.get(1));
+			assertSame(servers.get(2), manager.acquireServer(paths.get(2)));
+			manager.releaseServer(paths.get(2));
+			var server0 = manager.acquireServer(paths.get(0));
+			manager.releaseServer(paths.get(0));
+			assertNotSame(servers.get(0), server0);
+			assertEquals(2, manager.nOpenServers());
+
+			// Servers that are in use should not be closed, even if the limit is exceeded
+			manager.setMaxOpenServers(1);
+			assertEquals(1, manager.nOpenServers());
+			server0 = manager.acquireServer(paths.get(0));
+			for (int i = 1; i < 3; i++) {
+				manager.acquireServer(paths.get(i));
+				assertEquals(2, manager.nOpenServers());
+				manager.releaseServer(paths.get(i));
+				assertEquals(1, manager.nOpenServers());
+			}
+			assertSame(server0, manager.acquireServer(paths.get(0)));
+			manager.releaseServer(paths.get(0));
+			manager.releaseServer(paths.get(0));
+		} finally {
+			manager.close();
+		}
+	}
+
+	@Test
+	public void testUnsupportedPath() throws Exception {
+		var file = File.createTempFile("qupath-sparse", ".txt");
+		file.deleteOnExit();
+		var manager = new SparseImageServerManager();
+		try {
+			var region = ImageRegion.createInstance(0, 0, 128, 96, 0, 0);
+			manager.addRegionServer(file.getAbsolutePath(), region, 1);
+			try {
+				manager.getServer(region, 1);
+				fail("Expected an IOException for a path without an image server");
+			} catch (IOException e) {
+				// Expected
+			}
+			assertEquals(0, manager.nOpenServers());
+		} finally {
+			manager.close();
+		}
+	}
+
+	@Test
+	public void testGetServer() throws Exception {
+		List<ImageRegion> regions = new ArrayList<>();
+		var manager = new SparseImageServerManager();
+		try {
+			for (int i = 0; i < 3; i++) {
+				var region = ImageRegion.createInstance(i * 200, 0, 128, 96, 0, 0);
+				manager.addRegionServer(writeTiff(Color.RED).getAbsolutePath(), region, 1);
+				regions.add(region);
+			}
+			manager.setMaxOpenServers(1);
+
+			// Servers returned by getServer should remain open until they are released
+			var server = manager.getServer(regions.get(0), 1);
+			for (int i = 1; i < 3; i++) {
+				manager.getServer(regions.get(i), 1);
+				manager.releaseServer(regions.get(i), 1);
+			}
+			assertSame(server, manager.getServer(regions.get(0), 1));
+			manager.releaseServer(regions.get(0), 1);
+			manager.releaseServer(regions.get(0), 1);
+
+			manager.getServer(regions.get(1), 1);
+			manager.releaseServer(regions.get(1), 1);
+			assertEquals(1, manager.nOpenServers());
+			assertNotSame(server, manager.getServer(regions.get(0), 1));
+			manager.releaseServer(regions.get(0), 1);
+		} finally {
+			manager.close();
+		}
+	}
+
+}
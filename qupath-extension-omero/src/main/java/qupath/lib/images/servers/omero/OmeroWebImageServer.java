@@ -4,15 +4,17 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.imageio.ImageIO;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,6 +48,30 @@ public class OmeroWebImageServer extends AbstractTileableImageServer {
 
 	private final String host;
 	private final String scheme;
+	private final int port;
+	
+	/**
+	 * Start of the URI used to request tiles (up to and including the image ID), and the encoded rendering parameters 
+	 * to append to the query. These are the same for every tile.
+	 */
+	private final String tileURIPrefix;
+	private final String renderQuery;
+	
+	/**
+	 * Client used to request tiles; this is shared, so that connections to the same host are reused by all servers.
+	 */
+	private static OmeroWebTileClient tileClient = new OmeroWebTileClient();
+	
+	/**
+	 * Request the neighbours of each tile that is read, since these are likely to be needed soon.
+	 */
+	private boolean prefetchNeighbors = true;
+	
+	/**
+	 * Prefetch requests made by this server that haven't completed, so that they can be cancelled when the server is closed 
+	 * without affecting other servers that have requested the same tiles.
+	 */
+	private final Set<CompletableFuture<BufferedImage>> prefetches = ConcurrentHashMap.newKeySet();
 
 	/**
 	 * Quality of requested JPEG.
@@ -63,6 +89,7 @@ public class OmeroWebImageServer extends AbstractTileableImageServer {
 
 		this.scheme = uri.getScheme();
 		this.host = uri.getHost();
+		this.port = uri.getPort();
 
 		/*
 		 * Try to parse the ID.
@@ -80,6 +107,16 @@ public class OmeroWebImageServer extends AbstractTileableImageServer {
 		}
 		if (this.id == null)
 			this.id = uri.getFragment();
+		
+		try {
+			tileURIPrefix = new URI(scheme, null, host, port, "/webgateway/render_image_region/" + id + "/", null, null).toString();
+			renderQuery = new URI(scheme, null, host, port, "/", 
+					"c=1|0:255$FF0000,2|0:255$00FF00,3|0:255$0000FF" +
+					"&maps=[{\"inverted\":{\"enabled\":false}},{\"inverted\":{\"enabled\":false}},{\"inverted\":{\"enabled\":false}}]" +
+					"&m=c&p=normal&q=" + QUALITY, null).getRawQuery();
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
 
 		int sizeX;
 		int sizeY;
@@ -98,7 +135,7 @@ public class OmeroWebImageServer extends AbstractTileableImageServer {
 
 
 		URL urlMetadata = new URL(
-				scheme, host, -1, "/webgateway/imgData/" + id
+				scheme, host, port, "/webgateway/imgData/" + id
 				);
 
 		InputStreamReader reader = new InputStreamReader(urlMetadata.openStream());
@@ -203,7 +240,7 @@ public class OmeroWebImageServer extends AbstractTileableImageServer {
 
 		// Options are: Rectangle, Ellipse, Point, Line, Polyline, Polygon and Label
 		URL urlROIs = new URL(
-				scheme, host, -1, "/api/v0/m/rois/?image=" + id
+				scheme, host, port, "/api/v0/m/rois/?image=" + id
 				);
 
 		List<PathObject> list = new ArrayList<>();
@@ -307,84 +344,107 @@ public class OmeroWebImageServer extends AbstractTileableImageServer {
 		return originalMetadata;
 	}
 
+	/**
+	 * Set whether neighbouring tiles should be requested in the background whenever a tile is read.
+	 * 
+	 * @param prefetch
+	 */
+	public void setPrefetchNeighbors(boolean prefetch) {
+		this.prefetchNeighbors = prefetch;
+	}
+	
+	/**
+	 * Returns true if neighbouring tiles are requested in the background whenever a tile is read.
+	 * 
+	 * @return
+	 */
+	public boolean getPrefetchNeighbors() {
+		return prefetchNeighbors;
+	}
+
 	@Override
 	protected BufferedImage readTile(TileRequest request) throws IOException {
-
-		int level = request.getLevel();
-
-		int targetWidth = request.getTileWidth();
-		int targetHeight = request.getTileHeight();
-
-		String urlFile;
-
+		BufferedImage img = tileClient.readImage(getTileURI(request));
+		if (prefetchNeighbors)
+			prefetchNeighbors(request);
+		return resizeTile(request, img);
+	}
+	
+	/**
+	 * Get the URI to request a tile.
+	 * <p>
+	 * Note that it's important to use the preferred tile size so that the correct x &amp; y can be used; 
+	 * also, there appears to be a max size (hard-coded?) in OMERO, so tiles should not be too large - 
+	 * but the AbstractTileableImageServer should deal with this.
+	 * 
+	 * @param request
+	 * @return
+	 */
+	private URI getTileURI(TileRequest request) {
+		int width = getPreferredTileWidth();
+		int height = getPreferredTileHeight();
+		String region;
 		if (nResolutions() > 1) {
-			int x = (int)(request.getTileX() / getPreferredTileWidth());
-			int y = (int)(request.getTileY() / getPreferredTileHeight());
-
-			// Note!  It's important to use the preferred tile size so that the correct x & y can be used
-			//			int width = request.getTileWidth();
-			//			int height = request.getTileHeight();
-			int width = getPreferredTileWidth();
-			int height = getPreferredTileHeight();
-
-			// It's crucial not to request tiles that are too large, but the AbstractTileableImageServer should deal with this
-//			// Incorporate max size OMERO supports
-//			if (targetWidth > OMERO_MAX_SIZE || targetHeight > OMERO_MAX_SIZE) {
-//				BufferedImage img = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
-//				Graphics2D g2d = img.createGraphics();
-//				int requestSize = (int)Math.round(OMERO_MAX_SIZE * request.getRegionRequest().getDownsample());
-//				for (int yy = 0; yy < request.getImageHeight(); yy += requestSize) {
-//					for (int xx = 0; xx < request.getImageWidth(); xx += requestSize) {
-//						RegionRequest requestTile = RegionRequest.createInstance(
-//								request.getRegionRequest().getPath(), request.getRegionRequest().getDownsample(), 
-//								request.getImageX() + xx, request.getImageY() + yy, requestSize, requestSize, request.getZ(), request.getT());
-//						BufferedImage imgTile = readTile(
-//								new TileRequest(requestTile, level, OMERO_MAX_SIZE, OMERO_MAX_SIZE));
-//						g2d.drawImage(imgTile, (int)((xx / requestSize) * OMERO_MAX_SIZE), (int)((yy / requestSize) * OMERO_MAX_SIZE), null);
-//					}
-//
-//				}
-//				g2d.dispose();
-//				return img;
-//			}		
-
-			urlFile = "/webgateway/render_image_region/" + id + 
-					"/" + request.getZ() + 
-					"/" + request.getT() +
-					"/?tile=" + level + "," + x + "," + y + "," + width + "," + height +
-					"&c=1|0:255$FF0000,2|0:255$00FF00,3|0:255$0000FF" +
-					"&maps=[{%22inverted%22:{%22enabled%22:false}},{%22inverted%22:{%22enabled%22:false}},{%22inverted%22:{%22enabled%22:false}}]" +
-					"&m=c&p=normal&q=" + QUALITY;
-
-			URL url = new URL(scheme, host, urlFile);
-
-			BufferedImage img = ImageIO.read(url);
-
-			return img;
-
+			int x = (int)(request.getTileX() / width);
+			int y = (int)(request.getTileY() / height);
+			region = "tile=" + request.getLevel() + "," + x + "," + y + "," + width + "," + height;
 		} else {
-			int x = request.getTileX();
-			int y = request.getTileY();
-			//			int width = request.getTileWidth();
-			//			int height = request.getTileHeight();
-			int width = getPreferredTileWidth();
-			int height = getPreferredTileHeight();
-
-			urlFile = "/webgateway/render_image_region/" + id + 
-					"/" + request.getZ() + 
-					"/" + request.getT() +
-					"/?region=" + x + "," + y + "," + width + "," + height +
-					"&c=1|0:255$FF0000,2|0:255$00FF00,3|0:255$0000FF" +
-					"&maps=[{%22inverted%22:{%22enabled%22:false}},{%22inverted%22:{%22enabled%22:false}},{%22inverted%22:{%22enabled%22:false}}]" +
-					"&m=c&p=normal&q=" + QUALITY;			
+			region = "region=" + request.getTileX() + "," + request.getTileY() + "," + width + "," + height;
 		}
-
-
-		URL url = new URL(scheme, host, urlFile);
-
-		BufferedImage img = ImageIO.read(url);
-
-		return resize(img, targetWidth, targetHeight);
+		return URI.create(tileURIPrefix + request.getZ() + "/" + request.getT() + "/?" + region + "&" + renderQuery);
+	}
+	
+	/**
+	 * Tiles are only resized for images without multiple resolutions; pyramidal tiles are returned as they are.
+	 * 
+	 * @param request
+	 * @param img
+	 * @return
+	 */
+	private BufferedImage resizeTile(TileRequest request, BufferedImage img) {
+		if (nResolutions() > 1)
+			return img;
+		return resize(img, request.getTileWidth(), request.getTileHeight());
+	}
+	
+	/**
+	 * Request the tiles surrounding a tile at the same resolution, adding them to the cache when they arrive.
+	 * 
+	 * @param request
+	 */
+	private void prefetchNeighbors(TileRequest request) {
+		var cache = getCache();
+		if (cache == null)
+			return;
+		var region = request.getRegionRequest();
+		int stepX = (int)Math.round(getPreferredTileWidth() * region.getDownsample());
+		int stepY = (int)Math.round(getPreferredTileHeight() * region.getDownsample());
+		int cx = region.getX() + region.getWidth() / 2;
+		int cy = region.getY() + region.getHeight() / 2;
+		for (int dy = -1; dy <= 1; dy++) {
+			for (int dx = -1; dx <= 1; dx++) {
+				if (dx == 0 && dy == 0)
+					continue;
+				var neighbor = getTile(request.getLevel(), cx + dx * stepX, cy + dy * stepY, request.getZ(), request.getT());
+				if (neighbor == null || cache.containsKey(neighbor.getRegionRequest()))
+					continue;
+				var future = tileClient.prefetch(getTileURI(neighbor));
+				prefetches.add(future);
+				future.whenComplete((img, e) -> prefetches.remove(future));
+				future.thenAccept(img -> {
+					cache.putIfAbsent(neighbor.getRegionRequest(), resizeTile(neighbor, img));
+				});
+			}
+		}
+	}
+	
+	@Override
+	public void close() throws Exception {
+		// Each future belongs to this server only, so cancelling it doesn't cancel requests made by any other server
+		for (var future : prefetches)
+			future.cancel(false);
+		prefetches.clear();
+		super.close();
 	}
 
 }
@@ -0,0 +1,392 @@
+package qupath.lib.images.servers.omero;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.CookieHandler;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.SimpleThreadFactory;
+
+/**
+ * Asynchronous HTTP client for requesting image tiles.
+ * <p>
+ * Requests are sent using a single {@link HttpClient}, so that persistent connections are reused
+ * rather than a new connection being opened for every tile. The number of requests in progress
+ * for each host is limited; further requests are queued, with tiles that are needed immediately
+ * being sent before any prefetched tiles.
+ * <p>
+ * Concurrent requests for the same URI share a single HTTP request, and requests that have not yet been
+ * sent can be cancelled (e.g. because the tile is no longer visible).
+ *
+ * @author Pete Bankhead
+ *
+ */
+public class OmeroWebTileClient implements AutoCloseable {
+
+	private final static Logger logger = LoggerFactory.getLogger(OmeroWebTileClient.class);
+
+	/**
+	 * Default maximum number of requests that may be in progress for each host.
+	 */
+	public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 6;
+
+	/**
+	 * Default maximum number of prefetch requests that may be queued for each host.
+	 * If more are requested, the oldest are discarded.
+	 */
+	public static final int DEFAULT_MAX_PREFETCH_PER_HOST = 32;
+
+	private final ExecutorService pool = Executors.newCachedThreadPool(new SimpleThreadFactory("omero-tiles-", true));
+	private final HttpClient client;
+
+	private final int maxRequestsPerHost;
+	private final int maxPrefetchPerHost;
+
+	// All the following are guarded by 'this'
+	private final Map<URI, PendingRequest> pending = new HashMap<>();
+	private final Map<String, HostQueue> hosts = new HashMap<>();
+	private boolean isClosed = false;
+
+	/**
+	 * Create a tile client with the default limits on requests per host.
+	 */
+	public OmeroWebTileClient() {
+		this(DEFAULT_MAX_REQUESTS_PER_HOST, DEFAULT_MAX_PREFETCH_PER_HOST);
+	}
+
+	/**
+	 * Create a tile client.
+	 *
+	 * @param maxRequestsPerHost maximum number of requests that may be in progress for each host
+	 * @param maxPrefetchPerHost maximum number of prefetch requests that may be queued for each host
+	 */
+	public OmeroWebTileClient(int maxRequestsPerHost, int maxPrefetchPerHost) {
+		if (maxRequestsPerHost < 1)
+			throw new IllegalArgumentException("Maximum requests per host must be at least 1");
+		this.maxRequestsPerHost = maxRequestsPerHost;
+		this.maxPrefetchPerHost = Math.max(0, maxPrefetchPerHost);
+		this.client = HttpClient.newBuilder()
+				.executor(pool)
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.cookieHandler(new DefaultCookieHandler())
+				.build();
+	}
+
+	/**
+	 * Get the maximum number of requests that may be in progress for each host.
+	 *
+	 * @return
+	 */
+	public int getMaxRequestsPerHost() {
+		return maxRequestsPerHost;
+	}
+
+	/**
+	 * Request an image, blocking until it is available.
+	 * <p>
+	 * If the calling thread is interrupted, the request will be cancelled (unless other callers are waiting
+	 * for the same image) and an {@link InterruptedIOException} thrown.
+	 *
+	 * @param uri
+	 * @return
+	 * @throws IOException
+	 */
+	public BufferedImage readImage(URI uri) throws IOException {
+		var future = readImageAsync(uri);
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while requesting " + uri);
+		} catch (CancellationException e) {
+			throw new InterruptedIOException("Request cancelled for " + uri);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof CancellationException)
+				throw new InterruptedIOException("Request cancelled for " + uri);
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Request an image asynchronously.
+	 * <p>
+	 * Cancelling the returned future will cancel the underlying request if it has not yet been sent,
+	 * and no other callers are waiting for the same image.
+	 *
+	 * @param uri
+	 * @return
+	 */
+	public CompletableFuture<BufferedImage> readImageAsync(URI uri) {
+		return request(uri, false);
+	}
+
+	/**
+	 * Request an image that is likely to be needed soon.
+	 * <p>
+	 * Prefetch requests are only sent when there are no other requests waiting for the same host,
+	 * and may be discarded if too many are queued.
+	 *
+	 * @param uri
+	 * @return
+	 */
+	public CompletableFuture<BufferedImage> prefetch(URI uri) {
+		return request(uri, true);
+	}
+
+	/**
+	 * Cancel all prefetch requests that have not yet been sent.
+	 */
+	public void cancelPrefetches() {
+		cancelPrefetches(uri -> true);
+	}
+
+	/**
+	 * Cancel all prefetch requests that have not yet been sent, and which have a URI accepted by the filter.
+	 *
+	 * @param filter
+	 */
+	public void cancelPrefetches(Predicate<URI> filter) {
+		List<PendingRequest> cancelled = new ArrayList<>();
+		synchronized (this) {
+			for (var hostQueue : hosts.values()) {
+				var iter = hostQueue.prefetch.iterator();
+				while (iter.hasNext()) {
+					var request = iter.next();
+					if (filter.test(request.uri)) {
+						iter.remove();
+						pending.remove(request.uri, request);
+						cancelled.add(request);
+					}
+				}
+			}
+		}
+		for (var request : cancelled)
+			request.result.cancel(false);
+	}
+
+	private CompletableFuture<BufferedImage> request(URI uri, boolean isPrefetch) {
+		PendingRequest request;
+		PendingRequest discarded = null;
+		synchronized (this) {
+			if (isClosed)
+				return CompletableFuture.failedFuture(new IOException("Tile client has been closed"));
+			request = pending.get(uri);
+			var hostQueue = hosts.computeIfAbsent(getHostKey(uri), k -> new HostQueue());
+			if (request == null) {
+				request = new PendingRequest(uri, isPrefetch);
+				pending.put(uri, request);
+				if (isPrefetch) {
+					if (maxPrefetchPerHost == 0) {
+						pending.remove(uri);
+						return CompletableFuture.failedFuture(new CancellationException("Prefetching is disabled"));
+					}
+					hostQueue.prefetch.addLast(request);
+					if (hostQueue.prefetch.size() > maxPrefetchPerHost) {
+						discarded = hostQueue.prefetch.pollFirst();
+						pending.remove(discarded.uri, discarded);
+					}
+				} else
+					hostQueue.demand.addLast(request);
+			} else if (!isPrefetch && request.isPrefetch && !request.isSent) {
+				// Now needed immediately, so move to the front of the queue
+				hostQueue.prefetch.remove(request);
+				hostQueue.demand.addFirst(request);
+				request.isPrefetch = false;
+			}
+			request.nWaiting++;
+		}
+		if (discarded != null) {
+			logger.trace("Discarding prefetch request for {}", discarded.uri);
+			discarded.result.cancel(false);
+		}
+
+		// Give each caller its own future, so that one caller cancelling doesn't affect any others
+		var future = request.result.copy();
+		var finalRequest = request;
+		future.whenComplete((img, e) -> {
+			if (future.isCancelled())
+				releaseRequest(finalRequest);
+		});
+		sendRequests(getHostKey(uri));
+		return future;
+	}
+
+	/**
+	 * Called when a caller is no longer interested in a request; if it hasn't been sent, and nobody else wants it,
+	 * then it can be removed from the queue.
+	 *
+	 * @param request
+	 */
+	private void releaseRequest(PendingRequest request) {
+		synchronized (this) {
+			request.nWaiting--;
+			if (request.nWaiting > 0 || request.isSent)
+				return;
+			var hostQueue = hosts.get(getHostKey(request.uri));
+			if (hostQueue != null) {
+				hostQueue.demand.remove(request);
+				hostQueue.prefetch.remove(request);
+			}
+			pending.remove(request.uri, request);
+		}
+		logger.trace("Cancelled request for {}", request.uri);
+		request.result.cancel(false);
+	}
+
+	/**
+	 * Send as many queued requests for a host as the limit on concurrent requests permits.
+	 *
+	 * @param hostKey
+	 */
+	private void sendRequests(String hostKey) {
+		List<PendingRequest> toSend = new ArrayList<>();
+		HostQueue hostQueue;
+		synchronized (this) {
+			hostQueue = hosts.get(hostKey);
+			if (hostQueue == null || isClosed)
+				return;
+			while (hostQueue.nActive < maxRequestsPerHost) {
+				var request = hostQueue.demand.pollFirst();
+				if (request == null)
+					request = hostQueue.prefetch.pollFirst();
+				if (request == null)
+					break;
+				request.isSent = true;
+				hostQueue.nActive++;
+				toSend.add(request);
+			}
+		}
+		for (var request : toSend)
+			send(hostKey, hostQueue, request);
+	}
+
+	/**
+	 * Send a request, using the queue it was taken from to track the active requests.
+	 * The queue is used directly, since it may have been removed from the map of hosts if the client has been closed.
+	 */
+	private void send(String hostKey, HostQueue hostQueue, PendingRequest request) {
+		logger.trace("Sending request for {}", request.uri);
+		var httpRequest = HttpRequest.newBuilder(request.uri).GET().build();
+		client.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofByteArray()).whenComplete((response, e) -> {
+			synchronized (this) {
+				hostQueue.nActive--;
+				pending.remove(request.uri, request);
+			}
+			// Decode before sending more, since we are already using a pool thread
+			try {
+				if (e != null)
+					request.result.completeExceptionally(e);
+				else if (response.statusCode() != 200)
+					request.result.completeExceptionally(new IOException("Request failed with status " + response.statusCode() + ": " + request.uri));
+				else {
+					var img = ImageIO.read(new ByteArrayInputStream(response.body()));
+					if (img == null)
+						request.result.completeExceptionally(new IOException("Unable to read image from " + request.uri));
+					else
+						request.result.complete(img);
+				}
+			} catch (Exception e2) {
+				request.result.completeExceptionally(e2);
+			} finally {
+				sendRequests(hostKey);
+			}
+		});
+	}
+
+	private static String getHostKey(URI uri) {
+		return uri.getHost() + ":" + uri.getPort();
+	}
+
+	/**
+	 * Cancel all queued requests, and prevent any more from being made.
+	 */
+	@Override
+	public void close() {
+		List<PendingRequest> cancelled;
+		synchronized (this) {
+			isClosed = true;
+			cancelled = new ArrayList<>(pending.values());
+			pending.clear();
+			hosts.clear();
+		}
+		for (var request : cancelled)
+			request.result.cancel(false);
+		pool.shutdown();
+	}
+
+
+	private static class HostQueue {
+
+		private int nActive = 0;
+		private Deque<PendingRequest> demand = new ArrayDeque<>();
+		private Deque<PendingRequest> prefetch = new ArrayDeque<>();
+
+	}
+
+
+	private static class PendingRequest {
+
+		private final URI uri;
+		private final CompletableFuture<BufferedImage> result = new CompletableFuture<>();
+		private boolean isPrefetch;
+		private boolean isSent = false;
+		private int nWaiting = 0;
+
+		PendingRequest(URI uri, boolean isPrefetch) {
+			this.uri = uri;
+			this.isPrefetch = isPrefetch;
+		}
+
+	}
+
+
+	/**
+	 * Use whichever default cookie handler is set at the time of the request, since this is
+	 * where the session cookies are stored after logging in.
+	 */
+	private static class DefaultCookieHandler extends CookieHandler {
+
+		@Override
+		public Map<String, List<String>> get(URI uri, Map<String, List<String>> requestHeaders) throws IOException {
+			var handler = CookieHandler.getDefault();
+			if (handler == null)
+				return Collections.emptyMap();
+			return handler.get(uri, requestHeaders);
+		}
+
+		@Override
+		public void put(URI uri, Map<String, List<String>> responseHeaders) throws IOException {
+			var handler = CookieHandler.getDefault();
+			if (handler != null)
+				handler.put(uri, responseHeaders);
+		}
+
+	}
+
+}
@@ -0,0 +1,162 @@
+package qupath.lib.images.servers.omero;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class TestOmeroWebTileClient {
+
+	private HttpServer server;
+	private byte[] png;
+	private CountDownLatch gate;
+	private AtomicInteger nActive = new AtomicInteger();
+	private AtomicInteger maxActive = new AtomicInteger();
+	private Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+
+	/**
+	 * Start a stub server that returns the same small PNG for every path,
+	 * once the gate has been opened.
+	 */
+	@Before
+	public void startServer() throws IOException {
+		var img = new BufferedImage(16, 8, BufferedImage.TYPE_INT_RGB);
+		img.setRGB(3, 2, 0xff0000);
+		var stream = new ByteArrayOutputStream();
+		ImageIO.write(img, "png", stream);
+		png = stream.toByteArray();
+		gate = new CountDownLatch(0);
+
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", exchange -> {
+			counts.computeIfAbsent(exchange.getRequestURI().getPath(), p -> new AtomicInteger()).incrementAndGet();
+			int n = nActive.incrementAndGet();
+			maxActive.accumulateAndGet(n, Math::max);
+			try {
+				gate.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			nActive.decrementAndGet();
+			exchange.sendResponseHeaders(200, png.length);
+			try (var output = exchange.getResponseBody()) {
+				output.write(png);
+			}
+		});
+		server.start();
+	}
+
+	@After
+	public void stopServer() {
+		server.stop(0);
+	}
+
+	private URI getURI(String path) {
+		return URI.create("http://localhost:" + server.getAddress().getPort() + path);
+	}
+
+	private int getCount(String path) {
+		var count = counts.get(path);
+		return count == null ? 0 : count.get();
+	}
+
+	@Test
+	public void testReadImage() throws Exception {
+		try (var client = new OmeroWebTileClient(2, 10)) {
+			var img = client.readImage(getURI("/tile/1"));
+			assertEquals(16, img.getWidth());
+			assertEquals(0xff0000, img.getRGB(3, 2) & 0xffffff);
+		}
+	}
+
+	@Test
+	public void testRequestLimits() throws Exception {
+		gate = new CountDownLatch(1);
+		try (var client = new OmeroWebTileClient(2, 10)) {
+			List<CompletableFuture<BufferedImage>> futures = new ArrayList<>();
+			for (int i = 0; i < 6; i++)
+				futures.add(client.readImageAsync(getURI("/tile/" + i)));
+			// Repeated requests should share the same HTTP request
+			futures.add(client.readImageAsync(getURI("/tile/0")));
+			// Queued requests can be cancelled before they are sent
+			futures.get(5).cancel(true);
+
+			Thread.sleep(200);
+			gate.countDown();
+			for (int i = 0; i < futures.size(); i++) {
+				if (i != 5)
+					assertEquals(16, futures.get(i).get(10, TimeUnit.SECONDS).getWidth());
+			}
+			assertTrue(maxActive.get() <= 2);
+			assertEquals(1, getCount("/tile/0"));
+			assertEquals(0, getCount("/tile/5"));
+		}
+	}
+
+	@Test
+	public void testPrefetch() throws Exception {
+		gate = new CountDownLatch(1);
+		try (var client = new OmeroWebTileClient(1, 2)) {
+			// Occupy the only connection
+			var first = client.readImageAsync(getURI("/tile/first"));
+			// Queue prefetches, the oldest of which should be discarded
+			var prefetch1 = client.prefetch(getURI("/tile/p1"));
+			var prefetch2 = client.prefetch(getURI("/tile/p2"));
+			var prefetch3 = client.prefetch(getURI("/tile/p3"));
+			// Requesting a prefetched tile should give it priority, without a second request
+			var demand = client.readImageAsync(getURI("/tile/p3"));
+			client.cancelPrefetches(uri -> uri.getPath().endsWith("p2"));
+
+			gate.countDown();
+			first.get(10, TimeUnit.SECONDS);
+			demand.get(10, TimeUnit.SECONDS);
+			prefetch3.get(10, TimeUnit.SECONDS);
+			assertTrue(prefetch1.isCompletedExceptionally());
+			assertTrue(prefetch2.isCompletedExceptionally());
+			assertEquals(1, getCount("/tile/p3"));
+			assertEquals(0, getCount("/tile/p1"));
+			assertEquals(0, getCount("/tile/p2"));
+		}
+	}
+
+	@Test
+	public void testCancelSharedPrefetch() throws Exception {
+		gate = new CountDownLatch(1);
+		try (var client = new OmeroWebTileClient(1, 10)) {
+			var first = client.readImageAsync(getURI("/tile/first"));
+			// Prefetch the same tile twice (e.g. for two servers), then cancel one of the requests
+			var prefetch1 = client.prefetch(getURI("/tile/shared"));
+			var prefetch2 = client.prefetch(getURI("/tile/shared"));
+			prefetch1.cancel(false);
+
+			gate.countDown();
+			first.get(10, TimeUnit.SECONDS);
+			assertEquals(16, prefetch2.get(10, TimeUnit.SECONDS).getWidth());
+			assertTrue(prefetch1.isCancelled());
+			assertEquals(1, getCount("/tile/shared"));
+		}
+	}
+
+}
@@ -72,7 +72,6 @@ import java.util.Locale.Category;
 import java.util.Map.Entry;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
@@ -185,7 +184,8 @@ import qupath.lib.algorithms.IntensityFeaturesPlugin;
 import qupath.lib.algorithms.LocalBinaryPatternsPlugin;
 import qupath.lib.algorithms.TilerPlugin;
 import qupath.lib.common.GeneralTools;
-import qupath.lib.common.SimpleThreadFactory;
+import qupath.lib.common.TaskScheduler;
+import qupath.lib.common.TaskScheduler.Priority;
 import qupath.lib.common.URLTools;
 import qupath.lib.gui.commands.AnnotationCombineCommand;
 import qupath.lib.gui.commands.BrightnessContrastCommand;
@@ -406,7 +406,7 @@ public class QuPathGUI implements ModeWrapper, ImageDataWrapper<BufferedImage>,
 	// ExecutorServices for single & multiple threads
 	private Map<Object, ExecutorService> mapSingleThreadPools = new HashMap<>();
 //	private Set<ExecutorService> managedThreadPools = new HashSet<>();
-	private ExecutorService poolMultipleThreads = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new SimpleThreadFactory("qupath-shared-", false));	
+	private ExecutorService poolMultipleThreads = TaskScheduler.getInstance().createExecutor("qupath-shared", Priority.ANALYSIS, Math.max(2, Runtime.getRuntime().availableProcessors()));	
 	
 	private Map<KeyCombination, Action> mapActions = new HashMap<>();
 	
@@ -2816,7 +2816,7 @@ public class QuPathGUI implements ModeWrapper, ImageDataWrapper<BufferedImage>,
 	
 	
 	/**
-	 * Create an executor using a single thread.
+	 * Create an executor that runs tasks one at a time, using the shared {@link TaskScheduler}.
 	 * 
 	 * Optionally specify an owner, in which case the same Executor will be returned for the owner 
 	 * for so long as the Executor has not been shut down; if it has been shut down, a new Executor will be returned.
@@ -2833,7 +2833,7 @@ public class QuPathGUI implements ModeWrapper, ImageDataWrapper<BufferedImage>,
 	public ExecutorService createSingleThreadExecutor(final Object owner) {
 		ExecutorService pool = mapSingleThreadPools.get(owner);
 		if (pool == null || pool.isShutdown()) {
-			pool = Executors.newSingleThreadExecutor(new SimpleThreadFactory(owner.getClass().getSimpleName().toLowerCase() + "-", false));
+			pool = TaskScheduler.getInstance().createExecutor(owner.getClass().getSimpleName().toLowerCase(), Priority.ANALYSIS, 1);
 			mapSingleThreadPools.put(owner, pool);
 		}
 		return pool;
@@ -30,9 +30,13 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.controlsfx.dialog.ProgressDialog;
@@ -51,6 +55,8 @@ import javafx.scene.input.Clipboard;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.GridPane;
 import qupath.lib.common.GeneralTools;
+import qupath.lib.common.TaskScheduler;
+import qupath.lib.common.TaskScheduler.Priority;
 import qupath.lib.display.ChannelDisplayInfo;
 import qupath.lib.display.ImageDisplay;
 import qupath.lib.gui.QuPathGUI;
@@ -58,6 +64,7 @@ import qupath.lib.gui.commands.interfaces.PathCommand;
 import qupath.lib.gui.helpers.DisplayHelpers;
 import qupath.lib.gui.helpers.PanelToolsFX;
 import qupath.lib.gui.panels.ProjectBrowser;
+import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerProvider;
@@ -140,22 +147,15 @@ public class ProjectImportImagesCommand implements PathCommand {
 		List<String> pathSucceeded = new ArrayList<>();
 		List<String> pathFailed = new ArrayList<>();
 		var project = qupath.getProject();
+		var paths = new ArrayList<>(listView.getItems());
 		Task<Void> worker = new Task<Void>() {
 			@Override
 			protected Void call() throws Exception {
-				long max = listView.getItems().size();
+				long max = paths.size();
 				AtomicLong counter = new AtomicLong(0L);
-				// TODO: The parallel stream is bringing nothing here... refactor to return entries then add, or else add then sort later
-				listView.getItems().parallelStream().forEachOrdered(p -> {
-					try (var server = ImageServerProvider.buildServer(p, BufferedImage.class)) {
-						addImageAndSubImagesToProject(project, server);
-					} catch (Exception e) {
-						logger.warn("Exception adding " + p, e);
-					} finally {
-						updateProgress(counter.incrementAndGet(), max);
-					}
-				});
-				
+				int nThreads = Math.max(1, Math.min(paths.size(), PathPrefs.getNumCommandThreads()));
+				importImages(project, paths, nThreads, ProjectImportImagesCommand::readImagesForPath,
+						pathSucceeded, pathFailed, () -> updateProgress(counter.incrementAndGet(), max));
 				updateProgress(max, max);
 				return null;
 	         }
@@ -164,6 +164,7 @@ public class ProjectImportImagesCommand implements PathCommand {
 		progress.setTitle("Project import");
 		qupath.submitShortTask(worker);
 		progress.showAndWait();
+		// Save once, after all images have been added
 		try {
 			project.syncChanges();
 		} catch (IOException e1) {
@@ -334,21 +335,168 @@ public class ProjectImportImagesCommand implements PathCommand {
 	
 	
 	public static boolean addImageAndSubImagesToProject(Project<BufferedImage> project, ImageServer<BufferedImage> server) {
+		return !addImportedImagesToProject(project, readImagesForServer(server)).isEmpty();
+	}
+	
+	/**
+	 * Read the images for each path in parallel, then add them to a project in the original order of the paths.
+	 * Only a limited number of images are read ahead, so that we don't need to hold all the thumbnails in memory.
+	 * 
+	 * @param project the project to which the images should be added
+	 * @param paths the paths to import
+	 * @param nThreads the maximum number of paths to read concurrently
+	 * @param reader function used to read the images for each path
+	 * @param pathSucceeded list to which paths are added if at least one image was added to the project
+	 * @param pathFailed list to which paths are added if no image was added to the project
+	 * @param progress called whenever a path has been read (successfully or not); may be called from any thread
+	 * @throws InterruptedException if interrupted while waiting for a path to be read
+	 */
+	static void importImages(Project<BufferedImage> project, List<String> paths, int nThreads, ImportedImageReader reader,
+			List<String> pathSucceeded, List<String> pathFailed, Runnable progress) throws InterruptedException {
+		int maxReadAhead = nThreads * 4;
+		var pool = TaskScheduler.getInstance().createExecutor("project-import", Priority.BACKGROUND_IO, nThreads);
+		List<Future<List<ImportedImage>>> futures = new ArrayList<>();
+		try {
+			for (int i = 0; i < paths.size(); i++) {
+				while (futures.size() < paths.size() && futures.size() < i + maxReadAhead) {
+					var pathToRead = paths.get(futures.size());
+					futures.add(pool.submit(() -> {
+						try {
+							return reader.readImages(pathToRead);
+						} finally {
+							progress.run();
+						}
+					}));
+				}
+				var p = paths.get(i);
+				try {
+					// Read the image in this thread if it hasn't started yet, rather than waiting for space in the budget
+					pool.runIfQueued(futures.get(i));
+					var images = futures.get(i).get();
+					futures.set(i, null);
+					if (addImportedImagesToProject(project, images).isEmpty())
+						pathFailed.add(p);
+					else
+						pathSucceeded.add(p);
+				} catch (ExecutionException e) {
+					logger.warn("Exception adding " + p, e.getCause());
+					pathFailed.add(p);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Read the images to import for a single path.
+	 */
+	@FunctionalInterface
+	static interface ImportedImageReader {
+		
+		List<ImportedImage> readImages(String path) throws IOException;
+		
+	}
+	
+	/**
+	 * Read the information needed to add an image to a project, including a thumbnail.
+	 * If the image has sub-images, then these are returned (in order) instead of the image itself.
+	 * <p>
+	 * This does not modify any project, and so may be called for different images in parallel.
+	 * All servers are closed before returning.
+	 * 
+	 * @param path the path to the image
+	 * @return
+	 * @throws IOException if the server could not be created
+	 * 
+	 * @see #addImportedImagesToProject(Project, Collection)
+	 */
+	static List<ImportedImage> readImagesForPath(String path) throws IOException {
+		try (var server = ImageServerProvider.buildServer(path, BufferedImage.class)) {
+			return readImagesForServer(server);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+	
+	/**
+	 * Read the information needed to add an image (or its sub-images) to a project.
+	 * Any servers created for sub-images are closed before returning, but the server passed as a parameter is not.
+	 * 
+	 * @param server
+	 * @return
+	 */
+	static List<ImportedImage> readImagesForServer(ImageServer<BufferedImage> server) {
 		var subImages = server.getSubImageList();
-		if (subImages.isEmpty())
-			return addSingleImageToProject(project, server);
-		boolean changes = false;
+		if (subImages.isEmpty()) {
+			try {
+				return Collections.singletonList(readImage(server));
+			} catch (IOException e) {
+				logger.warn("Error attempting to add " + server, e);
+				return Collections.emptyList();
+			}
+		}
+		List<ImportedImage> images = new ArrayList<>();
 		for (var name : subImages) {
 			// TODO: Consider using specifically this server class
 			var path = server.getSubImagePath(name);
+			try (var server2 = ImageServerProvider.buildServer(path, BufferedImage.class)) {
+				images.add(readImage(server2));
+			} catch (Exception e) {
+				logger.warn("Could not build server for " + name + " (" + path + ")", e);
+			}
+		}
+		return images;
+	}
+	
+	private static ImportedImage readImage(ImageServer<BufferedImage> server) throws IOException {
+		return new ImportedImage(server.getPath(), server.getDisplayedImageName(), getThumbnailRGB(server, null));
+	}
+	
+	/**
+	 * Add previously-read images to a project, in order, setting their thumbnails.
+	 * <p>
+	 * Note that this does not save the project, so that {@link Project#syncChanges()} can be called once after 
+	 * adding any number of images.
+	 * 
+	 * @param project
+	 * @param images
+	 * @return the entries that were added (excluding any images that were already in the project)
+	 */
+	static List<ProjectImageEntry<BufferedImage>> addImportedImagesToProject(Project<BufferedImage> project, Collection<ImportedImage> images) {
+		List<ProjectImageEntry<BufferedImage>> entries = new ArrayList<>();
+		for (var image : images) {
+			var entry = project.addImage(image.serverPath, image.imageName);
+			if (entry == null)
+				continue;
 			try {
-				var server2 = ImageServerProvider.buildServer(path, BufferedImage.class);
-				changes = changes | addSingleImageToProject(project, server2);
+				entry.setThumbnail(image.thumbnail);
 			} catch (IOException e) {
-				logger.warn("Could not build server for " + name + " (" + path + ")", e);
+				logger.warn("Unable to set thumbnail for " + image.imageName, e);
 			}
+			entries.add(entry);
 		}
-		return changes;
+		return entries;
+	}
+	
+	
+	/**
+	 * Information needed to add a single image to a project, independently of any open server.
+	 */
+	static class ImportedImage {
+		
+		private final String serverPath;
+		private final String imageName;
+		private final BufferedImage thumbnail;
+		
+		ImportedImage(final String serverPath, final String imageName, final BufferedImage thumbnail) {
+			this.serverPath = serverPath;
+			this.imageName = imageName;
+			this.thumbnail = thumbnail;
+		}
+		
 	}
 	
 	/**
@@ -361,20 +509,24 @@ public class ProjectImportImagesCommand implements PathCommand {
 	 * @return
 	 */
 	public static boolean addSingleImageToProject(Project<BufferedImage> project, ImageServer<BufferedImage> server) {
-		ProjectImageEntry<BufferedImage> entry = null;
 		try {
-			var img = getThumbnailRGB(server, null);
-			entry = project.addImage(server);
-			if (entry != null)
-				entry.setThumbnail(img);
+			return !addImportedImagesToProject(project, Collections.singletonList(readImage(server))).isEmpty();
 		} catch (IOException e) {
 			logger.warn("Error attempting to add " + server, e);
+			return false;
 		}
-		return entry != null;
 	}
 	
 	
-	static BufferedImage getThumbnailRGB(ImageServer<BufferedImage> server, ImageDisplay imageDisplay) throws IOException {
+	/**
+	 * Create an RGB thumbnail suitable for a project entry, applying automatic display settings if the image is not already RGB.
+	 * 
+	 * @param server the server for the image
+	 * @param imageDisplay optional display settings; if null, default settings will be used
+	 * @return
+	 * @throws IOException
+	 */
+	public static BufferedImage getThumbnailRGB(ImageServer<BufferedImage> server, ImageDisplay imageDisplay) throws IOException {
 		var img2 = server.getDefaultThumbnail();
 		// Try to write RGB images directly
 		boolean success = false;
@@ -24,6 +24,7 @@
 package qupath.lib.gui.images.stores;
 
 import java.awt.Shape;
+import java.awt.geom.Rectangle2D;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -31,21 +32,24 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.Vector;
+import java.util.WeakHashMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import qupath.lib.awt.common.AwtTools;
-import qupath.lib.common.SimpleThreadFactory;
+import qupath.lib.common.TaskScheduler;
+import qupath.lib.common.TaskScheduler.Priority;
 import qupath.lib.gui.images.stores.DefaultRegionCache;
 import qupath.lib.gui.images.stores.SizeEstimator;
 import qupath.lib.gui.images.stores.TileWorker;
@@ -92,11 +96,13 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	
 	private TileRequestManager manager = new TileRequestManager(10);
 	
-	// Create two threadpools: a larger one for images that need to be fetched (e.g. from disk, cloud storage), and a smaller one
-	// for painting image tiles... the reason being that the high latency of distantly-stored images otherwise risks lowering
+	// Create two executors: one using the I/O budget for images that need to be fetched (e.g. from disk, cloud storage), and one 
+	// using the CPU budget for generated image tiles... the reason being that the high latency of distantly-stored images otherwise risks lowering
 	// repainting performance
-	private ExecutorService pool = Executors.newFixedThreadPool(Math.max(8, Math.min(Runtime.getRuntime().availableProcessors() * 4, 32)), new SimpleThreadFactory("region-store-", false));
-	private ExecutorService poolLocal = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new SimpleThreadFactory("region-store-local-", false));
+	private ExecutorService pool = TaskScheduler.getInstance().createExecutor("region-store", Priority.INTERACTIVE_TILE);
+	private ExecutorService poolLocal = TaskScheduler.getInstance().createExecutor("region-store-local", Priority.OVERLAY, Runtime.getRuntime().availableProcessors());
+	// Tiles requested in advance use the I/O budget with a low priority, so they never delay tiles that are needed now
+	private ExecutorService poolPrefetch = TaskScheduler.getInstance().createExecutor("region-store-prefetch", Priority.BACKGROUND_IO, TileRequestManager.MAX_PREFETCH_TASKS);
 	
 	
 
@@ -153,6 +159,40 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	}
 	
 	
+	/**
+	 * Update the region visible in a viewer.
+	 * <p>
+	 * This is used to estimate how the viewer is panning and zooming, so that tiles that are likely to be needed next 
+	 * can be requested in advance with a low priority. Any such requests that no longer look useful are cancelled.
+	 * 
+	 * @param viewer the viewer whose region has changed (used only as a key)
+	 * @param server
+	 * @param visibleShape
+	 * @param downsampleFactor
+	 * @param zPosition
+	 * @param tPosition
+	 */
+	public void updateVisibleRegion(final Object viewer, final ImageServer<T> server, final Shape visibleShape, final double downsampleFactor, final int zPosition, final int tPosition) {
+		manager.updateMotion(viewer, server, visibleShape, downsampleFactor, zPosition, tPosition);
+	}
+	
+	/**
+	 * Stop requesting tiles in advance for a viewer, e.g. because it is showing a different image or has been closed.
+	 * @param viewer
+	 */
+	public void stopPrefetching(final Object viewer) {
+		manager.stopMotion(viewer);
+	}
+	
+	/**
+	 * Get a snapshot of the metrics for tiles requested in advance of being needed.
+	 * @return
+	 */
+	public TilePrefetchMetrics getPrefetchMetrics() {
+		return manager.getPrefetchMetrics();
+	}
+	
+	
 	/* (non-Javadoc)
 	 * @see qupath.lib.images.stores.ImageRegionStore#addTileListener(qupath.lib.images.stores.TileListener)
 	 */
@@ -261,8 +301,11 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	 */
 	protected synchronized Object requestImageTile(final ImageServer<T> server, final RegionRequest request, final RegionCache<T> cache, final boolean ensureTileReturned) {
 		T img = cache.get(request);
-		if (img != null)
+		if (img != null) {
+			if (cache == this.cache)
+				manager.tileUsed(request);
 			return img;
+		}
 //		System.err.println(request);
 		// If the cache contains the key, but simply returns null because nothing should be painted, also return null here
 		if (cache.containsKey(request))
@@ -275,8 +318,13 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		}
 		// Start a worker & add to the list
 		TileWorker<T> worker = null;
-		worker = (TileWorker<T>)waitingMap.get(request); // TODO: Consider if this is a bad idea...
+		if (cache == this.cache)
+			worker = manager.getWaitingWorker(request);
+		else
+			worker = (TileWorker<T>)waitingMap.get(request); // TODO: Consider if this is a bad idea...
 		if (worker == null) {
+			if (cache == this.cache)
+				manager.tileMissed(server);
 			worker = createTileWorker(server, request, cache, ensureTileReturned);
 			workers.add(worker);
 			if (server instanceof GeneratingImageServer) {
@@ -426,6 +474,7 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 			worker.cancel(true);
 		pool.shutdownNow();
 		poolLocal.shutdownNow();
+		poolPrefetch.shutdownNow();
 		cache.clear();
 	}
 	
@@ -443,6 +492,22 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		private int busyThreads = 0;
 		
 		private List<TileWorker<T>> requestedWorkers = new ArrayList<>();
+		
+		final static int MAX_PREFETCH_TASKS = 4;
+		final static int MAX_PREFETCHED_TILES = 1000;
+		
+		// Motion of each viewer, used to predict which tiles will be needed next
+		private Map<Object, ViewerMotion<T>> motions = new WeakHashMap<>();
+		private List<PrefetchTileWorker> prefetchWorkers = new ArrayList<>();
+		// Tiles requested in advance that have not (yet) been needed
+		private Set<RegionRequest> prefetchedTiles = Collections.newSetFromMap(new LinkedHashMap<RegionRequest, Boolean>() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<RegionRequest, Boolean> eldest) {
+				return size() > MAX_PREFETCHED_TILES;
+			}
+		});
+		private long nPrefetchRequested, nPrefetchCancelled, nPrefetchHits, nPrefetchLateHits, nMisses;
 				
 		TileRequestManager(final int nThreads) {
 			this.nThreads = nThreads;
@@ -503,9 +568,10 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 					continue;
 				}
 				RegionRequest request = temp.nextTileRequest();
-				if (cache.containsKey(request) || waitingMap.containsKey(request))
+				if (cache.containsKey(request) || getWaitingWorker(request) != null)
 					continue;
 				
+				tileMissed(temp.server);
 				TileWorker<T> worker = createTileWorker(temp.server, request, cache, false);
 				waitingMap.put(request, worker);
 				if (temp.server instanceof GeneratingImageServer) {
@@ -525,6 +591,11 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		
 		
 		synchronized void taskCompleted(final TileWorker<T> worker) {
+			if (worker instanceof AbstractImageRegionStore.PrefetchTileWorker) {
+				if (prefetchWorkers.remove(worker))
+					assignPrefetchTasks();
+				return;
+			}
 			if (!requestedWorkers.remove(worker))
 				return;
 			busyThreads--;
@@ -535,6 +606,267 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		}
 		
 		
+		boolean isPrefetchable(final ImageServer<T> server) {
+			return !(server instanceof GeneratingImageServer) && isTiledImageServer(server);
+		}
+		
+		synchronized void updateMotion(final Object key, final ImageServer<T> server, final Shape visibleShape, final double downsampleFactor, final int zPosition, final int tPosition) {
+			if (server == null || visibleShape == null || !isPrefetchable(server)) {
+				stopMotion(key);
+				return;
+			}
+			var motion = motions.computeIfAbsent(key, k -> new ViewerMotion<>());
+			motion.update(server, visibleShape.getBounds2D(), downsampleFactor, zPosition, tPosition, System.currentTimeMillis());
+			cancelUnexpectedPrefetchTasks();
+			assignPrefetchTasks();
+		}
+		
+		synchronized void stopMotion(final Object key) {
+			if (motions.remove(key) == null)
+				return;
+			cancelUnexpectedPrefetchTasks();
+			logger.debug("Tile prefetching: {}", getPrefetchMetrics());
+		}
+		
+		/**
+		 * Cancel advance requests that are no longer expected to be needed by any viewer.
+		 */
+		private void cancelUnexpectedPrefetchTasks() {
+			List<PrefetchTileWorker> toCancel = new ArrayList<>();
+			for (var worker : prefetchWorkers) {
+				if (!motions.values().stream().anyMatch(m -> m.isExpected(worker.getRequest())))
+					toCancel.add(worker);
+			}
+			if (toCancel.isEmpty())
+				return;
+			// Remove before cancelling, because cancelling will result in taskCompleted being called
+			prefetchWorkers.removeAll(toCancel);
+			for (var worker : toCancel) {
+				// Don't interrupt, since some servers don't cope well with interrupted reads
+				worker.cancel(false);
+				waitingMap.remove(worker.getRequest(), worker);
+				prefetchedTiles.remove(worker.getRequest());
+				nPrefetchCancelled++;
+			}
+			logger.trace("Cancelled {} advance tile requests", toCancel.size());
+		}
+		
+		private void assignPrefetchTasks() {
+			if (poolPrefetch.isShutdown())
+				return;
+			for (var motion : motions.values()) {
+				while (prefetchWorkers.size() < MAX_PREFETCH_TASKS && motion.hasMoreTiles()) {
+					RegionRequest request = motion.nextTileRequest();
+					if (cache.containsKey(request) || waitingMap.containsKey(request))
+						continue;
+					var worker = new PrefetchTileWorker(motion.server, request, cache);
+					waitingMap.put(request, worker);
+					workers.add(worker);
+					prefetchWorkers.add(worker);
+					prefetchedTiles.add(request);
+					nPrefetchRequested++;
+					poolPrefetch.execute(worker);
+				}
+			}
+		}
+		
+		/**
+		 * Get the worker currently fetching a tile for the main cache, if there is one.
+		 * If the tile was requested in advance, the worker is also submitted with a higher priority - 
+		 * this has no effect if it has already started.
+		 * @param request
+		 * @return
+		 */
+		synchronized TileWorker<T> getWaitingWorker(final RegionRequest request) {
+			TileWorker<T> worker = waitingMap.get(request);
+			if (worker instanceof AbstractImageRegionStore.PrefetchTileWorker && prefetchWorkers.remove(worker)) {
+				prefetchedTiles.remove(request);
+				nPrefetchLateHits++;
+				if (!pool.isShutdown())
+					pool.execute(worker);
+				assignPrefetchTasks();
+			}
+			return worker;
+		}
+		
+		/**
+		 * Record that a tile was found in the main cache.
+		 * @param request
+		 */
+		synchronized void tileUsed(final RegionRequest request) {
+			if (!prefetchedTiles.isEmpty() && prefetchedTiles.remove(request))
+				nPrefetchHits++;
+		}
+		
+		/**
+		 * Record that a tile for the main cache needs to be read without having been requested in advance.
+		 * @param server
+		 */
+		synchronized void tileMissed(final ImageServer<T> server) {
+			if (isPrefetchable(server))
+				nMisses++;
+		}
+		
+		synchronized TilePrefetchMetrics getPrefetchMetrics() {
+			return new TilePrefetchMetrics(nPrefetchRequested, nPrefetchCancelled, nPrefetchHits, nPrefetchLateHits, nMisses);
+		}
+		
+	}
+	
+	
+	/**
+	 * Estimate how the region visible in a viewer is changing, and use this to predict the tiles that will be needed next.
+	 * <p>
+	 * Tiles are predicted along the direction of panning at the current resolution, and at the next pyramid level 
+	 * in the direction of zooming.
+	 */
+	static class ViewerMotion<T> {
+		
+		final static long LOOKAHEAD_MS = 300; // How far ahead to predict panning
+		final static long MIN_INTERVAL_MS = 5; // Minimum time between updates used to estimate velocity
+		final static long TIMEOUT_MS = 500; // Motion is forgotten if there are no updates for this long
+		final static double MIN_PAN_PIXELS = 16; // Minimum predicted movement (in screen pixels) for prefetching when panning
+		final static int MAX_TILES = 64; // Maximum number of tiles to request for each update
+		
+		private ImageServer<T> server;
+		private int zPosition;
+		private int tPosition;
+		private double downsampleFactor;
+		private Rectangle2D bounds;
+		
+		// Reference point & smoothed velocity (in pixels per millisecond) for panning
+		private double xRef, yRef;
+		private long timestampRef;
+		private double vx, vy;
+		// Direction of the last zoom (-1 for zooming in, 1 for zooming out, 0 for none)
+		private int zoomDirection;
+		private long zoomTimestamp;
+		
+		// Regions expected to be visible soon, and the corresponding tiles (the most urgent last)
+		private List<Rectangle2D> expectedRegions = new ArrayList<>();
+		private List<RegionRequest> tileRequests = new ArrayList<>();
+		
+		void update(final ImageServer<T> server, final Rectangle2D bounds, final double downsampleFactor, final int zPosition, final int tPosition, final long timestamp) {
+			double x = bounds.getCenterX();
+			double y = bounds.getCenterY();
+			if (server != this.server || zPosition != this.zPosition || tPosition != this.tPosition || timestamp - timestampRef > TIMEOUT_MS) {
+				vx = 0;
+				vy = 0;
+				zoomDirection = 0;
+				xRef = x;
+				yRef = y;
+				timestampRef = timestamp;
+			} else if (downsampleFactor != this.downsampleFactor) {
+				// Zooming often moves the center too, but this shouldn't be treated as panning
+				zoomDirection = downsampleFactor < this.downsampleFactor ? -1 : 1;
+				zoomTimestamp = timestamp;
+				vx = 0;
+				vy = 0;
+				xRef = x;
+				yRef = y;
+				timestampRef = timestamp;
+			} else {
+				long dt = timestamp - timestampRef;
+				if (dt >= MIN_INTERVAL_MS) {
+					vx = 0.5 * vx + 0.5 * (x - xRef) / dt;
+					vy = 0.5 * vy + 0.5 * (y - yRef) / dt;
+					xRef = x;
+					yRef = y;
+					timestampRef = timestamp;
+				}
+			}
+			if (timestamp - zoomTimestamp > TIMEOUT_MS)
+				zoomDirection = 0;
+			this.server = server;
+			this.zPosition = zPosition;
+			this.tPosition = tPosition;
+			this.downsampleFactor = downsampleFactor;
+			this.bounds = bounds;
+			updateRequests();
+		}
+		
+		private void updateRequests() {
+			expectedRegions.clear();
+			tileRequests.clear();
+			var imageBounds = new Rectangle2D.Double(0, 0, server.getWidth(), server.getHeight());
+			
+			// Request the next pyramid level in the direction of zooming, for the region that will then be visible
+			if (zoomDirection != 0) {
+				double[] downsamples = server.getPreferredDownsamples().clone();
+				Arrays.sort(downsamples);
+				double current = server.getPreferredDownsampleFactor(downsampleFactor);
+				double next = Double.NaN;
+				for (double d : downsamples) {
+					if (zoomDirection < 0 && d < current)
+						next = d;
+					else if (zoomDirection > 0 && d > current) {
+						next = d;
+						break;
+					}
+				}
+				if (!Double.isNaN(next)) {
+					// The next level is used once the viewer downsample passes the current (zooming in) or next (zooming out) level
+					double scale = Math.max(0.25, Math.min(4.0, (zoomDirection < 0 ? current : next) / downsampleFactor));
+					double w = bounds.getWidth() * scale;
+					double h = bounds.getHeight() * scale;
+					var region = new Rectangle2D.Double(bounds.getCenterX() - w/2, bounds.getCenterY() - h/2, w, h);
+					addRequests(region.createIntersection(imageBounds), next);
+				}
+			}
+			
+			// Request tiles at the current resolution along the direction of panning (these are added last, so are requested first)
+			double dx = Math.max(-bounds.getWidth(), Math.min(bounds.getWidth(), vx * LOOKAHEAD_MS));
+			double dy = Math.max(-bounds.getHeight(), Math.min(bounds.getHeight(), vy * LOOKAHEAD_MS));
+			if (Math.sqrt(dx*dx + dy*dy) >= MIN_PAN_PIXELS * downsampleFactor) {
+				var region = new Rectangle2D.Double(bounds.getX() + dx, bounds.getY() + dy, bounds.getWidth(), bounds.getHeight());
+				addRequests(region.createUnion(bounds).createIntersection(imageBounds), downsampleFactor);
+			}
+		}
+		
+		private void addRequests(final Rectangle2D region, final double downsample) {
+			if (region.isEmpty())
+				return;
+			expectedRegions.add(region);
+			var requests = ImageRegionStoreHelpers.getTilesToRequest(server, region, downsample, zPosition, tPosition, null);
+			// Order by distance from the current center, with the closest last
+			double x = bounds.getCenterX();
+			double y = bounds.getCenterY();
+			requests.sort(Comparator.comparingDouble((RegionRequest r) -> {
+				double dx = r.getX() + r.getWidth()/2.0 - x;
+				double dy = r.getY() + r.getHeight()/2.0 - y;
+				return -(dx*dx + dy*dy);
+			}));
+			if (requests.size() > MAX_TILES)
+				requests = requests.subList(requests.size() - MAX_TILES, requests.size());
+			tileRequests.addAll(requests);
+		}
+		
+		/**
+		 * Check if a tile is expected to be visible soon (or is visible now).
+		 * @param request
+		 * @return
+		 */
+		boolean isExpected(final RegionRequest request) {
+			if (server == null || request.getZ() != zPosition || request.getT() != tPosition || !server.getPath().equals(request.getPath()))
+				return false;
+			var tileBounds = AwtTools.getBounds(request);
+			if (bounds.intersects(tileBounds))
+				return true;
+			for (var region : expectedRegions) {
+				if (region.intersects(tileBounds))
+					return true;
+			}
+			return false;
+		}
+		
+		boolean hasMoreTiles() {
+			return !tileRequests.isEmpty();
+		}
+		
+		RegionRequest nextTileRequest() {
+			return tileRequests.remove(tileRequests.size() - 1);
+		}
+		
 	}
 	
 	
@@ -698,4 +1030,16 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	    
 	}
 	
+	
+	/**
+	 * Worker for a tile requested in advance of being needed.
+	 */
+	class PrefetchTileWorker extends DefaultTileWorker {
+		
+		PrefetchTileWorker(final ImageServer<T> server, final RegionRequest request, final RegionCache<T> cache) {
+			super(server, request, cache, false);
+		}
+		
+	}
+	
 }
\ No newline at end of file
@@ -180,11 +180,35 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 
 	public void paintRegion(ImageServer<BufferedImage> server, Graphics g, Shape clipShapeVisible, int zPosition, int tPosition, double downsampleFactor, BufferedImage imgThumbnail, ImageObserver observer, ImageRenderer imageDisplay) {
 		registerRequest(null, server, clipShapeVisible, downsampleFactor, zPosition, tPosition);
-		paintRegionInternal(server, g, clipShapeVisible, zPosition, tPosition, downsampleFactor, imgThumbnail, observer, imageDisplay);
+		paintRegionInternal(server, g, null, clipShapeVisible, zPosition, tPosition, downsampleFactor, imgThumbnail, observer, imageDisplay, true);
+	}
+	
+	/**
+	 * Paint a region using a {@link TileCompositor}, rather than a Graphics object.
+	 * <p>
+	 * This behaves like {@link #paintRegion(ImageServer, Graphics, Shape, int, int, double, BufferedImage, ImageObserver, ImageRenderer)}, 
+	 * except that tiles at the requested resolution that are unchanged since the compositor's last frame are not painted again.
+	 * 
+	 * @param server
+	 * @param compositor
+	 * @param clipShapeVisible
+	 * @param zPosition
+	 * @param tPosition
+	 * @param downsampleFactor
+	 * @param imgThumbnail
+	 * @param imageDisplay
+	 */
+	public void paintRegion(ImageServer<BufferedImage> server, TileCompositor compositor, Shape clipShapeVisible, int zPosition, int tPosition, double downsampleFactor, BufferedImage imgThumbnail, ImageRenderer imageDisplay) {
+		registerRequest(null, server, clipShapeVisible, downsampleFactor, zPosition, tPosition);
+		paintRegionInternal(server, null, compositor, clipShapeVisible, zPosition, tPosition, downsampleFactor, imgThumbnail, null, imageDisplay, true);
 	}
 
 
-	private void paintRegionInternal(ImageServer<BufferedImage> server, Graphics g, Shape clipShapeVisible, int zPosition, int tPosition, double downsampleFactor, BufferedImage imgThumbnail, ImageObserver observer, ImageRenderer imageDisplay) {
+	/**
+	 * Paint tiles using either a Graphics object or a TileCompositor (exactly one of which should be non-null).
+	 * Only tiles painted at the top level (i.e. not as lower-resolution placeholders) may be reused by the compositor.
+	 */
+	private void paintRegionInternal(ImageServer<BufferedImage> server, Graphics g, TileCompositor compositor, Shape clipShapeVisible, int zPosition, int tPosition, double downsampleFactor, BufferedImage imgThumbnail, ImageObserver observer, ImageRenderer imageDisplay, boolean isTopLevel) {
 
 //		// We don't need it... but try to request the thumbnail to keep it present in the cache, if it is there
 //		cache.get(getThumbnailRequest(server, zPosition, tPosition));
@@ -223,14 +247,17 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 				// Get the next downsample level if we can
 				if (nextDownsample > 0)
 //					paintRegion(server, g, clipShapeVisible, zPosition, tPosition, nextDownsample, imgThumbnail, observer, imageDisplay);
-					paintRegionInternal(server, g, missingBounds, zPosition, tPosition, nextDownsample, imgThumbnail, observer, imageDisplay);
+					paintRegionInternal(server, g, compositor, missingBounds, zPosition, tPosition, nextDownsample, imgThumbnail, observer, imageDisplay, false);
 				else if (imgThumbnail != null) {
 					// The best we can do is paint the thumbnail
 					if (imageDisplay != null) {
 						BufferedImage imgTemp = imageDisplay.applyTransforms(imgThumbnail, null);
 						imgThumbnail = imgTemp;
 					}
-					g.drawImage(imgThumbnail, 0, 0, server.getWidth(), server.getHeight(), observer);
+					if (compositor != null)
+						compositor.drawImage(imgThumbnail, 0, 0, server.getWidth(), server.getHeight(), null, null);
+					else
+						g.drawImage(imgThumbnail, 0, 0, server.getWidth(), server.getHeight(), observer);
 				}
 			}
 		}
@@ -250,6 +277,12 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 			// this can actually paint over previously-available regions, but they will be repainted again when this region's request comes through
 			if (img == null)
 				continue;
+			
+			// Top level tiles may still be visible from the last frame
+			RegionRequest key = isTopLevel ? request : null;
+			BufferedImage source = img;
+			if (compositor != null && key != null && compositor.isUnchanged(key, source, request.getX(), request.getY(), request.getWidth(), request.getHeight()))
+				continue;
 
 			// If we have an image, paint it & record coordinates
 			// Apply any required color transformations
@@ -279,6 +312,10 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 				img = imgTemp;
 			}
 //			System.err.println(String.format("%dx%d, %.2f - %.2f", img.getWidth(), img.getHeight(), (double)request.getHeight()/img.getHeight(), request.getDownsample()));
+			if (compositor != null) {
+				compositor.drawImage(img, request.getX(), request.getY(), request.getWidth(), request.getHeight(), key, source);
+				continue;
+			}
 			g.drawImage(img, request.getX(), request.getY(), request.getWidth(), request.getHeight(), observer);
 			if (DEBUG_TILES) {
 				g.setColor(Color.RED);
@@ -0,0 +1,430 @@
+package qupath.lib.gui.images.stores;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Composite image tiles directly into the int[] pixel buffer of a viewer image, without using Java2D.
+ * <p>
+ * Tiles are resampled using either nearest neighbor or bilinear interpolation, with simple loops over packed ARGB values.
+ * Between frames, the compositor keeps track of which tiles were drawn where; if the view is only shifted by a whole
+ * number of pixels, the existing pixels are moved and tiles that haven't changed are skipped, so that usually only
+ * newly-exposed or newly-arrived tiles need to be drawn.
+ * <p>
+ * Only scaling &amp; translation are supported; the target must be a TYPE_INT_ARGB_PRE or TYPE_INT_RGB image.
+ *
+ * @author Pete Bankhead
+ *
+ */
+public class TileCompositor {
+
+	private final static Logger logger = LoggerFactory.getLogger(TileCompositor.class);
+
+	private BufferedImage target;
+	private int[] pixels;
+	private int width, height;
+
+	// Mapping from image to target coordinates, i.e. xTarget = (xImage - xOrigin) / downsample
+	private double downsample = Double.NaN;
+	private double xOrigin, yOrigin;
+	private boolean bilinear;
+	private long contentTimestamp;
+	private int background;
+
+	// Tiles drawn in the previous & current frames, and the regions of the current frame that have been changed
+	private Map<Object, DrawnTile> previousTiles = new HashMap<>();
+	private Map<Object, DrawnTile> currentTiles = new HashMap<>();
+	private List<Rectangle> changedRegions = new ArrayList<>();
+	private boolean frameValid = false;
+
+	private int tilesDrawn, tilesSkipped;
+	private long frameStartTime, lastFrameNanos;
+
+	// Reusable arrays for resampling
+	private int[] xIndex = new int[0], xWeight = new int[0];
+	private int[] rowTop = new int[0], rowBottom = new int[0];
+
+	/**
+	 * Set the image to composite into.
+	 *
+	 * @param img
+	 * @return true if the image can be used as a target, false otherwise (in which case Java2D should be used instead)
+	 */
+	public boolean setTarget(final BufferedImage img) {
+		if (img == target)
+			return true;
+		frameValid = false;
+		target = null;
+		pixels = null;
+		if (img == null || !(img.getType() == BufferedImage.TYPE_INT_ARGB_PRE || img.getType() == BufferedImage.TYPE_INT_RGB))
+			return false;
+		var sampleModel = img.getRaster().getSampleModel();
+		if (!(sampleModel instanceof SinglePixelPackedSampleModel) || ((SinglePixelPackedSampleModel)sampleModel).getScanlineStride() != img.getWidth() ||
+				img.getRaster().getDataBuffer().getOffset() != 0)
+			return false;
+		target = img;
+		pixels = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+		width = img.getWidth();
+		height = img.getHeight();
+		return true;
+	}
+
+	/**
+	 * Invalidate any previous frame, so that everything is drawn again.
+	 * This must be called whenever the target image is modified other than by this compositor.
+	 */
+	public void reset() {
+		frameValid = false;
+	}
+
+	/**
+	 * Start compositing a new frame.
+	 *
+	 * @param downsample downsample factor of the target
+	 * @param xOrigin x-coordinate of the target origin, in the full-resolution image
+	 * @param yOrigin y-coordinate of the target origin, in the full-resolution image
+	 * @param background packed ARGB background color
+	 * @param bilinear if true, use bilinear interpolation; otherwise use nearest neighbor
+	 * @param contentTimestamp timestamp for anything else that affects the tiles (e.g. display settings); if it changes, no tiles are reused
+	 * @see #reset()
+	 */
+	public void beginFrame(final double downsample, final double xOrigin, final double yOrigin, final int background,
+			final boolean bilinear, final long contentTimestamp) {
+		if (target == null)
+			throw new IllegalStateException("No target image has been set!");
+		frameStartTime = System.nanoTime();
+		tilesDrawn = 0;
+		tilesSkipped = 0;
+		changedRegions.clear();
+		currentTiles = new HashMap<>();
+
+		boolean reuse = frameValid && downsample == this.downsample && bilinear == this.bilinear &&
+				background == this.background && contentTimestamp == this.contentTimestamp;
+		// We can only reuse pixels if the view has been shifted by a whole number of pixels
+		double dx = (this.xOrigin - xOrigin) / downsample;
+		double dy = (this.yOrigin - yOrigin) / downsample;
+		int shiftX = (int)Math.round(dx);
+		int shiftY = (int)Math.round(dy);
+		if (reuse && (Math.abs(dx - shiftX) > 1e-6 || Math.abs(dy - shiftY) > 1e-6 || Math.abs(shiftX) >= width || Math.abs(shiftY) >= height))
+			reuse = false;
+
+		this.downsample = downsample;
+		this.xOrigin = xOrigin;
+		this.yOrigin = yOrigin;
+		this.bilinear = bilinear;
+		this.background = background;
+		this.contentTimestamp = contentTimestamp;
+
+		if (reuse) {
+			shiftPixels(shiftX, shiftY);
+		} else {
+			previousTiles.clear();
+			fill(0, 0, width, height);
+		}
+		frameValid = true;
+	}
+
+	/**
+	 * Finish compositing the current frame.
+	 */
+	public void endFrame() {
+		previousTiles = currentTiles;
+		lastFrameNanos = System.nanoTime() - frameStartTime;
+		logger.trace("Frame composited in {} ms ({} tiles drawn, {} skipped)", lastFrameNanos / 1e6, tilesDrawn, tilesSkipped);
+	}
+
+	/**
+	 * Check whether a tile drawn in the previous frame is still present &amp; unchanged in the target, in which case it does not need to be drawn again.
+	 * <p>
+	 * If this returns true, the tile is recorded as having been drawn for the current frame.
+	 *
+	 * @param key unique key for the tile, e.g. a RegionRequest
+	 * @param source the source object for the tile pixels, compared by identity
+	 * @param x
+	 * @param y
+	 * @param w
+	 * @param h
+	 * @return
+	 */
+	public boolean isUnchanged(final Object key, final Object source, final double x, final double y, final double w, final double h) {
+		var previous = previousTiles.get(key);
+		if (previous == null || previous.source != source || previous.x != x || previous.y != y || previous.w != w || previous.h != h)
+			return false;
+		// Check nothing else has been drawn on top this frame
+		var bounds = getTargetBounds(x, y, w, h);
+		if (bounds.isEmpty())
+			return false;
+		for (var region : changedRegions) {
+			if (region.intersects(bounds))
+				return false;
+		}
+		currentTiles.put(key, previous);
+		tilesSkipped++;
+		return true;
+	}
+
+	/**
+	 * Draw an image to fill the specified region of the full-resolution image.
+	 *
+	 * @param img the image to draw
+	 * @param x
+	 * @param y
+	 * @param w
+	 * @param h
+	 * @param key unique key for the tile, or null if the tile should not be reused in the next frame
+	 * @param source the source object for the tile pixels, used to determine whether it has changed in the next frame
+	 */
+	public void drawImage(final BufferedImage img, final double x, final double y, final double w, final double h, final Object key, final Object source) {
+		var bounds = getTargetBounds(x, y, w, h);
+		if (bounds.isEmpty())
+			return;
+		int[] src = getOpaquePixels(img);
+		if (src == null)
+			drawImageJava2D(img, x, y, w, h);
+		else if (bilinear)
+			drawBilinear(src, img.getWidth(), img.getHeight(), x, y, w, h, bounds);
+		else
+			drawNearest(src, img.getWidth(), img.getHeight(), x, y, w, h, bounds);
+		changedRegions.add(bounds);
+		if (key != null)
+			currentTiles.put(key, new DrawnTile(source, x, y, w, h));
+		tilesDrawn++;
+	}
+
+	/**
+	 * Get the number of tiles drawn in the last (or current) frame.
+	 * @return
+	 */
+	public int getTilesDrawn() {
+		return tilesDrawn;
+	}
+
+	/**
+	 * Get the number of tiles skipped in the last (or current) frame, because they were unchanged from the previous frame.
+	 * @return
+	 */
+	public int getTilesSkipped() {
+		return tilesSkipped;
+	}
+
+	/**
+	 * Get the time taken to composite the last frame.
+	 * @return
+	 */
+	public double getLastFrameMillis() {
+		return lastFrameNanos / 1e6;
+	}
+
+
+	/**
+	 * Get the target pixels with centers inside a region of the full-resolution image.
+	 */
+	private Rectangle getTargetBounds(final double x, final double y, final double w, final double h) {
+		int x1 = Math.max(0, (int)Math.ceil((x - xOrigin) / downsample - 0.5));
+		int y1 = Math.max(0, (int)Math.ceil((y - yOrigin) / downsample - 0.5));
+		int x2 = Math.min(width, (int)Math.ceil((x + w - xOrigin) / downsample - 0.5));
+		int y2 = Math.min(height, (int)Math.ceil((y + h - yOrigin) / downsample - 0.5));
+		return new Rectangle(x1, y1, Math.max(0, x2 - x1), Math.max(0, y2 - y1));
+	}
+
+	/**
+	 * Get packed RGB pixels for an opaque image, or null if the image might not be opaque.
+	 * Pixels are returned directly where possible (without copying).
+	 */
+	private static int[] getOpaquePixels(final BufferedImage img) {
+		if (img.getType() == BufferedImage.TYPE_INT_RGB) {
+			var sampleModel = img.getRaster().getSampleModel();
+			if (sampleModel instanceof SinglePixelPackedSampleModel && ((SinglePixelPackedSampleModel)sampleModel).getScanlineStride() == img.getWidth()
+					&& img.getRaster().getDataBuffer().getOffset() == 0 && img.getRaster().getSampleModelTranslateX() == 0 && img.getRaster().getSampleModelTranslateY() == 0)
+				return ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+		}
+		if (img.getColorModel().hasAlpha())
+			return null;
+		return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+	}
+
+	private void drawImageJava2D(final BufferedImage img, final double x, final double y, final double w, final double h) {
+		Graphics2D g2d = target.createGraphics();
+		g2d.scale(1.0/downsample, 1.0/downsample);
+		g2d.translate(-xOrigin, -yOrigin);
+		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, bilinear ? RenderingHints.VALUE_INTERPOLATION_BILINEAR : RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+		g2d.drawImage(img, (int)x, (int)y, (int)w, (int)h, null);
+		g2d.dispose();
+	}
+
+	private void drawNearest(final int[] src, final int srcWidth, final int srcHeight, final double x, final double y, final double w, final double h, final Rectangle bounds) {
+		double scaleX = srcWidth / w * downsample;
+		double scaleY = srcHeight / h * downsample;
+		double offsetX = (xOrigin - x) / downsample;
+		double offsetY = (yOrigin - y) / downsample;
+		int[] xIndex = ensureCapacity(this.xIndex, bounds.width);
+		this.xIndex = xIndex;
+		for (int i = 0; i < bounds.width; i++)
+			xIndex[i] = clamp((int)((bounds.x + i + 0.5 + offsetX) * scaleX), srcWidth - 1);
+		int[] dst = pixels;
+		for (int j = 0; j < bounds.height; j++) {
+			int yy = clamp((int)((bounds.y + j + 0.5 + offsetY) * scaleY), srcHeight - 1);
+			int srcRow = yy * srcWidth;
+			int dstRow = (bounds.y + j) * width + bounds.x;
+			for (int i = 0; i < bounds.width; i++)
+				dst[dstRow + i] = 0xff000000 | src[srcRow + xIndex[i]];
+		}
+	}
+
+	private void drawBilinear(final int[] src, final int srcWidth, final int srcHeight, final double x, final double y, final double w, final double h, final Rectangle bounds) {
+		double scaleX = srcWidth / w * downsample;
+		double scaleY = srcHeight / h * downsample;
+		double offsetX = (xOrigin - x) / downsample;
+		double offsetY = (yOrigin - y) / downsample;
+		int n = bounds.width;
+		int[] xIndex = ensureCapacity(this.xIndex, n);
+		int[] xWeight = ensureCapacity(this.xWeight, n);
+		int[] rowTop = ensureCapacity(this.rowTop, n);
+		int[] rowBottom = ensureCapacity(this.rowBottom, n);
+		this.xIndex = xIndex;
+		this.xWeight = xWeight;
+		this.rowTop = rowTop;
+		this.rowBottom = rowBottom;
+
+		// Weights are stored as integers in the range 0-256
+		for (int i = 0; i < n; i++) {
+			double xx = (bounds.x + i + 0.5 + offsetX) * scaleX - 0.5;
+			int x0 = (int)Math.floor(xx);
+			int weight = (int)((xx - x0) * 256);
+			if (x0 < 0) {
+				x0 = 0;
+				weight = 0;
+			} else if (x0 >= srcWidth - 1) {
+				x0 = srcWidth - 1;
+				weight = 0;
+			}
+			xIndex[i] = x0;
+			xWeight[i] = weight;
+		}
+		int[] dst = pixels;
+		int lastX = srcWidth - 1;
+		for (int j = 0; j < bounds.height; j++) {
+			double yy = (bounds.y + j + 0.5 + offsetY) * scaleY - 0.5;
+			int y0 = (int)Math.floor(yy);
+			int yWeight = (int)((yy - y0) * 256);
+			int y1 = y0 + 1;
+			if (y0 < 0) {
+				y0 = y1 = 0;
+				yWeight = 0;
+			} else if (y0 >= srcHeight - 1) {
+				y0 = y1 = srcHeight - 1;
+				yWeight = 0;
+			}
+			int top = y0 * srcWidth;
+			int bottom = y1 * srcWidth;
+			// Interpolate horizontally for both rows, then vertically
+			for (int i = 0; i < n; i++) {
+				int xi = xIndex[i];
+				int xi2 = xi == lastX ? xi : xi + 1;
+				rowTop[i] = lerp(src[top + xi], src[top + xi2], xWeight[i]);
+				rowBottom[i] = lerp(src[bottom + xi], src[bottom + xi2], xWeight[i]);
+			}
+			int dstRow = (bounds.y + j) * width + bounds.x;
+			for (int i = 0; i < n; i++)
+				dst[dstRow + i] = 0xff000000 | lerp(rowTop[i], rowBottom[i], yWeight);
+		}
+	}
+
+	/**
+	 * Linear interpolation between two packed RGB values, with weight in the range 0-256.
+	 * Red &amp; blue are interpolated together, since they can't overflow into one another.
+	 */
+	private static int lerp(final int a, final int b, final int weight) {
+		int inv = 256 - weight;
+		int rb = (((a & 0xff00ff) * inv + (b & 0xff00ff) * weight) >>> 8) & 0xff00ff;
+		int g = (((a & 0x00ff00) * inv + (b & 0x00ff00) * weight) >>> 8) & 0x00ff00;
+		return rb | g;
+	}
+
+	private static int clamp(final int value, final int max) {
+		return value < 0 ? 0 : value > max ? max : value;
+	}
+
+	private static int[] ensureCapacity(final int[] array, final int n) {
+		return array.length >= n ? array : new int[n];
+	}
+
+	/**
+	 * Move the existing pixels, then fill the newly-exposed regions with the background.
+	 */
+	private void shiftPixels(final int shiftX, final int shiftY) {
+		if (shiftX == 0 && shiftY == 0)
+			return;
+		int rowLength = width - Math.abs(shiftX);
+		int srcX = Math.max(0, -shiftX);
+		int dstX = Math.max(0, shiftX);
+		// Copy in an order that avoids overwriting rows before they are moved
+		if (shiftY > 0) {
+			for (int y = height - 1; y >= shiftY; y--)
+				System.arraycopy(pixels, (y - shiftY) * width + srcX, pixels, y * width + dstX, rowLength);
+		} else {
+			for (int y = 0; y < height + shiftY; y++)
+				System.arraycopy(pixels, (y - shiftY) * width + srcX, pixels, y * width + dstX, rowLength);
+		}
+		// Anything overlapping the exposed regions will need to be drawn again
+		var exposed = new ArrayList<Rectangle>();
+		if (shiftX > 0)
+			exposed.add(new Rectangle(0, 0, shiftX, height));
+		else if (shiftX < 0)
+			exposed.add(new Rectangle(width + shiftX, 0, -shiftX, height));
+		if (shiftY > 0)
+			exposed.add(new Rectangle(0, 0, width, shiftY));
+		else if (shiftY < 0)
+			exposed.add(new Rectangle(0, height + shiftY, width, -shiftY));
+		for (var r : exposed)
+			fill(r.x, r.y, r.width, r.height);
+		changedRegions.addAll(exposed);
+	}
+
+	private void fill(final int x, final int y, final int w, final int h) {
+		int value = target.getType() == BufferedImage.TYPE_INT_RGB ? background : premultiply(background);
+		for (int yy = y; yy < y + h; yy++) {
+			int start = yy * width + x;
+			Arrays.fill(pixels, start, start + w, value);
+		}
+	}
+
+	private static int premultiply(final int argb) {
+		int a = argb >>> 24;
+		if (a == 255)
+			return argb;
+		int r = ((argb >> 16) & 0xff) * a / 255;
+		int g = ((argb >> 8) & 0xff) * a / 255;
+		int b = (argb & 0xff) * a / 255;
+		return (a << 24) | (r << 16) | (g << 8) | b;
+	}
+
+
+	private static class DrawnTile {
+
+		private final Object source;
+		private final double x, y, w, h;
+
+		DrawnTile(final Object source, final double x, final double y, final double w, final double h) {
+			this.source = source;
+			this.x = x;
+			this.y = y;
+			this.w = w;
+			this.h = h;
+		}
+
+	}
+
+}
@@ -0,0 +1,85 @@
+package qupath.lib.gui.images.stores;
+
+/**
+ * Counts describing how well tiles requested in advance (based upon how viewers are moving)
+ * match the tiles that are subsequently needed.
+ *
+ * @author Pete Bankhead
+ *
+ */
+public class TilePrefetchMetrics {
+
+	private final long nRequested, nCancelled, nHits, nLateHits, nMisses;
+
+	TilePrefetchMetrics(final long nRequested, final long nCancelled, final long nHits, final long nLateHits, final long nMisses) {
+		this.nRequested = nRequested;
+		this.nCancelled = nCancelled;
+		this.nHits = nHits;
+		this.nLateHits = nLateHits;
+		this.nMisses = nMisses;
+	}
+
+	/**
+	 * Number of tiles requested in advance.
+	 * @return
+	 */
+	public long getRequestedCount() {
+		return nRequested;
+	}
+
+	/**
+	 * Number of advance requests cancelled because the viewer moved elsewhere.
+	 * @return
+	 */
+	public long getCancelledCount() {
+		return nCancelled;
+	}
+
+	/**
+	 * Number of tiles that were needed after they had been requested in advance and already read.
+	 * @return
+	 */
+	public long getHitCount() {
+		return nHits;
+	}
+
+	/**
+	 * Number of tiles that were needed after they had been requested in advance, but before they had been read.
+	 * @return
+	 */
+	public long getLateHitCount() {
+		return nLateHits;
+	}
+
+	/**
+	 * Number of tiles that had to be read when they were needed, without having been requested in advance.
+	 * @return
+	 */
+	public long getMissCount() {
+		return nMisses;
+	}
+
+	/**
+	 * Proportion of tiles that needed to be read and had already been requested in advance.
+	 * @return
+	 */
+	public double getHitRate() {
+		long n = nHits + nLateHits + nMisses;
+		return n == 0 ? 0 : (double)(nHits + nLateHits) / n;
+	}
+
+	/**
+	 * Proportion of tiles requested in advance that were subsequently needed.
+	 * @return
+	 */
+	public double getAccuracy() {
+		return nRequested == 0 ? 0 : (double)(nHits + nLateHits) / nRequested;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d requested, %d cancelled, %d hits, %d late hits, %d misses, hit rate %.1f%%, accuracy %.1f%%",
+				nRequested, nCancelled, nHits, nLateHits, nMisses, getHitRate() * 100, getAccuracy() * 100);
+	}
+
+}
@@ -43,13 +43,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
-import java.util.Set;
 import java.util.TreeMap;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
-import javax.imageio.ImageIO;
-
 import org.controlsfx.control.MasterDetailPane;
 import org.controlsfx.control.action.Action;
 import org.controlsfx.control.action.ActionUtils;
@@ -59,7 +57,6 @@ import org.slf4j.LoggerFactory;
 import javafx.beans.binding.Bindings;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
-import javafx.embed.swing.SwingFXUtils;
 import javafx.geometry.Insets;
 import javafx.geometry.Side;
 import javafx.scene.canvas.Canvas;
@@ -88,8 +85,6 @@ import javafx.scene.layout.Pane;
 import javafx.scene.layout.StackPane;
 import javafx.util.Callback;
 import qupath.lib.common.GeneralTools;
-import qupath.lib.display.ChannelDisplayInfo;
-import qupath.lib.display.ImageDisplay;
 import qupath.lib.gui.ImageDataChangeListener;
 import qupath.lib.gui.ImageDataWrapper;
 import qupath.lib.gui.QuPathGUI;
@@ -101,7 +96,6 @@ import qupath.lib.gui.helpers.PanelToolsFX;
 import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
-import qupath.lib.images.servers.ImageServerProvider;
 import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectIO;
 import qupath.lib.projects.ProjectImageEntry;
@@ -130,8 +124,8 @@ public class ProjectBrowser implements ImageDataChangeListener<BufferedImage> {
 	private ProjectImageTreeModel model = new ProjectImageTreeModel(null);
 	private TreeView<Object> tree = new TreeView<>();
 
-	// Keep a record of servers we've requested - don't want to keep putting in requests if the server is unavailable
-	private Set<String> serversRequested = new HashSet<>();
+	// Read & generate thumbnails in the background
+	private ProjectThumbnailService thumbnailService = new ProjectThumbnailService();
 	
 	private StringProperty descriptionText = new SimpleStringProperty();
 
@@ -268,6 +262,7 @@ public class ProjectBrowser implements ImageDataChangeListener<BufferedImage> {
 				} catch (IOException e1) {
 					logger.error("Error writing thumbnail", e1);
 				}
+				thumbnailService.invalidate(entry);
 				tree.refresh();
 			}
 		});
@@ -556,9 +551,12 @@ public class ProjectBrowser implements ImageDataChangeListener<BufferedImage> {
 		if (this.project == project)
 			return;
 		this.project = project;
+		thumbnailService.clear();
 		model = new ProjectImageTreeModel(project);
 		tree.setRoot(model.getRootFX());
 		tree.getRoot().setExpanded(true);
+		if (project != null)
+			thumbnailService.prefetch(project.getImageList());
 	}
 	
 	
@@ -576,7 +574,9 @@ public class ProjectBrowser implements ImageDataChangeListener<BufferedImage> {
 	public void refreshProject() {
 		model = new ProjectImageTreeModel(project);
 		tree.setRoot(model.getRootFX());
-		tree.getRoot().setExpanded(true);		
+		tree.getRoot().setExpanded(true);
+		if (project != null)
+			thumbnailService.prefetch(project.getImageList());
 	}
 
 
@@ -631,57 +631,6 @@ public class ProjectBrowser implements ImageDataChangeListener<BufferedImage> {
 	
 	
 	
-	Image requestThumbnail(final String serverPath, final File fileThumbnail) throws IOException {
-//		serversRequested.clear();
-		
-		// Check if we've already asked for this server... if so, stop
-		if (serversRequested.contains(serverPath))
-			return null;
-		// Put in the request now
-		serversRequested.add(serverPath);
-		// Check if it exists
-		if (fileThumbnail.exists())
-			return SwingFXUtils.toFXImage(ImageIO.read(fileThumbnail), null);
-		// Try to load the server
-		ImageData<BufferedImage> imageData = getCurrentImageData();
-		ImageServer<BufferedImage> server = null;
-		boolean newServer = false;
-		if (imageData != null && imageData.getServerPath().equals(serverPath))
-			server = imageData.getServer();
-		else {
-			server = ImageServerProvider.buildServer(serverPath, BufferedImage.class);
-			newServer = true;
-		}
-		BufferedImage img2 = qupath.getViewer().getImageRegionStore().getThumbnail(server, server.nZSlices()/2, 0, true);
-		if (newServer) {
-			try {
-				server.close();
-			} catch (Exception e) {
-				logger.warn("Problem closing server", e);
-			}
-		}
-		if (img2 != null) {
-			// Try to write RGB images directly
-			boolean success = false;
-			if (server.isRGB() || img2.getType() == BufferedImage.TYPE_BYTE_GRAY) {
-				img2 = resizeForThumbnail(img2);
-				success = ImageIO.write(img2, THUMBNAIL_EXT, fileThumbnail);
-			}
-			if (!success) {
-				// Try with display transforms
-				ImageDisplay imageDisplay = new ImageDisplay(new ImageData<>(server));
-				for (ChannelDisplayInfo info : imageDisplay.selectedChannels()) {
-					imageDisplay.autoSetDisplayRange(info);
-				}
-				img2 = imageDisplay.applyTransforms(img2, null);
-				img2 = resizeForThumbnail(img2);
-				ImageIO.write(img2, THUMBNAIL_EXT, fileThumbnail);
-			}
-		}
-		return SwingFXUtils.toFXImage(img2, null);
-	}
-
-	
 	/**
 	 * Resize an image so that its dimensions fit inside thumbnailWidth x thumbnailHeight.
 	 * 
@@ -1057,6 +1006,10 @@ public class ProjectBrowser implements ImageDataChangeListener<BufferedImage> {
 		private StackPane label = new StackPane();
 		private ImageView viewTooltip = new ImageView();
 		private Canvas viewCanvas = new Canvas();
+		
+		// Outstanding thumbnail request, which should be cancelled if the cell is reused
+		private ProjectImageEntry<BufferedImage> requestedEntry;
+		private Consumer<Image> requestedCallback;
 
 		public ImageEntryCell() {
 			double viewWidth = 50;
@@ -1090,6 +1043,10 @@ public class ProjectBrowser implements ImageDataChangeListener<BufferedImage> {
 		@Override
 		protected void updateItem(Object item, boolean empty) {
 			super.updateItem(item, empty);
+			
+			// Cell is being reused for something else, so we no longer need any pending thumbnail
+			if (requestedEntry != null && requestedEntry != item)
+				cancelThumbnailRequest();
 
 			if (item == null || empty) {
 				setText(null);
@@ -1127,28 +1084,52 @@ public class ProjectBrowser implements ImageDataChangeListener<BufferedImage> {
 				tooltip.setText(entry.getSummary());
 				//	        	 Tooltip tooltip = new Tooltip(sb.toString());
 
-				BufferedImage img = null;
-				try {
-					img = (BufferedImage)entry.getThumbnail();
-				} catch (Exception e) {
-					logger.warn("Unable to read thumbnail for {} ({})" + entry.getImageName(), e.getLocalizedMessage());
-				}
-				
-				if (img != null) {
-					Image image = SwingFXUtils.toFXImage(img, null);
-					viewTooltip.setImage(image);
-					tooltip.setGraphic(viewTooltip);
-					PaintingToolsFX.paintImage(viewCanvas, image);
-					if (getGraphic() == null)
-						setGraphic(label);
+				// Get the entry from the project, so that it has the type needed for thumbnails
+				ProjectImageEntry<BufferedImage> imageEntry = project == null ? null : project.getImageEntry(entry.getServerPath());
+				Image image = imageEntry == null ? null : thumbnailService.getCachedThumbnail(imageEntry);
+				if (image != null) {
+					showThumbnail(image);
 				} else {
 					setGraphic(null);
+					if (imageEntry != null)
+						requestThumbnail(imageEntry);
 				}
 				
 			}
 			
 		}
 		
+		private void showThumbnail(Image image) {
+			viewTooltip.setImage(image);
+			tooltip.setGraphic(viewTooltip);
+			PaintingToolsFX.paintImage(viewCanvas, image);
+			if (getGraphic() == null)
+				setGraphic(label);
+		}
+		
+		private void requestThumbnail(ProjectImageEntry<BufferedImage> entry) {
+			if (entry == requestedEntry)
+				return;
+			cancelThumbnailRequest();
+			requestedEntry = entry;
+			requestedCallback = image -> {
+				if (requestedEntry != entry)
+					return;
+				requestedEntry = null;
+				requestedCallback = null;
+				if (getItem() == entry)
+					showThumbnail(image);
+			};
+			thumbnailService.requestThumbnail(entry, requestedCallback);
+		}
+		
+		private void cancelThumbnailRequest() {
+			if (requestedEntry != null)
+				thumbnailService.cancel(requestedEntry, requestedCallback);
+			requestedEntry = null;
+			requestedCallback = null;
+		}
+		
 		
 	}
 
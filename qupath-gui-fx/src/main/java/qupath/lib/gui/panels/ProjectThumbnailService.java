@@ -0,0 +1,319 @@
+package qupath.lib.gui.panels;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.application.Platform;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+import qupath.lib.common.TaskScheduler;
+import qupath.lib.common.TaskScheduler.Priority;
+import qupath.lib.common.TaskScheduler.TaskExecutor;
+import qupath.lib.gui.commands.ProjectImportImagesCommand;
+import qupath.lib.projects.ProjectImageEntry;
+
+/**
+ * Background service to read (and, if necessary, generate) thumbnails for project entries.
+ * <p>
+ * Requests are run by the shared {@link TaskScheduler}, with a bounded number running at any time.  Requests for
+ * thumbnails that are currently visible are always handled before prefetch requests, with the most recent visible
+ * request first (so that the cells the user has just scrolled to are painted first).  Requests that are no longer
+ * needed can be cancelled before they start.
+ * <p>
+ * Thumbnails are kept in a small in-memory cache, downsampled to the largest size needed for display.
+ */
+class ProjectThumbnailService {
+
+	private final static Logger logger = LoggerFactory.getLogger(ProjectThumbnailService.class);
+
+	/**
+	 * Maximum width &amp; height of thumbnails in the in-memory cache (this is the size of the tooltip preview).
+	 */
+	private final static int MAX_CACHED_SIZE = 250;
+
+	/**
+	 * Executors for visible &amp; prefetch requests respectively.  Each task submitted to either executor runs
+	 * whichever request is first in the queue when it starts.
+	 */
+	private final TaskExecutor poolVisible, poolPrefetch;
+	private final PriorityQueue<ThumbnailRequest> queue = new PriorityQueue<>();
+
+	private final Map<ProjectImageEntry<BufferedImage>, Image> cache;
+	private final Map<ProjectImageEntry<BufferedImage>, ThumbnailRequest> pending = new HashMap<>();
+	private final Set<ProjectImageEntry<BufferedImage>> failed = Collections.synchronizedSet(new HashSet<>());
+
+	private long sequence = 0L;
+
+	/**
+	 * Constructor.
+	 * @param nThreads maximum number of threads used to read or generate thumbnails
+	 * @param maxCached maximum number of thumbnails to retain in memory
+	 */
+	ProjectThumbnailService(final int nThreads, final int maxCached) {
+		poolVisible = TaskScheduler.getInstance().createExecutor("project-thumbnails", Priority.INTERACTIVE_TILE, nThreads);
+		poolPrefetch = TaskScheduler.getInstance().createExecutor("project-thumbnails-prefetch", Priority.BACKGROUND_IO, nThreads);
+		cache = Collections.synchronizedMap(new LinkedHashMap<>(maxCached, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ProjectImageEntry<BufferedImage>, Image> eldest) {
+				return size() > maxCached;
+			}
+		});
+	}
+
+	/**
+	 * Constructor using a default number of threads &amp; cache size.
+	 */
+	ProjectThumbnailService() {
+		this(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)), 200);
+	}
+
+	/**
+	 * Get a thumbnail from the in-memory cache, without making any request.
+	 * @param entry
+	 * @return the thumbnail, or null if it has not been cached
+	 */
+	Image getCachedThumbnail(final ProjectImageEntry<BufferedImage> entry) {
+		return cache.get(entry);
+	}
+
+	/**
+	 * Request a thumbnail for an entry that is currently visible.
+	 * <p>
+	 * The callback will be called on the JavaFX Application Thread when the thumbnail is available.
+	 * It will not be called if the thumbnail could not be read or generated, or if the request is cancelled first.
+	 *
+	 * @param entry
+	 * @param callback
+	 * @see #cancel(ProjectImageEntry, Consumer)
+	 */
+	synchronized void requestThumbnail(final ProjectImageEntry<BufferedImage> entry, final Consumer<Image> callback) {
+		var image = cache.get(entry);
+		if (image != null) {
+			callback.accept(image);
+			return;
+		}
+		if (failed.contains(entry))
+			return;
+		var request = pending.get(entry);
+		if (request == null) {
+			request = new ThumbnailRequest(entry, true);
+			request.callbacks.add(callback);
+			pending.put(entry, request);
+			enqueue(request);
+		} else {
+			request.callbacks.add(callback);
+			// Bump the request to the front of the queue (if it hasn't started already)
+			if (queue.remove(request)) {
+				request = request.copy(true);
+				pending.put(entry, request);
+				enqueue(request);
+			}
+		}
+	}
+
+	/**
+	 * Cancel a request previously made with {@link #requestThumbnail(ProjectImageEntry, Consumer)}.
+	 * <p>
+	 * If the thumbnail was also requested by {@link #prefetch(Collection)}, it will be demoted to a
+	 * prefetch request rather than cancelled completely.
+	 *
+	 * @param entry
+	 * @param callback
+	 */
+	synchronized void cancel(final ProjectImageEntry<BufferedImage> entry, final Consumer<Image> callback) {
+		var request = pending.get(entry);
+		if (request == null || !request.callbacks.remove(callback) || !request.callbacks.isEmpty())
+			return;
+		if (queue.remove(request)) {
+			pending.remove(entry);
+			if (request.prefetch) {
+				request = request.copy(false);
+				pending.put(entry, request);
+				enqueue(request);
+			}
+		}
+	}
+
+	/**
+	 * Request thumbnails for a collection of entries at low priority.
+	 * <p>
+	 * This ensures that thumbnails are generated for any entries that do not yet have them,
+	 * and populates the in-memory cache so that the first requests are fast.
+	 *
+	 * @param entries
+	 */
+	synchronized void prefetch(final Collection<? extends ProjectImageEntry<BufferedImage>> entries) {
+		for (var entry : entries) {
+			if (cache.containsKey(entry) || failed.contains(entry))
+				continue;
+			var request = pending.get(entry);
+			if (request != null) {
+				request.prefetch = true;
+				continue;
+			}
+			request = new ThumbnailRequest(entry, false);
+			request.prefetch = true;
+			pending.put(entry, request);
+			enqueue(request);
+		}
+	}
+	
+	/**
+	 * Add a request to the queue, and submit a task to run it (or whichever request has a higher priority by then).
+	 */
+	private synchronized void enqueue(final ThumbnailRequest request) {
+		queue.add(request);
+		if (request.visible)
+			poolVisible.execute(this::runNextRequest);
+		else
+			poolPrefetch.execute(this::runNextRequest);
+	}
+	
+	private void runNextRequest() {
+		ThumbnailRequest request;
+		synchronized (this) {
+			request = queue.poll();
+		}
+		if (request != null)
+			request.run();
+	}
+
+	/**
+	 * Remove any cached thumbnail for an entry, e.g. because it has been updated.
+	 * @param entry
+	 */
+	void invalidate(final ProjectImageEntry<BufferedImage> entry) {
+		cache.remove(entry);
+		failed.remove(entry);
+	}
+
+	/**
+	 * Cancel all pending requests and clear the in-memory cache.
+	 */
+	synchronized void clear() {
+		for (var request : pending.values())
+			request.cancel(false);
+		queue.clear();
+		pending.clear();
+		cache.clear();
+		failed.clear();
+	}
+
+	/**
+	 * Read the thumbnail for an entry, generating (and storing) a new one if necessary.
+	 */
+	private Image readThumbnail(final ProjectImageEntry<BufferedImage> entry) throws Exception {
+		var img = entry.getThumbnail();
+		if (img == null) {
+			logger.debug("Generating thumbnail for {}", entry.getImageName());
+			try (var server = entry.buildImageServer()) {
+				img = ProjectImportImagesCommand.getThumbnailRGB(server, null);
+			}
+			entry.setThumbnail(img);
+		}
+		return SwingFXUtils.toFXImage(resizeForCache(img), null);
+	}
+
+	private static BufferedImage resizeForCache(final BufferedImage img) {
+		double scale = Math.min((double)MAX_CACHED_SIZE / img.getWidth(), (double)MAX_CACHED_SIZE / img.getHeight());
+		if (scale >= 1)
+			return img;
+		var imgSmall = new BufferedImage(
+				Math.max(1, (int)(img.getWidth() * scale)),
+				Math.max(1, (int)(img.getHeight() * scale)),
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2d = imgSmall.createGraphics();
+		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g2d.drawImage(img, 0, 0, imgSmall.getWidth(), imgSmall.getHeight(), null);
+		g2d.dispose();
+		return imgSmall;
+	}
+
+
+	/**
+	 * A queued request, ordered so that visible requests come first (newest first), followed by
+	 * prefetch requests (oldest first).
+	 */
+	private class ThumbnailRequest extends FutureTask<Image> implements Comparable<ThumbnailRequest> {
+
+		private final ProjectImageEntry<BufferedImage> entry;
+		private final boolean visible;
+		private final long order;
+		private final List<Consumer<Image>> callbacks;
+		private boolean prefetch = false;
+
+		ThumbnailRequest(final ProjectImageEntry<BufferedImage> entry, final boolean visible) {
+			this(entry, visible, new ArrayList<>());
+		}
+
+		private ThumbnailRequest(final ProjectImageEntry<BufferedImage> entry, final boolean visible, final List<Consumer<Image>> callbacks) {
+			super(() -> readThumbnail(entry));
+			this.entry = entry;
+			this.visible = visible;
+			this.order = sequence++;
+			this.callbacks = callbacks;
+		}
+
+		/**
+		 * Create a new request for the same entry &amp; callbacks, with a different priority.
+		 */
+		ThumbnailRequest copy(final boolean visible) {
+			var request = new ThumbnailRequest(entry, visible, callbacks);
+			request.prefetch = prefetch;
+			return request;
+		}
+
+		@Override
+		protected void done() {
+			if (isCancelled())
+				return;
+			List<Consumer<Image>> toNotify;
+			Image image = null;
+			synchronized (ProjectThumbnailService.this) {
+				if (pending.get(entry) == this)
+					pending.remove(entry);
+				try {
+					image = get();
+					cache.put(entry, image);
+				} catch (InterruptedException | ExecutionException e) {
+					logger.warn("Unable to read thumbnail for {} ({})", entry.getImageName(), e.getCause() == null ? e.getLocalizedMessage() : e.getCause().getLocalizedMessage());
+					failed.add(entry);
+				}
+				toNotify = new ArrayList<>(callbacks);
+			}
+			if (image == null || toNotify.isEmpty())
+				return;
+			var imageToShow = image;
+			Platform.runLater(() -> toNotify.forEach(c -> c.accept(imageToShow)));
+		}
+
+		@Override
+		public int compareTo(ThumbnailRequest o) {
+			if (visible != o.visible)
+				return visible ? -1 : 1;
+			if (visible)
+				return -Long.compare(order, o.order);
+			return Long.compare(order, o.order);
+		}
+
+	}
+
+}
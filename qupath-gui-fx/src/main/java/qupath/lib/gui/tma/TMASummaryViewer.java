@@ -42,7 +42,6 @@ import java.util.Scanner;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -136,6 +135,7 @@ import javafx.scene.text.TextAlignment;
 import javafx.stage.Stage;
 import javafx.util.Callback;
 import qupath.lib.common.GeneralTools;
+import qupath.lib.common.TaskScheduler;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.commands.SummaryMeasurementTableCommand;
 import qupath.lib.gui.helpers.ChartToolsFX;
@@ -182,6 +182,11 @@ public class TMASummaryViewer {
 	
 	private TMAImageCache imageCache = new TMAImageCache(maxSmallWidth.get());
 	
+	/**
+	 * Executor for loading small images in the background; replaced (& any pending requests dropped) whenever the entries change.
+	 */
+	private ExecutorService imageLoader;
+	
 	private static String MISSING_COLUMN = "Missing";
 
 	private final Stage stage;
@@ -1213,16 +1218,17 @@ public class TMASummaryViewer {
 			// Reset the cache
 			imageCache.clear();
 			
-			// Try to load small images in a background thread
-			List<TMAEntry> duplicateEntries = new ArrayList<>(newEntries);
-			ExecutorService service = Executors.newSingleThreadExecutor();
-			service.submit(() -> {
-				duplicateEntries.parallelStream().forEach(entry -> {
+			// Try to load small images in the background
+			if (imageLoader != null)
+				imageLoader.shutdownNow();
+			imageLoader = TaskScheduler.getInstance().createExecutor("tma-images", TaskScheduler.Priority.BACKGROUND_IO);
+			for (TMAEntry entry : newEntries) {
+				imageLoader.submit(() -> {
 					imageCache.getImage(entry, maxSmallWidth.get());
 					imageCache.getOverlay(entry, maxSmallWidth.get());
 				});
-			});
-			service.shutdown();
+			}
+			imageLoader.shutdown();
 			
 		}
 		this.entriesBase.setAll(newEntries);
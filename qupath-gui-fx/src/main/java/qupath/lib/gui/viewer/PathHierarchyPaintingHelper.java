@@ -39,21 +39,25 @@ import java.awt.Transparency;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Line2D;
-import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.geom.RectangularShape;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javafx.application.Platform;
+
 import qupath.lib.awt.color.ColorToolsAwt;
 import qupath.lib.awt.common.AwtTools;
 import qupath.lib.geom.Point2;
@@ -83,7 +87,6 @@ import qupath.lib.roi.PointsROI;
 import qupath.lib.roi.PolygonROI;
 import qupath.lib.roi.RectangleROI;
 import qupath.lib.roi.RoiEditor;
-import qupath.lib.roi.ShapeSimplifierAwt;
 import qupath.lib.roi.interfaces.PathArea;
 import qupath.lib.roi.interfaces.PathPoints;
 import qupath.lib.roi.interfaces.PathShape;
@@ -104,6 +107,9 @@ public class PathHierarchyPaintingHelper {
 	
 	private static ShapeProvider shapeProvider = new ShapeProvider();
 	
+	private static Set<QuPathViewer> viewers = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+	private static AtomicBoolean repaintPending = new AtomicBoolean(false);
+	
 	private static Map<Number, Stroke> strokeMap = new HashMap<>();
 	private static Map<Number, Stroke> dashedStrokeMap = new HashMap<>();
 	
@@ -430,13 +436,15 @@ public class PathHierarchyPaintingHelper {
 		
 		Graphics2D g2d = (Graphics2D)g.create();
 		if (pathROI instanceof PathShape) {
-			Shape shape = shapeProvider.getShape((PathShape)pathROI, downsample);
-//			Shape shape = PathROIToolsAwt.getShape(pathROI);
 			// Only pass the colorFill if we have an area (i.e. not a line/polyline)
-			if (pathROI instanceof PathArea)
+			if (!(pathROI instanceof PathArea))
+				colorFill = null;
+			// If we're only drawing the outline, we only need the part that is visible
+			Rectangle2D clip = colorFill == null ? getPaddedClip(g, stroke, downsample) : null;
+			Shape shape = shapeProvider.getShape((PathShape)pathROI, downsample, clip);
+			// Shape may be null if it isn't ready yet - in which case we'll be repainted later
+			if (shape != null)
 				paintShape(shape, g, colorStroke, stroke, colorFill, downsample);
-			else
-				paintShape(shape, g, colorStroke, stroke, null, downsample);
 		} else if (pathROI instanceof PathPoints) {
 			paintPoints((PathPoints)pathROI, g2d, PathPrefs.getDefaultPointRadius(), colorStroke, stroke, colorFill, downsample);
 		}
@@ -444,6 +452,58 @@ public class PathHierarchyPaintingHelper {
 	}
 	
 
+	/**
+	 * Get the clip bounds for a Graphics object, expanded to allow for the width of a stroke.
+	 */
+	private static Rectangle2D getPaddedClip(Graphics2D g, Stroke stroke, double downsample) {
+		Rectangle clip = g.getClipBounds();
+		if (clip == null)
+			return null;
+		double pad = downsample * 2;
+		if (stroke instanceof BasicStroke)
+			pad += ((BasicStroke)stroke).getLineWidth();
+		return new Rectangle2D.Double(clip.x - pad, clip.y - pad, clip.width + pad * 2, clip.height + pad * 2);
+	}
+	
+	
+	/**
+	 * Register a viewer, so that it is repainted whenever shapes computed in the background become available.
+	 * 
+	 * @param viewer
+	 */
+	static void registerViewer(final QuPathViewer viewer) {
+		viewers.add(viewer);
+	}
+	
+	/**
+	 * Request that shapes for the ROIs of the specified annotations are prepared in the background, 
+	 * so that they are ready to be painted.
+	 * 
+	 * @param pathObjects
+	 */
+	public static void prepareShapes(final Collection<? extends PathObject> pathObjects) {
+		for (PathObject pathObject : pathObjects) {
+			if (pathObject.isAnnotation() && pathObject.getROI() instanceof PathShape)
+				shapeProvider.prepareShape((PathShape)pathObject.getROI());
+		}
+	}
+	
+	private static void requestViewerRepaint() {
+		// Coalesce requests, since many shapes may be completed in quick succession
+		if (viewers.isEmpty() || repaintPending.getAndSet(true))
+			return;
+		Platform.runLater(() -> {
+			repaintPending.set(false);
+			List<QuPathViewer> list;
+			synchronized (viewers) {
+				list = new ArrayList<>(viewers);
+			}
+			for (QuPathViewer viewer : list)
+				viewer.repaint();
+		});
+	}
+	
+
 	static abstract class ShapePool<T extends Shape> {
 		
 		private Map<Thread, T> map = new WeakHashMap<>();
@@ -509,45 +569,42 @@ public class PathHierarchyPaintingHelper {
 		private EllipsePool ellipsePool = new EllipsePool();
 		private LinePool linePool = new LinePool();
 		
-		// TODO: Consider if it makes sense to map to PathHierarchyImageServer preferred downsamples
-		// (Only if shape simplification is often used for detection objects)
-		private Map<PathShape, Shape> map50 = Collections.synchronizedMap(new WeakHashMap<>());
-		private Map<PathShape, Shape> map20 = Collections.synchronizedMap(new WeakHashMap<>());
-		private Map<PathShape, Shape> map10 = Collections.synchronizedMap(new WeakHashMap<>());
+		// Shapes with many vertices are converted & simplified in the background, so that painting never waits for them
+		private ShapeLevelCache levelCache = new ShapeLevelCache(PathHierarchyPaintingHelper::requestViewerRepaint);
 		private Map<PathShape, Shape> map = Collections.synchronizedMap(new WeakHashMap<>());
 		
 		
-		private Map<PathShape, Shape> getMap(final PathShape shape, final double downsample) {
-			// If we don't have many vertices, just return the main map - no need to simplify
+		private static boolean hasManyVertices(final PathShape shape) {
 			int nVertices = 0;
 			if (shape instanceof PolygonROI)
 				nVertices = ((PolygonROI)shape).nVertices();
 			else if (shape instanceof AreaROI)
 				nVertices = ((AreaROI)shape).nVertices();
-			if (nVertices < MIN_SIMPLIFY_VERTICES)
-				return map;
-			
-			if (downsample > 50)
-				return map50;
-			if (downsample > 20)
-				return map20;
-			if (downsample > 10)
-				return map10;
-			return map;
+			return nVertices >= MIN_SIMPLIFY_VERTICES;
 		}
 		
-		private Shape simplifyByDownsample(final Shape shape, final double downsample) {
-			if (downsample > 50)
-				return ShapeSimplifierAwt.simplifyPath(shape instanceof Path2D ? (Path2D)shape : new Path2D.Float(shape), 50);
-			if (downsample > 20)
-				return ShapeSimplifierAwt.simplifyPath(shape instanceof Path2D ? (Path2D)shape : new Path2D.Float(shape), 20);
-			if (downsample > 10)
-				return ShapeSimplifierAwt.simplifyPath(shape instanceof Path2D ? (Path2D)shape : new Path2D.Float(shape), 10);
-			return shape;
+		/**
+		 * Request that the levels for a shape are computed in the background, if it has many vertices.
+		 * @param roi
+		 */
+		public void prepareShape(final PathShape roi) {
+			if (hasManyVertices(roi))
+				levelCache.prepare(roi);
 		}
 		
-		
-		public Shape getShape(final PathShape roi, final double downsample) {
+		/**
+		 * Get a shape for painting.
+		 * <p>
+		 * If called from the JavaFX application thread, this may return a shape at a different level of detail 
+		 * (or null) if the required shape is still being computed in the background.
+		 * 
+		 * @param roi
+		 * @param downsample
+		 * @param clip if not null, the outline of a large shape may be restricted to segments close to this region - 
+		 *             in which case the shape may not be closed, and should not be filled
+		 * @return
+		 */
+		public Shape getShape(final PathShape roi, final double downsample, final Rectangle2D clip) {
 			if (roi instanceof RectangleROI) {
 				Rectangle2D rectangle = rectanglePool.getShape();
 				rectangle.setFrame(roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsWidth(), roi.getBoundsHeight());
@@ -567,17 +624,16 @@ public class PathHierarchyPaintingHelper {
 				return line;
 			}
 
-			Map<PathShape, Shape> map = getMap(roi, downsample);
-//			map.clear();
+			if (hasManyVertices(roi)) {
+				var level = levelCache.getShapeLevel(roi, downsample, !Platform.isFxApplicationThread());
+				return level == null ? null : level.getOutline(clip);
+			}
+
 			Shape shape = map.get(roi);
 			if (shape == null) {
 				shape = PathROIToolsAwt.getShape(roi);
-				// Downsample if we have to
-				if (map != this.map)
-					shape = simplifyByDownsample(shape, downsample);
 				map.put(roi, shape);
 			}
-//			map.clear();
 			return shape;
 		}
 		
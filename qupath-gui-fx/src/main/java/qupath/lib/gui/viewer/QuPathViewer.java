@@ -42,6 +42,7 @@ import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorConvertOp;
+import java.awt.image.DataBufferInt;
 import java.awt.image.LookupOp;
 import java.awt.image.ByteLookupTable;
 import java.io.File;
@@ -83,12 +84,12 @@ import javafx.collections.FXCollections;
 import javafx.collections.ListChangeListener;
 import javafx.collections.ListChangeListener.Change;
 import javafx.collections.ObservableList;
-import javafx.embed.swing.SwingFXUtils;
 import javafx.event.EventHandler;
 import javafx.scene.Cursor;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.Tooltip;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.WritableImage;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
@@ -108,6 +109,7 @@ import qupath.lib.gui.images.servers.PathHierarchyImageServer;
 import qupath.lib.gui.images.stores.DefaultImageRegionStore;
 import qupath.lib.gui.images.stores.ImageRegionStoreHelpers;
 import qupath.lib.gui.images.stores.ImageRenderer;
+import qupath.lib.gui.images.stores.TileCompositor;
 import qupath.lib.gui.images.stores.TileListener;
 import qupath.lib.gui.objects.helpers.PathObjectColorToolsAwt;
 import qupath.lib.gui.prefs.PathPrefs;
@@ -127,6 +129,7 @@ import qupath.lib.objects.helpers.PathObjectTools;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.objects.hierarchy.TMAGrid;
 import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent.HierarchyEventType;
 import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
 import qupath.lib.objects.hierarchy.events.PathObjectSelectionListener;
 import qupath.lib.regions.ImagePlane;
@@ -177,6 +180,9 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 	// image is needed to determine pixel values as the mouse moves over the image
 	private BufferedImage imgBuffer = null;
 	//	private BufferedImage imgTemp = null;
+	
+	// Used to paint tiles directly into imgBuffer, reusing pixels from the previous frame where possible
+	private TileCompositor compositor = new TileCompositor();
 
 	// Keep a reference to a thumbnail image here, and apply color transforms to it
 	//	private BufferedImage imgThumbnail;
@@ -413,7 +419,11 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 		paintViewer(g, getWidth(), getHeight());
 		g.dispose();
 		
-		imgCacheFX = SwingFXUtils.toFXImage(imgCache, imgCacheFX);
+		// Copy the pixels directly - both images use premultiplied ARGB, so no conversion is needed
+		int[] pixels = ((DataBufferInt)imgCache.getRaster().getDataBuffer()).getData();
+		int w = Math.min(getWidth(), imgCache.getWidth());
+		int h = Math.min(getHeight(), imgCache.getHeight());
+		imgCacheFX.getPixelWriter().setPixels(0, 0, w, h, PixelFormat.getIntArgbPreInstance(), pixels, 0, imgCache.getWidth());
 		context.drawImage(imgCacheFX, 0, 0);
 		
 		if (borderColor != null) {
@@ -707,6 +717,9 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 
 		setOverlayOptions(overlayOptions);
 		
+		// Repaint when large shapes have been prepared in the background
+		PathHierarchyPaintingHelper.registerViewer(this);
+		
 		// We need a simple repaint for color changes & simple (thick) line changes
 		manager.attachListener(PathPrefs.strokeThickThicknessProperty(), repainter);
 		
@@ -756,6 +769,31 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 		setImageData(imageData);
 
 		this.regionStore.addTileListener(this);
+		
+		// Use changes in the visible region to request tiles that are likely to be needed soon
+		addViewerListener(new QuPathViewerListener() {
+
+			@Override
+			public void imageDataChanged(QuPathViewer viewer, ImageData<BufferedImage> imageDataOld,
+					ImageData<BufferedImage> imageDataNew) {
+				regionStore.stopPrefetching(viewer);
+			}
+
+			@Override
+			public void visibleRegionChanged(QuPathViewer viewer, Shape shape) {
+				regionStore.updateVisibleRegion(viewer, getServer(), shape, getDownsampleFactor(), getZPosition(), getTPosition());
+			}
+
+			@Override
+			public void selectedObjectChanged(QuPathViewer viewer, PathObject pathObjectSelected) {}
+
+			@Override
+			public void viewerClosed(QuPathViewer viewer) {
+				regionStore.stopPrefetching(viewer);
+				removeViewerListener(this);
+			}
+			
+		});
 
 		//		updateCursor();
 		imageUpdated = true;
@@ -1766,19 +1804,57 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 	//	}
 
 	private void updateBufferedImage(final BufferedImage imgBuffer, final Shape shapeRegion, final int w, final int h) {
-		Graphics2D gBuffered = imgBuffer.createGraphics();
-		updateBufferedImage(gBuffered, shapeRegion, w, h);
-		gBuffered.dispose();
-		// Apply color transforms, if required
+		ensureGammaUpdated();
+		// Composite tiles directly into the buffer if we can - but rotation still requires Java2D
+		if (rotation == 0 && compositor.setTarget(imgBuffer)) {
+			compositeImage(shapeRegion);
+		} else {
+			// Java2D overwrites the buffer, so the compositor can't reuse its pixels for the next frame
+			compositor.reset();
+			Graphics2D gBuffered = imgBuffer.createGraphics();
+			updateBufferedImage(gBuffered, shapeRegion, w, h);
+			gBuffered.dispose();
+		}
+		// Apply color transforms, if required - these modify the buffer in place, so its pixels can't be reused either
+		if (iccTransformOp != null || gammaOp != null)
+			compositor.reset();
 		if (iccTransformOp != null) {
 			iccTransformOp.filter(this.imgBuffer.getRaster(), this.imgBuffer.getRaster());
 		}
-		ensureGammaUpdated();
 		if (gammaOp != null) {
 			gammaOp.filter(this.imgBuffer.getRaster(), this.imgBuffer.getRaster());
 		}
 	}
 
+	/**
+	 * Paint the image tiles using the TileCompositor.
+	 * Unlike with Java2D, color transforms are always applied tile-by-tile - so that unchanged tiles can be reused.
+	 */
+	private void compositeImage(final Shape shapeRegion) {
+		ImageServer<BufferedImage> server = getServer();
+		double downsample = getDownsampleFactor();
+		Point2D origin = transformInverse.transform(new Point2D.Double(0, 0), null);
+		boolean bilinear = !doFasterRepaint && PathPrefs.getViewerInterpolationBilinear();
+		ImageRenderer renderer = getRenderer();
+		long displayTimestamp = renderer == null ? 0L : renderer.getLastChangeTimestamp();
+		compositor.beginFrame(downsample, origin.getX(), origin.getY(), background.getRGB(), bilinear, displayTimestamp);
+		
+		BufferedImage imgThumbnail = regionStore.getThumbnail(server, getZPosition(), getTPosition(), true);
+		if (requiresTiling(server, imgThumbnail))
+			regionStore.paintRegion(server, compositor, shapeRegion, getZPosition(), getTPosition(), downsample, imgThumbnail, renderer);
+		else if (imgThumbnailRGB != null)
+			compositor.drawImage(imgThumbnailRGB, 0, 0, server.getWidth(), server.getHeight(), imgThumbnailRGB, imgThumbnailRGB);
+		compositor.endFrame();
+	}
+	
+	/**
+	 * Check if tiles are needed, or if the thumbnail has a high enough resolution for the current downsample.
+	 */
+	private boolean requiresTiling(final ImageServer<BufferedImage> server, final BufferedImage imgThumbnail) {
+		double lowResolutionDownsample = 0.5 * ((double)server.getWidth() / imgThumbnail.getWidth() + (double)server.getHeight() / imgThumbnail.getHeight());
+		return !thumbnailIsFullImage && lowResolutionDownsample > Math.max(downsampleFactor.get(), 1);
+	}
+
 	//	private void updateBufferedImage(final BufferedImage imgBuffer, final Shape shapeRegion) {
 	private void updateBufferedImage(final Graphics2D gBuffered, final Shape shapeRegion, final int w, final int h) {
 		// Check if we are doing a simple shift (scroll) - if so, we can reuse some previous painting
@@ -1799,8 +1875,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 
 		// Check if we require tiling the image, or if the low-resolution version does all we need
 		BufferedImage imgThumbnail = regionStore.getThumbnail(server, getZPosition(), getTPosition(), true);
-		double lowResolutionDownsample = 0.5 * ((double)serverWidth / imgThumbnail.getWidth() + (double)serverHeight / imgThumbnail.getHeight());
-		boolean requiresTiling = !thumbnailIsFullImage && lowResolutionDownsample > Math.max(downsampleFactor.get(), 1);
+		boolean requiresTiling = requiresTiling(server, imgThumbnail);
 
 		// Check if we will be painting some background beyond the image edge
 		Rectangle shapeBounds = shapeToUpdate.getBounds();
@@ -2529,8 +2604,12 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 
 
 	private void handleHierarchyChange(final PathObjectHierarchyEvent event) {
-		if (event != null)
+		if (event != null) {
 			logger.trace(event.toString());
+			// Start preparing any large annotation shapes, so they're ready by the time we paint
+			if (!event.isChanging() && event.getEventType() != HierarchyEventType.REMOVED)
+				PathHierarchyPaintingHelper.prepareShapes(event.getChangedObjects());
+		}
 		// Clear any cached regions of the overlay, if necessary
 		// TODO: Make this update a bit less conservative - it isn't really needed if we don't modify detections?
 		if (event == null || event.isStructureChangeEvent())
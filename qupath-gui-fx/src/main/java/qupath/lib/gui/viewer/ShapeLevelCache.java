@@ -0,0 +1,442 @@
+package qupath.lib.gui.viewer;
+
+import java.awt.Shape;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.TaskScheduler;
+import qupath.lib.common.TaskScheduler.Priority;
+import qupath.lib.common.TaskScheduler.TaskExecutor;
+import qupath.lib.roi.PathROIToolsAwt;
+import qupath.lib.roi.ShapeSimplifierAwt;
+import qupath.lib.roi.interfaces.PathShape;
+
+/**
+ * Cache of simplified shapes for ROIs with many vertices, computed in the background.
+ * <p>
+ * Each ROI gets a small pyramid of shapes, simplified for increasing downsamples.
+ * Levels are computed using the shared {@link TaskScheduler}, so that painting doesn't need to convert or simplify
+ * large polygons; until the requested level is ready, the nearest available level may be used instead.
+ * <p>
+ * Levels with many vertices are also split into tiles, so that an outline can be drawn using only the segments
+ * close to the visible region.
+ *
+ * @author Pete Bankhead
+ *
+ */
+class ShapeLevelCache {
+
+	private final static Logger logger = LoggerFactory.getLogger(ShapeLevelCache.class);
+
+	/**
+	 * Downsample above which each level is used; the first level is not simplified.
+	 */
+	static final double[] LEVEL_DOWNSAMPLES = {1, 10, 20, 50};
+
+	/**
+	 * Minimum number of vertices before a level is split into tiles.
+	 */
+	static final int MIN_TILED_VERTICES = 10000;
+
+	/**
+	 * Tile size, in pixels at the downsample of the level.
+	 */
+	static final int TILE_SIZE = 1024;
+
+	private static TaskExecutor pool = TaskScheduler.getInstance().createExecutor(
+			"shape-levels", Priority.OVERLAY, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+	private final Map<PathShape, ShapeLevels> map = Collections.synchronizedMap(new WeakHashMap<>());
+	private final Runnable onLevelComputed;
+
+	/**
+	 * Constructor.
+	 * @param onLevelComputed called (from a background thread) whenever a new level becomes available
+	 */
+	ShapeLevelCache(final Runnable onLevelComputed) {
+		this.onLevelComputed = onLevelComputed;
+	}
+
+	/**
+	 * Get the level that should be used for painting at a specified downsample.
+	 *
+	 * @param downsample
+	 * @return
+	 */
+	static int getLevel(final double downsample) {
+		for (int i = LEVEL_DOWNSAMPLES.length - 1; i > 0; i--) {
+			if (downsample > LEVEL_DOWNSAMPLES[i])
+				return i;
+		}
+		return 0;
+	}
+
+	/**
+	 * Request that all levels are computed in the background for a ROI, e.g. because it has just been created.
+	 *
+	 * @param roi
+	 */
+	void prepare(final PathShape roi) {
+		getLevels(roi).request(roi, -1);
+	}
+
+	/**
+	 * Get the shape for a ROI at a specified downsample.
+	 *
+	 * @param roi
+	 * @param downsample
+	 * @param wait if true, compute the level on the current thread if it isn't already available;
+	 *             if false, compute it in the background and return the nearest available level instead
+	 * @return the level, or null if wait is false and no level is available yet
+	 */
+	ShapeLevel getShapeLevel(final PathShape roi, final double downsample, final boolean wait) {
+		var levels = getLevels(roi);
+		int level = getLevel(downsample);
+		if (wait)
+			return levels.getOrCompute(roi, level);
+		var shapeLevel = levels.get(level);
+		if (shapeLevel != null)
+			return shapeLevel;
+		levels.request(roi, level);
+		return levels.getNearest(level);
+	}
+
+	private ShapeLevels getLevels(final PathShape roi) {
+		return map.computeIfAbsent(roi, r -> new ShapeLevels());
+	}
+
+
+	/**
+	 * Levels for a single ROI.
+	 * Note that this mustn't retain a reference to the ROI, since it is stored as a value in a WeakHashMap.
+	 */
+	class ShapeLevels {
+
+		private final AtomicReferenceArray<ShapeLevel> levels = new AtomicReferenceArray<>(LEVEL_DOWNSAMPLES.length);
+
+		// Levels requested for painting, and those only requested in advance
+		private int urgentMask = 0;
+		private int pendingMask = 0;
+		private boolean scheduled = false;
+
+		ShapeLevel get(final int level) {
+			return levels.get(level);
+		}
+
+		/**
+		 * Get the nearest available level, preferring coarser levels (which are cheaper to paint).
+		 */
+		ShapeLevel getNearest(final int level) {
+			for (int i = level + 1; i < LEVEL_DOWNSAMPLES.length; i++) {
+				var shapeLevel = levels.get(i);
+				if (shapeLevel != null)
+					return shapeLevel;
+			}
+			for (int i = level - 1; i >= 0; i--) {
+				var shapeLevel = levels.get(i);
+				if (shapeLevel != null)
+					return shapeLevel;
+			}
+			return null;
+		}
+
+		ShapeLevel getOrCompute(final PathShape roi, final int level) {
+			var shapeLevel = levels.get(level);
+			if (shapeLevel == null)
+				shapeLevel = compute(roi, level);
+			return shapeLevel;
+		}
+
+		/**
+		 * Request a level in the background, or all levels if level &lt; 0.
+		 */
+		synchronized void request(final PathShape roi, final int level) {
+			if (level < 0)
+				pendingMask |= (1 << LEVEL_DOWNSAMPLES.length) - 1;
+			else
+				urgentMask |= 1 << level;
+			if (scheduled)
+				return;
+			scheduled = true;
+			pool.submit(() -> computeRequested(roi));
+		}
+
+		private synchronized int nextRequested() {
+			int mask = urgentMask != 0 ? urgentMask : pendingMask;
+			if (mask == 0) {
+				scheduled = false;
+				return -1;
+			}
+			int level = Integer.numberOfTrailingZeros(mask);
+			urgentMask &= ~(1 << level);
+			pendingMask &= ~(1 << level);
+			return level;
+		}
+
+		private void computeRequested(final PathShape roi) {
+			int level;
+			while ((level = nextRequested()) >= 0) {
+				if (levels.get(level) != null)
+					continue;
+				try {
+					compute(roi, level);
+				} catch (Exception e) {
+					logger.error("Unable to compute shape level " + level + " for " + roi, e);
+					continue;
+				}
+				if (onLevelComputed != null)
+					onLevelComputed.run();
+			}
+		}
+
+		private ShapeLevel compute(final PathShape roi, final int level) {
+			// Simplify from the full resolution shape, so errors don't accumulate
+			Shape shape;
+			if (level == 0)
+				shape = PathROIToolsAwt.getShape(roi);
+			else {
+				Shape base = getOrCompute(roi, 0).getShape();
+				shape = ShapeSimplifierAwt.simplifyPath(base instanceof Path2D ? (Path2D)base : new Path2D.Float(base), LEVEL_DOWNSAMPLES[level]);
+			}
+			var shapeLevel = new ShapeLevel(shape, TILE_SIZE * LEVEL_DOWNSAMPLES[level]);
+			// If another thread got there first, use its level instead
+			if (!levels.compareAndSet(level, null, shapeLevel))
+				return levels.get(level);
+			return shapeLevel;
+		}
+
+	}
+
+
+	/**
+	 * A shape for painting at a single level, optionally split into tiles for painting outlines.
+	 */
+	static class ShapeLevel {
+
+		private final Shape shape;
+		private final TiledOutline outline;
+
+		ShapeLevel(final Shape shape, final double tileSize) {
+			this.shape = shape;
+			this.outline = countVertices(shape) >= MIN_TILED_VERTICES ? new TiledOutline(shape, tileSize) : null;
+		}
+
+		/**
+		 * Count the vertices in the flattened shape, stopping early once there are enough to need tiling.
+		 */
+		private static int countVertices(final Shape shape) {
+			var iterator = shape.getPathIterator(null, 0.5);
+			float[] coords = new float[6];
+			int n = 0;
+			while (!iterator.isDone() && n < MIN_TILED_VERTICES) {
+				if (iterator.currentSegment(coords) != PathIterator.SEG_CLOSE)
+					n++;
+				iterator.next();
+			}
+			return n;
+		}
+
+		/**
+		 * Get the full shape.
+		 * @return
+		 */
+		Shape getShape() {
+			return shape;
+		}
+
+		/**
+		 * Get a shape for painting the outline within a specified region.
+		 * This may be an open path containing only the segments close to the region, and therefore shouldn't be filled.
+		 *
+		 * @param clip the region that will be painted, or null if the entire shape is required
+		 * @return
+		 */
+		Shape getOutline(final Rectangle2D clip) {
+			if (outline == null || clip == null)
+				return shape;
+			var clipped = outline.getOutline(clip);
+			return clipped == null ? shape : clipped;
+		}
+
+	}
+
+
+	/**
+	 * Vertices of a shape, along with an index of the segments that intersect each tile.
+	 */
+	static class TiledOutline {
+
+		private final List<float[]> rings = new ArrayList<>();
+		private final List<Boolean> closed = new ArrayList<>();
+		private int nVertices = 0;
+
+		private double tileSize;
+		private int minTileX, minTileY, nTilesX, nTilesY;
+
+		// For each tile, store triples of (ring, first segment, last segment + 1)
+		private int[][] tileRanges;
+		private int[] tileCounts;
+
+		TiledOutline(final Shape shape, final double tileSize) {
+			readVertices(shape);
+			if (nVertices < MIN_TILED_VERTICES)
+				return;
+
+			this.tileSize = tileSize;
+			var bounds = shape.getBounds2D();
+			minTileX = (int)Math.floor(bounds.getMinX() / tileSize);
+			minTileY = (int)Math.floor(bounds.getMinY() / tileSize);
+			nTilesX = (int)Math.floor(bounds.getMaxX() / tileSize) - minTileX + 1;
+			nTilesY = (int)Math.floor(bounds.getMaxY() / tileSize) - minTileY + 1;
+			tileRanges = new int[nTilesX * nTilesY][];
+			tileCounts = new int[nTilesX * nTilesY];
+
+			for (int r = 0; r < rings.size(); r++) {
+				float[] xy = rings.get(r);
+				int n = xy.length / 2;
+				int nSegments = closed.get(r) ? n : n - 1;
+				for (int s = 0; s < nSegments; s++) {
+					int s2 = (s + 1) % n;
+					int tx1 = tileX(Math.min(xy[s*2], xy[s2*2]));
+					int tx2 = tileX(Math.max(xy[s*2], xy[s2*2]));
+					int ty1 = tileY(Math.min(xy[s*2+1], xy[s2*2+1]));
+					int ty2 = tileY(Math.max(xy[s*2+1], xy[s2*2+1]));
+					for (int ty = ty1; ty <= ty2; ty++) {
+						for (int tx = tx1; tx <= tx2; tx++)
+							addSegment(ty * nTilesX + tx, r, s);
+					}
+				}
+			}
+		}
+
+		private int tileX(final double x) {
+			return Math.max(0, Math.min(nTilesX - 1, (int)Math.floor(x / tileSize) - minTileX));
+		}
+
+		private int tileY(final double y) {
+			return Math.max(0, Math.min(nTilesY - 1, (int)Math.floor(y / tileSize) - minTileY));
+		}
+
+		private void addSegment(final int tile, final int ring, final int segment) {
+			int[] ranges = tileRanges[tile];
+			int count = tileCounts[tile];
+			// Extend the previous range if we can
+			if (count > 0 && ranges[count-3] == ring && ranges[count-1] == segment) {
+				ranges[count-1] = segment + 1;
+				return;
+			}
+			if (ranges == null)
+				ranges = new int[12];
+			else if (count + 3 > ranges.length)
+				ranges = Arrays.copyOf(ranges, ranges.length * 2);
+			ranges[count] = ring;
+			ranges[count+1] = segment;
+			ranges[count+2] = segment + 1;
+			tileRanges[tile] = ranges;
+			tileCounts[tile] = count + 3;
+		}
+
+		private void readVertices(final Shape shape) {
+			var iterator = shape.getPathIterator(null, 0.5);
+			float[] coords = new float[6];
+			float[] xy = new float[64];
+			int n = 0;
+			while (!iterator.isDone()) {
+				int type = iterator.currentSegment(coords);
+				if (type == PathIterator.SEG_MOVETO && n > 0) {
+					addRing(xy, n, false);
+					n = 0;
+				}
+				if (type == PathIterator.SEG_CLOSE) {
+					if (n > 0)
+						addRing(xy, n, true);
+					n = 0;
+				} else {
+					if (n * 2 + 2 > xy.length)
+						xy = Arrays.copyOf(xy, xy.length * 2);
+					xy[n*2] = coords[0];
+					xy[n*2+1] = coords[1];
+					n++;
+				}
+				iterator.next();
+			}
+			if (n > 0)
+				addRing(xy, n, false);
+		}
+
+		private void addRing(final float[] xy, final int n, final boolean isClosed) {
+			rings.add(Arrays.copyOf(xy, n * 2));
+			closed.add(isClosed);
+			nVertices += n;
+		}
+
+		/**
+		 * Get a path containing the segments within tiles that intersect the clip region,
+		 * or null if all tiles are needed.
+		 */
+		Path2D getOutline(final Rectangle2D clip) {
+			int tx1 = (int)Math.floor(clip.getMinX() / tileSize) - minTileX;
+			int tx2 = (int)Math.floor(clip.getMaxX() / tileSize) - minTileX;
+			int ty1 = (int)Math.floor(clip.getMinY() / tileSize) - minTileY;
+			int ty2 = (int)Math.floor(clip.getMaxY() / tileSize) - minTileY;
+			if (tx1 <= 0 && ty1 <= 0 && tx2 >= nTilesX - 1 && ty2 >= nTilesY - 1)
+				return null;
+
+			// Gather the ranges for the visible tiles, then sort & merge them so no segment is drawn twice
+			List<int[]> ranges = new ArrayList<>();
+			for (int ty = Math.max(0, ty1); ty <= Math.min(nTilesY - 1, ty2); ty++) {
+				for (int tx = Math.max(0, tx1); tx <= Math.min(nTilesX - 1, tx2); tx++) {
+					int tile = ty * nTilesX + tx;
+					int[] tileRange = tileRanges[tile];
+					for (int i = 0; i < tileCounts[tile]; i += 3)
+						ranges.add(new int[] {tileRange[i], tileRange[i+1], tileRange[i+2]});
+				}
+			}
+			ranges.sort(Comparator.<int[]>comparingInt(r -> r[0]).thenComparingInt(r -> r[1]));
+
+			var path = new Path2D.Float();
+			int ring = -1, start = 0, end = 0;
+			for (int[] range : ranges) {
+				if (range[0] == ring && range[1] <= end) {
+					end = Math.max(end, range[2]);
+					continue;
+				}
+				if (ring >= 0)
+					appendRange(path, ring, start, end);
+				ring = range[0];
+				start = range[1];
+				end = range[2];
+			}
+			if (ring >= 0)
+				appendRange(path, ring, start, end);
+			return path;
+		}
+
+		private void appendRange(final Path2D path, final int ring, final int start, final int end) {
+			float[] xy = rings.get(ring);
+			int n = xy.length / 2;
+			path.moveTo(xy[start*2], xy[start*2+1]);
+			for (int s = start; s < end; s++) {
+				int v = (s + 1) % n;
+				path.lineTo(xy[v*2], xy[v*2+1]);
+			}
+			// Close the path if we have the entire ring, so that the joins are drawn properly
+			if (start == 0 && end == n && closed.get(ring))
+				path.closePath();
+		}
+
+	}
+
+}
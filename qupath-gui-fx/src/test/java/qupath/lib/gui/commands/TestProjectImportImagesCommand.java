@@ -0,0 +1,92 @@
+package qupath.lib.gui.commands;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import qupath.lib.gui.commands.ProjectImportImagesCommand.ImportedImage;
+import qupath.lib.projects.ProjectFactory;
+
+public class TestProjectImportImagesCommand {
+
+	private Path dir;
+
+	@Before
+	public void createDirectory() throws IOException {
+		dir = Files.createTempDirectory("qupath-import");
+	}
+
+	@After
+	public void deleteDirectory() throws IOException {
+		try (var stream = Files.walk(dir)) {
+			for (var path : (Iterable<Path>)stream.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(path);
+		}
+	}
+
+	@Test
+	public void testImportOrder() throws Exception {
+		var project = ProjectFactory.createProject(dir.toFile(), BufferedImage.class);
+		List<String> paths = new ArrayList<>();
+		for (int i = 0; i < 30; i++)
+			paths.add("image-" + i);
+
+		// Read earlier paths more slowly, so that they are likely to finish after later ones
+		// Every third path has two sub-images, and every seventh path fails
+		AtomicInteger nRead = new AtomicInteger();
+		List<String> pathSucceeded = new ArrayList<>();
+		List<String> pathFailed = new ArrayList<>();
+		ProjectImportImagesCommand.importImages(project, paths, 4, path -> {
+			int i = Integer.parseInt(path.substring("image-".length()));
+			try {
+				Thread.sleep((30 - i) % 8 * 5);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (i % 7 == 6)
+				throw new IOException("Unable to read " + path);
+			var thumbnail = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+			if (i % 3 == 0)
+				return List.of(new ImportedImage(path + "-a", path + "-a", thumbnail), new ImportedImage(path + "-b", path + "-b", thumbnail));
+			return Collections.singletonList(new ImportedImage(path, path, thumbnail));
+		}, pathSucceeded, pathFailed, () -> nRead.incrementAndGet());
+		assertEquals(paths.size(), nRead.get());
+
+		// Images should be added in the order of the paths, regardless of when they were read
+		List<String> expectedSucceeded = new ArrayList<>();
+		List<String> expectedFailed = new ArrayList<>();
+		List<String> expectedNames = new ArrayList<>();
+		for (int i = 0; i < paths.size(); i++) {
+			var path = paths.get(i);
+			if (i % 7 == 6) {
+				expectedFailed.add(path);
+				continue;
+			}
+			expectedSucceeded.add(path);
+			if (i % 3 == 0) {
+				expectedNames.add(path + "-a");
+				expectedNames.add(path + "-b");
+			} else
+				expectedNames.add(path);
+		}
+		assertEquals(expectedSucceeded, pathSucceeded);
+		assertEquals(expectedFailed, pathFailed);
+		List<String> names = new ArrayList<>();
+		for (var entry : project.getImageList())
+			names.add(entry.getImageName());
+		assertEquals(expectedNames, names);
+	}
+
+}
@@ -0,0 +1,152 @@
+package qupath.lib.gui.images.stores;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestTileCompositor {
+
+	private static BufferedImage createTile(int width, int height, Random random) {
+		var img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				img.setRGB(x, y, random.nextInt(0xffffff));
+		}
+		return img;
+	}
+
+	private static int[] getPixels(BufferedImage img) {
+		return ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+	}
+
+	/**
+	 * Draw four 50x40 tiles to cover a 100x80 image (which is larger than the target).
+	 */
+	private static void drawFrame(TileCompositor compositor, BufferedImage[] tiles, double xOrigin, double yOrigin, boolean bilinear) {
+		compositor.beginFrame(1.0, xOrigin, yOrigin, 0xff000000, bilinear, 0L);
+		for (int i = 0; i < tiles.length; i++) {
+			int x = (i % 2) * 50;
+			int y = (i / 2) * 40;
+			if (!compositor.isUnchanged(i, tiles[i], x, y, 50, 40))
+				compositor.drawImage(tiles[i], x, y, 50, 40, i, tiles[i]);
+		}
+		compositor.endFrame();
+	}
+
+	@Test
+	public void testNearest() {
+		var tile = createTile(64, 64, new Random(1L));
+		var target = new BufferedImage(40, 30, BufferedImage.TYPE_INT_ARGB_PRE);
+		var compositor = new TileCompositor();
+		compositor.setTarget(target);
+		// Draw at a downsample of 2, with the origin offset by 10 pixels
+		compositor.beginFrame(2.0, 10, 0, 0xff000000, false, 0L);
+		compositor.drawImage(tile, 0, 0, 64, 64, null, null);
+		compositor.endFrame();
+		for (int y = 0; y < target.getHeight(); y++) {
+			for (int x = 0; x < target.getWidth(); x++) {
+				if (x < 27 && y < 32)
+					assertEquals(tile.getRGB(x * 2 + 11, y * 2 + 1), target.getRGB(x, y));
+				else
+					assertEquals(0xff000000, target.getRGB(x, y));
+			}
+		}
+	}
+
+	@Test
+	public void testBilinear() {
+		var tile = createTile(20, 20, new Random(2L));
+		var target = new BufferedImage(20, 20, BufferedImage.TYPE_INT_ARGB_PRE);
+		var compositor = new TileCompositor();
+		compositor.setTarget(target);
+		// At full resolution, interpolation should give the original pixels
+		compositor.beginFrame(1.0, 0, 0, 0xff000000, true, 0L);
+		compositor.drawImage(tile, 0, 0, 20, 20, null, null);
+		compositor.endFrame();
+		for (int y = 0; y < 20; y++) {
+			for (int x = 0; x < 20; x++)
+				assertEquals(tile.getRGB(x, y), target.getRGB(x, y));
+		}
+		// When upsampling by 2, pixels between the original centers should be averaged
+		compositor.beginFrame(0.5, 0, 0, 0xff000000, true, 0L);
+		compositor.drawImage(tile, 0, 0, 20, 20, null, null);
+		compositor.endFrame();
+		for (int shift = 0; shift <= 16; shift += 8) {
+			// Target pixel 8 is centered at 4.25, i.e. 3/4 of the way from 3.5 to 4.5 in both dimensions
+			double top = ((tile.getRGB(3, 3) >> shift) & 0xff) * 0.25 + ((tile.getRGB(4, 3) >> shift) & 0xff) * 0.75;
+			double bottom = ((tile.getRGB(3, 4) >> shift) & 0xff) * 0.25 + ((tile.getRGB(4, 4) >> shift) & 0xff) * 0.75;
+			assertEquals(top * 0.25 + bottom * 0.75, (target.getRGB(8, 8) >> shift) & 0xff, 2.0);
+		}
+	}
+
+	@Test
+	public void testReuse() {
+		var random = new Random(3L);
+		var tiles = new BufferedImage[4];
+		for (int i = 0; i < tiles.length; i++)
+			tiles[i] = createTile(50, 40, random);
+		var target = new BufferedImage(80, 60, BufferedImage.TYPE_INT_ARGB_PRE);
+		var compositor = new TileCompositor();
+		compositor.setTarget(target);
+
+		drawFrame(compositor, tiles, 0, 0, false);
+		assertEquals(4, compositor.getTilesDrawn());
+
+		// Nothing has changed, so nothing should be drawn
+		drawFrame(compositor, tiles, 0, 0, false);
+		assertEquals(0, compositor.getTilesDrawn());
+		assertEquals(4, compositor.getTilesSkipped());
+
+		// Shift the view - only the tiles overlapping the exposed region should be drawn
+		drawFrame(compositor, tiles, 10, 0, false);
+		assertEquals(2, compositor.getTilesDrawn());
+		assertEquals(2, compositor.getTilesSkipped());
+
+		// Check the result matches painting from scratch
+		var target2 = new BufferedImage(80, 60, BufferedImage.TYPE_INT_ARGB_PRE);
+		var compositor2 = new TileCompositor();
+		compositor2.setTarget(target2);
+		drawFrame(compositor2, tiles, 10, 0, false);
+		assertArrayEquals(getPixels(target2), getPixels(target));
+
+		// Replacing a tile should cause it to be drawn again
+		tiles[3] = createTile(50, 40, random);
+		drawFrame(compositor, tiles, 10, 0, false);
+		assertEquals(1, compositor.getTilesDrawn());
+		drawFrame(compositor2, tiles, 10, 0, false);
+		assertArrayEquals(getPixels(target2), getPixels(target));
+	}
+
+	@Test
+	public void testReuseAfterExternalChange() {
+		var random = new Random(4L);
+		var tiles = new BufferedImage[4];
+		for (int i = 0; i < tiles.length; i++)
+			tiles[i] = createTile(50, 40, random);
+		var target = new BufferedImage(80, 60, BufferedImage.TYPE_INT_ARGB_PRE);
+		var compositor = new TileCompositor();
+		compositor.setTarget(target);
+		drawFrame(compositor, tiles, 0, 0, false);
+		int[] expected = getPixels(target).clone();
+
+		// Modify the target elsewhere (e.g. with Java2D or a color transform)
+		var g2d = target.createGraphics();
+		g2d.setColor(Color.WHITE);
+		g2d.fillRect(0, 0, 80, 60);
+		g2d.dispose();
+
+		// After a reset, everything should be drawn again
+		compositor.reset();
+		drawFrame(compositor, tiles, 0, 0, false);
+		assertEquals(4, compositor.getTilesDrawn());
+		assertEquals(0, compositor.getTilesSkipped());
+		assertArrayEquals(expected, getPixels(target));
+	}
+
+}
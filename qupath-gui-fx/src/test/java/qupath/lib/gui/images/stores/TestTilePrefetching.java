@@ -0,0 +1,118 @@
+package qupath.lib.gui.images.stores;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import qupath.lib.images.servers.ImageIoImageServer;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.PyramidGeneratingImageServer;
+import qupath.lib.regions.RegionRequest;
+
+public class TestTilePrefetching {
+
+	private static ImageServer<BufferedImage> server;
+
+	@BeforeClass
+	public static void createServer() throws Exception {
+		server = new PyramidGeneratingImageServer(new ImageIoImageServer("prefetch", null, new BufferedImage(2048, 2048, BufferedImage.TYPE_INT_RGB)));
+	}
+
+	@AfterClass
+	public static void closeServer() throws Exception {
+		server.close();
+	}
+
+	private static RegionRequest getTile(double downsample, int x, int y) {
+		int size = (int)(256 * downsample);
+		return RegionRequest.createInstance(server.getPath(), downsample, x, y, size, size);
+	}
+
+	@Test
+	public void testPanning() {
+		var motion = new AbstractImageRegionStore.ViewerMotion<BufferedImage>();
+		motion.update(server, new Rectangle2D.Double(500, 500, 400, 300), 1.0, 0, 0, 1000);
+		assertFalse(motion.hasMoreTiles());
+
+		// Pan right by 60 pixels in 40 ms
+		motion.update(server, new Rectangle2D.Double(560, 500, 400, 300), 1.0, 0, 0, 1040);
+		assertTrue(motion.hasMoreTiles());
+		boolean beyondView = false;
+		while (motion.hasMoreTiles()) {
+			var request = motion.nextTileRequest();
+			assertEquals(1.0, request.getDownsample(), 0.0);
+			assertTrue(request.getMaxX() > 560);
+			beyondView = beyondView || request.getMaxX() > 960;
+		}
+		assertTrue(beyondView);
+		assertTrue(motion.isExpected(getTile(1, 1024, 512)));
+		assertFalse(motion.isExpected(getTile(1, 0, 512)));
+		assertFalse(motion.isExpected(getTile(1, 1536, 512)));
+
+		// Reversing direction means the tiles to the right are no longer expected
+		motion.update(server, new Rectangle2D.Double(500, 500, 400, 300), 1.0, 0, 0, 1080);
+		assertFalse(motion.isExpected(getTile(1, 1024, 512)));
+		assertTrue(motion.isExpected(getTile(1, 256, 512)));
+
+		// Pausing means the velocity is forgotten
+		motion.update(server, new Rectangle2D.Double(500, 500, 400, 300), 1.0, 0, 0, 2000);
+		assertFalse(motion.hasMoreTiles());
+	}
+
+	@Test
+	public void testZooming() {
+		var motion = new AbstractImageRegionStore.ViewerMotion<BufferedImage>();
+		motion.update(server, new Rectangle2D.Double(500, 500, 400, 300), 2.0, 0, 0, 1000);
+		assertFalse(motion.hasMoreTiles());
+
+		// Zooming out should request tiles from the next lower resolution
+		motion.update(server, new Rectangle2D.Double(400, 400, 600, 450), 3.0, 0, 0, 1040);
+		assertTrue(motion.hasMoreTiles());
+		while (motion.hasMoreTiles())
+			assertEquals(4.0, motion.nextTileRequest().getDownsample(), 0.0);
+
+		// Zooming in should request tiles from the next higher resolution
+		motion.update(server, new Rectangle2D.Double(500, 500, 400, 300), 2.0, 0, 0, 1080);
+		assertTrue(motion.hasMoreTiles());
+		while (motion.hasMoreTiles())
+			assertEquals(1.0, motion.nextTileRequest().getDownsample(), 0.0);
+	}
+
+	@Test
+	public void testStore() throws Exception {
+		var store = new DefaultImageRegionStore(64L * 1024L * 1024L);
+		var viewer = new Object();
+		try {
+			store.updateVisibleRegion(viewer, server, new Rectangle2D.Double(0, 500, 400, 300), 1.0, 0, 0);
+			Thread.sleep(20);
+			store.updateVisibleRegion(viewer, server, new Rectangle2D.Double(100, 500, 400, 300), 1.0, 0, 0);
+			var request = getTile(1, 512, 512);
+			long endTime = System.currentTimeMillis() + 10000;
+			while (store.getCachedTile(server, request) == null && System.currentTimeMillis() < endTime)
+				Thread.sleep(10);
+			assertNotNull(store.getCachedRegion(server, request));
+
+			var metrics = store.getPrefetchMetrics();
+			assertTrue(metrics.getRequestedCount() > 0);
+			assertEquals(1, metrics.getHitCount());
+			assertEquals(0, metrics.getMissCount());
+
+			// Requesting a tile that wasn't predicted is a miss
+			store.getCachedRegion(server, getTile(1, 1792, 1792));
+			assertEquals(1, store.getPrefetchMetrics().getMissCount());
+			assertEquals(0.5, store.getPrefetchMetrics().getHitRate(), 1e-6);
+		} finally {
+			store.stopPrefetching(viewer);
+			store.close();
+		}
+	}
+
+}
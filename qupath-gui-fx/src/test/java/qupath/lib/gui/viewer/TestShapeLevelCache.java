@@ -0,0 +1,161 @@
+package qupath.lib.gui.viewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Shape;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import qupath.lib.gui.viewer.ShapeLevelCache.ShapeLevel;
+import qupath.lib.gui.viewer.ShapeLevelCache.TiledOutline;
+
+public class TestShapeLevelCache {
+
+	private static final double TILE_SIZE = 1024;
+
+	/**
+	 * Create a closed polygon approximating a circle with a radius of 5000 pixels, centered at (6000, 6000).
+	 */
+	private static Path2D createPolygon(int nVertices) {
+		var path = new Path2D.Float();
+		for (int i = 0; i < nVertices; i++) {
+			double theta = 2 * Math.PI * i / nVertices;
+			double x = 6000 + 5000 * Math.cos(theta);
+			double y = 6000 + 5000 * Math.sin(theta);
+			if (i == 0)
+				path.moveTo(x, y);
+			else
+				path.lineTo(x, y);
+		}
+		path.closePath();
+		return path;
+	}
+
+	/**
+	 * Get all the line segments of a shape, including the segment added when a subpath is closed.
+	 */
+	private static List<Line2D> getSegments(Shape shape) {
+		List<Line2D> segments = new ArrayList<>();
+		var iterator = shape.getPathIterator(null);
+		float[] coords = new float[6];
+		float startX = 0, startY = 0, lastX = 0, lastY = 0;
+		while (!iterator.isDone()) {
+			switch (iterator.currentSegment(coords)) {
+			case PathIterator.SEG_MOVETO:
+				startX = lastX = coords[0];
+				startY = lastY = coords[1];
+				break;
+			case PathIterator.SEG_LINETO:
+				segments.add(new Line2D.Float(lastX, lastY, coords[0], coords[1]));
+				lastX = coords[0];
+				lastY = coords[1];
+				break;
+			case PathIterator.SEG_CLOSE:
+				if (lastX != startX || lastY != startY)
+					segments.add(new Line2D.Float(lastX, lastY, startX, startY));
+				break;
+			}
+			iterator.next();
+		}
+		return segments;
+	}
+
+	private static String toKey(Line2D line) {
+		return line.getX1() + "," + line.getY1() + "," + line.getX2() + "," + line.getY2();
+	}
+
+	/**
+	 * Check that an outline contains every segment of the shape that intersects the clip, and no segment more than once.
+	 * @return the number of segments in the outline
+	 */
+	private static int checkOutline(Shape shape, Path2D outline, Rectangle2D clip) {
+		var outlineSegments = getSegments(outline);
+		var keys = new HashSet<String>();
+		for (var segment : outlineSegments)
+			assertTrue("Segment drawn more than once: " + toKey(segment), keys.add(toKey(segment)));
+		int nExpected = 0;
+		for (var segment : getSegments(shape)) {
+			if (segment.intersects(clip)) {
+				assertTrue("Missing segment " + toKey(segment), keys.contains(toKey(segment)));
+				nExpected++;
+			}
+		}
+		assertTrue(nExpected > 0);
+		return outlineSegments.size();
+	}
+
+	@Test
+	public void testClipWithinTile() {
+		var shape = createPolygon(20000);
+		var outline = new TiledOutline(shape, TILE_SIZE);
+		// Region around the rightmost point (11000, 6000), entirely within the tile from (10240, 5120) to (11264, 6144)
+		var clip = new Rectangle2D.Double(10900, 5800, 200, 100);
+		var path = outline.getOutline(clip);
+		assertNotNull(path);
+		int n = checkOutline(shape, path, clip);
+		// Only segments that pass through the tile should be included
+		assertTrue(n < 20000 / 10);
+		var tile = new Rectangle2D.Double(10240, 5120, 1024, 1024);
+		for (var segment : getSegments(path))
+			assertTrue(segment.intersects(tile));
+	}
+
+	@Test
+	public void testClipSpanningTiles() {
+		var shape = createPolygon(20000);
+		var outline = new TiledOutline(shape, TILE_SIZE);
+		// Segments crossing tile boundaries are stored for several tiles, but should only be drawn once
+		for (var clip : new Rectangle2D[] {
+				new Rectangle2D.Double(9000, 4000, 3000, 4000),
+				new Rectangle2D.Double(500, 500, 5000, 5000),
+				new Rectangle2D.Double(1000, 5000, 10000, 100)}) {
+			var path = outline.getOutline(clip);
+			assertNotNull(path);
+			int n = checkOutline(shape, path, clip);
+			assertTrue(n < 20000);
+		}
+	}
+
+	@Test
+	public void testFullClip() {
+		var shape = createPolygon(20000);
+		var outline = new TiledOutline(shape, TILE_SIZE);
+		assertNull(outline.getOutline(shape.getBounds2D()));
+		assertNull(outline.getOutline(new Rectangle2D.Double(-1000, -1000, 20000, 20000)));
+
+		// When every tile is needed, the complete shape should be painted
+		var shapeLevel = new ShapeLevel(shape, TILE_SIZE);
+		assertSame(shape, shapeLevel.getOutline(new Rectangle2D.Double(-1000, -1000, 20000, 20000)));
+		assertSame(shape, shapeLevel.getOutline(null));
+		assertTrue(shapeLevel.getOutline(new Rectangle2D.Double(10900, 5800, 200, 100)) != shape);
+
+		// Shapes with few vertices aren't split into tiles
+		var small = createPolygon(100);
+		assertSame(small, new ShapeLevel(small, TILE_SIZE).getOutline(new Rectangle2D.Double(10900, 5800, 200, 100)));
+	}
+
+	@Test
+	public void testGetLevel() {
+		assertEquals(0, ShapeLevelCache.getLevel(0.5));
+		assertEquals(0, ShapeLevelCache.getLevel(1));
+		assertEquals(0, ShapeLevelCache.getLevel(10));
+		assertEquals(1, ShapeLevelCache.getLevel(10.5));
+		assertEquals(1, ShapeLevelCache.getLevel(20));
+		assertEquals(2, ShapeLevelCache.getLevel(20.5));
+		assertEquals(2, ShapeLevelCache.getLevel(50));
+		assertEquals(3, ShapeLevelCache.getLevel(50.5));
+		assertEquals(3, ShapeLevelCache.getLevel(1000));
+	}
+
+}